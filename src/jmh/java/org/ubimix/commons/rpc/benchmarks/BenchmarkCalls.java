@@ -0,0 +1,64 @@
+package org.ubimix.commons.rpc.benchmarks;
+
+import org.ubimix.commons.events.calls.CallListener;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.json.JsonValue;
+import org.ubimix.commons.json.rpc.RpcRequest;
+import org.ubimix.commons.rpc.RpcCall;
+
+/**
+ * Call types and payloads used by benchmarks.
+ * 
+ * @author kotelnikov
+ */
+public class BenchmarkCalls {
+
+    /**
+     * This call returns its parameters as the result.
+     */
+    public static class Echo extends RpcCall {
+
+        public Echo(RpcRequest request) {
+            super(request);
+        }
+
+        public Echo(String id, JsonValue params) {
+            super(id, params);
+        }
+
+    }
+
+    /**
+     * Server-side handler of the {@link Echo} calls.
+     */
+    public static class EchoHandler extends CallListener<Echo> {
+
+        @Override
+        protected void handleRequest(Echo event) {
+            event.reply(event.getParamsAsObject());
+        }
+
+    }
+
+    /**
+     * Creates and returns new call parameters containing a text of the
+     * specified size.
+     * 
+     * @param size the size of the text
+     * @return new call parameters
+     */
+    public static JsonObject newParams(int size) {
+        StringBuilder buf = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            buf.append((char) ('a' + (i % 26)));
+        }
+        JsonObject params = new JsonObject();
+        params.setValue("size", size);
+        params.setValue("text", buf.toString());
+        return params;
+    }
+
+    private BenchmarkCalls() {
+    }
+
+}
\ No newline at end of file
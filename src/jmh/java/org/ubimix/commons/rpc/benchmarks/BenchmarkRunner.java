@@ -0,0 +1,34 @@
+package org.ubimix.commons.rpc.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks of this package with the GC profiler, so results
+ * contain allocation rates as well as throughput and latency. Standard JMH
+ * command line options could be used to filter benchmarks or to change
+ * parameters. Usage:
+ * 
+ * <pre>
+ * mvn -Pjmh package
+ * java -jar target/benchmarks.jar [JMH options]
+ * </pre>
+ * 
+ * @author kotelnikov
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        Options options = new OptionsBuilder()
+            .parent(cmdOptions)
+            .include(BenchmarkRunner.class.getPackage().getName() + ".*")
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+
+}
\ No newline at end of file
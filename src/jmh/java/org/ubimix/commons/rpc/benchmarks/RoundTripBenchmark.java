@@ -0,0 +1,111 @@
+package org.ubimix.commons.rpc.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ubimix.commons.events.EventManager;
+import org.ubimix.commons.events.IEventManager;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.rpc.RpcCallTestUtil;
+import org.ubimix.commons.rpc.RpcCallsDispatcher;
+import org.ubimix.commons.rpc.RpcCallsDispatcher.RpcMessenger;
+import org.ubimix.commons.rpc.benchmarks.BenchmarkCalls.Echo;
+import org.ubimix.commons.rpc.benchmarks.BenchmarkCalls.EchoHandler;
+
+/**
+ * Measures full in-memory round trips: a call is serialized on the client
+ * side, de-serialized and handled on the server side and the response goes
+ * back the same way.
+ * 
+ * @author kotelnikov
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RoundTripBenchmark {
+
+    private RpcCallsDispatcher fClientDispatcher;
+
+    private IEventManager fClientEventManager;
+
+    private long fCounter;
+
+    private JsonObject fParams;
+
+    /**
+     * The size of the text in call parameters.
+     */
+    @Param({ "16", "1024" })
+    public int fPayloadSize;
+
+    private RpcCallsDispatcher fServerDispatcher;
+
+    private RpcCallTestUtil fTestUtil;
+
+    @Benchmark
+    public JsonObject dispatcher() {
+        Echo call = new Echo(Long.toString(fCounter++), fParams);
+        fClientEventManager.fireEvent(call);
+        return call.getResultObject();
+    }
+
+    @Setup
+    public void setUp() {
+        fParams = BenchmarkCalls.newParams(fPayloadSize);
+
+        final RpcMessenger[] clientMessenger = { null };
+        final RpcMessenger[] serverMessenger = { null };
+        clientMessenger[0] = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                serverMessenger[0].onMessage(msg);
+            }
+        };
+        serverMessenger[0] = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                clientMessenger[0].onMessage(msg);
+            }
+        };
+        fClientEventManager = new EventManager();
+        IEventManager serverEventManager = new EventManager();
+        serverEventManager.addListener(Echo.class, new EchoHandler());
+        fClientDispatcher = new RpcCallsDispatcher();
+        fClientDispatcher.init(fClientEventManager, clientMessenger[0]);
+        fServerDispatcher = new RpcCallsDispatcher();
+        fServerDispatcher.init(serverEventManager, serverMessenger[0]);
+
+        fTestUtil = new RpcCallTestUtil();
+        fTestUtil.getServerEventManager().addListener(
+            Echo.class,
+            new EchoHandler());
+    }
+
+    @TearDown
+    public void tearDown() {
+        fClientDispatcher.done();
+        fServerDispatcher.done();
+    }
+
+    @Benchmark
+    public JsonObject testUtil() {
+        Echo call = new Echo(Long.toString(fCounter++), fParams);
+        fTestUtil.getClientEventManager().fireEvent(call);
+        return call.getResultObject();
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package org.ubimix.commons.rpc.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ubimix.commons.events.EventListenerRegistry;
+import org.ubimix.commons.events.IEventListenerRegistry;
+import org.ubimix.commons.json.rpc.RpcRequest;
+import org.ubimix.commons.rpc.RpcCall;
+import org.ubimix.commons.rpc.RpcCallBuilder;
+import org.ubimix.commons.rpc.benchmarks.BenchmarkCalls.Echo;
+import org.ubimix.commons.rpc.benchmarks.BenchmarkCalls.EchoHandler;
+
+/**
+ * Measures resolution of method names and creation of call objects for
+ * incoming requests.
+ * 
+ * @author kotelnikov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RpcCallBenchmark {
+
+    private RpcCallBuilder fCallBuilder;
+
+    private RpcRequest fRequest;
+
+    @Benchmark
+    public String getMethodName() {
+        return RpcCall.getMethodName(Echo.class);
+    }
+
+    @Benchmark
+    public RpcCall newRpcCall() throws Exception {
+        return fCallBuilder.newRpcCall(fRequest);
+    }
+
+    @Setup
+    public void setUp() {
+        IEventListenerRegistry registry = new EventListenerRegistry();
+        fCallBuilder = new RpcCallBuilder(registry);
+        registry.addListener(Echo.class, new EchoHandler());
+        fRequest = new Echo("1", BenchmarkCalls.newParams(16)).getRequest();
+    }
+
+}
\ No newline at end of file
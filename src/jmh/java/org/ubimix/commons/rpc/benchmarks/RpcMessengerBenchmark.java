@@ -0,0 +1,113 @@
+package org.ubimix.commons.rpc.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ubimix.commons.json.rpc.RpcObject;
+import org.ubimix.commons.json.rpc.RpcRequest;
+import org.ubimix.commons.rpc.RpcCallsDispatcher.IRpcMessenger;
+import org.ubimix.commons.rpc.RpcCallsDispatcher.RpcMessenger;
+import org.ubimix.commons.rpc.RpcStreamMessenger;
+import org.ubimix.commons.rpc.benchmarks.BenchmarkCalls.Echo;
+
+/**
+ * Measures encoding and decoding of messages by string-based and stream-based
+ * messengers with several payload sizes.
+ * 
+ * @author kotelnikov
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RpcMessengerBenchmark {
+
+    private byte[] fBytes;
+
+    private RpcObject fLastReceived;
+
+    private String fLastSent;
+
+    private int fLastSentSize;
+
+    private final IRpcMessenger.IMessageListener fListener = new IRpcMessenger.IMessageListener() {
+        public void onMessage(RpcObject message) {
+            fLastReceived = message;
+        }
+    };
+
+    private RpcMessenger fMessenger;
+
+    /**
+     * The size of the text in call parameters.
+     */
+    @Param({ "16", "1024", "65536" })
+    public int fPayloadSize;
+
+    private RpcRequest fRequest;
+
+    private String fSerialized;
+
+    private RpcStreamMessenger fStreamMessenger;
+
+    @Benchmark
+    public RpcObject decode() {
+        fMessenger.onMessage(fSerialized);
+        return fLastReceived;
+    }
+
+    @Benchmark
+    public RpcObject decodeStream() throws IOException {
+        fStreamMessenger.onMessage(fBytes, 0, fBytes.length);
+        return fLastReceived;
+    }
+
+    @Benchmark
+    public String encode() {
+        fMessenger.postMessage(fRequest);
+        return fLastSent;
+    }
+
+    @Benchmark
+    public int encodeStream() {
+        fStreamMessenger.postMessage(fRequest);
+        return fLastSentSize;
+    }
+
+    @Setup
+    public void setUp() {
+        fRequest = new Echo("1", BenchmarkCalls.newParams(fPayloadSize))
+            .getRequest();
+        fSerialized = fRequest.toString();
+        fBytes = fSerialized.getBytes(RpcStreamMessenger.UTF8);
+        fMessenger = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                fLastSent = msg;
+            }
+        };
+        fMessenger.setMessageListener(fListener);
+        fStreamMessenger = new RpcStreamMessenger() {
+            @Override
+            protected void sendMessage(ByteBuffer buf) {
+                fLastSentSize = buf.remaining();
+            }
+        };
+        fStreamMessenger.setMessageListener(fListener);
+    }
+
+}
\ No newline at end of file
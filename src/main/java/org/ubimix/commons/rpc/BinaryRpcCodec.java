@@ -0,0 +1,390 @@
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.util.Collection;
+import java.util.Map;
+
+import org.ubimix.commons.json.JsonArray;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.json.JsonValue;
+
+/**
+ * A compact binary codec. Messages are encoded using a subset of CBOR (RFC
+ * 7049): integers, UTF-8 strings, arrays, maps with string keys, booleans,
+ * <code>null</code> and 64-bit floating point numbers. Integers are written
+ * with the minimal number of bytes and numbers are never converted to text, so
+ * this codec is much more compact and faster than JSON for numeric data.
+ * Malformed UTF-8 strings and values nested deeper than
+ * {@link JsonStreamReader#DEFAULT_MAX_DEPTH} are rejected.
+ * 
+ * @author kotelnikov
+ */
+public class BinaryRpcCodec implements IRpcCodec {
+
+    /**
+     * Accumulates encoded bytes in a growing pooled buffer.
+     */
+    private static class Encoder {
+
+        private ByteBuffer fBuffer;
+
+        private final ByteBufferPool fPool;
+
+        public Encoder(ByteBufferPool pool) {
+            fPool = pool;
+            fBuffer = pool.acquire();
+        }
+
+        private void ensure(int len) {
+            if (fBuffer.remaining() >= len) {
+                return;
+            }
+            int capacity = Math.max(fBuffer.capacity() * 2, fBuffer.position()
+                + len);
+            ByteBuffer buf = fPool.acquire(capacity);
+            fBuffer.flip();
+            buf.put(fBuffer);
+            fPool.release(fBuffer);
+            fBuffer = buf;
+        }
+
+        public void writeArgument(int major, long value) {
+            ensure(9);
+            int type = major << 5;
+            if (value < 24) {
+                fBuffer.put((byte) (type | (int) value));
+            } else if (value <= 0xFF) {
+                fBuffer.put((byte) (type | 24)).put((byte) value);
+            } else if (value <= 0xFFFF) {
+                fBuffer.put((byte) (type | 25)).putShort((short) value);
+            } else if (value <= 0xFFFFFFFFL) {
+                fBuffer.put((byte) (type | 26)).putInt((int) value);
+            } else {
+                fBuffer.put((byte) (type | 27)).putLong(value);
+            }
+        }
+
+        public void writeDouble(double value) {
+            ensure(9);
+            fBuffer.put((byte) ((MAJOR_SIMPLE << 5) | 27)).putDouble(value);
+        }
+
+        public void writeLong(long value) {
+            if (value >= 0) {
+                writeArgument(MAJOR_UNSIGNED, value);
+            } else {
+                writeArgument(MAJOR_NEGATIVE, -1 - value);
+            }
+        }
+
+        public void writeSimple(int value) {
+            ensure(1);
+            fBuffer.put((byte) ((MAJOR_SIMPLE << 5) | value));
+        }
+
+        public void writeString(String str) {
+            int len = str.length();
+            boolean ascii = true;
+            for (int i = 0; ascii && i < len; i++) {
+                ascii = str.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                writeArgument(MAJOR_TEXT, len);
+                ensure(len);
+                for (int i = 0; i < len; i++) {
+                    fBuffer.put((byte) str.charAt(i));
+                }
+            } else {
+                byte[] bytes = str.getBytes(RpcStreamMessenger.UTF8);
+                writeArgument(MAJOR_TEXT, bytes.length);
+                ensure(bytes.length);
+                fBuffer.put(bytes);
+            }
+        }
+
+    }
+
+    /**
+     * The identifier of this codec.
+     */
+    public static final int ID = 1;
+
+    /**
+     * The shared instance of this codec.
+     */
+    public static final BinaryRpcCodec INSTANCE = new BinaryRpcCodec();
+
+    private static final int MAJOR_ARRAY = 4;
+
+    private static final int MAJOR_MAP = 5;
+
+    private static final int MAJOR_NEGATIVE = 1;
+
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int MAJOR_TEXT = 3;
+
+    private static final int MAJOR_UNSIGNED = 0;
+
+    private static final int SIMPLE_FALSE = 20;
+
+    private static final int SIMPLE_NULL = 22;
+
+    private static final int SIMPLE_TRUE = 21;
+
+    /**
+     * Checks that an array or a map could be read at the given depth.
+     * 
+     * @param depth the number of arrays and maps containing the new one
+     * @throws IOException if values are nested too deeply
+     */
+    private static void checkDepth(int depth) throws IOException {
+        if (depth >= JsonStreamReader.DEFAULT_MAX_DEPTH) {
+            throw new IOException("Values are nested too deeply.");
+        }
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCodec#decode(java.nio.ByteBuffer)
+     */
+    public Object decode(ByteBuffer buf) throws IOException {
+        try {
+            Object value = readValue(buf, 0);
+            if (buf.hasRemaining()) {
+                throw new IOException("Unexpected data after the message.");
+            }
+            return value;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Unexpected end of the message.");
+        }
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCodec#encode(java.lang.Object,
+     *      org.ubimix.commons.rpc.ByteBufferPool)
+     */
+    public ByteBuffer encode(Object message, ByteBufferPool pool)
+        throws IOException {
+        Encoder encoder = new Encoder(pool);
+        boolean ok = false;
+        try {
+            writeValue(encoder, message);
+            ok = true;
+        } finally {
+            if (!ok) {
+                pool.release(encoder.fBuffer);
+            }
+        }
+        encoder.fBuffer.flip();
+        return encoder.fBuffer;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCodec#getId()
+     */
+    public int getId() {
+        return ID;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCodec#getName()
+     */
+    public String getName() {
+        return "cbor";
+    }
+
+    private long readArgument(ByteBuffer buf, int info) throws IOException {
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24:
+                return buf.get() & 0xFF;
+            case 25:
+                return buf.getShort() & 0xFFFF;
+            case 26:
+                return buf.getInt() & 0xFFFFFFFFL;
+            case 27:
+                return buf.getLong();
+            default:
+                throw new IOException("Unsupported argument size: " + info);
+        }
+    }
+
+    private int readSize(ByteBuffer buf, int info) throws IOException {
+        long size = readArgument(buf, info);
+        if (size < 0 || size > buf.remaining()) {
+            throw new IOException("Bad size: " + size + ".");
+        }
+        return (int) size;
+    }
+
+    private String readString(ByteBuffer buf, int len) throws IOException {
+        int pos = buf.position();
+        for (int i = 0; i < len; i++) {
+            if (buf.get(pos + i) < 0) {
+                // Strings with non-ASCII characters are strictly validated
+                ByteBuffer data = buf.slice();
+                data.limit(len);
+                buf.position(pos + len);
+                try {
+                    return RpcStreamMessenger.UTF8
+                        .newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(data)
+                        .toString();
+                } catch (CharacterCodingException e) {
+                    throw new IOException("Malformed UTF-8 string.");
+                }
+            }
+        }
+        String str;
+        if (buf.hasArray()) {
+            int offset = buf.arrayOffset() + buf.position();
+            str = new String(buf.array(), offset, len, RpcStreamMessenger.UTF8);
+            buf.position(buf.position() + len);
+        } else {
+            byte[] bytes = new byte[len];
+            buf.get(bytes);
+            str = new String(bytes, RpcStreamMessenger.UTF8);
+        }
+        return str;
+    }
+
+    /**
+     * Reads one value.
+     * 
+     * @param buf the buffer containing the value
+     * @param depth the number of arrays and maps containing the value
+     * @return the read value
+     * @throws IOException if the value is malformed or nested too deeply
+     */
+    private Object readValue(ByteBuffer buf, int depth) throws IOException {
+        int head = buf.get() & 0xFF;
+        int major = head >>> 5;
+        int info = head & 0x1F;
+        switch (major) {
+            case MAJOR_UNSIGNED: {
+                long value = readArgument(buf, info);
+                if (value < 0) {
+                    throw new IOException("Integer overflow.");
+                }
+                return value;
+            }
+            case MAJOR_NEGATIVE: {
+                long value = readArgument(buf, info);
+                if (value < 0) {
+                    throw new IOException("Integer overflow.");
+                }
+                return -1 - value;
+            }
+            case MAJOR_TEXT:
+                return readString(buf, readSize(buf, info));
+            case MAJOR_ARRAY: {
+                int size = readSize(buf, info);
+                checkDepth(depth);
+                JsonArray array = new JsonArray();
+                for (int i = 0; i < size; i++) {
+                    array.addValue(readValue(buf, depth + 1));
+                }
+                return array;
+            }
+            case MAJOR_MAP: {
+                int size = readSize(buf, info);
+                checkDepth(depth);
+                JsonObject object = new JsonObject();
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue(buf, depth + 1);
+                    if (!(key instanceof String)) {
+                        throw new IOException("Keys should be strings.");
+                    }
+                    object.setValue((String) key, readValue(buf, depth + 1));
+                }
+                return object;
+            }
+            case MAJOR_SIMPLE:
+                switch (info) {
+                    case SIMPLE_FALSE:
+                        return Boolean.FALSE;
+                    case SIMPLE_TRUE:
+                        return Boolean.TRUE;
+                    case SIMPLE_NULL:
+                        return null;
+                    case 26:
+                        return (double) buf.getFloat();
+                    case 27:
+                        return buf.getDouble();
+                    default:
+                        break;
+                }
+                break;
+            default:
+                break;
+        }
+        throw new IOException("Unsupported data item: 0x"
+            + Integer.toHexString(head)
+            + ".");
+    }
+
+    private void writeValue(Encoder encoder, Object value) throws IOException {
+        if (value == null) {
+            encoder.writeSimple(SIMPLE_NULL);
+        } else if (value instanceof String) {
+            encoder.writeString((String) value);
+        } else if (value instanceof JsonArray) {
+            JsonArray array = (JsonArray) value;
+            int size = array.getSize();
+            encoder.writeArgument(MAJOR_ARRAY, size);
+            for (int i = 0; i < size; i++) {
+                writeValue(encoder, array.getValue(i));
+            }
+        } else if (value instanceof JsonValue) {
+            JsonValue object = (JsonValue) value;
+            Collection<String> keys = object.getKeys();
+            encoder.writeArgument(MAJOR_MAP, keys.size());
+            for (String key : keys) {
+                encoder.writeString(key);
+                writeValue(encoder, object.getValue(key));
+            }
+        } else if (value instanceof Long
+            || value instanceof Integer
+            || value instanceof Short
+            || value instanceof Byte) {
+            encoder.writeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                encoder.writeSimple(SIMPLE_NULL);
+            } else {
+                encoder.writeDouble(d);
+            }
+        } else if (value instanceof Boolean) {
+            encoder.writeSimple(((Boolean) value).booleanValue()
+                ? SIMPLE_TRUE
+                : SIMPLE_FALSE);
+        } else if (value instanceof Map<?, ?>) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            encoder.writeArgument(MAJOR_MAP, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                encoder.writeString(String.valueOf(entry.getKey()));
+                writeValue(encoder, entry.getValue());
+            }
+        } else if (value instanceof Collection<?>) {
+            Collection<?> list = (Collection<?>) value;
+            encoder.writeArgument(MAJOR_ARRAY, list.size());
+            for (Object item : list) {
+                writeValue(encoder, item);
+            }
+        } else if (value instanceof RawJson) {
+            writeValue(encoder, ((RawJson) value).parse());
+        } else {
+            encoder.writeString(value.toString());
+        }
+    }
+
+}
\ No newline at end of file
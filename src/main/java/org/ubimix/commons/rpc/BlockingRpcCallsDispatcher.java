@@ -0,0 +1,136 @@
+package org.ubimix.commons.rpc;
+
+import org.ubimix.commons.json.rpc.RpcObject;
+
+/**
+ * A dispatcher blocking threads firing new calls when the maximal number of
+ * in-flight calls is reached (see
+ * {@link #setMaxInFlightCalls(int, OverflowPolicy, int)}). A thread waits for
+ * a free slot at most for the time defined by the
+ * {@link #setMaxBlockingTime(long)} method; after that the overflow policy is
+ * applied.
+ * <p>
+ * Threads delivering messages received from the peer are never blocked: if
+ * such a thread waited for a response it would never receive it. Calls fired
+ * while a message is handled by this dispatcher (for example calls fired by
+ * handlers of remote calls) are immediately processed with the overflow
+ * policy.
+ * </p>
+ * <p>
+ * This class uses monitors, thread-local variables and concurrent tables of
+ * calls, so it can be used only in JVM.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class BlockingRpcCallsDispatcher extends ConcurrentRpcCallsDispatcher {
+
+    /**
+     * The maximal time (in milliseconds) a thread waits for a free in-flight
+     * slot. Non-positive values mean that threads are never blocked.
+     */
+    private volatile long fMaxBlockingTime;
+
+    /**
+     * Threads are waiting for free in-flight slots on this object.
+     */
+    private final Object fSlotMutex = new Object();
+
+    /**
+     * This flag is set for threads delivering messages to this dispatcher.
+     */
+    private final ThreadLocal<Boolean> fTransportThread = new ThreadLocal<Boolean>();
+
+    /**
+     * @param maxBlockingTime the maximal time (in milliseconds) a thread waits
+     *        for a free in-flight slot
+     */
+    public BlockingRpcCallsDispatcher(long maxBlockingTime) {
+        fMaxBlockingTime = maxBlockingTime;
+    }
+
+    /**
+     * Waits until an in-flight slot is released by another thread and
+     * reserves it. If the current thread is interrupted or if the maximal
+     * blocking time is expired then this method returns <code>false</code>
+     * and the overflow policy is applied to the call.
+     * 
+     * @see org.ubimix.commons.rpc.RpcCallsDispatcher#awaitInFlightSlot(org.ubimix.commons.rpc.RpcCall)
+     */
+    @Override
+    protected boolean awaitInFlightSlot(RpcCall event) {
+        long timeout = fMaxBlockingTime;
+        if (timeout <= 0 || fTransportThread.get() != null) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (fSlotMutex) {
+            while (!tryAcquireInFlightSlot()) {
+                long delay = deadline - System.currentTimeMillis();
+                if (delay <= 0 || event.isCancelled()) {
+                    return false;
+                }
+                try {
+                    fSlotMutex.wait(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the maximal time (in milliseconds) a thread waits for a free
+     * in-flight slot.
+     * 
+     * @return the maximal blocking time
+     */
+    public long getMaxBlockingTime() {
+        return fMaxBlockingTime;
+    }
+
+    /**
+     * Marks the current thread as a transport thread while the message is
+     * handled.
+     * 
+     * @see org.ubimix.commons.rpc.RpcCallsDispatcher#handleMessage(org.ubimix.commons.json.rpc.RpcObject)
+     */
+    @Override
+    protected void handleMessage(RpcObject message) {
+        if (fTransportThread.get() != null) {
+            super.handleMessage(message);
+            return;
+        }
+        fTransportThread.set(Boolean.TRUE);
+        try {
+            super.handleMessage(message);
+        } finally {
+            fTransportThread.remove();
+        }
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.RpcCallsDispatcher#onInFlightSlotReleased()
+     */
+    @Override
+    protected void onInFlightSlotReleased() {
+        super.onInFlightSlotReleased();
+        synchronized (fSlotMutex) {
+            fSlotMutex.notifyAll();
+        }
+    }
+
+    /**
+     * Sets the maximal time (in milliseconds) a thread waits for a free
+     * in-flight slot.
+     * 
+     * @param maxBlockingTime the maximal blocking time; non-positive values
+     *        mean that threads are never blocked
+     */
+    public void setMaxBlockingTime(long maxBlockingTime) {
+        fMaxBlockingTime = maxBlockingTime;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,108 @@
+package org.ubimix.commons.rpc;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lock-free pool of byte buffers of the same size. Buffers bigger than the
+ * standard size could be acquired as well but they are never pooled.
+ * 
+ * @author kotelnikov
+ */
+public class ByteBufferPool {
+
+    private final int fBufferSize;
+
+    private final Queue<ByteBuffer> fBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final boolean fDirect;
+
+    private final int fMaxPoolSize;
+
+    private final AtomicInteger fPoolSize = new AtomicInteger();
+
+    /**
+     * Creates a pool of heap buffers of 8 kilobytes; at most 64 buffers are
+     * kept in the pool.
+     */
+    public ByteBufferPool() {
+        this(8 * 1024, 64, false);
+    }
+
+    /**
+     * @param bufferSize the size of pooled buffers
+     * @param maxPoolSize the maximal number of buffers kept in the pool
+     * @param direct if this flag is <code>true</code> then direct buffers are
+     *        allocated
+     */
+    public ByteBufferPool(int bufferSize, int maxPoolSize, boolean direct) {
+        fBufferSize = bufferSize;
+        fMaxPoolSize = maxPoolSize;
+        fDirect = direct;
+    }
+
+    /**
+     * Returns a cleared buffer of the standard size.
+     * 
+     * @return a buffer of the standard size
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = fBuffers.poll();
+        if (buf != null) {
+            fPoolSize.decrementAndGet();
+            return buf;
+        }
+        return allocate(fBufferSize);
+    }
+
+    /**
+     * Returns a cleared buffer with at least the specified capacity.
+     * 
+     * @param capacity the minimal capacity of the buffer
+     * @return a buffer with at least the specified capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity <= fBufferSize) {
+            return acquire();
+        }
+        return allocate(capacity);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return fDirect
+            ? ByteBuffer.allocateDirect(capacity)
+            : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns the size of pooled buffers.
+     * 
+     * @return the size of pooled buffers
+     */
+    public int getBufferSize() {
+        return fBufferSize;
+    }
+
+    /**
+     * Returns the given buffer to this pool. The buffer should not be used
+     * after this call.
+     * 
+     * @param buf the buffer to release
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null
+            || buf.capacity() != fBufferSize
+            || buf.isDirect() != fDirect) {
+            return;
+        }
+        if (fPoolSize.incrementAndGet() <= fMaxPoolSize) {
+            buf.clear();
+            fBuffers.offer(buf);
+        } else {
+            fPoolSize.decrementAndGet();
+        }
+    }
+
+}
\ No newline at end of file
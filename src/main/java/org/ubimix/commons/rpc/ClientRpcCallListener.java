@@ -14,6 +14,11 @@ import org.ubimix.commons.json.rpc.RpcResponse;
  */
 public class ClientRpcCallListener extends CallListener<RpcCall> {
 
+    /**
+     * Metrics notified about calls sent to the handler.
+     */
+    private IRpcMetrics fMetrics;
+
     private IRpcCallHandler fRpcCallHandler;
 
     /**
@@ -23,17 +28,50 @@ public class ClientRpcCallListener extends CallListener<RpcCall> {
         fRpcCallHandler = handler;
     }
 
+    /**
+     * Returns metrics notified about calls sent to the handler.
+     * 
+     * @return the metrics of this listener or <code>null</code> if metrics
+     *         are not collected
+     */
+    public IRpcMetrics getMetrics() {
+        return fMetrics;
+    }
+
     @Override
     protected void handleRequest(final RpcCall event) {
         if (event.hasResponse()) {
             return;
         }
         RpcRequest request = event.getRequest();
+        final IRpcMetrics metrics = fMetrics;
+        final String method = request.getMethod();
+        final long startTime;
+        if (metrics != null) {
+            metrics.onCallStarted(method);
+            startTime = System.nanoTime();
+        } else {
+            startTime = 0;
+        }
         fRpcCallHandler.handle(request, new IRpcCallback() {
             public void finish(RpcResponse response) {
+                if (metrics != null) {
+                    long time = System.nanoTime() - startTime;
+                    metrics.onCallFinished(method, time, response.getError());
+                }
                 event.reply(response);
             }
         });
     }
 
+    /**
+     * Sets metrics notified about calls sent to the handler.
+     * 
+     * @param metrics the metrics to set; if it is <code>null</code> then
+     *        metrics are not collected
+     */
+    public void setMetrics(IRpcMetrics metrics) {
+        fMetrics = metrics;
+    }
+
 }
@@ -0,0 +1,87 @@
+package org.ubimix.commons.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An implementation of the {@link IRpcCallTable} interface based on a
+ * {@link ConcurrentHashMap}. Threads saving and removing calls do not
+ * contend on a common monitor. This class uses java.util.concurrent, so it
+ * can be used only in JVM.
+ * 
+ * @author kotelnikov
+ * @param <K> the type of keys
+ * @param <V> the type of calls
+ */
+public class ConcurrentRpcCallTable<K, V> implements IRpcCallTable<K, V> {
+
+    private final ConcurrentMap<K, V> fMap = new ConcurrentHashMap<K, V>();
+
+    public ConcurrentRpcCallTable() {
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#get(java.lang.Object)
+     */
+    public V get(K key) {
+        return fMap.get(key);
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#put(java.lang.Object,
+     *      java.lang.Object)
+     */
+    public V put(K key, V value) {
+        return fMap.put(key, value);
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#putIfAbsent(java.lang.Object,
+     *      java.lang.Object)
+     */
+    public V putIfAbsent(K key, V value) {
+        return fMap.putIfAbsent(key, value);
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#remove(java.lang.Object)
+     */
+    public V remove(K key) {
+        return fMap.remove(key);
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#remove(java.lang.Object,
+     *      java.lang.Object)
+     */
+    public boolean remove(K key, V value) {
+        return fMap.remove(key, value);
+    }
+
+    /**
+     * Removes all values one by one, so values added concurrently are either
+     * returned or kept in the table.
+     * 
+     * @see org.ubimix.commons.rpc.IRpcCallTable#removeAll()
+     */
+    public List<V> removeAll() {
+        List<V> values = new ArrayList<V>();
+        for (Map.Entry<K, V> entry : fMap.entrySet()) {
+            if (fMap.remove(entry.getKey(), entry.getValue())) {
+                values.add(entry.getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#size()
+     */
+    public int size() {
+        return fMap.size();
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,40 @@
+package org.ubimix.commons.rpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A dispatcher keeping calls in concurrent tables (see
+ * {@link ConcurrentRpcCallTable}) and generating request identifiers with an
+ * atomic counter. Threads firing calls and threads delivering responses do
+ * not contend on common monitors when identifiers are generated and when
+ * calls are saved and removed.
+ * <p>
+ * This class uses java.util.concurrent, so it can be used only in JVM.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class ConcurrentRpcCallsDispatcher extends RpcCallsDispatcher {
+
+    private final AtomicLong fIdCounter = new AtomicLong();
+
+    public ConcurrentRpcCallsDispatcher() {
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.RpcCallsDispatcher#newCallTable()
+     */
+    @Override
+    protected <K, V> IRpcCallTable<K, V> newCallTable() {
+        return new ConcurrentRpcCallTable<K, V>();
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.RpcCallsDispatcher#nextIdCounter()
+     */
+    @Override
+    protected long nextIdCounter() {
+        return fIdCounter.getAndIncrement();
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,298 @@
+package org.ubimix.commons.rpc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed wheel timer implementation of the {@link IRpcTimer} interface. All
+ * scheduled tasks are executed by one worker thread which is started when the
+ * first task is scheduled. Tasks are distributed in "buckets" of a wheel; the
+ * worker thread visits one bucket per tick and expires all tasks with reached
+ * deadlines. Scheduling and cancellation do not require any locks, so this
+ * timer could be shared between many {@link RpcCallsDispatcher} instances.
+ * <p>
+ * Note that the precision of this timer is limited by the tick duration. It is
+ * well suited for expiration of calls but not for exact scheduling.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class HashedWheelTimer implements IRpcTimer {
+
+    /**
+     * Handles of scheduled tasks.
+     */
+    private static class Timeout implements ITimeout {
+
+        private final static int CANCELLED = 1;
+
+        private final static int EXPIRED = 2;
+
+        private final static int INIT = 0;
+
+        /**
+         * The deadline of this task (in nanoseconds) relative to the start of
+         * the timer.
+         */
+        private final long fDeadline;
+
+        /**
+         * The number of the full wheel rotations to wait before this task
+         * expires. This field is managed by the worker thread.
+         */
+        private long fRemainingRounds;
+
+        private final AtomicInteger fState = new AtomicInteger(INIT);
+
+        private final Runnable fTask;
+
+        public Timeout(Runnable task, long deadline) {
+            fTask = task;
+            fDeadline = deadline;
+        }
+
+        /**
+         * @see org.ubimix.commons.rpc.IRpcTimer.ITimeout#cancel()
+         */
+        public boolean cancel() {
+            return fState.compareAndSet(INIT, CANCELLED);
+        }
+
+        public boolean expire() {
+            return fState.compareAndSet(INIT, EXPIRED);
+        }
+
+        public boolean isCancelled() {
+            return fState.get() == CANCELLED;
+        }
+
+    }
+
+    private final static int STATE_INIT = 0;
+
+    private final static int STATE_STARTED = 1;
+
+    private final static int STATE_STOPPED = 2;
+
+    /**
+     * Newly scheduled tasks. They are moved to the wheel by the worker thread.
+     */
+    private final Queue<Timeout> fNewTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    private final long fStartTime = System.nanoTime();
+
+    private final AtomicInteger fState = new AtomicInteger(STATE_INIT);
+
+    private final long fTickDuration;
+
+    private final List<Timeout>[] fWheel;
+
+    private final int fWheelMask;
+
+    private volatile Thread fWorker;
+
+    /**
+     * The default constructor. It creates a timer with 100 milliseconds ticks
+     * and with 512 buckets in the wheel.
+     */
+    public HashedWheelTimer() {
+        this(100, 512);
+    }
+
+    /**
+     * @param tickDuration the duration of one tick in milliseconds
+     * @param wheelSize the number of buckets in the wheel; it is rounded up to
+     *        the next power of two
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(long tickDuration, int wheelSize) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException(
+                "Tick duration should be positive.");
+        }
+        if (wheelSize <= 0) {
+            throw new IllegalArgumentException(
+                "Wheel size should be positive.");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        fWheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            fWheel[i] = new ArrayList<Timeout>();
+        }
+        fWheelMask = size - 1;
+        fTickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+    }
+
+    /**
+     * Expires all tasks from the specified bucket with reached deadlines.
+     * 
+     * @param bucket the bucket to check
+     * @param deadline the deadline of the current tick
+     */
+    private void expireTimeouts(List<Timeout> bucket, long deadline) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.isCancelled()) {
+                iterator.remove();
+            } else if (timeout.fRemainingRounds <= 0) {
+                if (timeout.fDeadline <= deadline) {
+                    iterator.remove();
+                    if (timeout.expire()) {
+                        runTask(timeout.fTask);
+                    }
+                }
+            } else {
+                timeout.fRemainingRounds--;
+            }
+        }
+    }
+
+    /**
+     * This method is called when a scheduled task throws an exception. By
+     * default it delegates the error to the uncaught exception handler of the
+     * worker thread.
+     * 
+     * @param t the error to handle
+     */
+    protected void handleError(Throwable t) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+    }
+
+    /**
+     * Creates and returns a new worker thread.
+     * 
+     * @param worker the runnable executing the main loop of this timer
+     * @return a new worker thread
+     */
+    protected Thread newWorkerThread(Runnable worker) {
+        Thread thread = new Thread(worker, "HashedWheelTimer");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            handleError(t);
+        }
+    }
+
+    /**
+     * The main loop of the worker thread.
+     */
+    private void runWorker() {
+        long tick = 0;
+        while (fState.get() == STATE_STARTED) {
+            long deadline = waitForNextTick(tick);
+            if (deadline < 0) {
+                break;
+            }
+            transferTimeouts(tick);
+            List<Timeout> bucket = fWheel[(int) (tick & fWheelMask)];
+            expireTimeouts(bucket, deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcTimer#schedule(java.lang.Runnable, long)
+     */
+    public ITimeout schedule(Runnable task, long delay) {
+        start();
+        long deadline = System.nanoTime()
+            - fStartTime
+            + TimeUnit.MILLISECONDS.toNanos(delay);
+        Timeout timeout = new Timeout(task, deadline);
+        fNewTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Starts the worker thread of this timer. This method is called
+     * automatically when the first task is scheduled.
+     */
+    public void start() {
+        if (fState.get() == STATE_STARTED) {
+            return;
+        }
+        if (fState.compareAndSet(STATE_INIT, STATE_STARTED)) {
+            fWorker = newWorkerThread(new Runnable() {
+                public void run() {
+                    runWorker();
+                }
+            });
+            fWorker.start();
+        } else if (fState.get() == STATE_STOPPED) {
+            throw new IllegalStateException("The timer was already stopped.");
+        }
+    }
+
+    /**
+     * Stops the worker thread. All non-expired tasks are never executed.
+     */
+    public void stop() {
+        if (fState.getAndSet(STATE_STOPPED) == STATE_STARTED) {
+            Thread worker = fWorker;
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+        fNewTimeouts.clear();
+    }
+
+    /**
+     * Moves newly scheduled tasks to the corresponding buckets of the wheel.
+     * 
+     * @param tick the current tick
+     */
+    private void transferTimeouts(long tick) {
+        Timeout timeout;
+        while ((timeout = fNewTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long expectedTick = timeout.fDeadline / fTickDuration;
+            timeout.fRemainingRounds = (expectedTick - tick) / fWheel.length;
+            long targetTick = Math.max(expectedTick, tick);
+            fWheel[(int) (targetTick & fWheelMask)].add(timeout);
+        }
+    }
+
+    /**
+     * Waits until the end of the specified tick and returns the deadline of
+     * this tick (relative to the start time of this timer).
+     * 
+     * @param tick the tick to wait for
+     * @return the deadline of the tick or -1 if this timer was stopped
+     */
+    private long waitForNextTick(long tick) {
+        long deadline = fTickDuration * (tick + 1);
+        while (true) {
+            long currentTime = System.nanoTime() - fStartTime;
+            long sleepTime = TimeUnit.NANOSECONDS
+                .toMillis(deadline - currentTime + 999999);
+            if (sleepTime <= 0) {
+                return currentTime;
+            }
+            try {
+                Thread.sleep(sleepTime);
+            } catch (InterruptedException e) {
+                if (fState.get() != STATE_STARTED) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+}
\ No newline at end of file
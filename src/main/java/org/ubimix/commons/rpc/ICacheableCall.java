@@ -0,0 +1,22 @@
+package org.ubimix.commons.rpc;
+
+/**
+ * This interface should be implemented by {@link RpcCall} types corresponding
+ * to idempotent (read-only) methods. Responses to such calls could be cached
+ * by a {@link RpcResponseCache} and re-used for requests with the same method
+ * name and the same parameters without invoking handlers.
+ * 
+ * @author kotelnikov
+ */
+public interface ICacheableCall {
+
+    /**
+     * Returns the time (in milliseconds) during which a successful response
+     * to this call could be re-used. Non-positive values mean that the
+     * response should not be cached.
+     * 
+     * @return the time to live of cached responses in milliseconds
+     */
+    long getCacheTimeout();
+
+}
\ No newline at end of file
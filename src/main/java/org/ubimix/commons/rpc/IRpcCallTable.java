@@ -0,0 +1,77 @@
+package org.ubimix.commons.rpc;
+
+import java.util.List;
+
+/**
+ * A table of calls used by the {@link RpcCallsDispatcher} to keep calls
+ * waiting for responses and calls received from the remote peer. All methods
+ * are atomic; implementations define how they are synchronized (see
+ * {@link RpcCallTable} and {@link ConcurrentRpcCallTable}).
+ * 
+ * @author kotelnikov
+ * @param <K> the type of keys
+ * @param <V> the type of calls
+ */
+public interface IRpcCallTable<K, V> {
+
+    /**
+     * Returns the value corresponding to the specified key.
+     * 
+     * @param key the key of the value
+     * @return the value corresponding to the key or <code>null</code>
+     */
+    V get(K key);
+
+    /**
+     * Associates the value with the specified key.
+     * 
+     * @param key the key of the value
+     * @param value the value to put
+     * @return the previous value corresponding to the key or
+     *         <code>null</code>
+     */
+    V put(K key, V value);
+
+    /**
+     * Associates the value with the specified key if there is no value for
+     * this key.
+     * 
+     * @param key the key of the value
+     * @param value the value to put
+     * @return the current value corresponding to the key or
+     *         <code>null</code> if the given value was added
+     */
+    V putIfAbsent(K key, V value);
+
+    /**
+     * Removes and returns the value corresponding to the specified key.
+     * 
+     * @param key the key of the value
+     * @return the removed value or <code>null</code>
+     */
+    V remove(K key);
+
+    /**
+     * Removes the given value if it corresponds to the specified key.
+     * 
+     * @param key the key of the value
+     * @param value the value to remove
+     * @return <code>true</code> if the value was removed
+     */
+    boolean remove(K key, V value);
+
+    /**
+     * Removes and returns all values of this table.
+     * 
+     * @return a list of removed values
+     */
+    List<V> removeAll();
+
+    /**
+     * Returns the number of values in this table.
+     * 
+     * @return the number of values
+     */
+    int size();
+
+}
\ No newline at end of file
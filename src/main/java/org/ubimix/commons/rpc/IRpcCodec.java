@@ -0,0 +1,55 @@
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codecs transform messages (JSON objects and arrays) in bytes and back.
+ * Codecs are used by the {@link RpcStreamMessenger}; they do not change the
+ * message model, so {@link RpcCall} types work with all codecs.
+ * Implementations should be thread-safe.
+ * 
+ * @author kotelnikov
+ */
+public interface IRpcCodec {
+
+    /**
+     * Decodes one message from the given buffer. All remaining bytes of the
+     * buffer are consumed.
+     * 
+     * @param buf the buffer containing an encoded message
+     * @return a {@link org.ubimix.commons.json.JsonObject} or a
+     *         {@link org.ubimix.commons.json.JsonArray}
+     * @throws IOException if the message could not be decoded
+     */
+    Object decode(ByteBuffer buf) throws IOException;
+
+    /**
+     * Encodes the given message in a buffer taken from the specified pool.
+     * The returned buffer is ready to be read; it should be released to the
+     * pool after usage.
+     * 
+     * @param message the message to encode
+     * @param pool the pool of buffers
+     * @return a buffer containing the encoded message
+     * @throws IOException if the message could not be encoded
+     */
+    ByteBuffer encode(Object message, ByteBufferPool pool) throws IOException;
+
+    /**
+     * Returns the identifier of this codec. Identifiers are used by
+     * transports to mark encoded messages; they should be in the range
+     * [0..15]. The identifier 0 is reserved for the JSON text codec.
+     * 
+     * @return the identifier of this codec
+     */
+    int getId();
+
+    /**
+     * Returns a human-readable name of this codec.
+     * 
+     * @return the name of this codec
+     */
+    String getName();
+
+}
\ No newline at end of file
@@ -0,0 +1,58 @@
+package org.ubimix.commons.rpc;
+
+import org.ubimix.commons.json.rpc.RpcError;
+
+/**
+ * Instances of this type receive notifications about handled calls and
+ * transferred messages. This interface could be used to bridge RPC statistics
+ * to an external monitoring system. Implementations are called from all
+ * threads handling calls, so they should be thread-safe and they should not
+ * block. The {@link RpcMetrics} class is the default implementation keeping
+ * statistics in memory.
+ * 
+ * @author kotelnikov
+ */
+public interface IRpcMetrics {
+
+    /**
+     * The name used to report calls of methods which are not registered.
+     * Dispatchers and handlers never report names of unknown methods
+     * received from peers, so the number of method names is bounded.
+     */
+    String UNKNOWN_METHOD = "<unknown>";
+
+    /**
+     * This method is called when a call is finished.
+     * 
+     * @param method the name of the called method
+     * @param time the duration of the call in nanoseconds
+     * @param error the error of the call or <code>null</code> if the call was
+     *        successfully finished
+     */
+    void onCallFinished(String method, long time, RpcError error);
+
+    /**
+     * This method is called when a call is started.
+     * 
+     * @param method the name of the called method
+     */
+    void onCallStarted(String method);
+
+    /**
+     * This method is called when a new message is received.
+     * 
+     * @param size the size of the received message in bytes; string
+     *        transports report the length of the UTF-8 representation of
+     *        messages
+     */
+    void onMessageReceived(long size);
+
+    /**
+     * This method is called when a message is sent.
+     * 
+     * @param size the size of the sent message in bytes; string transports
+     *        report the length of the UTF-8 representation of messages
+     */
+    void onMessageSent(long size);
+
+}
\ No newline at end of file
@@ -0,0 +1,37 @@
+package org.ubimix.commons.rpc;
+
+/**
+ * Instances of this type are used to schedule delayed tasks. The
+ * {@link RpcCallsDispatcher} uses timers to expire calls which were not
+ * answered by the remote peer in time.
+ * 
+ * @author kotelnikov
+ */
+public interface IRpcTimer {
+
+    /**
+     * A handle of a scheduled task.
+     */
+    public interface ITimeout {
+
+        /**
+         * Cancels the scheduled task.
+         * 
+         * @return <code>true</code> if the task was successfully cancelled and
+         *         it will never be executed; <code>false</code> if it was
+         *         already executed or cancelled
+         */
+        boolean cancel();
+
+    }
+
+    /**
+     * Schedules the specified task for execution after the given delay.
+     * 
+     * @param task the task to execute
+     * @param delay the delay in milliseconds
+     * @return a handle of the scheduled task which could be used to cancel it
+     */
+    ITimeout schedule(Runnable task, long delay);
+
+}
\ No newline at end of file
@@ -0,0 +1,146 @@
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The default codec transforming messages in UTF-8 encoded JSON text.
+ * 
+ * @author kotelnikov
+ */
+public class JsonRpcCodec implements IRpcCodec {
+
+    /**
+     * This reader decodes UTF-8 characters directly from a byte buffer.
+     * Malformed UTF-8 sequences are reported as errors.
+     */
+    private static class ByteBufferReader extends Reader {
+
+        private final ByteBuffer fBuffer;
+
+        private final CharsetDecoder fDecoder = RpcStreamMessenger.UTF8
+            .newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        /**
+         * This flag is set when the decoder is flushed; the decoder can not
+         * be used after that.
+         */
+        private boolean fFlushed;
+
+        public ByteBufferReader(ByteBuffer buffer) {
+            fBuffer = buffer;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (fFlushed) {
+                return -1;
+            }
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            CoderResult result = fDecoder.decode(fBuffer, out, true);
+            if (result.isError()) {
+                throw new IOException("Malformed UTF-8 data (byte "
+                    + fBuffer.position()
+                    + ").");
+            }
+            if (!fBuffer.hasRemaining()) {
+                fFlushed = fDecoder.flush(out).isUnderflow();
+            }
+            int count = out.position() - off;
+            return count == 0 ? -1 : count;
+        }
+
+    }
+
+    /**
+     * The identifier of this codec.
+     */
+    public static final int ID = 0;
+
+    /**
+     * The shared instance of this codec.
+     */
+    public static final JsonRpcCodec INSTANCE = new JsonRpcCodec();
+
+    private final boolean fLazyParams;
+
+    /**
+     * Creates a codec keeping parameters of decoded requests in the
+     * serialized form.
+     */
+    public JsonRpcCodec() {
+        this(true);
+    }
+
+    /**
+     * @param lazyParams if this flag is <code>true</code> then parameters of
+     *        decoded requests are not parsed; they are returned as
+     *        {@link RawJson} values
+     * @see JsonStreamReader#readMessage()
+     */
+    public JsonRpcCodec(boolean lazyParams) {
+        fLazyParams = lazyParams;
+    }
+
+    /**
+     * Decodes one JSON value. Malformed UTF-8 sequences, invalid JSON values
+     * and data after the value are reported as errors (like in the
+     * {@link RawJson#parse()} method).
+     * 
+     * @see org.ubimix.commons.rpc.IRpcCodec#decode(java.nio.ByteBuffer)
+     */
+    public Object decode(ByteBuffer buf) throws IOException {
+        JsonStreamReader reader = new JsonStreamReader(
+            new ByteBufferReader(buf));
+        Object value = fLazyParams ? reader.readMessage() : reader.readValue();
+        if (reader.hasNext()) {
+            throw new IOException("Unexpected data after the value.");
+        }
+        return value;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCodec#encode(java.lang.Object,
+     *      org.ubimix.commons.rpc.ByteBufferPool)
+     */
+    public ByteBuffer encode(Object message, ByteBufferPool pool)
+        throws IOException {
+        JsonStreamWriter writer = new JsonStreamWriter(pool);
+        try {
+            writer.writeValue(message);
+            return writer.getBuffer();
+        } catch (IOException e) {
+            writer.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCodec#getId()
+     */
+    public int getId() {
+        return ID;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCodec#getName()
+     */
+    public String getName() {
+        return "json";
+    }
+
+}
\ No newline at end of file
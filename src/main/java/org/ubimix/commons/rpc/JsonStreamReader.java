@@ -0,0 +1,506 @@
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.ubimix.commons.json.JsonArray;
+import org.ubimix.commons.json.JsonObject;
+
+/**
+ * This class reads JSON values directly from a character stream. It builds
+ * {@link JsonObject} and {@link JsonArray} instances without materializing
+ * the whole serialized message as a string. Values are read recursively, so
+ * the nesting depth of objects and arrays is limited (see
+ * {@link #DEFAULT_MAX_DEPTH}).
+ * 
+ * @author kotelnikov
+ */
+public class JsonStreamReader {
+
+    /**
+     * The default maximal nesting depth of objects and arrays.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 256;
+
+    private final char[] fBuf;
+
+    /**
+     * The nesting depth of the object or array read at the moment.
+     */
+    private int fDepth;
+
+    private int fLimit;
+
+    /**
+     * The maximal nesting depth of objects and arrays.
+     */
+    private final int fMaxDepth;
+
+    /**
+     * The number of characters read before the current buffer. It is used in
+     * error messages.
+     */
+    private long fOffset;
+
+    private int fPos;
+
+    /**
+     * This buffer accumulates characters of a value read by the
+     * {@link #readRawValue()} method.
+     */
+    private final StringBuilder fRaw = new StringBuilder();
+
+    /**
+     * The position in the current buffer where the raw value starts or -1 if
+     * no raw value is read.
+     */
+    private int fRawStart = -1;
+
+    private final Reader fReader;
+
+    /**
+     * This buffer is re-used to read strings and numbers.
+     */
+    private final StringBuilder fText = new StringBuilder();
+
+    /**
+     * The number of bytes of the UTF-8 representation of all characters read
+     * from the reader.
+     */
+    private long fUtf8Size;
+
+    /**
+     * @param reader the reader providing serialized JSON values
+     */
+    public JsonStreamReader(Reader reader) {
+        this(reader, 4096);
+    }
+
+    /**
+     * @param reader the reader providing serialized JSON values
+     * @param bufferSize the size of the internal buffer
+     */
+    public JsonStreamReader(Reader reader, int bufferSize) {
+        this(reader, bufferSize, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param reader the reader providing serialized JSON values
+     * @param bufferSize the size of the internal buffer
+     * @param maxDepth the maximal nesting depth of objects and arrays; values
+     *        nested deeper are reported as errors
+     */
+    public JsonStreamReader(Reader reader, int bufferSize, int maxDepth) {
+        fReader = reader;
+        fBuf = new char[bufferSize];
+        fMaxDepth = maxDepth;
+    }
+
+    /**
+     * Checks the nesting depth before reading an object or an array.
+     * 
+     * @throws IOException if the maximal depth is exceeded
+     */
+    private void enter() throws IOException {
+        if (++fDepth > fMaxDepth) {
+            throw newError("Values are nested too deeply");
+        }
+    }
+
+    private void expect(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++) {
+            int ch = next();
+            if (ch != literal.charAt(i)) {
+                throw newError("'" + literal + "' is expected");
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (fRawStart >= 0) {
+            fRaw.append(fBuf, fRawStart, fLimit - fRawStart);
+            fRawStart = 0;
+        }
+        fOffset += fLimit;
+        fPos = 0;
+        fLimit = 0;
+        int len;
+        do {
+            len = fReader.read(fBuf, 0, fBuf.length);
+        } while (len == 0);
+        if (len < 0) {
+            return false;
+        }
+        fLimit = len;
+        for (int i = 0; i < len; i++) {
+            char ch = fBuf[i];
+            if (ch >= 0x800) {
+                // Surrogate pairs are encoded in 4 bytes (2 per char)
+                fUtf8Size += ch >= 0xD800 && ch <= 0xDFFF ? 2 : 3;
+            } else {
+                fUtf8Size += ch >= 0x80 ? 2 : 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of characters consumed by this reader.
+     * 
+     * @return the number of consumed characters
+     */
+    public long getPosition() {
+        return fOffset + fPos;
+    }
+
+    /**
+     * Returns the number of bytes of the UTF-8 representation of all
+     * characters read from the underlying reader. For a reader containing
+     * exactly one message it is the size of the UTF-8 encoded message.
+     * 
+     * @return the number of bytes of the UTF-8 encoded characters
+     */
+    public long getUtf8Size() {
+        return fUtf8Size;
+    }
+
+    /**
+     * Returns <code>true</code> if there are non-whitespace characters in the
+     * stream.
+     * 
+     * @return <code>true</code> if there are more values in the stream
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException {
+        return skipWhitespaces() >= 0;
+    }
+
+    private IOException newError(String msg) {
+        return new IOException(msg + " (position " + getPosition() + ").");
+    }
+
+    private int next() throws IOException {
+        if (fPos == fLimit && !fill()) {
+            return -1;
+        }
+        return fBuf[fPos++];
+    }
+
+    private JsonArray readArray() throws IOException {
+        enter();
+        JsonArray array = new JsonArray();
+        int ch = skipWhitespaces();
+        if (ch == ']') {
+            fPos++;
+            fDepth--;
+            return array;
+        }
+        while (true) {
+            Object value = readValue();
+            array.addValue(value);
+            ch = skipWhitespaces();
+            fPos++;
+            if (ch == ']') {
+                break;
+            }
+            if (ch != ',') {
+                throw newError("',' or ']' is expected");
+            }
+        }
+        fDepth--;
+        return array;
+    }
+
+    private int readHex() throws IOException {
+        int code = 0;
+        for (int i = 0; i < 4; i++) {
+            int ch = next();
+            int digit = Character.digit(ch, 16);
+            if (ch < 0 || digit < 0) {
+                throw newError("Bad unicode escape sequence");
+            }
+            code = (code << 4) | digit;
+        }
+        return code;
+    }
+
+    private Number readNumber() throws IOException {
+        fText.setLength(0);
+        boolean decimal = false;
+        while (true) {
+            if (fPos == fLimit && !fill()) {
+                break;
+            }
+            char ch = fBuf[fPos];
+            if (ch >= '0' && ch <= '9' || ch == '-' || ch == '+') {
+                fText.append(ch);
+            } else if (ch == '.' || ch == 'e' || ch == 'E') {
+                decimal = true;
+                fText.append(ch);
+            } else {
+                break;
+            }
+            fPos++;
+        }
+        String str = fText.toString();
+        try {
+            if (!decimal) {
+                try {
+                    return Long.valueOf(str);
+                } catch (NumberFormatException e) {
+                    // Too big for long values
+                }
+            }
+            return Double.valueOf(str);
+        } catch (NumberFormatException e) {
+            throw newError("Bad number '" + str + "'");
+        }
+    }
+
+    /**
+     * Reads the next message from the stream. This method works like the
+     * {@link #readValue()} method but if the message is a JSON object then
+     * its "params" property is not parsed; it is returned as a
+     * {@link RawJson} instance (see {@link LazyRpcRequest}).
+     * 
+     * @return the next message
+     * @throws IOException if the stream could not be read or if it contains
+     *         an invalid JSON value
+     */
+    public Object readMessage() throws IOException {
+        int ch = skipWhitespaces();
+        if (ch != '{') {
+            return readValue();
+        }
+        fPos++;
+        return readObject("params");
+    }
+
+    /**
+     * Reads an object.
+     * 
+     * @param rawKey the name of the property which value should not be
+     *        parsed; it could be <code>null</code>
+     * @return the read object
+     * @throws IOException
+     */
+    private JsonObject readObject(String rawKey) throws IOException {
+        enter();
+        JsonObject object = new JsonObject();
+        int ch = skipWhitespaces();
+        if (ch == '}') {
+            fPos++;
+            fDepth--;
+            return object;
+        }
+        while (true) {
+            if (ch != '"') {
+                throw newError("A property name is expected");
+            }
+            fPos++;
+            String key = readString();
+            ch = skipWhitespaces();
+            if (ch != ':') {
+                throw newError("':' is expected");
+            }
+            fPos++;
+            Object value = key.equals(rawKey) ? readRawValue() : readValue();
+            object.setValue(key, value);
+            ch = skipWhitespaces();
+            fPos++;
+            if (ch == '}') {
+                break;
+            }
+            if (ch != ',') {
+                throw newError("',' or '}' is expected");
+            }
+            ch = skipWhitespaces();
+        }
+        fDepth--;
+        return object;
+    }
+
+    /**
+     * Reads the next value without parsing. Only the structure of the value
+     * (nested brackets and strings) is checked.
+     * 
+     * @return the serialized value
+     * @throws IOException
+     */
+    private RawJson readRawValue() throws IOException {
+        int ch = skipWhitespaces();
+        if (ch < 0) {
+            throw newError("Unexpected end of the stream");
+        }
+        fRaw.setLength(0);
+        fRawStart = fPos;
+        try {
+            if (ch == '{' || ch == '[' || ch == '"') {
+                skipStructure();
+            } else {
+                while (fPos < fLimit || fill()) {
+                    ch = fBuf[fPos];
+                    if (ch == ','
+                        || ch == '}'
+                        || ch == ']'
+                        || ch == ' '
+                        || ch == '\n'
+                        || ch == '\r'
+                        || ch == '\t') {
+                        break;
+                    }
+                    fPos++;
+                }
+            }
+            fRaw.append(fBuf, fRawStart, fPos - fRawStart);
+        } finally {
+            fRawStart = -1;
+        }
+        return new RawJson(fRaw.toString());
+    }
+
+    private String readString() throws IOException {
+        fText.setLength(0);
+        while (true) {
+            if (fPos == fLimit && !fill()) {
+                throw newError("Unterminated string");
+            }
+            int start = fPos;
+            while (fPos < fLimit) {
+                char ch = fBuf[fPos];
+                if (ch == '"' || ch == '\\') {
+                    break;
+                }
+                fPos++;
+            }
+            fText.append(fBuf, start, fPos - start);
+            if (fPos == fLimit) {
+                continue;
+            }
+            char ch = fBuf[fPos++];
+            if (ch == '"') {
+                break;
+            }
+            int escape = next();
+            switch (escape) {
+                case '"':
+                case '\\':
+                case '/':
+                    fText.append((char) escape);
+                    break;
+                case 'b':
+                    fText.append('\b');
+                    break;
+                case 'f':
+                    fText.append('\f');
+                    break;
+                case 'n':
+                    fText.append('\n');
+                    break;
+                case 'r':
+                    fText.append('\r');
+                    break;
+                case 't':
+                    fText.append('\t');
+                    break;
+                case 'u':
+                    fText.append((char) readHex());
+                    break;
+                default:
+                    throw newError("Bad escape sequence");
+            }
+        }
+        return fText.toString();
+    }
+
+    /**
+     * Reads the next JSON value from the stream. Returned values are
+     * {@link JsonObject}, {@link JsonArray}, {@link String}, {@link Long},
+     * {@link Double}, {@link Boolean} or <code>null</code>.
+     * 
+     * @return the next JSON value
+     * @throws IOException if the stream could not be read or if it contains
+     *         an invalid JSON value
+     */
+    public Object readValue() throws IOException {
+        int ch = skipWhitespaces();
+        switch (ch) {
+            case '{':
+                fPos++;
+                return readObject(null);
+            case '[':
+                fPos++;
+                return readArray();
+            case '"':
+                fPos++;
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            case -1:
+                throw newError("Unexpected end of the stream");
+            default:
+                if (ch == '-' || (ch >= '0' && ch <= '9')) {
+                    return readNumber();
+                }
+                throw newError("Unexpected character '" + (char) ch + "'");
+        }
+    }
+
+    /**
+     * Skips an object, an array or a string starting at the current position.
+     * 
+     * @throws IOException
+     */
+    private void skipStructure() throws IOException {
+        int depth = 0;
+        boolean string = false;
+        do {
+            int ch = next();
+            if (ch < 0) {
+                throw newError("Unexpected end of the stream");
+            }
+            if (string) {
+                if (ch == '\\') {
+                    next();
+                } else if (ch == '"') {
+                    string = false;
+                }
+            } else if (ch == '"') {
+                string = true;
+            } else if (ch == '{' || ch == '[') {
+                depth++;
+            } else if (ch == '}' || ch == ']') {
+                depth--;
+            }
+        } while (string || depth > 0);
+    }
+
+    /**
+     * Skips all whitespaces and returns the next character without consuming
+     * it.
+     * 
+     * @return the next non-whitespace character or -1 if the end of the stream
+     *         is reached
+     * @throws IOException
+     */
+    private int skipWhitespaces() throws IOException {
+        while (true) {
+            if (fPos == fLimit && !fill()) {
+                return -1;
+            }
+            char ch = fBuf[fPos];
+            if (ch != ' ' && ch != '\n' && ch != '\r' && ch != '\t') {
+                return ch;
+            }
+            fPos++;
+        }
+    }
+
+}
\ No newline at end of file
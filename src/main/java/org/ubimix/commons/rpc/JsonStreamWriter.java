@@ -0,0 +1,375 @@
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Map;
+
+import org.ubimix.commons.json.JsonArray;
+import org.ubimix.commons.json.JsonValue;
+
+/**
+ * This class serializes JSON values directly in UTF-8 bytes. Bytes are written
+ * in buffers taken from a {@link ByteBufferPool}. If a channel is defined then
+ * the buffer is flushed to this channel each time when it is full, so the
+ * serialized value never exists in memory as a whole; otherwise the buffer
+ * grows and it contains the full serialized value at the end.
+ * 
+ * @author kotelnikov
+ */
+public class JsonStreamWriter {
+
+    private static final String HEX = "0123456789abcdef";
+
+    private ByteBuffer fBuffer;
+
+    private final WritableByteChannel fChannel;
+
+    /**
+     * This buffer is used to serialize integer numbers.
+     */
+    private final byte[] fDigits = new byte[20];
+
+    /**
+     * The number of bytes already written to the channel.
+     */
+    private long fFlushed;
+
+    private final ByteBufferPool fPool;
+
+    /**
+     * Creates a new writer accumulating the serialized value in a buffer (see
+     * {@link #getBuffer()}).
+     * 
+     * @param pool the pool of buffers
+     */
+    public JsonStreamWriter(ByteBufferPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * Creates a new writer sending serialized values to the specified channel.
+     * 
+     * @param pool the pool of buffers
+     * @param channel the channel receiving serialized values; if it is
+     *        <code>null</code> then the serialized value is accumulated in
+     *        the buffer
+     */
+    public JsonStreamWriter(ByteBufferPool pool, WritableByteChannel channel) {
+        fPool = pool;
+        fChannel = channel;
+        fBuffer = pool.acquire();
+    }
+
+    /**
+     * Makes sure that the current buffer contains at least the specified
+     * number of free bytes.
+     * 
+     * @param len the required number of bytes
+     * @throws IOException
+     */
+    private void ensure(int len) throws IOException {
+        if (fBuffer.remaining() >= len) {
+            return;
+        }
+        if (fChannel != null && len <= fBuffer.capacity()) {
+            flush();
+        } else {
+            int capacity = Math.max(fBuffer.capacity() * 2, fBuffer.position()
+                + len);
+            ByteBuffer buf = fPool.acquire(capacity);
+            fBuffer.flip();
+            buf.put(fBuffer);
+            fPool.release(fBuffer);
+            fBuffer = buf;
+        }
+    }
+
+    /**
+     * Writes all accumulated bytes to the channel. This method does nothing
+     * if this writer has no channel.
+     * 
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (fChannel == null) {
+            return;
+        }
+        fBuffer.flip();
+        fFlushed += fBuffer.remaining();
+        while (fBuffer.hasRemaining()) {
+            fChannel.write(fBuffer);
+        }
+        fBuffer.clear();
+    }
+
+    /**
+     * Returns the buffer containing the serialized value(s). The returned
+     * buffer is ready to be read (it is flipped). It should be returned to the
+     * pool after usage (see {@link #release()}).
+     * 
+     * @return the buffer containing serialized values
+     */
+    public ByteBuffer getBuffer() {
+        fBuffer.flip();
+        return fBuffer;
+    }
+
+    /**
+     * Returns the total number of bytes written by this writer (including
+     * bytes already flushed to the channel).
+     * 
+     * @return the total number of written bytes
+     */
+    public long getSize() {
+        return fFlushed + fBuffer.position();
+    }
+
+    /**
+     * Returns the internal buffer to the pool. This writer should not be used
+     * after this call.
+     */
+    public void release() {
+        fPool.release(fBuffer);
+        fBuffer = null;
+    }
+
+    private void writeArray(Collection<?> list) throws IOException {
+        writeByte('[');
+        boolean first = true;
+        for (Object value : list) {
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeValue(value);
+        }
+        writeByte(']');
+    }
+
+    private void writeArray(JsonArray array) throws IOException {
+        writeByte('[');
+        int size = array.getSize();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            writeValue(array.getValue(i));
+        }
+        writeByte(']');
+    }
+
+    private void writeAscii(String str) throws IOException {
+        int len = str.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            fBuffer.put((byte) str.charAt(i));
+        }
+    }
+
+    private void writeByte(char ch) throws IOException {
+        ensure(1);
+        fBuffer.put((byte) ch);
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensure(fDigits.length);
+        if (value < 0) {
+            fBuffer.put((byte) '-');
+            value = -value;
+        }
+        int pos = fDigits.length;
+        do {
+            fDigits[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        fBuffer.put(fDigits, pos, fDigits.length - pos);
+    }
+
+    private void writeObject(JsonValue object) throws IOException {
+        writeByte('{');
+        boolean first = true;
+        for (String key : object.getKeys()) {
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString(key);
+            writeByte(':');
+            writeValue(object.getValue(key));
+        }
+        writeByte('}');
+    }
+
+    private void writeObject(Map<?, ?> map) throws IOException {
+        writeByte('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString(String.valueOf(entry.getKey()));
+            writeByte(':');
+            writeValue(entry.getValue());
+        }
+        writeByte('}');
+    }
+
+    /**
+     * Writes UTF-8 bytes of the given characters. Unpaired surrogates are
+     * written as unicode escape sequences if the escaping is enabled;
+     * otherwise they are replaced by the U+FFFD character.
+     * 
+     * @param str the characters to write
+     * @param escape if this flag is <code>true</code> then special characters
+     *        are escaped using JSON escape sequences
+     * @throws IOException
+     */
+    private void writeChars(String str, boolean escape) throws IOException {
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            char ch = str.charAt(i);
+            if (ch < 0x80) {
+                ensure(6);
+                if (!escape) {
+                    fBuffer.put((byte) ch);
+                    continue;
+                }
+                switch (ch) {
+                    case '"':
+                    case '\\':
+                        fBuffer.put((byte) '\\').put((byte) ch);
+                        break;
+                    case '\n':
+                        fBuffer.put((byte) '\\').put((byte) 'n');
+                        break;
+                    case '\r':
+                        fBuffer.put((byte) '\\').put((byte) 'r');
+                        break;
+                    case '\t':
+                        fBuffer.put((byte) '\\').put((byte) 't');
+                        break;
+                    default:
+                        if (ch < 0x20) {
+                            fBuffer
+                                .put((byte) '\\')
+                                .put((byte) 'u')
+                                .put((byte) '0')
+                                .put((byte) '0')
+                                .put((byte) HEX.charAt((ch >> 4) & 0xF))
+                                .put((byte) HEX.charAt(ch & 0xF));
+                        } else {
+                            fBuffer.put((byte) ch);
+                        }
+                }
+            } else if (ch < 0x800) {
+                ensure(2);
+                fBuffer.put((byte) (0xC0 | (ch >> 6)));
+                fBuffer.put((byte) (0x80 | (ch & 0x3F)));
+            } else if (Character.isHighSurrogate(ch)
+                && i + 1 < len
+                && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int code = Character.toCodePoint(ch, str.charAt(++i));
+                ensure(4);
+                fBuffer.put((byte) (0xF0 | (code >> 18)));
+                fBuffer.put((byte) (0x80 | ((code >> 12) & 0x3F)));
+                fBuffer.put((byte) (0x80 | ((code >> 6) & 0x3F)));
+                fBuffer.put((byte) (0x80 | (code & 0x3F)));
+            } else if (ch >= 0xD800 && ch <= 0xDFFF) {
+                // Unpaired surrogates are not valid in UTF-8, so they are
+                // escaped in strings and replaced by U+FFFD in raw values
+                ensure(6);
+                if (escape) {
+                    fBuffer
+                        .put((byte) '\\')
+                        .put((byte) 'u')
+                        .put((byte) HEX.charAt((ch >> 12) & 0xF))
+                        .put((byte) HEX.charAt((ch >> 8) & 0xF))
+                        .put((byte) HEX.charAt((ch >> 4) & 0xF))
+                        .put((byte) HEX.charAt(ch & 0xF));
+                } else {
+                    fBuffer.put((byte) 0xEF);
+                    fBuffer.put((byte) 0xBF);
+                    fBuffer.put((byte) 0xBD);
+                }
+            } else {
+                ensure(3);
+                fBuffer.put((byte) (0xE0 | (ch >> 12)));
+                fBuffer.put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+                fBuffer.put((byte) (0x80 | (ch & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Writes UTF-8 bytes of the given string as is (without quotes and
+     * escaping). This method is used to write already serialized values.
+     * 
+     * @param str the string to write
+     * @throws IOException
+     */
+    public void writeRaw(String str) throws IOException {
+        writeChars(str, false);
+    }
+
+    /**
+     * Writes the given string as a quoted and escaped JSON string.
+     * 
+     * @param str the string to write
+     * @throws IOException
+     */
+    public void writeString(String str) throws IOException {
+        writeByte('"');
+        writeChars(str, true);
+        writeByte('"');
+    }
+
+    /**
+     * Serializes the given value. The value could be a {@link JsonValue}, a
+     * map, a collection, a string, a number, a boolean, a not parsed
+     * {@link RawJson} value or <code>null</code>.
+     * 
+     * @param value the value to write
+     * @throws IOException
+     */
+    public void writeValue(Object value) throws IOException {
+        if (value == null) {
+            writeAscii("null");
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof JsonArray) {
+            writeArray((JsonArray) value);
+        } else if (value instanceof JsonValue) {
+            writeObject((JsonValue) value);
+        } else if (value instanceof Long
+            || value instanceof Integer
+            || value instanceof Short
+            || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                writeAscii("null");
+            } else {
+                writeAscii(value.toString());
+            }
+        } else if (value instanceof Boolean) {
+            writeAscii(((Boolean) value).booleanValue() ? "true" : "false");
+        } else if (value instanceof Map<?, ?>) {
+            writeObject((Map<?, ?>) value);
+        } else if (value instanceof Collection<?>) {
+            writeArray((Collection<?>) value);
+        } else if (value instanceof RawJson) {
+            writeChars(((RawJson) value).getText(), false);
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,122 @@
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+
+import org.ubimix.commons.json.JsonArray;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.json.JsonValue;
+import org.ubimix.commons.json.rpc.RpcObject;
+import org.ubimix.commons.json.rpc.RpcRequest;
+
+/**
+ * A request with parameters kept in the serialized form. The envelope of the
+ * request (identifier and method name) is available immediately but
+ * parameters are parsed only the first time when they are accessed. So calls
+ * which are rejected, routed or answered from a cache do not pay for parsing
+ * of their parameters. Not parsed parameters are written "as is" by the
+ * {@link JsonStreamWriter}.
+ * 
+ * @author kotelnikov
+ */
+public class LazyRpcRequest extends RpcRequest {
+
+    private static final String PARAMS = "params";
+
+    /**
+     * Transforms the given JSON object (returned by the
+     * {@link JsonStreamReader#readMessage()} method) in an RPC object. If the
+     * object is a request with not parsed parameters then this method returns
+     * a {@link LazyRpcRequest} instance.
+     * 
+     * @param json the JSON object to transform
+     * @return an RPC object corresponding to the given JSON object
+     * @throws IOException if the parameters of a non-request object could not
+     *         be parsed
+     */
+    public static RpcObject newRpcObject(JsonObject json) throws IOException {
+        Object params = json.getValue(PARAMS);
+        if (params instanceof RawJson) {
+            if (json.getValue("method") == null) {
+                json.setValue(PARAMS, ((RawJson) params).parse());
+            } else {
+                LazyRpcRequest request = new LazyRpcRequest();
+                for (String key : json.getKeys()) {
+                    request.setValue(key, json.getValue(key));
+                }
+                return request;
+            }
+        }
+        return RpcObject.toRpcObject(json);
+    }
+
+    /**
+     * @see org.ubimix.commons.json.rpc.RpcRequest#getParams()
+     */
+    @Override
+    public JsonValue getParams() {
+        parseParams();
+        return super.getParams();
+    }
+
+    /**
+     * @see org.ubimix.commons.json.rpc.RpcRequest#getParamsAsArray()
+     */
+    @Override
+    public JsonArray getParamsAsArray() {
+        parseParams();
+        return super.getParamsAsArray();
+    }
+
+    /**
+     * @see org.ubimix.commons.json.rpc.RpcRequest#getParamsAsObject()
+     */
+    @Override
+    public JsonObject getParamsAsObject() {
+        parseParams();
+        return super.getParamsAsObject();
+    }
+
+    /**
+     * Returns <code>true</code> if parameters of this request are already
+     * parsed (or if this request has no parameters).
+     * 
+     * @return <code>true</code> if parameters are parsed
+     */
+    public synchronized boolean isParsed() {
+        return !(getValue(PARAMS) instanceof RawJson);
+    }
+
+    /**
+     * Parses serialized parameters and replaces them by the resulting value.
+     * Handlers accessing bad parameters fail with the
+     * {@link RpcParseException}, so the caller receives the
+     * {@link RpcCall#ERROR_PARSE} error.
+     * 
+     * @throws RpcParseException if parameters are not a valid JSON value
+     */
+    private synchronized void parseParams() {
+        Object value = getValue(PARAMS);
+        if (value instanceof RawJson) {
+            try {
+                setValue(PARAMS, ((RawJson) value).parse());
+            } catch (IOException e) {
+                throw new RpcParseException(
+                    "Bad parameters: " + e.getMessage(),
+                    e);
+            }
+        }
+    }
+
+    /**
+     * Parameters are parsed before serialization because the default
+     * serializer does not know the {@link RawJson} type.
+     * 
+     * @see org.ubimix.commons.json.JsonValue#toString()
+     */
+    @Override
+    public String toString() {
+        parseParams();
+        return super.toString();
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,718 @@
+package org.ubimix.commons.rpc;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.json.rpc.RpcError;
+import org.ubimix.commons.json.rpc.RpcObject;
+import org.ubimix.commons.json.rpc.RpcRequest;
+import org.ubimix.commons.json.rpc.RpcResponse;
+import org.ubimix.commons.rpc.RpcCallsDispatcher.IRpcMessenger;
+
+/**
+ * This messenger distributes calls between several peers. It is used by one
+ * {@link RpcCallsDispatcher} to talk to a pool of equivalent servers. Each
+ * outgoing call is sent to the available peer with the smallest number of
+ * outstanding calls (or to the best of two randomly chosen peers, see
+ * {@link #setPowerOfTwoChoices(boolean)}). Responses to calls received from
+ * peers are sent back to the peer which sent the call. Notifications about
+ * calls are routed by the identifiers of these calls: cancellations and
+ * stream credits (see {@link RpcCallsDispatcher#METHOD_CANCEL_REQUEST} and
+ * {@link RpcCallsDispatcher#METHOD_STREAM_CREDIT}) are sent to the peer
+ * executing the call, result chunks (see
+ * {@link RpcCallsDispatcher#METHOD_RESULT_CHUNK}) are sent to the peer which
+ * sent the call.
+ * <p>
+ * Peers choose identifiers of their calls independently, so calls received
+ * from peers get new identifiers unique for this messenger (see
+ * {@link #ID_PREFIX}) before they are delivered to the dispatcher. The
+ * original identifiers are put back in responses and result chunks sent to
+ * the peers.
+ * </p>
+ * <p>
+ * Peers are ejected from the pool when they fail too many calls in a row (see
+ * {@link #setEjection(int, long)}). A failure is a response with an internal,
+ * "overloaded" or "timeout" error, a call not answered in time (see
+ * {@link #setTimeout(IRpcTimer, long)}) or an exception thrown when a message
+ * is sent. Ejected peers receive no calls until the ejection time is over. If
+ * all peers are ejected then calls are distributed between all of them.
+ * </p>
+ * <p>
+ * Example of usage:
+ * </p>
+ * 
+ * <pre>
+ * LoadBalancingRpcMessenger messenger = new LoadBalancingRpcMessenger();
+ * messenger.addPeer(first);
+ * messenger.addPeer(second);
+ * RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+ * dispatcher.init(eventManager, messenger);
+ * </pre>
+ * 
+ * @author kotelnikov
+ */
+public class LoadBalancingRpcMessenger implements IRpcMessenger {
+
+    /**
+     * A call received from a peer and waiting for a local response.
+     */
+    private static class IncomingCall {
+
+        private final Object fId;
+
+        private final String fLocalId;
+
+        private final Peer fPeer;
+
+        public IncomingCall(Peer peer, Object id, String localId) {
+            fPeer = peer;
+            fId = id;
+            fLocalId = localId;
+        }
+
+    }
+
+    /**
+     * A call sent to a peer and waiting for a response. Instances of this
+     * type are also used as timeout tasks.
+     */
+    private class OutstandingCall implements Runnable {
+
+        private final String fId;
+
+        private final Peer fPeer;
+
+        private volatile IRpcTimer.ITimeout fTimeout;
+
+        public OutstandingCall(String id, Peer peer) {
+            fId = id;
+            fPeer = peer;
+        }
+
+        public void cancelTimeout() {
+            IRpcTimer.ITimeout timeout = fTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        /**
+         * This method is called by the timer when the call expires.
+         */
+        public void run() {
+            if (fCalls.remove(fId, this)) {
+                fPeer.onFailure();
+            }
+        }
+
+    }
+
+    /**
+     * A peer of the pool.
+     */
+    public class Peer {
+
+        /**
+         * The time (in milliseconds) until which this peer is ejected.
+         */
+        private volatile long fEjectedUntil;
+
+        /**
+         * The number of calls failed in a row.
+         */
+        private final AtomicInteger fFailures = new AtomicInteger();
+
+        /**
+         * Calls received from this peer and waiting for local responses. Keys
+         * of this map are identifiers given to calls by this peer.
+         */
+        private final ConcurrentMap<String, IncomingCall> fIncomingCalls = new ConcurrentHashMap<String, IncomingCall>();
+
+        private final IRpcMessenger fMessenger;
+
+        private final AtomicInteger fOutstanding = new AtomicInteger();
+
+        public Peer(IRpcMessenger messenger) {
+            fMessenger = messenger;
+        }
+
+        /**
+         * Returns the number of calls failed in a row by this peer.
+         * 
+         * @return the number of consecutive failures
+         */
+        public int getFailuresCount() {
+            return fFailures.get();
+        }
+
+        /**
+         * Returns the messenger used to communicate with this peer.
+         * 
+         * @return the messenger of this peer
+         */
+        public IRpcMessenger getMessenger() {
+            return fMessenger;
+        }
+
+        /**
+         * Returns the number of calls sent to this peer and waiting for
+         * responses.
+         * 
+         * @return the number of outstanding calls
+         */
+        public int getOutstandingCount() {
+            return fOutstanding.get();
+        }
+
+        /**
+         * Returns <code>true</code> if this peer is not ejected.
+         * 
+         * @return <code>true</code> if this peer could receive new calls
+         */
+        public boolean isAvailable() {
+            return isAvailable(System.currentTimeMillis());
+        }
+
+        private boolean isAvailable(long now) {
+            return fEjectedUntil <= now;
+        }
+
+        void onCancelled() {
+            fOutstanding.decrementAndGet();
+        }
+
+        void onFailure() {
+            fOutstanding.decrementAndGet();
+            onSendFailure();
+        }
+
+        void onSendFailure() {
+            if (fFailures.incrementAndGet() >= fMaxFailures) {
+                fFailures.set(0);
+                fEjectedUntil = System.currentTimeMillis() + fEjectionTime;
+            }
+        }
+
+        void onSent() {
+            fOutstanding.incrementAndGet();
+        }
+
+        void onSuccess() {
+            fOutstanding.decrementAndGet();
+            fFailures.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return "Peer[outstanding="
+                + getOutstandingCount()
+                + ", failures="
+                + getFailuresCount()
+                + ", available="
+                + isAvailable()
+                + "]";
+        }
+
+    }
+
+    /**
+     * The default ejection time of failed peers (in milliseconds).
+     */
+    public static final long DEFAULT_EJECTION_TIME = 30 * 1000;
+
+    /**
+     * The default number of calls failed in a row after which a peer is
+     * ejected.
+     */
+    public static final int DEFAULT_MAX_FAILURES = 5;
+
+    /**
+     * Identifiers given to calls received from peers start with this prefix.
+     */
+    public static final String ID_PREFIX = "peer-";
+
+    /**
+     * The JSON-RPC "internal error" code.
+     */
+    private static final int ERROR_INTERNAL = -32603;
+
+    private static final Peer[] NO_PEERS = {};
+
+    /**
+     * Calls sent to peers and waiting for responses. Keys of this map are
+     * request identifiers.
+     */
+    private final ConcurrentMap<String, OutstandingCall> fCalls = new ConcurrentHashMap<String, OutstandingCall>();
+
+    private volatile long fEjectionTime = DEFAULT_EJECTION_TIME;
+
+    /**
+     * Calls received from peers and waiting for local responses. Keys of this
+     * map are identifiers given to calls by this messenger.
+     */
+    private final ConcurrentMap<String, IncomingCall> fIncomingCalls = new ConcurrentHashMap<String, IncomingCall>();
+
+    private final AtomicLong fIncomingCounter = new AtomicLong();
+
+    private volatile IMessageListener fListener;
+
+    private volatile int fMaxFailures = DEFAULT_MAX_FAILURES;
+
+    /**
+     * This counter is used to start the search of the least loaded peer from
+     * different positions, so peers with the same load are used in turn.
+     */
+    private final AtomicInteger fNext = new AtomicInteger();
+
+    /**
+     * All peers of this pool. This array is never modified; it is replaced by
+     * a new copy when peers are added or removed, so it can be read without
+     * synchronization.
+     */
+    private volatile Peer[] fPeers = NO_PEERS;
+
+    private volatile boolean fPowerOfTwoChoices;
+
+    private final Random fRandom = new Random();
+
+    private volatile long fTimeout;
+
+    private volatile IRpcTimer fTimer;
+
+    public LoadBalancingRpcMessenger() {
+    }
+
+    /**
+     * Adds a new peer to this pool. The message listener of the given
+     * messenger is replaced by this object.
+     * 
+     * @param messenger the messenger used to communicate with the new peer
+     * @return the added peer
+     */
+    public Peer addPeer(IRpcMessenger messenger) {
+        final Peer peer = new Peer(messenger);
+        messenger.setMessageListener(new IMessageListener() {
+            public void onMessage(RpcObject message) {
+                handleMessage(peer, message);
+            }
+        });
+        synchronized (this) {
+            Peer[] peers = new Peer[fPeers.length + 1];
+            System.arraycopy(fPeers, 0, peers, 0, fPeers.length);
+            peers[fPeers.length] = peer;
+            fPeers = peers;
+        }
+        return peer;
+    }
+
+    /**
+     * Returns a shallow copy of the given object where the specified field is
+     * replaced by the new value.
+     * 
+     * @param obj the object to copy
+     * @param copy the new empty object receiving fields of the copied object
+     * @param key the key of the replaced field
+     * @param value the new value of the field
+     * @return the copy of the object
+     */
+    private static <T extends JsonObject> T copy(
+        JsonObject obj,
+        T copy,
+        String key,
+        Object value) {
+        for (String k : obj.getKeys()) {
+            copy.setValue(k, obj.getValue(k));
+        }
+        copy.setValue(key, value);
+        return copy;
+    }
+
+    /**
+     * Returns a copy of the given notification about a call where the
+     * identifier of the call (the "id" parameter) is replaced.
+     * 
+     * @param message the notification to copy
+     * @param id the new identifier of the call
+     * @return a copy of the notification
+     */
+    private static RpcRequest copyNotification(RpcRequest message, Object id) {
+        JsonObject params = copy(
+            message.getParamsAsObject(),
+            new JsonObject(),
+            "id",
+            id);
+        return copy(message, new RpcRequest(), "params", params);
+    }
+
+    /**
+     * Returns the identifier of the call referenced by the given notification
+     * (the "id" parameter).
+     * 
+     * @param message the notification
+     * @return the identifier of the call or <code>null</code>
+     */
+    private static String getCallId(RpcRequest message) {
+        JsonObject params = message.getParamsAsObject();
+        Object id = params != null ? params.getValue("id") : null;
+        return id != null ? id.toString() : null;
+    }
+
+    /**
+     * Returns the number of calls sent to peers and waiting for responses.
+     * 
+     * @return the number of outstanding calls
+     */
+    public int getOutstandingCount() {
+        return fCalls.size();
+    }
+
+    /**
+     * Returns all peers of this pool.
+     * 
+     * @return a copy of the list of peers
+     */
+    public Peer[] getPeers() {
+        return fPeers.clone();
+    }
+
+    /**
+     * Handles a message received from a peer.
+     * 
+     * @param peer the peer sent the message
+     * @param message the received message
+     */
+    private void handleMessage(Peer peer, RpcObject message) {
+        if (message instanceof RpcResponse) {
+            RpcResponse response = (RpcResponse) message;
+            String id = response.getIdAsString();
+            OutstandingCall call = id != null ? fCalls.remove(id) : null;
+            if (call != null) {
+                call.cancelTimeout();
+                if (isFailure(response.getError())) {
+                    call.fPeer.onFailure();
+                } else {
+                    call.fPeer.onSuccess();
+                }
+            }
+        } else if (message instanceof RpcRequest) {
+            message = receiveRequest(peer, (RpcRequest) message);
+        }
+        IMessageListener listener = fListener;
+        if (listener != null) {
+            listener.onMessage(message);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the given response error means that the
+     * peer is unhealthy. By default internal errors, "overloaded" and
+     * "timeout" errors are considered as failures; application errors (like
+     * "method not found") are not. This method could be overloaded in
+     * subclasses.
+     * 
+     * @param error the error of a response or <code>null</code>
+     * @return <code>true</code> if the error should be counted as a failure of
+     *         the peer
+     */
+    protected boolean isFailure(RpcError error) {
+        if (error == null) {
+            return false;
+        }
+        int code = error.getCode();
+        return code == ERROR_INTERNAL
+            || code == RpcCall.ERROR_OVERLOADED
+            || code == RpcCall.ERROR_TIMEOUT;
+    }
+
+    /**
+     * Returns <code>true</code> if peers are chosen using the
+     * "power of two choices" algorithm.
+     * 
+     * @return <code>true</code> if the "power of two choices" algorithm is
+     *         used
+     */
+    public boolean isPowerOfTwoChoices() {
+        return fPowerOfTwoChoices;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.RpcCallsDispatcher.IRpcMessenger#postMessage(org.ubimix.commons.json.JsonObject)
+     */
+    public void postMessage(JsonObject message) {
+        RpcObject obj = message instanceof RpcObject
+            ? (RpcObject) message
+            : RpcObject.toRpcObject(message);
+        String id = obj.getIdAsString();
+        if (obj instanceof RpcResponse) {
+            IncomingCall call = id != null ? fIncomingCalls.remove(id) : null;
+            if (call != null) {
+                Peer peer = call.fPeer;
+                peer.fIncomingCalls.remove(call.fId.toString(), call);
+                peer.fMessenger.postMessage(copy(
+                    obj,
+                    new RpcResponse(),
+                    "id",
+                    call.fId));
+            }
+        } else if (id != null) {
+            sendCall(id, obj);
+        } else {
+            sendNotification(obj);
+        }
+    }
+
+    /**
+     * Gives a new identifier to a call received from the specified peer.
+     * Notifications about calls of this peer (cancellations and stream
+     * credits) are updated to reference the new identifiers of the calls.
+     * 
+     * @param peer the peer which sent the message
+     * @param message the received call or notification
+     * @return the message which should be delivered to the dispatcher
+     */
+    private RpcRequest receiveRequest(Peer peer, RpcRequest message) {
+        Object id = message.getId();
+        if (id != null) {
+            String localId = ID_PREFIX + fIncomingCounter.incrementAndGet();
+            IncomingCall call = new IncomingCall(peer, id, localId);
+            fIncomingCalls.put(localId, call);
+            peer.fIncomingCalls.put(id.toString(), call);
+            return copy(message, new RpcRequest(), "id", localId);
+        }
+        String method = message.getMethod();
+        boolean cancel = RpcCallsDispatcher.METHOD_CANCEL_REQUEST
+            .equals(method);
+        if (!cancel
+            && !RpcCallsDispatcher.METHOD_STREAM_CREDIT.equals(method)) {
+            return message;
+        }
+        String callId = getCallId(message);
+        IncomingCall call = callId != null
+            ? peer.fIncomingCalls.get(callId)
+            : null;
+        if (call == null) {
+            return message;
+        }
+        if (cancel) {
+            // Cancelled calls are not answered
+            peer.fIncomingCalls.remove(callId, call);
+            fIncomingCalls.remove(call.fLocalId, call);
+        }
+        return copyNotification(message, call.fLocalId);
+    }
+
+    /**
+     * Removes the specified peer from this pool. Calls already sent to this
+     * peer are not affected.
+     * 
+     * @param messenger the messenger of the peer to remove
+     * @return <code>true</code> if the peer was removed
+     */
+    public synchronized boolean removePeer(IRpcMessenger messenger) {
+        Peer[] peers = fPeers;
+        for (int i = 0; i < peers.length; i++) {
+            if (peers[i].fMessenger == messenger) {
+                Peer[] result = new Peer[peers.length - 1];
+                System.arraycopy(peers, 0, result, 0, i);
+                System.arraycopy(peers, i + 1, result, i, result.length - i);
+                fPeers = result;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Chooses a peer for a new call.
+     * 
+     * @param exclude a peer which should not be chosen if there are other
+     *        peers; it could be <code>null</code>
+     * @return the chosen peer
+     */
+    protected Peer selectPeer(Peer exclude) {
+        Peer[] peers = fPeers;
+        if (peers.length == 0) {
+            throw new IllegalStateException("There is no peers.");
+        }
+        long now = System.currentTimeMillis();
+        if (fPowerOfTwoChoices && peers.length > 2) {
+            int i = fRandom.nextInt(peers.length);
+            int j = fRandom.nextInt(peers.length - 1);
+            if (j >= i) {
+                j++;
+            }
+            Peer first = peers[i];
+            Peer second = peers[j];
+            boolean firstAvailable = first != exclude
+                && first.isAvailable(now);
+            boolean secondAvailable = second != exclude
+                && second.isAvailable(now);
+            if (firstAvailable && secondAvailable) {
+                return first.getOutstandingCount() <= second
+                    .getOutstandingCount() ? first : second;
+            } else if (firstAvailable) {
+                return first;
+            } else if (secondAvailable) {
+                return second;
+            }
+        }
+        Peer best = null;
+        Peer fallback = null;
+        int start = (fNext.getAndIncrement() & Integer.MAX_VALUE)
+            % peers.length;
+        for (int i = 0; i < peers.length; i++) {
+            Peer peer = peers[(start + i) % peers.length];
+            int outstanding = peer.getOutstandingCount();
+            if (fallback == null
+                || outstanding < fallback.getOutstandingCount()) {
+                fallback = peer;
+            }
+            if (peer == exclude || !peer.isAvailable(now)) {
+                continue;
+            }
+            if (best == null || outstanding < best.getOutstandingCount()) {
+                best = peer;
+            }
+        }
+        return best != null ? best : fallback;
+    }
+
+    /**
+     * Sends a call to the best peer. If the message could not be sent then
+     * other peers are tried.
+     * 
+     * @param id the identifier of the call
+     * @param message the call to send
+     */
+    private void sendCall(String id, RpcObject message) {
+        int attempts = fPeers.length;
+        Peer peer = null;
+        while (true) {
+            peer = selectPeer(peer);
+            OutstandingCall call = new OutstandingCall(id, peer);
+            fCalls.put(id, call);
+            peer.onSent();
+            long timeout = fTimeout;
+            IRpcTimer timer = fTimer;
+            if (timeout > 0 && timer != null) {
+                call.fTimeout = timer.schedule(call, timeout);
+            }
+            try {
+                peer.fMessenger.postMessage(message);
+                return;
+            } catch (RuntimeException e) {
+                if (fCalls.remove(id, call)) {
+                    call.cancelTimeout();
+                    peer.onFailure();
+                }
+                if (--attempts <= 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a notification. Notifications about calls are sent to the peer
+     * executing the call (cancellations and stream credits) or to the peer
+     * which sent the call (result chunks); notifications about unknown calls
+     * are dropped. All other notifications are sent to the best peer.
+     * 
+     * @param message the notification to send
+     */
+    private void sendNotification(RpcObject message) {
+        String method = message instanceof RpcRequest
+            ? ((RpcRequest) message).getMethod()
+            : null;
+        Peer peer = null;
+        if (RpcCallsDispatcher.METHOD_CANCEL_REQUEST.equals(method)) {
+            String id = getCallId((RpcRequest) message);
+            OutstandingCall call = id != null ? fCalls.remove(id) : null;
+            if (call == null) {
+                return;
+            }
+            call.cancelTimeout();
+            call.fPeer.onCancelled();
+            peer = call.fPeer;
+        } else if (RpcCallsDispatcher.METHOD_STREAM_CREDIT.equals(method)) {
+            String id = getCallId((RpcRequest) message);
+            OutstandingCall call = id != null ? fCalls.get(id) : null;
+            if (call == null) {
+                return;
+            }
+            peer = call.fPeer;
+        } else if (RpcCallsDispatcher.METHOD_RESULT_CHUNK.equals(method)) {
+            String id = getCallId((RpcRequest) message);
+            IncomingCall call = id != null ? fIncomingCalls.get(id) : null;
+            if (call == null) {
+                return;
+            }
+            peer = call.fPeer;
+            message = copyNotification((RpcRequest) message, call.fId);
+        } else {
+            peer = selectPeer(null);
+        }
+        try {
+            peer.fMessenger.postMessage(message);
+        } catch (RuntimeException e) {
+            peer.onSendFailure();
+            throw e;
+        }
+    }
+
+    /**
+     * Defines when failed peers are ejected.
+     * 
+     * @param maxFailures the number of calls failed in a row after which a
+     *        peer is ejected
+     * @param ejectionTime the time (in milliseconds) during which ejected
+     *        peers receive no calls
+     */
+    public void setEjection(int maxFailures, long ejectionTime) {
+        fMaxFailures = maxFailures > 0 ? maxFailures : DEFAULT_MAX_FAILURES;
+        fEjectionTime = ejectionTime;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.RpcCallsDispatcher.IRpcMessenger#setMessageListener(org.ubimix.commons.rpc.RpcCallsDispatcher.IRpcMessenger.IMessageListener)
+     */
+    public void setMessageListener(IMessageListener listener) {
+        fListener = listener;
+    }
+
+    /**
+     * If this flag is <code>true</code> then each call is sent to the less
+     * loaded of two randomly chosen peers instead of the least loaded of all
+     * peers. This algorithm should be used for big pools shared by many
+     * clients: it avoids "herding" of all clients to the same peer.
+     * 
+     * @param powerOfTwoChoices <code>true</code> if the "power of two choices"
+     *        algorithm should be used
+     */
+    public void setPowerOfTwoChoices(boolean powerOfTwoChoices) {
+        fPowerOfTwoChoices = powerOfTwoChoices;
+    }
+
+    /**
+     * Sets the time after which calls not answered by peers are counted as
+     * failures. It should be the same as the timeout of the dispatcher (see
+     * {@link RpcCallsDispatcher#setTimeout(long)}). Without this timeout
+     * calls are forgotten when the dispatcher cancels them or when they
+     * expire in the dispatcher (in both cases the dispatcher sends a
+     * cancellation notification), but expired calls are not counted as
+     * failures.
+     * 
+     * @param timer the timer used to expire calls
+     * @param timeout the timeout in milliseconds; non-positive values mean
+     *        that calls never expire
+     */
+    public void setTimeout(IRpcTimer timer, long timeout) {
+        fTimer = timer;
+        fTimeout = timeout;
+    }
+
+}
\ No newline at end of file
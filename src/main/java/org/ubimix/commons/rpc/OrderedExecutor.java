@@ -0,0 +1,235 @@
+package org.ubimix.commons.rpc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * This executor runs tasks in an underlying executor (for example in a thread
+ * pool) preserving the order of tasks with the same key. Tasks with the same
+ * key are executed one by one in the order of submission; tasks with
+ * different keys are executed in parallel. Each key has its own "lane" - a
+ * queue of tasks executed by at most one thread at a time. Lanes exist only
+ * while they have tasks, so keys could be arbitrary objects (connections,
+ * sessions, user identifiers...).
+ * <p>
+ * The number of waiting tasks of each lane is limited (see
+ * {@link #getMaxLaneSize()}): new tasks of a full lane are rejected, so a
+ * slow lane can not accumulate an unbounded backlog. If the underlying
+ * executor rejects a new lane then all tasks of this lane are rejected (see
+ * {@link #onRejected(Runnable, RejectedExecutionException)}).
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class OrderedExecutor implements Executor {
+
+    /**
+     * Tasks with the same key.
+     */
+    private class Lane implements Runnable {
+
+        private final Object fKey;
+
+        /**
+         * Waiting tasks. Access to this queue is synchronized using the
+         * {@link OrderedExecutor#fLanes} map.
+         */
+        private final Queue<Runnable> fTasks = new ArrayDeque<Runnable>();
+
+        public Lane(Object key) {
+            fKey = key;
+        }
+
+        /**
+         * Executes waiting tasks. After a batch of tasks the lane is
+         * re-submitted to the executor, so one busy lane can not block other
+         * lanes waiting for threads.
+         */
+        public void run() {
+            while (true) {
+                for (int i = 0; i < fBatchSize; i++) {
+                    Runnable task;
+                    synchronized (fLanes) {
+                        task = fTasks.poll();
+                        if (task == null) {
+                            fLanes.remove(fKey);
+                            return;
+                        }
+                    }
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        handleError(t);
+                    }
+                }
+                try {
+                    fExecutor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Continue in the current thread
+                }
+            }
+        }
+
+    }
+
+    /**
+     * The default maximal number of tasks executed by a lane before it gives
+     * its thread to other lanes.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * The default maximal number of waiting tasks of one lane.
+     */
+    public static final int DEFAULT_MAX_LANE_SIZE = 1024;
+
+    private final int fBatchSize;
+
+    private final Executor fExecutor;
+
+    /**
+     * Lanes with waiting or running tasks. Keys of this map are keys of tasks.
+     */
+    private final Map<Object, Lane> fLanes = new HashMap<Object, Lane>();
+
+    private final int fMaxLaneSize;
+
+    /**
+     * @param executor the executor running tasks
+     */
+    public OrderedExecutor(Executor executor) {
+        this(executor, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param executor the executor running tasks
+     * @param batchSize the maximal number of tasks executed by a lane before
+     *        it gives its thread to other lanes
+     */
+    public OrderedExecutor(Executor executor, int batchSize) {
+        this(executor, batchSize, DEFAULT_MAX_LANE_SIZE);
+    }
+
+    /**
+     * @param executor the executor running tasks
+     * @param batchSize the maximal number of tasks executed by a lane before
+     *        it gives its thread to other lanes
+     * @param maxLaneSize the maximal number of waiting tasks of one lane
+     */
+    public OrderedExecutor(Executor executor, int batchSize, int maxLaneSize) {
+        fExecutor = executor;
+        fBatchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        fMaxLaneSize = maxLaneSize > 0 ? maxLaneSize : DEFAULT_MAX_LANE_SIZE;
+    }
+
+    /**
+     * Executes the given task without any ordering guarantees.
+     * 
+     * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+     */
+    public void execute(Runnable task) {
+        fExecutor.execute(task);
+    }
+
+    /**
+     * Executes the given task after all previously submitted tasks with the
+     * same key.
+     * 
+     * @param key the key of the task; it should correctly implement the
+     *        {@link Object#equals(Object)} and {@link Object#hashCode()}
+     *        methods
+     * @param task the task to execute
+     * @throws RejectedExecutionException if the lane of the key is full or if
+     *         the underlying executor rejects the lane; in the last case
+     *         other tasks added to the lane meanwhile are rejected as well
+     *         (see {@link #onRejected(Runnable, RejectedExecutionException)})
+     */
+    public void execute(Object key, Runnable task) {
+        Lane lane;
+        synchronized (fLanes) {
+            lane = fLanes.get(key);
+            if (lane != null) {
+                if (lane.fTasks.size() >= fMaxLaneSize) {
+                    throw new RejectedExecutionException(
+                        "Too many waiting tasks.");
+                }
+                lane.fTasks.add(task);
+                return;
+            }
+            lane = new Lane(key);
+            lane.fTasks.add(task);
+            fLanes.put(key, lane);
+        }
+        try {
+            fExecutor.execute(lane);
+        } catch (RejectedExecutionException e) {
+            List<Runnable> rejected;
+            synchronized (fLanes) {
+                fLanes.remove(key);
+                rejected = new ArrayList<Runnable>(lane.fTasks);
+                lane.fTasks.clear();
+            }
+            for (Runnable t : rejected) {
+                if (t != task) {
+                    onRejected(t, e);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of keys with waiting or running tasks.
+     * 
+     * @return the number of active lanes
+     */
+    public int getLanesCount() {
+        synchronized (fLanes) {
+            return fLanes.size();
+        }
+    }
+
+    /**
+     * Returns the maximal number of waiting tasks of one lane.
+     * 
+     * @return the maximal number of waiting tasks of one lane
+     */
+    public int getMaxLaneSize() {
+        return fMaxLaneSize;
+    }
+
+    /**
+     * This method is called when a task throws an exception. By default it
+     * delegates the error to the uncaught exception handler of the current
+     * thread.
+     * 
+     * @param t the error to handle
+     */
+    protected void handleError(Throwable t) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+    }
+
+    /**
+     * This method is called for tasks which were accepted by this executor
+     * but were dropped because the underlying executor rejected their lane.
+     * The submitter of the task which created the lane receives the
+     * exception; other tasks of the lane are passed to this method. By
+     * default it reports the error using the
+     * {@link #handleError(Throwable)} method.
+     * 
+     * @param task the rejected task
+     * @param e the rejection error
+     */
+    protected void onRejected(Runnable task, RejectedExecutionException e) {
+        handleError(e);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,81 @@
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * A serialized JSON value which is not parsed yet. Instances of this class are
+ * created by the {@link JsonStreamReader#readMessage()} method for parameters
+ * of incoming calls; they are written "as is" by the {@link JsonStreamWriter}.
+ * 
+ * @author kotelnikov
+ * @see LazyRpcRequest
+ */
+public class RawJson {
+
+    private final String fText;
+
+    /**
+     * @param text the serialized JSON value
+     */
+    public RawJson(String text) {
+        fText = text;
+    }
+
+    /**
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof RawJson)) {
+            return false;
+        }
+        return fText.equals(((RawJson) obj).fText);
+    }
+
+    /**
+     * Returns the serialized JSON value.
+     * 
+     * @return the serialized JSON value
+     */
+    public String getText() {
+        return fText;
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return fText.hashCode();
+    }
+
+    /**
+     * Parses the serialized value.
+     * 
+     * @return the parsed value; see {@link JsonStreamReader#readValue()}
+     * @throws IOException if the text is not a valid JSON value
+     */
+    public Object parse() throws IOException {
+        JsonStreamReader reader = new JsonStreamReader(
+            new StringReader(fText),
+            Math.max(16, Math.min(fText.length(), 4096)));
+        Object value = reader.readValue();
+        if (reader.hasNext()) {
+            throw new IOException("Unexpected data after the value.");
+        }
+        return value;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return fText;
+    }
+
+}
\ No newline at end of file
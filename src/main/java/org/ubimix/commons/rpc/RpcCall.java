@@ -1,5 +1,8 @@
 package org.ubimix.commons.rpc;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.ubimix.commons.events.calls.CallEvent;
 import org.ubimix.commons.json.JsonArray;
 import org.ubimix.commons.json.JsonObject;
@@ -16,6 +19,83 @@ import org.ubimix.commons.json.rpc.RpcResponse;
  */
 public abstract class RpcCall extends CallEvent<RpcRequest, RpcResponse> {
 
+    /**
+     * Listeners of this type receive chunks of streamed results (see
+     * {@link RpcCall#replyChunk(Object)}). Chunks are delivered in the order
+     * they were sent by the handler, before the final response of the call.
+     */
+    public interface IChunkListener {
+
+        /**
+         * This method is called for each received chunk. The peer does not
+         * send new chunks while previous chunks are not handled, so slow
+         * listeners automatically slow down the producer.
+         * 
+         * @param call the call producing the chunk
+         * @param chunk the chunk of the result: a JSON value, a string, a
+         *        number, a boolean or <code>null</code>
+         */
+        void onChunk(RpcCall call, Object chunk);
+
+    }
+
+    /**
+     * Sends chunks of results of calls received from the remote peer. This
+     * interface is used internally by the {@link RpcCallsDispatcher}.
+     */
+    interface IChunkSender {
+
+        void sendChunk(RpcCall call, Object chunk);
+
+    }
+
+    /**
+     * The error code used for calls cancelled by callers.
+     * 
+     * @see #cancel()
+     */
+    public static final int ERROR_CANCELLED = -32800;
+
+    /**
+     * The error code used for messages which are not valid requests, for
+     * example for empty batches and for requests reusing an identifier of
+     * another request of the same batch.
+     * 
+     * @see #newInvalidRequestError()
+     */
+    public static final int ERROR_INVALID_REQUEST = -32600;
+
+    /**
+     * The error code used for calls with parameters which are not valid JSON
+     * values (see {@link RpcParseException}).
+     * 
+     * @see #newParseError()
+     */
+    public static final int ERROR_PARSE = -32700;
+
+    /**
+     * The error code used when a call is rejected because too many calls are
+     * already in progress.
+     * 
+     * @see #newOverloadedError()
+     */
+    public static final int ERROR_OVERLOADED = -32002;
+
+    /**
+     * The error code used for calls which were not answered by the remote
+     * peer in time.
+     * 
+     * @see #newTimeoutError()
+     */
+    public static final int ERROR_TIMEOUT = -32001;
+
+    /**
+     * Cached RPC method names. Keys of this map are names of {@link RpcCall}
+     * types. This map is never modified; it is replaced by a new copy when a
+     * new name is added, so it can be read without synchronization.
+     */
+    private static volatile Map<String, String> fMethodNames = new HashMap<String, String>();
+
     /**
      * @see RpcError#getError(int, Throwable)
      */
@@ -24,26 +104,119 @@ public abstract class RpcCall extends CallEvent<RpcRequest, RpcResponse> {
     }
 
     /**
+     * Returns an error corresponding to the given exception. The
+     * {@link RpcParseException} is transformed in the {@link #ERROR_PARSE}
+     * error; all other exceptions are transformed by the
+     * {@link RpcError#getError(Throwable)} method.
+     * 
      * @see RpcError#getError(Throwable)
      */
     public static RpcError getError(Throwable t) {
+        if (t instanceof RpcParseException) {
+            return new RpcError(ERROR_PARSE, t.getMessage());
+        }
         return RpcError.getError(t);
     }
 
     /**
      * This method implements default algorithm of detection of RPC method names
-     * by types of {@link RpcCall} objects.
+     * by types of {@link RpcCall} objects. Method names are calculated only
+     * once for each type.
      * 
      * @param type the type of an event to translate in a call method
      * @return the name of the RPC method
      */
     public static String getMethodName(Class<? extends RpcCall> type) {
-        String name = type.getName();
+        String className = type.getName();
+        String methodName = fMethodNames.get(className);
+        if (methodName == null) {
+            methodName = toMethodName(className);
+            synchronized (RpcCall.class) {
+                Map<String, String> methodNames = new HashMap<String, String>(
+                    fMethodNames);
+                methodNames.put(className, methodName);
+                fMethodNames = methodNames;
+            }
+        }
+        return methodName;
+    }
+
+    /**
+     * Creates and returns a new "cancelled" error ({@link RpcError}). It sets
+     * the {@link #ERROR_CANCELLED} error code.
+     * 
+     * @return a new "cancelled" error
+     */
+    public static RpcError newCancelledError() {
+        return new RpcError(ERROR_CANCELLED, "Call was cancelled.");
+    }
+
+    /**
+     * Creates and returns a new "invalid request" error ({@link RpcError}). It
+     * sets the {@link #ERROR_INVALID_REQUEST} error code.
+     * 
+     * @return a new "invalid request" error
+     */
+    public static RpcError newInvalidRequestError() {
+        return new RpcError(ERROR_INVALID_REQUEST, "Invalid request.");
+    }
+
+    /**
+     * Creates and returns a new "method not found" error ({@link RpcError}). It
+     * sets the {@link RpcError#ERROR_METHOD_NOT_FOUND} error code.
+     * 
+     * @return a new "method not found" error
+     */
+    public static RpcError newMethodNotFoundError() {
+        return new RpcError(
+            RpcError.ERROR_METHOD_NOT_FOUND,
+            "Method was not found.");
+    }
+
+    /**
+     * Creates and returns a new "overloaded" error ({@link RpcError}). It sets
+     * the {@link #ERROR_OVERLOADED} error code.
+     * 
+     * @return a new "overloaded" error
+     */
+    public static RpcError newOverloadedError() {
+        return new RpcError(ERROR_OVERLOADED, "Too many calls in progress.");
+    }
+
+    /**
+     * Creates and returns a new "parse error" ({@link RpcError}). It sets the
+     * {@link #ERROR_PARSE} error code.
+     * 
+     * @return a new "parse error"
+     */
+    public static RpcError newParseError() {
+        return new RpcError(ERROR_PARSE, "Parse error.");
+    }
+
+    /**
+     * Creates and returns a new "timeout" error ({@link RpcError}). It sets the
+     * {@link #ERROR_TIMEOUT} error code.
+     * 
+     * @return a new "timeout" error
+     */
+    public static RpcError newTimeoutError() {
+        return new RpcError(ERROR_TIMEOUT, "Call timeout.");
+    }
+
+    /**
+     * Transforms the given class name in an RPC method name.
+     * 
+     * @param className the name of the class to transform
+     * @return the name of the RPC method
+     * @see #getMethodName(Class)
+     */
+    private static String toMethodName(String className) {
+        String name = className;
         int idx = name.lastIndexOf(".");
         if (idx > 0) {
             name = name.substring(idx + 1);
         }
-        StringBuilder buf = new StringBuilder();
+        StringBuilder buf = new StringBuilder(name.length());
         boolean begin = true;
         for (int i = 0; i < name.length(); i++) {
             char ch = name.charAt(i);
@@ -62,16 +235,45 @@ public abstract class RpcCall extends CallEvent<RpcRequest, RpcResponse> {
     }
 
     /**
-     * Creates and returns a new "method not found" error ({@link RpcError}). It
-     * sets the {@link RpcError#ERROR_METHOD_NOT_FOUND} error code.
-     * 
-     * @return a new "method not found" error
+     * This task is called when this call is cancelled. It is used by the
+     * {@link RpcCallsDispatcher} to forget calls sent to the remote peer and
+     * to notify the peer about cancellation.
      */
-    public static RpcError newMethodNotFoundError() {
-        return new RpcError(
-            RpcError.ERROR_METHOD_NOT_FOUND,
-            "Method was not found.");
-    }
+    private volatile Runnable fCancelHandler;
+
+    /**
+     * This flag is set when this call is cancelled. It is modified only
+     * together with the {@link #fFinished} flag, under the lock of this
+     * object.
+     */
+    private volatile boolean fCancelled;
+
+    /**
+     * The number of chunks which could be sent to the peer without waiting.
+     * Access to this field is synchronized on this object.
+     */
+    private int fChunkCredit;
+
+    /**
+     * This task is called when the peer grants new credits for chunks or
+     * when this call is cancelled.
+     */
+    private volatile Runnable fChunkCreditListener;
+
+    private volatile IChunkListener fChunkListener;
+
+    /**
+     * Sends chunks of this call to the remote peer; it is <code>null</code>
+     * if the peer does not accept chunks.
+     */
+    private volatile IChunkSender fChunkSender;
+
+    /**
+     * This flag is set when the first response (a result, an error or the
+     * cancellation) is accepted; all later responses are ignored. Access to
+     * this field is synchronized on this object.
+     */
+    private boolean fFinished;
 
     /**
      * This flag is used by the {@link RpcCallsDispatcher} to distinguish local
@@ -122,6 +324,99 @@ public abstract class RpcCall extends CallEvent<RpcRequest, RpcResponse> {
             .setParams(params));
     }
 
+    /**
+     * Adds credits for chunks sent to the remote peer. This method is used
+     * internally by the {@link RpcCallsDispatcher}.
+     * 
+     * @param credit the number of chunks the peer is ready to accept
+     */
+    void addChunkCredit(int credit) {
+        synchronized (this) {
+            fChunkCredit += credit;
+        }
+        Runnable listener = fChunkCreditListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Cancels this call. If the call is not finished yet then it is
+     * immediately finished with the {@link #ERROR_CANCELLED} error and all
+     * further replies are ignored. If this call was sent to the remote peer
+     * then the peer is notified about the cancellation, so it could stop the
+     * execution. Handlers of long-running calls should periodically check the
+     * {@link #isCancelled()} flag and stop when it is set.
+     */
+    public void cancel() {
+        boolean finish;
+        synchronized (this) {
+            if (fCancelled) {
+                return;
+            }
+            fCancelled = true;
+            finish = !fFinished;
+            fFinished = true;
+        }
+        Runnable handler = fCancelHandler;
+        fCancelHandler = null;
+        if (handler != null) {
+            handler.run();
+        }
+        Runnable listener = fChunkCreditListener;
+        if (listener != null) {
+            listener.run();
+        }
+        if (finish) {
+            RpcRequest request = getRequest();
+            super.reply(new RpcResponse(request).setError(newCancelledError()));
+        }
+    }
+
+    /**
+     * Accepts the given response if this call is not finished yet. Only the
+     * first response (or the cancellation) is delivered to the caller.
+     * 
+     * @param response the response to accept
+     */
+    private void finish(RpcResponse response) {
+        synchronized (this) {
+            if (fFinished) {
+                return;
+            }
+            fFinished = true;
+        }
+        super.reply(response);
+    }
+
+    /**
+     * Returns the number of chunks which could be sent right now without
+     * waiting for the caller (see {@link #replyChunk(Object)}). For calls
+     * received from the remote peer this number is defined by credits granted
+     * by the peer. Local calls accept any number of chunks. This method
+     * returns 0 if the caller does not accept chunks.
+     * 
+     * @return the number of chunks which could be sent without waiting
+     */
+    public int getChunkCredit() {
+        if (fChunkSender != null) {
+            synchronized (this) {
+                return fChunkCredit;
+            }
+        }
+        return fChunkListener != null && !fRemote ? Integer.MAX_VALUE : 0;
+    }
+
+    /**
+     * Returns the listener of chunks of the result of this call.
+     * 
+     * @return the listener of chunks or <code>null</code> if chunks are not
+     *         accepted
+     */
+    public IChunkListener getChunkListener() {
+        return fChunkListener;
+    }
+
     /**
      * Returns the name of the RPC method. This is a "shortcut" for the
      * {@link #getRequest()}.getMethod() call.
@@ -213,6 +508,19 @@ public abstract class RpcCall extends CallEvent<RpcRequest, RpcResponse> {
         return result;
     }
 
+    /**
+     * Returns the maximal time (in milliseconds) to wait for a response from
+     * the remote peer. This method could be overloaded in subclasses to define
+     * timeouts for specific call types. By default it returns <code>0</code>
+     * which means that the default timeout of the {@link RpcCallsDispatcher}
+     * should be used. Negative values disable timeouts for this call.
+     * 
+     * @return the timeout for this call in milliseconds
+     */
+    public long getTimeout() {
+        return 0;
+    }
+
     /**
      * This method returns <code>true</code> if there are errors in the response
      * 
@@ -223,6 +531,29 @@ public abstract class RpcCall extends CallEvent<RpcRequest, RpcResponse> {
         return response != null && response.hasErrors();
     }
 
+    /**
+     * Returns <code>true</code> if this call was cancelled by the caller (see
+     * {@link #cancel()}). For calls received from the remote peer this flag is
+     * set when the peer cancels the call.
+     * 
+     * @return <code>true</code> if this call was cancelled
+     */
+    public boolean isCancelled() {
+        return fCancelled;
+    }
+
+    /**
+     * Returns <code>true</code> if the caller accepts chunks of the result
+     * (see {@link #replyChunk(Object)}). Handlers producing big results could
+     * check this flag to decide whether to stream the result or to send it as
+     * a whole.
+     * 
+     * @return <code>true</code> if the caller accepts chunks of the result
+     */
+    public boolean isStreaming() {
+        return fChunkSender != null || (fChunkListener != null && !fRemote);
+    }
+
     /**
      * Returns <code>true</code> if this call was created from a remote message.
      * This method is used internally by the {@link RpcCallsDispatcher} object
@@ -242,8 +573,111 @@ public abstract class RpcCall extends CallEvent<RpcRequest, RpcResponse> {
      * @param result the result of this call.
      */
     public void reply(JsonValue result) {
+        if (fCancelled) {
+            return;
+        }
         RpcRequest request = getRequest();
-        super.reply(new RpcResponse(request).setResult(result));
+        finish(new RpcResponse(request).setResult(result));
+    }
+
+    /**
+     * Replies to this call with the given response. If this call is already
+     * finished or cancelled then the response is ignored.
+     * 
+     * @param response the response of this call
+     */
+    @Override
+    public void reply(RpcResponse response) {
+        finish(response);
+    }
+
+    /**
+     * Sends a chunk of the result to the caller. Chunks are delivered to the
+     * chunk listener of the caller (see
+     * {@link #setChunkListener(IChunkListener)}) in the order of sending; the
+     * call should be finished by one of the <code>reply(...)</code> methods
+     * after the last chunk. Each chunk
+     * consumes one credit (see {@link #getChunkCredit()}); if there is no more
+     * credits then the chunk is not sent and this method returns
+     * <code>false</code>. In this case the handler should wait for new
+     * credits (see {@link #setChunkCreditListener(Runnable)}), so the size of
+     * non-handled chunks is always limited.
+     * 
+     * @param chunk the chunk of the result: a JSON value, a string, a number,
+     *        a boolean or <code>null</code>
+     * @return <code>true</code> if the chunk was sent; <code>false</code> if
+     *         the caller does not accept chunks, if there is no credits or if
+     *         this call is already finished
+     */
+    public boolean replyChunk(Object chunk) {
+        if (fCancelled || hasResponse()) {
+            return false;
+        }
+        IChunkSender sender = fChunkSender;
+        if (sender != null) {
+            synchronized (this) {
+                if (fChunkCredit <= 0) {
+                    return false;
+                }
+                fChunkCredit--;
+            }
+            sender.sendChunk(this, chunk);
+            return true;
+        }
+        IChunkListener listener = fChunkListener;
+        if (listener != null && !fRemote) {
+            listener.onChunk(this, chunk);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets a task called when this call is cancelled. This method is used
+     * internally by the {@link RpcCallsDispatcher}.
+     * 
+     * @param handler the task to set; it could be <code>null</code>
+     */
+    void setCancelHandler(Runnable handler) {
+        fCancelHandler = handler;
+    }
+
+    /**
+     * Sets a task called when the caller grants new credits for chunks of the
+     * result (see {@link #replyChunk(Object)}) or when this call is
+     * cancelled. The task could be called in any thread.
+     * 
+     * @param listener the task to set; it could be <code>null</code>
+     */
+    public void setChunkCreditListener(Runnable listener) {
+        fChunkCreditListener = listener;
+    }
+
+    /**
+     * Sets the listener receiving chunks of the result of this call. The
+     * listener should be set before the call is fired. Remote peers stream
+     * results only for calls with chunk listeners; calls with listeners are
+     * never coalesced with identical calls.
+     * 
+     * @param listener the listener to set; it could be <code>null</code>
+     */
+    public void setChunkListener(IChunkListener listener) {
+        fChunkListener = listener;
+    }
+
+    /**
+     * Sets the sender of chunks and the initial number of chunks accepted by
+     * the remote peer. This method is used internally by the
+     * {@link RpcCallsDispatcher}.
+     * 
+     * @param sender the sender of chunks
+     * @param credit the initial number of credits
+     */
+    void setChunkSender(IChunkSender sender, int credit) {
+        synchronized (this) {
+            fChunkCredit = credit;
+        }
+        fChunkSender = sender;
     }
 
     /**
@@ -254,8 +688,11 @@ public abstract class RpcCall extends CallEvent<RpcRequest, RpcResponse> {
      * @param error the error used as an error.
      */
     public void setError(RpcError error) {
+        if (fCancelled) {
+            return;
+        }
         RpcRequest request = getRequest();
-        super.reply(new RpcResponse(request).setError(error));
+        finish(new RpcResponse(request).setError(error));
     }
 
     /**
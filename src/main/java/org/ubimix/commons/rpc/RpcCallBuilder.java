@@ -1,7 +1,12 @@
 package org.ubimix.commons.rpc;
 
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.ubimix.commons.events.EventListenerInterceptor;
@@ -11,11 +16,123 @@ import org.ubimix.commons.events.IEventListenerRegistry;
 import org.ubimix.commons.json.rpc.RpcRequest;
 
 /**
+ * This builder creates call objects for RPC methods handled by listeners of
+ * an event registry. Call types are registered automatically when listeners
+ * are added to the registry and unregistered when all their listeners are
+ * removed. Registrations are counted for each type, so removing one of
+ * several listeners of the same type does not remove the method.
+ * <p>
+ * Registered methods are kept in an immutable snapshot which is replaced by
+ * a new one each time when the set of methods changes. So requests are
+ * dispatched without locks while listeners are added or removed.
+ * </p>
+ * 
  * @author kotelnikov
  */
 public class RpcCallBuilder implements IRpcCallBuilder {
 
-    private Map<String, Class<?>> fCallTypes = new HashMap<String, Class<?>>();
+    /**
+     * Information about one registered call type: the RPC method name
+     * corresponding to this type and the factory creating call objects.
+     */
+    private static class CallType {
+
+        private final IRpcCallBuilder fFactory;
+
+        private final String fMethodName;
+
+        private final Class<? extends RpcCall> fType;
+
+        public CallType(
+            Class<? extends RpcCall> type,
+            String methodName,
+            IRpcCallBuilder factory) {
+            fType = type;
+            fMethodName = methodName;
+            fFactory = factory;
+        }
+
+    }
+
+    /**
+     * This factory creates call objects using a constructor resolved only
+     * once - when the corresponding call type is registered.
+     */
+    private static class ConstructorCallFactory implements IRpcCallBuilder {
+
+        private final Constructor<? extends RpcCall> fConstructor;
+
+        private final boolean fRequestConstructor;
+
+        public ConstructorCallFactory(
+            Constructor<? extends RpcCall> constructor,
+            boolean requestConstructor) {
+            fConstructor = constructor;
+            fRequestConstructor = requestConstructor;
+        }
+
+        /**
+         * @see org.ubimix.commons.rpc.IRpcCallBuilder#newRpcCall(org.ubimix.commons.json.rpc.RpcRequest)
+         */
+        public RpcCall newRpcCall(RpcRequest request) throws Exception {
+            RpcCall result;
+            if (fRequestConstructor) {
+                result = fConstructor.newInstance(request);
+            } else {
+                result = fConstructor.newInstance();
+                result.setRequest(request);
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * An immutable set of registered methods.
+     */
+    private static class Snapshot {
+
+        /**
+         * Registered call types. Keys of this map are RPC method names.
+         */
+        private final Map<String, CallType> fCallTypes;
+
+        /**
+         * Sorted names of registered methods. This array is used to search
+         * methods by prefixes.
+         */
+        private final String[] fMethodNames;
+
+        public Snapshot(Map<String, CallType> callTypes) {
+            fCallTypes = callTypes;
+            fMethodNames = callTypes.keySet().toArray(
+                new String[callTypes.size()]);
+            Arrays.sort(fMethodNames);
+        }
+
+    }
+
+    /**
+     * Numbers of listeners for each registered call type. Types are kept in
+     * the order of registration. Access to this map is synchronized.
+     */
+    private final Map<CallType, Integer> fRegistrations = new LinkedHashMap<CallType, Integer>();
+
+    /**
+     * Registered call types by their classes. This map is used to avoid
+     * repeated calculations of method names and call factories for the same
+     * types. Types are removed when their last listener is removed, so
+     * unregistered classes are not referenced by this builder. Access to this
+     * map is synchronized.
+     */
+    private final Map<Class<?>, CallType> fResolvedTypes = new HashMap<Class<?>, CallType>();
+
+    /**
+     * The current set of registered methods. It is never modified; it is
+     * replaced by a new snapshot when methods are registered or unregistered.
+     */
+    private volatile Snapshot fSnapshot = new Snapshot(
+        new HashMap<String, CallType>());
 
     private IEventListenerInterceptor fListenerInterceptor = new EventListenerInterceptor() {
         @SuppressWarnings("unchecked")
@@ -32,11 +149,7 @@ public class RpcCallBuilder implements IRpcCallBuilder {
         @Override
         public void onAddListener(Class<?> eventType, IEventListener<?> listener) {
             if (RpcCall.class.isAssignableFrom(eventType)) {
-                Class<? extends RpcCall> type = castEventType(eventType);
-                String methodName = getMethodName(type);
-                if (methodName != null) {
-                    fCallTypes.put(methodName, eventType);
-                }
+                register(castEventType(eventType), 1);
             }
         }
 
@@ -49,11 +162,7 @@ public class RpcCallBuilder implements IRpcCallBuilder {
             Class<?> eventType,
             IEventListener<?> listener) {
             if (RpcCall.class.isAssignableFrom(eventType)) {
-                Class<? extends RpcCall> type = castEventType(eventType);
-                String methodName = getMethodName(type);
-                if (methodName != null) {
-                    fCallTypes.remove(methodName);
-                }
+                register(castEventType(eventType), -1);
             }
         }
     };
@@ -62,8 +171,62 @@ public class RpcCallBuilder implements IRpcCallBuilder {
         registry.addListenerInterceptor(fListenerInterceptor);
     }
 
+    /**
+     * Returns a factory creating call objects for the specified RPC method.
+     * 
+     * @param methodName the name of the RPC method
+     * @return a factory creating call objects for the specified method or
+     *         <code>null</code> if the method is unknown
+     */
+    protected IRpcCallBuilder getCallFactory(String methodName) {
+        CallType callType = fSnapshot.fCallTypes.get(methodName);
+        return callType != null ? callType.fFactory : null;
+    }
+
+    /**
+     * Returns information about the specified call type. The method name and
+     * the factory are resolved only once while the type is registered.
+     * 
+     * @param type the call type
+     * @return information about the specified call type
+     */
+    private CallType getCallType(Class<? extends RpcCall> type) {
+        CallType callType = fResolvedTypes.get(type);
+        if (callType == null) {
+            String methodName = getMethodName(type);
+            IRpcCallBuilder factory = methodName != null
+                ? newCallFactory(type)
+                : null;
+            callType = new CallType(type, methodName, factory);
+        }
+        return callType;
+    }
+
     protected Class<?> getEventType(String methodName) {
-        return fCallTypes.get(methodName);
+        CallType callType = fSnapshot.fCallTypes.get(methodName);
+        return callType != null ? callType.fType : null;
+    }
+
+    /**
+     * Returns sorted names of all registered methods starting with the given
+     * prefix. For example the "sandboxNamespace." prefix returns all methods
+     * of this namespace.
+     * 
+     * @param prefix the prefix of method names; an empty string returns all
+     *        registered methods
+     * @return a sorted list of method names
+     */
+    public List<String> getMethodNames(String prefix) {
+        String[] names = fSnapshot.fMethodNames;
+        int idx = Arrays.binarySearch(names, prefix);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        List<String> result = new ArrayList<String>();
+        while (idx < names.length && names[idx].startsWith(prefix)) {
+            result.add(names[idx++]);
+        }
+        return Collections.unmodifiableList(result);
     }
 
     /**
@@ -77,30 +240,82 @@ public class RpcCallBuilder implements IRpcCallBuilder {
         return RpcCall.getMethodName(type);
     }
 
+    /**
+     * Creates and returns a factory for call objects of the specified type.
+     * This method is called only once for each registered call type, so all
+     * reflection lookups are done here and not for each incoming request. By
+     * default it uses the constructor with a {@link RpcRequest} parameter or
+     * the default constructor. This method can be overloaded in subclasses to
+     * provide factories without reflection.
+     * 
+     * @param type the type of call objects
+     * @return a factory for call objects of the specified type or
+     *         <code>null</code> if objects of this type can not be created
+     */
+    protected IRpcCallBuilder newCallFactory(Class<? extends RpcCall> type) {
+        try {
+            Constructor<? extends RpcCall> constructor = type
+                .getConstructor(RpcRequest.class);
+            return new ConstructorCallFactory(constructor, true);
+        } catch (NoSuchMethodException e) {
+        }
+        try {
+            Constructor<? extends RpcCall> constructor = type.getConstructor();
+            return new ConstructorCallFactory(constructor, false);
+        } catch (NoSuchMethodException e) {
+        }
+        return null;
+    }
+
     /**
      * @see org.ubimix.commons.rpc.IRpcCallBuilder#newRpcCall(org.ubimix.commons.json.rpc.RpcRequest)
      */
     public RpcCall newRpcCall(RpcRequest request) throws Exception {
-        RpcCall result = null;
         String methodName = request.getMethod();
-        Class<?> type = getEventType(methodName);
-        if (type != null) {
-            try {
-                Constructor<?> constructor = type
-                    .getConstructor(RpcRequest.class);
-                result = (RpcCall) constructor.newInstance(request);
-            } catch (NoSuchMethodException e) {
+        IRpcCallBuilder factory = getCallFactory(methodName);
+        return factory != null ? factory.newRpcCall(request) : null;
+    }
+
+    /**
+     * Changes the number of listeners of the specified call type. A new
+     * snapshot of methods is created only when a type is registered or
+     * unregistered.
+     * 
+     * @param type the call type
+     * @param delta the number of added (positive) or removed (negative)
+     *        listeners
+     */
+    private synchronized void register(
+        Class<? extends RpcCall> type,
+        int delta) {
+        // Types are not resolved to remove listeners of unregistered types
+        CallType callType = delta > 0
+            ? getCallType(type)
+            : fResolvedTypes.get(type);
+        if (callType == null || callType.fMethodName == null) {
+            return;
+        }
+        Integer count = fRegistrations.get(callType);
+        int value = (count != null ? count : 0) + delta;
+        if (value > 0) {
+            fRegistrations.put(callType, value);
+            if (count != null) {
+                return;
             }
-            if (result == null) {
-                try {
-                    Constructor<?> constructor = type.getConstructor();
-                    result = (RpcCall) constructor.newInstance();
-                    result.setRequest(request);
-                } catch (NoSuchMethodException e) {
-                }
+            fResolvedTypes.put(type, callType);
+        } else {
+            if (count == null) {
+                return;
             }
+            fRegistrations.remove(callType);
+            fResolvedTypes.remove(type);
+        }
+        // Types registered later replace types with the same method name
+        Map<String, CallType> callTypes = new HashMap<String, CallType>();
+        for (CallType registered : fRegistrations.keySet()) {
+            callTypes.put(registered.fMethodName, registered);
         }
-        return result;
+        fSnapshot = new Snapshot(callTypes);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package org.ubimix.commons.rpc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The default implementation of the {@link IRpcCallTable} interface. Values
+ * are kept in a {@link HashMap} and all methods are synchronized, so this
+ * class could be used in GWT.
+ * 
+ * @author kotelnikov
+ * @param <K> the type of keys
+ * @param <V> the type of calls
+ */
+public class RpcCallTable<K, V> implements IRpcCallTable<K, V> {
+
+    private final Map<K, V> fMap = new HashMap<K, V>();
+
+    public RpcCallTable() {
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#get(java.lang.Object)
+     */
+    public synchronized V get(K key) {
+        return fMap.get(key);
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#put(java.lang.Object,
+     *      java.lang.Object)
+     */
+    public synchronized V put(K key, V value) {
+        return fMap.put(key, value);
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#putIfAbsent(java.lang.Object,
+     *      java.lang.Object)
+     */
+    public synchronized V putIfAbsent(K key, V value) {
+        V prev = fMap.get(key);
+        if (prev == null) {
+            fMap.put(key, value);
+        }
+        return prev;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#remove(java.lang.Object)
+     */
+    public synchronized V remove(K key) {
+        return fMap.remove(key);
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#remove(java.lang.Object,
+     *      java.lang.Object)
+     */
+    public synchronized boolean remove(K key, V value) {
+        if (fMap.get(key) != value) {
+            return false;
+        }
+        fMap.remove(key);
+        return true;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#removeAll()
+     */
+    public synchronized List<V> removeAll() {
+        List<V> values = new ArrayList<V>(fMap.values());
+        fMap.clear();
+        return values;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcCallTable#size()
+     */
+    public synchronized int size() {
+        return fMap.size();
+    }
+
+}
\ No newline at end of file
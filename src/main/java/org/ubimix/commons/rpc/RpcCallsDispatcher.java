@@ -1,12 +1,19 @@
 package org.ubimix.commons.rpc;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.ubimix.commons.events.IEventListener;
 import org.ubimix.commons.events.IEventManager;
 import org.ubimix.commons.events.calls.CallListener;
+import org.ubimix.commons.json.JsonArray;
 import org.ubimix.commons.json.JsonObject;
 import org.ubimix.commons.json.rpc.RpcError;
 import org.ubimix.commons.json.rpc.RpcObject;
@@ -19,6 +26,15 @@ import org.ubimix.commons.json.rpc.RpcResponse;
  * execution. If an event was not handled locally then it will be sent to the
  * remote peer.
  * <p>
+ * Results of calls could be streamed: if a call has a chunk listener (see
+ * {@link RpcCall#setChunkListener(RpcCall.IChunkListener)}) then the handler
+ * on the other side could send the result in chunks (see
+ * {@link RpcCall#replyChunk(Object)}). The caller grants credits for a
+ * limited number of chunks (see {@link #setChunkWindow(int)}) and renews them
+ * when received chunks are handled, so streamed results use a bounded amount
+ * of memory on both sides.
+ * </p>
+ * <p>
  * Example of usage:
  * </p>
  * 
@@ -99,29 +115,484 @@ public class RpcCallsDispatcher {
     }
 
     /**
+     * This messenger serializes/deserializes JSON objects. It supports JSON
+     * RPC batches: incoming arrays are split into individual messages and
+     * responses for all requests of an incoming batch are sent back in one
+     * array. Requests of a batch reusing an identifier of another request of
+     * the same batch are rejected with the
+     * {@link RpcCall#ERROR_INVALID_REQUEST} error. If some requests of a
+     * batch are not answered in time (see
+     * {@link #setBatchResponseTimeout(IRpcTimer, long)}) then the responses
+     * collected so far are sent and later responses are sent individually.
+     * Optionally outgoing messages posted during a short time window could be
+     * combined in one batch (see {@link #setBatchWindow(IRpcTimer, long)}).
+     * 
      * @author kotelnikov
      */
     public static abstract class RpcMessenger implements IRpcMessenger {
 
+        /**
+         * Collects responses for requests of one incoming batch. Instances of
+         * this type are also used as timeout tasks sending partial results.
+         * Access to fields of this object is synchronized using the
+         * {@link RpcMessenger#fBatchResponses} map.
+         */
+        private class BatchResponse implements Runnable {
+
+            /**
+             * Identifiers of all requests of this batch waiting for responses.
+             */
+            private final Collection<String> fIds;
+
+            /**
+             * The number of requests still waiting for responses.
+             */
+            private int fPending;
+
+            private final List<String> fResponses;
+
+            /**
+             * This flag is set when responses of this batch were sent.
+             */
+            private boolean fSent;
+
+            private IRpcTimer.ITimeout fTimeout;
+
+            public BatchResponse(Collection<String> ids) {
+                fIds = ids;
+                fPending = ids.size();
+                fResponses = new ArrayList<String>(ids.size());
+            }
+
+            /**
+             * This method is called by the timer when the batch expires. It
+             * sends responses collected so far.
+             */
+            public void run() {
+                List<String> responses;
+                synchronized (fBatchResponses) {
+                    if (fSent) {
+                        return;
+                    }
+                    fSent = true;
+                    for (String id : fIds) {
+                        List<BatchResponse> batches = fBatchResponses.get(id);
+                        if (batches != null
+                            && batches.remove(this)
+                            && batches.isEmpty()) {
+                            fBatchResponses.remove(id);
+                        }
+                    }
+                    fBatchResponsesCount = fBatchResponses.size();
+                    responses = fResponses;
+                }
+                if (!responses.isEmpty()) {
+                    sendBatch(responses);
+                }
+            }
+
+        }
+
+        /**
+         * Returns the number of bytes of the UTF-8 representation of the
+         * given string.
+         * 
+         * @param str the string to check
+         * @return the number of bytes of the UTF-8 encoded string
+         */
+        protected static long getUtf8Length(String str) {
+            int len = str.length();
+            long result = len;
+            for (int i = 0; i < len; i++) {
+                char ch = str.charAt(i);
+                if (ch >= 0x800) {
+                    // Surrogate pairs are encoded in 4 bytes (2 per char)
+                    result += ch >= 0xD800 && ch <= 0xDFFF ? 1 : 2;
+                } else if (ch >= 0x80) {
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Serializes the given list of messages as a JSON array.
+         * 
+         * @param messages serialized messages
+         * @return a serialized JSON array containing all messages
+         */
+        private static String toArrayMessage(List<String> messages) {
+            int len = 2;
+            for (String message : messages) {
+                len += message.length() + 1;
+            }
+            StringBuilder buf = new StringBuilder(len);
+            buf.append('[');
+            for (int i = 0; i < messages.size(); i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                buf.append(messages.get(i));
+            }
+            buf.append(']');
+            return buf.toString();
+        }
+
+        /**
+         * Serialized messages waiting to be sent in the next outgoing batch.
+         * Access to this field is synchronized using the {@link #fMutex}
+         * object.
+         */
+        private List<String> fBatch;
+
+        /**
+         * Incoming batches waiting for responses. Keys of this map are
+         * identifiers of requests; values are batches waiting for responses
+         * with these identifiers in the order of their arrival. So different
+         * batches can use the same identifiers.
+         */
+        private final Map<String, List<BatchResponse>> fBatchResponses = new HashMap<String, List<BatchResponse>>();
+
+        /**
+         * The number of entries in the {@link #fBatchResponses} map. It is
+         * used to avoid synchronization when there is no incoming batches.
+         */
+        private volatile int fBatchResponsesCount;
+
+        /**
+         * The maximal time (in milliseconds) incoming batches wait for all
+         * responses.
+         */
+        private volatile long fBatchResponseTimeout;
+
+        /**
+         * The timer used to send partial responses to incoming batches.
+         */
+        private volatile IRpcTimer fBatchResponseTimer;
+
+        /**
+         * The timer used to send outgoing batches.
+         */
+        private volatile IRpcTimer fBatchTimer;
+
+        /**
+         * The time window (in milliseconds) used to combine outgoing messages
+         * in batches.
+         */
+        private volatile long fBatchWindow;
+
+        private final Runnable fFlushTask = new Runnable() {
+            public void run() {
+                flush();
+            }
+        };
+
         private IMessageListener fListener;
 
+        private IRpcMetrics fMetrics;
+
+        private final Object fMutex = new Object();
+
+        /**
+         * Adds the given response to a batch waiting for responses. If all
+         * requests of the batch were answered then all responses are sent to
+         * the peer in one message.
+         * 
+         * @param response the response to add
+         * @return <code>true</code> if the response belongs to an incoming
+         *         batch
+         */
+        private boolean addBatchResponse(RpcResponse response) {
+            if (fBatchResponsesCount == 0) {
+                return false;
+            }
+            String id = response.getIdAsString();
+            if (id == null) {
+                return false;
+            }
+            IRpcTimer.ITimeout timeout = null;
+            List<String> responses = null;
+            synchronized (fBatchResponses) {
+                List<BatchResponse> batches = fBatchResponses.get(id);
+                if (batches == null) {
+                    return false;
+                }
+                // Only responses belonging to batches are serialized here
+                String str = response.toString();
+                BatchResponse batch = batches.remove(0);
+                if (batches.isEmpty()) {
+                    fBatchResponses.remove(id);
+                    fBatchResponsesCount = fBatchResponses.size();
+                }
+                batch.fResponses.add(str);
+                batch.fPending--;
+                if (batch.fPending == 0) {
+                    batch.fSent = true;
+                    responses = batch.fResponses;
+                    timeout = batch.fTimeout;
+                }
+            }
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            if (responses != null) {
+                sendBatch(responses);
+            }
+            return true;
+        }
+
+        /**
+         * Delivers the given message to the listener. This method is called
+         * for each individual message, including elements of batches.
+         * Subclasses can overload it to handle elements of batches in
+         * parallel.
+         * 
+         * @param message the message to deliver
+         */
+        protected void dispatchMessage(RpcObject message) {
+            fListener.onMessage(message);
+        }
+
+        /**
+         * Sends all messages of the current outgoing batch.
+         */
+        public void flush() {
+            List<String> batch;
+            synchronized (fMutex) {
+                batch = fBatch;
+                fBatch = null;
+            }
+            if (batch != null && !batch.isEmpty()) {
+                String msg = batch.size() == 1
+                    ? batch.get(0)
+                    : toArrayMessage(batch);
+                onMessageSent(msg);
+                sendMessage(msg);
+            }
+        }
+
+        /**
+         * Returns metrics notified about transferred messages or
+         * <code>null</code> if metrics are not collected.
+         * 
+         * @return the metrics of this messenger
+         */
+        public IRpcMetrics getMetrics() {
+            return fMetrics;
+        }
+
+        /**
+         * Returns <code>true</code> if the given serialized message is a
+         * batch (a JSON array).
+         * 
+         * @param msg the message to check
+         * @return <code>true</code> if the given message is a batch
+         */
+        private boolean isBatch(String msg) {
+            for (int i = 0; i < msg.length(); i++) {
+                char ch = msg.charAt(i);
+                if (ch == '[') {
+                    return true;
+                }
+                if (!Character.isWhitespace(ch)) {
+                    break;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Dispatches all messages of an incoming batch. Responses for all
+         * requests of this batch will be sent back in one message. Requests
+         * with identifiers already used in the same batch are not dispatched;
+         * they are answered with the {@link RpcCall#ERROR_INVALID_REQUEST}
+         * error. An empty batch is answered with a single error response.
+         * 
+         * @param array the batch to handle
+         */
+        protected void onBatch(JsonArray array) {
+            int size = array.getSize();
+            if (size == 0) {
+                RpcResponse response = new RpcResponse()
+                    .setError(RpcCall.newInvalidRequestError());
+                postMessage(response);
+                return;
+            }
+            List<RpcObject> messages = new ArrayList<RpcObject>(size);
+            Set<String> ids = new HashSet<String>();
+            List<String> rejected = null;
+            for (int i = 0; i < size; i++) {
+                JsonObject json = array.getObject(i, JsonObject.FACTORY);
+                RpcObject value = RpcObject.toRpcObject(json);
+                if (value instanceof RpcRequest) {
+                    String id = value.getIdAsString();
+                    if (id != null && ids.contains(id)) {
+                        if (rejected == null) {
+                            rejected = new ArrayList<String>();
+                        }
+                        rejected.add(new RpcResponse()
+                            .<RpcResponse> setId(value.getId())
+                            .setError(RpcCall.newInvalidRequestError())
+                            .toString());
+                        continue;
+                    }
+                    if (id != null) {
+                        ids.add(id);
+                    }
+                }
+                messages.add(value);
+            }
+            if (!ids.isEmpty()) {
+                BatchResponse batch = new BatchResponse(ids);
+                if (rejected != null) {
+                    batch.fResponses.addAll(rejected);
+                }
+                synchronized (fBatchResponses) {
+                    for (String id : ids) {
+                        List<BatchResponse> batches = fBatchResponses.get(id);
+                        if (batches == null) {
+                            batches = new ArrayList<BatchResponse>(1);
+                            fBatchResponses.put(id, batches);
+                        }
+                        batches.add(batch);
+                    }
+                    fBatchResponsesCount = fBatchResponses.size();
+                }
+                IRpcTimer timer = fBatchResponseTimer;
+                long timeout = fBatchResponseTimeout;
+                if (timer != null && timeout > 0) {
+                    IRpcTimer.ITimeout task = timer.schedule(batch, timeout);
+                    synchronized (fBatchResponses) {
+                        if (!batch.fSent) {
+                            batch.fTimeout = task;
+                            task = null;
+                        }
+                    }
+                    if (task != null) {
+                        task.cancel();
+                    }
+                }
+            }
+            for (RpcObject message : messages) {
+                dispatchMessage(message);
+            }
+        }
+
         /**
          * This method should be called when a new serialized JSON object is
-         * received.
+         * received. The message could be an individual JSON object or a batch
+         * (a JSON array of objects).
          * 
          * @param msg a serialized JSON message
          */
         public void onMessage(String msg) {
-            JsonObject json = JsonObject.FACTORY.newValue(msg);
-            RpcObject value = RpcObject.toRpcObject(json);
-            fListener.onMessage(value);
+            onMessageReceived(msg);
+            if (isBatch(msg)) {
+                JsonArray array = JsonArray.FACTORY.newValue(msg);
+                onBatch(array);
+            } else {
+                JsonObject json = JsonObject.FACTORY.newValue(msg);
+                RpcObject value = RpcObject.toRpcObject(json);
+                dispatchMessage(value);
+            }
+        }
+
+        /**
+         * Notifies metrics about a received message.
+         * 
+         * @param size the size of the received message in bytes
+         */
+        protected void onMessageReceived(long size) {
+            IRpcMetrics metrics = fMetrics;
+            if (metrics != null) {
+                metrics.onMessageReceived(size);
+            }
+        }
+
+        /**
+         * Notifies metrics about a received serialized message.
+         * 
+         * @param msg the received message
+         */
+        private void onMessageReceived(String msg) {
+            if (fMetrics != null) {
+                onMessageReceived(getUtf8Length(msg));
+            }
+        }
+
+        /**
+         * Notifies metrics about a sent message.
+         * 
+         * @param size the size of the sent message in bytes
+         */
+        protected void onMessageSent(long size) {
+            IRpcMetrics metrics = fMetrics;
+            if (metrics != null) {
+                metrics.onMessageSent(size);
+            }
+        }
+
+        /**
+         * Notifies metrics about a sent serialized message.
+         * 
+         * @param msg the sent message
+         */
+        private void onMessageSent(String msg) {
+            if (fMetrics != null) {
+                onMessageSent(getUtf8Length(msg));
+            }
         }
 
         /**
          * @see org.ubimix.commons.rpc.IMessageSender#postMessage(java.lang.Object)
          */
         public void postMessage(JsonObject message) {
+            if (message instanceof RpcResponse
+                && addBatchResponse((RpcResponse) message)) {
+                return;
+            }
+            IRpcTimer timer = fBatchTimer;
+            if (timer != null) {
+                String str = message.toString();
+                boolean schedule = false;
+                synchronized (fMutex) {
+                    if (fBatch == null) {
+                        fBatch = new ArrayList<String>();
+                        schedule = true;
+                    }
+                    fBatch.add(str);
+                }
+                if (schedule) {
+                    timer.schedule(fFlushTask, fBatchWindow);
+                }
+            } else {
+                sendMessage(message);
+            }
+        }
+
+        /**
+         * Sends the given serialized responses to the peer in one array.
+         * 
+         * @param responses the serialized responses to send
+         */
+        private void sendBatch(List<String> responses) {
+            String msg = toArrayMessage(responses);
+            onMessageSent(msg);
+            sendMessage(msg);
+        }
+
+        /**
+         * Serializes and sends the given JSON object. This method is called
+         * for all individual messages which are not parts of batches. By
+         * default it sends the string representation of the object.
+         * Subclasses can overload this method to serialize messages directly
+         * in the transport format.
+         * 
+         * @param message the message to send
+         */
+        protected void sendMessage(JsonObject message) {
             String str = message.toString();
+            onMessageSent(str);
             sendMessage(str);
         }
 
@@ -132,128 +603,1065 @@ public class RpcCallsDispatcher {
          */
         protected abstract void sendMessage(String msg);
 
+        /**
+         * Activates batching of outgoing messages. All messages posted during
+         * the specified time window are sent to the peer in one JSON array.
+         * 
+         * @param timer the timer used to flush batches; if it is
+         *        <code>null</code> then outgoing batches are deactivated
+         * @param window the duration of the batch window in milliseconds
+         */
+        public void setBatchWindow(IRpcTimer timer, long window) {
+            fBatchWindow = window;
+            fBatchTimer = window > 0 ? timer : null;
+            if (fBatchTimer == null) {
+                flush();
+            }
+        }
+
+        /**
+         * Limits the time incoming batches wait for responses. When this time
+         * is expired the responses collected so far are sent to the peer in
+         * one array; responses to the remaining requests are sent later as
+         * individual messages. Without a timer a batch waits until all its
+         * requests are answered.
+         * 
+         * @param timer the timer used to expire batches; if it is
+         *        <code>null</code> then batches never expire
+         * @param timeout the maximal time (in milliseconds) a batch waits for
+         *        responses
+         */
+        public void setBatchResponseTimeout(IRpcTimer timer, long timeout) {
+            fBatchResponseTimeout = timeout;
+            fBatchResponseTimer = timeout > 0 ? timer : null;
+        }
+
         public void setMessageListener(IRpcMessenger.IMessageListener listener) {
             fListener = listener;
         }
 
+        /**
+         * Sets metrics notified about transferred messages.
+         * 
+         * @param metrics the metrics to set; if it is <code>null</code> then
+         *        metrics are not collected
+         */
+        public void setMetrics(IRpcMetrics metrics) {
+            fMetrics = metrics;
+        }
+
     }
 
     /**
-     * This map is used to keep all non-responded calls.
+     * Defines what happens with new local calls when the maximal number of
+     * calls waiting for responses is reached (see
+     * {@link RpcCallsDispatcher#setMaxInFlightCalls(int, OverflowPolicy, int)}
+     * ).
      */
-    private Map<String, RpcCall> fCalls = new HashMap<String, RpcCall>();
+    public enum OverflowPolicy {
 
-    private Class<? extends RpcCall> fCallType;
+        /**
+         * New calls are immediately finished with the
+         * {@link RpcCall#ERROR_OVERLOADED} error.
+         */
+        FAIL,
 
-    private IEventManager fEventManager;
+        /**
+         * New calls are kept in a local queue and they are sent to the peer
+         * when in-flight calls are finished. If the queue is full then new
+         * calls are finished with the {@link RpcCall#ERROR_OVERLOADED} error.
+         */
+        QUEUE
+
+    }
 
-    private String fIdBase = "id-" + (new Date().getTime()) + "-";
+    /**
+     * Calls sent to the remote peer and waiting for responses. Instances of
+     * this type are also used as timeout tasks expiring non-responded calls.
+     */
+    private class PendingCall implements Runnable {
 
-    private int fIdCounter = 0;
+        private final RpcCall fCall;
 
-    private IRpcMessenger.IMessageListener fMessageListener = new IRpcMessenger.IMessageListener() {
-        public void onMessage(RpcObject message) {
-            RpcObject obj = RpcObject.toRpcObject(message);
-            if (obj instanceof RpcResponse) {
-                RpcResponse resp = (RpcResponse) obj;
-                handleExternalResponses(resp);
+        /**
+         * The number of received chunks not acknowledged yet by a credit
+         * notification. Access to this field is synchronized on this object.
+         */
+        private int fChunks;
+
+        /**
+         * This flag is set when this call is finished; after that new
+         * followers can not be attached to it.
+         */
+        private boolean fFlightClosed;
+
+        /**
+         * The coalescing key of this call or <code>null</code> if other calls
+         * can not be attached to it (see {@link #getFlightKey(RpcCall)}). It
+         * is set before the call is saved in the table of pending calls.
+         */
+        private String fFlightKey;
+
+        /**
+         * Identical calls attached to this one and waiting for the same
+         * response. Access to this field is synchronized on this object.
+         */
+        private List<RpcCall> fFollowers;
+
+        /**
+         * Metrics notified about this call; it is <code>null</code> if
+         * metrics are not collected.
+         */
+        private final IRpcMetrics fMetrics;
+
+        private final Object fRequestKey;
+
+        /**
+         * This flag is <code>true</code> if this call holds an in-flight slot
+         * (see {@link RpcCallsDispatcher#setMaxInFlightCalls}). Slots are
+         * counted only when the number of in-flight calls is limited.
+         */
+        private final boolean fSlot;
+
+        private final long fStartTime;
+
+        private volatile IRpcTimer.ITimeout fTimeout;
+
+        public PendingCall(Object requestKey, RpcCall call, boolean slot) {
+            fRequestKey = requestKey;
+            fCall = call;
+            fSlot = slot;
+            fMetrics = fClientMetrics;
+            if (fMetrics != null) {
+                fMetrics.onCallStarted(getMethod());
+                fStartTime = System.nanoTime();
             } else {
-                RpcRequest request = (obj instanceof RpcRequest)
-                    ? (RpcRequest) obj
-                    : new RpcRequest().<RpcRequest> setId(newRequestId());
-                handleExternalCall(request);
+                fStartTime = 0;
             }
+            fCall.setCancelHandler(new Runnable() {
+                public void run() {
+                    cancel();
+                }
+            });
         }
-    };
 
-    private IRpcCallBuilder fRpcCallBuilder;
-
-    private IEventListener<RpcCall> fRpcCallListener = new CallListener<RpcCall>() {
-        @Override
-        protected void handleRequest(RpcCall event) {
-            if (event.hasResponse()) {
-                return;
+        /**
+         * Attaches an identical call to this one. The attached call is
+         * finished when this call is finished.
+         * 
+         * @param follower the call to attach
+         * @return <code>true</code> if the call was attached and
+         *         <code>false</code> if this call is already finished
+         */
+        public synchronized boolean addFollower(RpcCall follower) {
+            if (fFlightClosed) {
+                return false;
             }
-            if (event.isRemote()) {
-                /*
-                 * This is a remote call. If there is no reply for this call was
-                 * provided then we need to generate an error response.
-                 */
-                event.reply(RpcCall.newMethodNotFoundError());
-            } else {
-                /*
-                 * This is a local call. It should be serialized and sent to the
-                 * peer.
-                 */
-                RpcRequest request = event.getRequest();
-                String id = request.getIdAsString();
-                if (id != null) {
-                    saveEvent(id, event);
-                }
-                fRpcMessenger.postMessage(request);
+            if (fFollowers == null) {
+                fFollowers = new ArrayList<RpcCall>();
             }
+            fFollowers.add(follower);
+            return true;
         }
-    };
 
-    private IRpcMessenger fRpcMessenger;
+        /**
+         * This method is called when the call is cancelled by the caller. It
+         * forgets the call and notifies the peer about the cancellation.
+         * Attached identical calls are sent as independent calls.
+         */
+        public void cancel() {
+            if (removePendingCall(fRequestKey, this)) {
+                cancelTimeout();
+                releaseInFlightSlot(this);
+                onFinished(RpcCall.newCancelledError());
+                sendCancelRequest(fCall.getRequest().getId());
+                sendFollowers();
+            }
+        }
 
-    public RpcCallsDispatcher() {
-    }
+        public void cancelTimeout() {
+            IRpcTimer.ITimeout timeout = fTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
 
-    protected RpcCall createEvent(RpcRequest request) throws Exception {
-        RpcCall call = fRpcCallBuilder.newRpcCall(request);
-        return call;
-    }
+        /**
+         * Closes this call for new followers and returns all attached calls.
+         * 
+         * @return a list of calls attached to this one or <code>null</code>
+         *         if there is no such calls
+         */
+        public List<RpcCall> closeFlight() {
+            if (fFlightKey == null) {
+                // Calls can not be attached to this one
+                return null;
+            }
+            List<RpcCall> followers;
+            synchronized (this) {
+                fFlightClosed = true;
+                followers = fFollowers;
+                fFollowers = null;
+            }
+            fFlights.remove(fFlightKey, this);
+            return followers;
+        }
 
-    public void done() {
-        fEventManager.removeListener(fCallType, fRpcCallListener);
+        private String getMethod() {
+            return fCall.getRequest().getMethod();
+        }
+
+        /**
+         * Notifies metrics that this call is finished.
+         * 
+         * @param error the error of the call or <code>null</code>
+         */
+        public void onFinished(RpcError error) {
+            if (fMetrics != null) {
+                long time = System.nanoTime() - fStartTime;
+                fMetrics.onCallFinished(getMethod(), time, error);
+            }
+        }
+
+        /**
+         * Delivers a chunk of the result to the chunk listener of the call.
+         * When the listener returns the chunk is acknowledged: new credits
+         * are granted to the peer when a half of the chunk window is
+         * consumed. The expiration of the call is postponed for each chunk.
+         * 
+         * @param chunk the received chunk
+         */
+        public void onChunk(Object chunk) {
+            RpcCall.IChunkListener listener = fCall.getChunkListener();
+            if (listener == null || fCall.isCancelled()) {
+                return;
+            }
+            IRpcTimer.ITimeout timeout = fTimeout;
+            IRpcTimer timer = fTimer;
+            if (timeout != null && timer != null && timeout.cancel()) {
+                fTimeout = timer.schedule(this, getTimeout(fCall));
+            }
+            listener.onChunk(fCall, chunk);
+            int credit = 0;
+            synchronized (this) {
+                fChunks++;
+                if (fChunks >= Math.max(1, fChunkWindow / 2)) {
+                    credit = fChunks;
+                    fChunks = 0;
+                }
+            }
+            if (credit > 0 && getPendingCall(fRequestKey) == this) {
+                JsonObject params = new JsonObject();
+                params.setValue("id", fCall.getRequest().getId());
+                params.setValue("credit", credit);
+                RpcRequest request = new RpcRequest()
+                    .<RpcRequest> setMethod(METHOD_STREAM_CREDIT)
+                    .setParams(params);
+                fRpcMessenger.postMessage(request);
+            }
+        }
+
+        /**
+         * Replies to all attached calls with a copy of the given response.
+         * 
+         * @param response the response of this call
+         */
+        public void replyFollowers(RpcResponse response) {
+            List<RpcCall> followers = closeFlight();
+            if (followers == null) {
+                return;
+            }
+            RpcError error = response.getError();
+            Object result = response.getValue("result");
+            for (RpcCall follower : followers) {
+                if (follower.isCancelled()) {
+                    continue;
+                }
+                // Followers could modify their results
+                RpcResponse copy = new RpcResponse(follower.getRequest());
+                if (error != null) {
+                    copy.setError(RpcError.FACTORY.newValue(error.toString()));
+                } else {
+                    copy.setValue("result", copyResult(result));
+                }
+                follower.reply(copy);
+            }
+        }
+
+        /**
+         * This method is called by the timer when the call expires. The peer
+         * is notified that the call is abandoned (see
+         * {@link RpcCallsDispatcher#METHOD_CANCEL_REQUEST}), so the peer and
+         * intermediate messengers could forget it.
+         */
+        public void run() {
+            if (removePendingCall(fRequestKey, this)) {
+                releaseInFlightSlot(this);
+                RpcError error = RpcCall.newTimeoutError();
+                onFinished(error);
+                fCall.setError(error);
+                replyFollowers(fCall.getResponse());
+                sendCancelRequest(fCall.getRequest().getId());
+            }
+        }
+
+        /**
+         * Sends all attached calls as independent calls. This method is used
+         * when the response of this call is not handled by the dispatcher.
+         */
+        public void sendFollowers() {
+            List<RpcCall> followers = closeFlight();
+            if (followers == null) {
+                return;
+            }
+            for (RpcCall follower : followers) {
+                if (!follower.isCancelled()) {
+                    sendNewCall(follower, false);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Listens the response of a call received from the remote peer and sends
+     * this response back to the peer. In the recycling mode (see
+     * {@link RpcCallsDispatcher#setRecycling(int)}) listeners are re-used:
+     * a listener is released when the response is posted to the messenger.
+     */
+    private class RemoteCallListener extends CallListener<RpcCall> {
+
+        private RpcResponseCache fCache;
+
+        private String fCacheKey;
+
+        /**
+         * The fired call. Notifications about other calls (about calls
+         * handled by this listener before recycling) are ignored.
+         */
+        private RpcCall fCall;
+
+        private String fMethod;
+
+        private IRpcMetrics fMetrics;
+
+        private Object fRemoteKey;
+
+        private long fStartTime;
+
+        @Override
+        protected void handleResponse(RpcCall event) {
+            if (event != fCall) {
+                return;
+            }
+            // A call cancelled by the peer is already removed; the peer
+            // forgot this call, so the response is not sent
+            boolean registered = removeRemoteCall(fRemoteKey, event);
+            boolean send = registered || !event.isCancelled();
+            if (fCacheKey != null) {
+                fCache.putResponse(fCacheKey, event);
+            }
+            RpcResponse response = event.getResponse();
+            if (fMetrics != null) {
+                long time = System.nanoTime() - fStartTime;
+                fMetrics.onCallFinished(fMethod, time, response.getError());
+            }
+            try {
+                if (send) {
+                    fRpcMessenger.postMessage(response);
+                }
+            } finally {
+                releaseListener(this);
+            }
+        }
+
+    }
+
+    /**
+     * The name of the request member containing the number of result chunks
+     * the caller is ready to accept before acknowledging them (see
+     * {@link #METHOD_STREAM_CREDIT}). Requests without this member are
+     * answered only by complete responses.
+     */
+    public static final String CHUNK_CREDIT = "chunkCredit";
+
+    /**
+     * The name of the notification sent to the peer when a call is cancelled.
+     * Parameters of this notification contain the identifier of the cancelled
+     * request: <code>{"id": ...}</code>.
+     */
+    public static final String METHOD_CANCEL_REQUEST = "$/cancelRequest";
+
+    /**
+     * The name of the notification containing a chunk of the result of a
+     * call: <code>{"id": ..., "chunk": ...}</code>. Chunks are sent only to
+     * callers accepting them (see {@link #CHUNK_CREDIT}) before the final
+     * response of the call.
+     */
+    public static final String METHOD_RESULT_CHUNK = "$/resultChunk";
+
+    /**
+     * The name of the notification granting new credits for chunks of the
+     * result of a call: <code>{"id": ..., "credit": ...}</code>. The caller
+     * sends it when received chunks are handled, so the number of chunks in
+     * transit never exceeds the initial credit.
+     */
+    public static final String METHOD_STREAM_CREDIT = "$/streamCredit";
+
+    /**
+     * Returns a copy of the given result of a call. JSON objects and arrays
+     * are mutable, so they are copied; other values are returned as is.
+     * 
+     * @param result the result to copy
+     * @return a copy of the result
+     */
+    static Object copyResult(Object result) {
+        if (result instanceof JsonArray) {
+            return JsonArray.FACTORY.newValue(result.toString());
+        }
+        if (result instanceof JsonObject) {
+            return JsonObject.FACTORY.newValue(result.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified method is a service
+     * notification of this dispatcher (cancellations, chunks and credits).
+     * Such notifications should be dispatched immediately, in the order of
+     * arrival.
+     * 
+     * @param method the method to check
+     * @return <code>true</code> if the method is a service notification
+     */
+    static boolean isControlMethod(String method) {
+        return METHOD_CANCEL_REQUEST.equals(method)
+            || METHOD_RESULT_CHUNK.equals(method)
+            || METHOD_STREAM_CREDIT.equals(method);
+    }
+
+    /**
+     * Transforms the given request identifier in a key used to store pending
+     * calls. Integral numeric identifiers are transformed to {@link Long}
+     * values, all other identifiers are transformed to strings. So numeric
+     * identifiers are matched without any string operations.
+     * 
+     * @param requestId the request identifier to transform
+     * @return a key corresponding to the specified request identifier
+     */
+    private static Object getRequestKey(Object requestId) {
+        if (requestId == null || requestId instanceof Long) {
+            return requestId;
+        }
+        if (requestId instanceof Integer
+            || requestId instanceof Short
+            || requestId instanceof Byte) {
+            return Long.valueOf(((Number) requestId).longValue());
+        }
+        if (requestId instanceof Number) {
+            double value = ((Number) requestId).doubleValue();
+            long longValue = (long) value;
+            if (longValue == value) {
+                return Long.valueOf(longValue);
+            }
+        }
+        return requestId.toString();
+    }
+
+    /**
+     * This table is used to keep all non-responded calls. Keys of this table
+     * are returned by the {@link #getRequestKey(Object)} method.
+     */
+    private final IRpcCallTable<Object, PendingCall> fCalls = newCallTable();
+
+    private Class<? extends RpcCall> fCallType;
+
+    /**
+     * Sends chunks of results of calls received from the remote peer.
+     */
+    private final RpcCall.IChunkSender fChunkSender = new RpcCall.IChunkSender() {
+        public void sendChunk(RpcCall call, Object chunk) {
+            JsonObject params = new JsonObject();
+            params.setValue("id", call.getRequest().getId());
+            params.setValue("chunk", chunk);
+            RpcRequest request = new RpcRequest()
+                .<RpcRequest> setMethod(METHOD_RESULT_CHUNK)
+                .setParams(params);
+            fRpcMessenger.postMessage(request);
+        }
+    };
+
+    /**
+     * The number of result chunks accepted by this dispatcher for each call
+     * before acknowledging them.
+     */
+    private volatile int fChunkWindow = 16;
+
+    /**
+     * Metrics notified about calls sent to the remote peer.
+     */
+    private volatile IRpcMetrics fClientMetrics;
+
+    /**
+     * If this flag is <code>true</code> then identical calls (calls of the
+     * same method with the same parameters) fired while the first of them is
+     * waiting for a response are not sent to the peer; they are finished with
+     * the response of the first call.
+     */
+    private volatile boolean fCoalescingCalls;
+
+    private IEventManager fEventManager;
+
+    /**
+     * Pending calls accepting identical calls (see {@link #fCoalescingCalls}).
+     * Keys of this map are returned by the {@link #getFlightKey(RpcCall)}
+     * method.
+     */
+    private final IRpcCallTable<String, PendingCall> fFlights = newCallTable();
+
+    private final String fIdBase = "id-" + (new Date().getTime()) + "-";
+
+    /**
+     * The counter used to generate request identifiers. Access to this field
+     * is synchronized on this object (see {@link #nextIdCounter()}).
+     */
+    private long fIdCounter;
+
+    /**
+     * The number of calls sent to the peer and waiting for responses. It is
+     * counted only when the number of in-flight calls is limited. Access to
+     * this field is synchronized using the {@link #fInFlightMutex} object.
+     */
+    private int fInFlightCount;
+
+    /**
+     * This object is used to synchronize access to the
+     * {@link #fInFlightCount} and {@link #fWaitingCalls} fields.
+     */
+    private final Object fInFlightMutex = new Object();
+
+    /**
+     * The maximal number of calls waiting for responses. Non-positive values
+     * mean "no limits".
+     */
+    private volatile int fMaxInFlightCalls;
+
+    /**
+     * The maximal size of the local queue used by the
+     * {@link OverflowPolicy#QUEUE} policy.
+     */
+    private volatile int fMaxWaitingCalls;
+
+    private IRpcMessenger.IMessageListener fMessageListener = new IRpcMessenger.IMessageListener() {
+        public void onMessage(RpcObject message) {
+            handleMessage(message);
+        }
+    };
+
+    private volatile boolean fNumericIds;
+
+    private volatile OverflowPolicy fOverflowPolicy = OverflowPolicy.FAIL;
+
+    private IRpcCallBuilder fRpcCallBuilder;
+
+    private IEventListener<RpcCall> fRpcCallListener = new CallListener<RpcCall>() {
+        @Override
+        protected void handleRequest(RpcCall event) {
+            if (event.hasResponse()) {
+                return;
+            }
+            if (event.isRemote()) {
+                /*
+                 * This is a remote call. If there is no reply for this call was
+                 * provided then we need to generate an error response.
+                 * Notifications are never answered.
+                 */
+                if (event.getRequest().getId() != null) {
+                    event.reply(RpcCall.newMethodNotFoundError());
+                }
+            } else {
+                /*
+                 * This is a local call. It should be serialized and sent to the
+                 * peer.
+                 */
+                sendNewCall(event, fCoalescingCalls);
+            }
+        }
+    };
+
+    /**
+     * Calls received from the remote peer and not answered yet. Keys of this
+     * table are returned by the {@link #getRequestKey(Object)} method. This
+     * table is used to cancel calls by requests of the peer.
+     */
+    private final IRpcCallTable<Object, RpcCall> fRemoteCalls = newCallTable();
+
+    /**
+     * The cache of responses to idempotent calls received from the remote
+     * peer.
+     */
+    private volatile RpcResponseCache fResponseCache;
+
+    private IRpcMessenger fRpcMessenger;
+
+    /**
+     * Released response listeners available for re-use. This is a stack of a
+     * fixed size, so releasing a listener does not allocate memory. Access to
+     * this field is synchronized using the {@link #fListenersMutex} object.
+     */
+    private RemoteCallListener[] fListeners = new RemoteCallListener[0];
+
+    /**
+     * The number of listeners in the {@link #fListeners} stack.
+     */
+    private int fListenersCount;
+
+    private final Object fListenersMutex = new Object();
+
+    /**
+     * The maximal number of released response listeners kept for re-use.
+     */
+    private volatile int fRecycling;
+
+    /**
+     * Metrics notified about calls received from the remote peer.
+     */
+    private volatile IRpcMetrics fServerMetrics;
+
+    /**
+     * The default timeout for calls sent to the remote peer (in milliseconds).
+     * Non-positive values mean that calls never expire.
+     */
+    private volatile long fTimeout;
+
+    /**
+     * This timer is used to expire calls not answered by the remote peer.
+     */
+    private volatile IRpcTimer fTimer;
+
+    /**
+     * Local calls waiting for a free in-flight slot (see
+     * {@link OverflowPolicy#QUEUE}).
+     */
+    private final LinkedList<RpcCall> fWaitingCalls = new LinkedList<RpcCall>();
+
+    public RpcCallsDispatcher() {
+    }
+
+    /**
+     * Reserves an in-flight slot for the given call. If the maximal number of
+     * in-flight calls is reached then subclasses can wait for a free slot
+     * (see {@link #awaitInFlightSlot(RpcCall)}); otherwise the overflow
+     * policy is applied.
+     * 
+     * @param event the call to send
+     * @return <code>true</code> if a slot was reserved and the call should be
+     *         sent; <code>false</code> if the call was rejected or queued
+     */
+    private boolean acquireInFlightSlot(RpcCall event) {
+        if (tryAcquireInFlightSlot() || awaitInFlightSlot(event)) {
+            return true;
+        }
+        if (fOverflowPolicy == OverflowPolicy.QUEUE) {
+            boolean queued = false;
+            synchronized (fInFlightMutex) {
+                if (fWaitingCalls.size() < fMaxWaitingCalls) {
+                    fWaitingCalls.add(event);
+                    queued = true;
+                }
+            }
+            if (queued) {
+                // A slot could be released before the call was queued
+                sendWaitingCalls();
+                return false;
+            }
+        }
+        event.setError(RpcCall.newOverloadedError());
+        return false;
+    }
+
+    /**
+     * This method is called when the maximal number of in-flight calls is
+     * reached, before the overflow policy is applied. This implementation
+     * does nothing and returns <code>false</code>, so the thread firing a
+     * call is never blocked. Subclasses can wait until one of the in-flight
+     * calls is finished (see {@link #onInFlightSlotReleased()}) and reserve
+     * the released slot using the {@link #tryAcquireInFlightSlot()} method.
+     * 
+     * @param event the call to send
+     * @return <code>true</code> if a slot was reserved for the call
+     */
+    protected boolean awaitInFlightSlot(RpcCall event) {
+        return false;
+    }
+
+    protected RpcCall createEvent(RpcRequest request) throws Exception {
+        RpcCall call = fRpcCallBuilder.newRpcCall(request);
+        return call;
+    }
+
+    /**
+     * Stops this dispatcher. Calls waiting for responses and calls waiting
+     * for free in-flight slots are forgotten: their timeouts are cancelled and
+     * they are finished with the {@link RpcCall#ERROR_CANCELLED} error.
+     */
+    public void done() {
+        fEventManager.removeListener(fCallType, fRpcCallListener);
+        List<PendingCall> calls;
+        List<RpcCall> waitingCalls;
+        calls = fCalls.removeAll();
+        fFlights.removeAll();
+        synchronized (fInFlightMutex) {
+            for (PendingCall pending : calls) {
+                if (pending.fSlot) {
+                    fInFlightCount--;
+                }
+            }
+            waitingCalls = new ArrayList<RpcCall>(fWaitingCalls);
+            fWaitingCalls.clear();
+        }
+        RpcError error = RpcCall.newCancelledError();
+        for (PendingCall pending : calls) {
+            pending.cancelTimeout();
+            pending.onFinished(error);
+            pending.fCall.setError(error);
+            pending.replyFollowers(pending.fCall.getResponse());
+        }
+        for (RpcCall event : waitingCalls) {
+            event.setError(error);
+        }
+    }
+
+    /**
+     * Returns an event waiting for response corresponding to the specified
+     * request identifier. Numeric identifiers are matched by their values
+     * (see {@link #getRequestKey(Object)}).
+     * 
+     * @param requestId an id of the request
+     * @return an event waiting for the response
+     */
+    protected RpcCall getEvent(Object requestId) {
+        Object key = getRequestKey(requestId);
+        PendingCall pending = key != null ? removePendingCall(key) : null;
+        if (pending == null) {
+            return null;
+        }
+        pending.onFinished(null);
+        pending.sendFollowers();
+        return pending.fCall;
+    }
+
+    /**
+     * Returns the number of result chunks accepted for each call before
+     * acknowledging them.
+     * 
+     * @return the number of chunks accepted for each call
+     */
+    public int getChunkWindow() {
+        return fChunkWindow;
+    }
+
+    /**
+     * Returns metrics notified about calls sent to the remote peer.
+     * 
+     * @return metrics of outgoing calls or <code>null</code> if they are not
+     *         collected
+     */
+    public IRpcMetrics getClientMetrics() {
+        return fClientMetrics;
+    }
+
+    /**
+     * Returns the key used to find identical calls. By default two calls are
+     * identical if they have the same method names and equal parameters. This
+     * method could be overloaded to exclude some parameters (like
+     * timestamps) from comparison.
+     * 
+     * @param event the call
+     * @return the coalescing key of the call
+     */
+    protected String getFlightKey(RpcCall event) {
+        RpcRequest request = event.getRequest();
+        return RpcResponseCache.getKey(
+            request.getMethod(),
+            request.getParams());
+    }
+
+    /**
+     * Returns the number of calls sent to the peer and waiting for responses.
+     * This value could be used by callers to throttle new calls. In-flight
+     * slots are counted only when the number of in-flight calls is limited;
+     * otherwise this method returns the number of pending calls.
+     * 
+     * @return the number of in-flight calls
+     */
+    public int getInFlightCallsCount() {
+        if (fMaxInFlightCalls <= 0) {
+            return fCalls.size();
+        }
+        synchronized (fInFlightMutex) {
+            return fInFlightCount;
+        }
+    }
+
+    /**
+     * Returns the maximal number of in-flight calls; non-positive values mean
+     * "no limits".
+     * 
+     * @return the maximal number of in-flight calls
+     */
+    public int getMaxInFlightCalls() {
+        return fMaxInFlightCalls;
+    }
+
+    /**
+     * Returns the maximal number of released response listeners kept for
+     * re-use.
+     * 
+     * @return the maximal number of recycled listeners; 0 if the recycling
+     *         is disabled
+     */
+    public int getRecycling() {
+        return fRecycling;
+    }
+
+    /**
+     * Returns the cache of responses to idempotent calls received from the
+     * remote peer.
+     * 
+     * @return the cache of responses or <code>null</code> if responses are
+     *         not cached
+     */
+    public RpcResponseCache getResponseCache() {
+        return fResponseCache;
     }
 
     /**
-     * Returns an event waiting for response corresponding to the specified
-     * request identifier.
+     * Returns metrics notified about calls received from the remote peer.
      * 
-     * @param requestId an id of the request
-     * @return an event waiting for the response
+     * @return metrics of incoming calls or <code>null</code> if they are not
+     *         collected
+     */
+    public IRpcMetrics getServerMetrics() {
+        return fServerMetrics;
+    }
+
+    /**
+     * Returns the default timeout (in milliseconds) for calls sent to the
+     * remote peer.
+     * 
+     * @return the default timeout for calls
+     */
+    public long getTimeout() {
+        return fTimeout;
+    }
+
+    /**
+     * Returns the timeout (in milliseconds) for the specified call.
+     * 
+     * @param event the call sent to the remote peer
+     * @return the timeout for the specified call; non-positive values mean
+     *         that the call never expires
+     * @see RpcCall#getTimeout()
+     */
+    protected long getTimeout(RpcCall event) {
+        long timeout = event.getTimeout();
+        if (timeout == 0) {
+            timeout = fTimeout;
+        }
+        return timeout;
+    }
+
+    /**
+     * Returns the timer used to expire calls or <code>null</code> if calls
+     * never expire.
+     * 
+     * @return the timer used to expire calls
+     */
+    public IRpcTimer getTimer() {
+        return fTimer;
+    }
+
+    /**
+     * Returns the number of local calls waiting for a free in-flight slot (see
+     * {@link OverflowPolicy#QUEUE}).
+     * 
+     * @return the number of calls in the local queue
+     */
+    public int getWaitingCallsCount() {
+        synchronized (fInFlightMutex) {
+            return fWaitingCalls.size();
+        }
+    }
+
+    /**
+     * Returns a call waiting for a response.
+     * 
+     * @param requestKey the key of the call returned by the
+     *        {@link #getRequestKey(Object)} method
+     * @return the call corresponding to the given key or <code>null</code>
+     */
+    private PendingCall getPendingCall(Object requestKey) {
+        return fCalls.get(requestKey);
+    }
+
+    /**
+     * Handles a cancellation notification received from the remote peer (see
+     * {@link #METHOD_CANCEL_REQUEST}). The corresponding call is marked as
+     * cancelled; no response is sent back for this call because the peer
+     * does not wait for it anymore.
+     * 
+     * @param request the cancellation notification
      */
-    protected RpcCall getEvent(String requestId) {
-        synchronized (fCalls) {
-            return fCalls.remove(requestId);
+    private void handleCancelRequest(RpcRequest request) {
+        JsonObject params = request.getParamsAsObject();
+        Object id = params != null ? params.getValue("id") : null;
+        Object key = getRequestKey(id);
+        RpcCall call = null;
+        if (key != null) {
+            call = fRemoteCalls.remove(key);
+        }
+        if (call != null) {
+            call.cancel();
         }
     }
 
     /**
-     * This method handles external requests.
+     * This method handles external requests. Calls of unknown methods are
+     * reported to the server metrics under the
+     * {@link IRpcMetrics#UNKNOWN_METHOD} name, so a peer can not create
+     * statistics for arbitrary method names.
      * 
      * @param request the request to handle
      */
     private void handleExternalCall(RpcRequest request) {
         Object requestId = request.getId();
+        IRpcMetrics metrics = fServerMetrics;
+        long startTime = metrics != null ? System.nanoTime() : 0;
+        Object remoteKey = getRequestKey(requestId);
+        Object credit = request.getValue(CHUNK_CREDIT);
+        int chunkCredit = credit instanceof Number ? ((Number) credit)
+            .intValue() : 0;
+        RpcCall event = null;
+        RpcError error = null;
         try {
-            RpcCall event = createEvent(request);
+            event = createEvent(request);
             if (event == null) {
-                if (requestId != null) {
-                    RpcError error = RpcCall.newMethodNotFoundError();
-                    RpcResponse response = new RpcResponse()
-                        .<RpcResponse> setId(requestId)
-                        .setError(error);
-                    fRpcMessenger.postMessage(response);
+                error = RpcCall.newMethodNotFoundError();
+            }
+        } catch (Throwable t) {
+            error = RpcCall.getError(t);
+        }
+        String method = event != null
+            ? request.getMethod()
+            : IRpcMetrics.UNKNOWN_METHOD;
+        if (metrics != null) {
+            metrics.onCallStarted(method);
+        }
+        if (error == null) {
+            boolean fired = false;
+            try {
+                // Streamed results are never cached
+                RpcResponseCache cache = chunkCredit <= 0
+                    ? fResponseCache
+                    : null;
+                String key = cache != null ? cache.getKey(event) : null;
+                RpcResponse cached = key != null ? cache.getResponse(
+                    key,
+                    requestId) : null;
+                if (cached != null) {
+                    if (metrics != null) {
+                        long time = System.nanoTime() - startTime;
+                        metrics.onCallFinished(method, time, null);
+                    }
+                    fRpcMessenger.postMessage(cached);
+                } else {
+                    event.setRemote(true);
+                    if (chunkCredit > 0) {
+                        event.setChunkSender(fChunkSender, chunkCredit);
+                    }
+                    fRemoteCalls.put(remoteKey, event);
+                    RemoteCallListener listener = newListener();
+                    listener.fCache = cache;
+                    listener.fCacheKey = key;
+                    listener.fCall = event;
+                    listener.fMethod = method;
+                    listener.fMetrics = metrics;
+                    listener.fRemoteKey = remoteKey;
+                    listener.fStartTime = startTime;
+                    fired = true;
+                    fEventManager.fireEvent(event, listener);
                 }
+            } catch (Throwable t) {
+                error = RpcCall.getError(t);
+                if (fired) {
+                    // The listener sends the error (if the handler did not
+                    // reply yet) and releases itself
+                    event.setError(error);
+                    error = null;
+                }
+            }
+        }
+        if (error != null) {
+            if (event != null) {
+                removeRemoteCall(remoteKey, event);
+            }
+            if (metrics != null) {
+                long time = System.nanoTime() - startTime;
+                metrics.onCallFinished(method, time, error);
+            }
+            if (requestId != null) {
+                RpcResponse response = new RpcResponse()
+                    .<RpcResponse> setId(requestId)
+                    .setError(error);
+                fRpcMessenger.postMessage(response);
+            }
+        }
+    }
+
+    /**
+     * Handles a notification (a request without identifier) received from
+     * the remote peer. Notifications are fired without response listeners,
+     * so responses are never serialized or sent back. Errors are only
+     * reported to the server metrics.
+     * 
+     * @param request the notification to handle
+     */
+    private void handleExternalNotification(RpcRequest request) {
+        String method = request.getMethod();
+        if (METHOD_CANCEL_REQUEST.equals(method)) {
+            handleCancelRequest(request);
+            return;
+        }
+        if (METHOD_RESULT_CHUNK.equals(method)) {
+            handleResultChunk(request);
+            return;
+        }
+        if (METHOD_STREAM_CREDIT.equals(method)) {
+            handleStreamCredit(request);
+            return;
+        }
+        IRpcMetrics metrics = fServerMetrics;
+        long startTime = metrics != null ? System.nanoTime() : 0;
+        RpcCall event = null;
+        RpcError error = null;
+        try {
+            event = createEvent(request);
+            if (event == null) {
+                error = RpcCall.newMethodNotFoundError();
             } else {
                 event.setRemote(true);
-                fEventManager.fireEvent(event, new CallListener<RpcCall>() {
-                    @Override
-                    protected void handleResponse(RpcCall event) {
-                        RpcResponse response = event.getResponse();
-                        fRpcMessenger.postMessage(response);
-                    }
-                });
+                fEventManager.fireEvent(event);
             }
         } catch (Throwable t) {
-            RpcError error = RpcCall.getError(t);
-            RpcResponse response = new RpcResponse().<RpcResponse> setId(
-                requestId).setError(error);
-            fRpcMessenger.postMessage(response);
+            error = RpcCall.getError(t);
+        }
+        if (metrics != null) {
+            // Unknown methods are not reported by their names
+            String name = event != null ? method : IRpcMetrics.UNKNOWN_METHOD;
+            long time = System.nanoTime() - startTime;
+            metrics.onCallStarted(name);
+            metrics.onCallFinished(name, time, error);
         }
     }
 
@@ -263,10 +1671,79 @@ public class RpcCallsDispatcher {
      * @param resp the external response to dispatch
      */
     private void handleExternalResponses(RpcResponse resp) {
-        String id = resp.getIdAsString();
-        RpcCall event = getEvent(id);
-        if (event != null) {
-            event.reply(resp);
+        Object key = getRequestKey(resp.getId());
+        PendingCall pending = key != null ? removePendingCall(key) : null;
+        if (pending != null) {
+            pending.onFinished(resp.getError());
+            pending.fCall.reply(resp);
+            pending.replyFollowers(resp);
+        }
+    }
+
+    /**
+     * Handles a message received from the remote peer. Responses finish calls
+     * waiting for them; requests and notifications are fired in the event
+     * manager.
+     * 
+     * @param message the message to handle
+     */
+    protected void handleMessage(RpcObject message) {
+        RpcObject obj = RpcObject.toRpcObject(message);
+        if (obj instanceof RpcResponse) {
+            RpcResponse resp = (RpcResponse) obj;
+            handleExternalResponses(resp);
+        } else {
+            /*
+             * Messages which are neither requests nor responses are handled
+             * as requests without methods; they are answered with an error
+             * only if they have identifiers.
+             */
+            RpcRequest request = (obj instanceof RpcRequest)
+                ? (RpcRequest) obj
+                : new RpcRequest().<RpcRequest> setId(obj.getId());
+            if (request.getId() == null) {
+                handleExternalNotification(request);
+            } else {
+                handleExternalCall(request);
+            }
+        }
+    }
+
+    /**
+     * Handles a chunk of the result of a call sent to the remote peer (see
+     * {@link #METHOD_RESULT_CHUNK}). Chunks of unknown calls are ignored.
+     * 
+     * @param request the chunk notification
+     */
+    private void handleResultChunk(RpcRequest request) {
+        JsonObject params = request.getParamsAsObject();
+        Object key = params != null
+            ? getRequestKey(params.getValue("id"))
+            : null;
+        PendingCall pending = key != null ? getPendingCall(key) : null;
+        if (pending != null) {
+            pending.onChunk(params.getValue("chunk"));
+        }
+    }
+
+    /**
+     * Handles credits for chunks of the result of a call received from the
+     * remote peer (see {@link #METHOD_STREAM_CREDIT}).
+     * 
+     * @param request the credit notification
+     */
+    private void handleStreamCredit(RpcRequest request) {
+        JsonObject params = request.getParamsAsObject();
+        Object key = params != null
+            ? getRequestKey(params.getValue("id"))
+            : null;
+        RpcCall call = null;
+        if (key != null) {
+            call = fRemoteCalls.get(key);
+        }
+        Object credit = call != null ? params.getValue("credit") : null;
+        if (credit instanceof Number) {
+            call.addChunkCredit(((Number) credit).intValue());
         }
     }
 
@@ -288,19 +1765,508 @@ public class RpcCallsDispatcher {
         init(RpcCall.class, builder, manager, messenger);
     }
 
-    public synchronized String newRequestId() {
-        return fIdBase + (fIdCounter++);
+    /**
+     * Returns <code>true</code> if identical calls waiting for the same
+     * response are coalesced (see {@link #setCoalescingCalls(boolean)}).
+     * 
+     * @return <code>true</code> if identical calls are coalesced
+     */
+    public boolean isCoalescingCalls() {
+        return fCoalescingCalls;
+    }
+
+    /**
+     * Returns <code>true</code> if numeric request identifiers are generated
+     * by the {@link #newRequestIdValue()} method.
+     * 
+     * @return <code>true</code> if numeric request identifiers are used
+     */
+    public boolean isNumericIds() {
+        return fNumericIds;
+    }
+
+    /**
+     * Returns a new unique request identifier.
+     * 
+     * @return a new unique request identifier
+     */
+    public String newRequestId() {
+        long counter = nextIdCounter();
+        // The builder is allocated with the final size of the identifier
+        return new StringBuilder(fIdBase.length() + 20)
+            .append(fIdBase)
+            .append(counter)
+            .toString();
+    }
+
+    /**
+     * Returns a new unique request identifier. If numeric identifiers are
+     * activated (see {@link #setNumericIds(boolean)}) then this method
+     * returns a {@link Long} value without any string allocation; otherwise it
+     * returns the same string as the {@link #newRequestId()} method.
+     * 
+     * @return a new unique request identifier
+     */
+    public Object newRequestIdValue() {
+        if (fNumericIds) {
+            return Long.valueOf(nextIdCounter());
+        }
+        return newRequestId();
+    }
+
+    /**
+     * Returns the next value of the 64-bit counter used to generate request
+     * identifiers. This implementation is synchronized, so it could be used
+     * in GWT; subclasses running in JVM could use atomic counters (see
+     * {@link ConcurrentRpcCallsDispatcher}).
+     * 
+     * @return the next value of the identifier counter
+     */
+    protected synchronized long nextIdCounter() {
+        return fIdCounter++;
+    }
+
+    /**
+     * Creates a table of calls. This method is used to create tables of calls
+     * waiting for responses, of coalesced calls and of calls received from
+     * the remote peer; it is called when this dispatcher is created. This
+     * implementation returns a synchronized {@link RpcCallTable}, so the
+     * dispatcher could be used in GWT. Subclasses running in JVM could return
+     * concurrent tables (see {@link ConcurrentRpcCallsDispatcher}).
+     * 
+     * @return a new table of calls
+     */
+    protected <K, V> IRpcCallTable<K, V> newCallTable() {
+        return new RpcCallTable<K, V>();
+    }
+
+    /**
+     * Returns a listener for the response of a call received from the remote
+     * peer. In the recycling mode listeners are taken from the pool of
+     * released listeners.
+     * 
+     * @return a response listener
+     */
+    private RemoteCallListener newListener() {
+        RemoteCallListener listener = null;
+        if (fRecycling > 0) {
+            synchronized (fListenersMutex) {
+                if (fListenersCount > 0) {
+                    listener = fListeners[--fListenersCount];
+                    fListeners[fListenersCount] = null;
+                }
+            }
+        }
+        if (listener == null) {
+            listener = new RemoteCallListener();
+        }
+        return listener;
+    }
+
+    /**
+     * This method is called when an in-flight slot is released and the number
+     * of in-flight calls is limited. It sends queued calls to the peer.
+     * Subclasses waiting for free slots (see
+     * {@link #awaitInFlightSlot(RpcCall)}) should call the parent method and
+     * wake up waiting threads.
+     */
+    protected void onInFlightSlotReleased() {
+        if (fOverflowPolicy == OverflowPolicy.QUEUE) {
+            sendWaitingCalls();
+        }
+    }
+
+    /**
+     * Releases the in-flight slot of the given call (if any) and notifies
+     * about it. Calls sent without limits do not hold slots, so nothing is
+     * locked for them.
+     * 
+     * @param pending the finished call
+     */
+    private void releaseInFlightSlot(PendingCall pending) {
+        if (!pending.fSlot) {
+            return;
+        }
+        synchronized (fInFlightMutex) {
+            fInFlightCount--;
+        }
+        onInFlightSlotReleased();
+    }
+
+    /**
+     * Clears the given listener and puts it in the pool of released
+     * listeners if the recycling is enabled and the pool is not full.
+     * 
+     * @param listener the listener to release
+     */
+    private void releaseListener(RemoteCallListener listener) {
+        listener.fCache = null;
+        listener.fCacheKey = null;
+        listener.fCall = null;
+        listener.fMethod = null;
+        listener.fMetrics = null;
+        listener.fRemoteKey = null;
+        if (fRecycling > 0) {
+            synchronized (fListenersMutex) {
+                if (fListenersCount < fListeners.length) {
+                    fListeners[fListenersCount++] = listener;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes and returns a call waiting for a response.
+     * 
+     * @param requestKey the key of the call returned by the
+     *        {@link #getRequestKey(Object)} method
+     * @return the removed call or <code>null</code> if there is no calls
+     *         corresponding to the given key
+     */
+    private PendingCall removePendingCall(Object requestKey) {
+        PendingCall pending = fCalls.remove(requestKey);
+        if (pending == null) {
+            return null;
+        }
+        pending.cancelTimeout();
+        releaseInFlightSlot(pending);
+        return pending;
+    }
+
+    /**
+     * Removes the given call if it is still waiting for a response.
+     * 
+     * @param requestKey the key of the call
+     * @param pending the call to remove
+     * @return <code>true</code> if the call was removed
+     */
+    private boolean removePendingCall(Object requestKey, PendingCall pending) {
+        return fCalls.remove(requestKey, pending);
+    }
+
+    /**
+     * Removes the given call received from the remote peer if it is still
+     * registered with the specified key.
+     * 
+     * @param remoteKey the key of the call
+     * @param event the call to remove
+     * @return <code>true</code> if the call was registered with this key
+     */
+    private boolean removeRemoteCall(Object remoteKey, RpcCall event) {
+        return fRemoteCalls.remove(remoteKey, event);
     }
 
     /**
      * Saves an event corresponding to the specified request id.
      * 
-     * @param requestId the unique identifier of the call
+     * @param requestId the unique identifier of the call; numeric identifiers
+     *        are matched by their values (see {@link #getRequestKey(Object)})
      * @param event the event to save
      */
-    protected void saveEvent(String requestId, RpcCall event) {
-        synchronized (fCalls) {
-            fCalls.put(requestId, event);
+    protected void saveEvent(Object requestId, RpcCall event) {
+        savePendingCall(getRequestKey(requestId), null, event, false);
+    }
+
+    /**
+     * Saves a call waiting for a response from the remote peer and schedules
+     * its expiration.
+     * 
+     * @param requestKey the key of the call returned by the
+     *        {@link #getRequestKey(Object)} method
+     * @param flightKey the coalescing key of the call or <code>null</code> if
+     *        identical calls should not be attached to this one
+     * @param event the call to save
+     * @param slot <code>true</code> if an in-flight slot was reserved for the
+     *        call
+     */
+    private void savePendingCall(
+        Object requestKey,
+        String flightKey,
+        RpcCall event,
+        boolean slot) {
+        PendingCall pending = new PendingCall(requestKey, event, slot);
+        if (flightKey != null
+            && fFlights.putIfAbsent(flightKey, pending) == null) {
+            pending.fFlightKey = flightKey;
+        }
+        PendingCall prev = fCalls.put(requestKey, pending);
+        if (prev != null) {
+            prev.cancelTimeout();
+            releaseInFlightSlot(prev);
+            prev.onFinished(null);
+            prev.sendFollowers();
+        }
+        long timeout = getTimeout(event);
+        IRpcTimer timer = fTimer;
+        if (timeout > 0 && timer != null) {
+            pending.fTimeout = timer.schedule(pending, timeout);
+        }
+    }
+
+    /**
+     * Saves the given call as a pending call and sends it to the peer. If the
+     * number of in-flight calls is limited then an in-flight slot should be
+     * already reserved for this call. Calls accepting result chunks are sent
+     * as copies of their requests with the {@link #CHUNK_CREDIT} member;
+     * requests of calls are never modified.
+     * 
+     * @param requestKey the key of the call
+     * @param flightKey the coalescing key of the call or <code>null</code>
+     * @param event the call to send
+     * @param slot <code>true</code> if an in-flight slot was reserved for the
+     *        call
+     */
+    private void sendCall(
+        Object requestKey,
+        String flightKey,
+        RpcCall event,
+        boolean slot) {
+        RpcRequest request = event.getRequest();
+        if (event.getChunkListener() != null) {
+            RpcRequest copy = new RpcRequest();
+            for (String key : request.getKeys()) {
+                copy.setValue(key, request.getValue(key));
+            }
+            copy.setValue(CHUNK_CREDIT, fChunkWindow);
+            request = copy;
+        }
+        savePendingCall(requestKey, flightKey, event, slot);
+        fRpcMessenger.postMessage(request);
+    }
+
+    /**
+     * Notifies the peer that the call with the specified identifier was
+     * cancelled.
+     * 
+     * @param requestId the identifier of the cancelled call
+     */
+    private void sendCancelRequest(Object requestId) {
+        JsonObject params = new JsonObject();
+        params.setValue("id", requestId);
+        RpcRequest request = new RpcRequest()
+            .<RpcRequest> setMethod(METHOD_CANCEL_REQUEST)
+            .setParams(params);
+        fRpcMessenger.postMessage(request);
+    }
+
+    /**
+     * Sends a new local call to the peer. Notifications (calls without
+     * identifiers) are sent immediately. If coalescing is enabled and an
+     * identical call is already waiting for a response then the given call is
+     * attached to it and nothing is sent.
+     * 
+     * @param event the call to send
+     * @param coalescing if this flag is <code>true</code> then the call could
+     *        be attached to an identical pending call
+     */
+    private void sendNewCall(RpcCall event, boolean coalescing) {
+        RpcRequest request = event.getRequest();
+        Object key = getRequestKey(request.getId());
+        if (key == null) {
+            fRpcMessenger.postMessage(request);
+            return;
+        }
+        String flightKey = null;
+        if (coalescing && event.getChunkListener() == null) {
+            flightKey = getFlightKey(event);
+            PendingCall leader = fFlights.get(flightKey);
+            if (leader != null && leader.addFollower(event)) {
+                return;
+            }
+        }
+        // In-flight slots are counted only if their number is limited
+        boolean slot = fMaxInFlightCalls > 0;
+        if (!slot || acquireInFlightSlot(event)) {
+            sendCall(key, flightKey, event, slot);
+        }
+    }
+
+    /**
+     * Sends queued calls while there are free in-flight slots.
+     */
+    private void sendWaitingCalls() {
+        while (true) {
+            RpcCall event;
+            synchronized (fInFlightMutex) {
+                int max = fMaxInFlightCalls;
+                if (fWaitingCalls.isEmpty()
+                    || (max > 0 && fInFlightCount >= max)) {
+                    break;
+                }
+                event = fWaitingCalls.removeFirst();
+                if (event.isCancelled()) {
+                    continue;
+                }
+                fInFlightCount++;
+            }
+            Object key = getRequestKey(event.getRequest().getId());
+            String flightKey = fCoalescingCalls
+                && event.getChunkListener() == null
+                ? getFlightKey(event)
+                : null;
+            sendCall(key, flightKey, event, true);
+        }
+    }
+
+    /**
+     * Sets the number of result chunks accepted for each call before
+     * acknowledging them (see {@link RpcCall#setChunkListener}). This value
+     * limits the number of chunks in transit and so the memory used by
+     * streamed results on both sides.
+     * 
+     * @param chunkWindow the number of chunks accepted for each call
+     */
+    public void setChunkWindow(int chunkWindow) {
+        fChunkWindow = Math.max(1, chunkWindow);
+    }
+
+    /**
+     * Sets metrics notified about calls sent to the remote peer. Metrics are
+     * notified only about calls waiting for responses; notifications are not
+     * counted.
+     * 
+     * @param metrics the metrics to set; if it is <code>null</code> then
+     *        metrics are not collected
+     */
+    public void setClientMetrics(IRpcMetrics metrics) {
+        fClientMetrics = metrics;
+    }
+
+    /**
+     * Enables or disables coalescing of identical calls. If it is enabled then
+     * a local call is not sent to the peer when an identical call (a call of
+     * the same method with the same parameters, see
+     * {@link #getFlightKey(RpcCall)}) is already waiting for a response. Such
+     * a call is attached to the pending one and it is finished with a copy of
+     * its response (or with the same error). Only one request is sent to the
+     * peer, so this mode should be used only for idempotent methods. It is
+     * disabled by default.
+     * 
+     * @param coalescingCalls <code>true</code> if identical calls should be
+     *        coalesced
+     */
+    public void setCoalescingCalls(boolean coalescingCalls) {
+        fCoalescingCalls = coalescingCalls;
+    }
+
+    /**
+     * Limits the number of calls sent to the peer and waiting for responses.
+     * 
+     * @param maxInFlightCalls the maximal number of in-flight calls;
+     *        non-positive values mean "no limits"
+     * @param policy defines what to do with new calls when the limit is
+     *        reached
+     * @param maxWaitingCalls the maximal number of calls in the local queue;
+     *        it is used only with the {@link OverflowPolicy#QUEUE} policy
+     */
+    public void setMaxInFlightCalls(
+        int maxInFlightCalls,
+        OverflowPolicy policy,
+        int maxWaitingCalls) {
+        fMaxInFlightCalls = maxInFlightCalls;
+        fOverflowPolicy = policy;
+        fMaxWaitingCalls = maxWaitingCalls;
+    }
+
+    /**
+     * Enables or disables the recycling mode. In this mode listeners of
+     * responses to calls received from the remote peer are kept in a pool
+     * and re-used by new calls. A listener is released when the response is
+     * posted to the messenger (see {@link IRpcMessenger#postMessage}), so
+     * messengers should not keep references to listeners.
+     * 
+     * @param poolSize the maximal number of released listeners kept for
+     *        re-use; 0 disables the recycling
+     */
+    public void setRecycling(int poolSize) {
+        int size = Math.max(poolSize, 0);
+        synchronized (fListenersMutex) {
+            RemoteCallListener[] listeners = new RemoteCallListener[size];
+            fListenersCount = Math.min(fListenersCount, size);
+            System.arraycopy(fListeners, 0, listeners, 0, fListenersCount);
+            fListeners = listeners;
+            fRecycling = size;
+        }
+    }
+
+    /**
+     * Sets the cache of responses to idempotent calls (see
+     * {@link ICacheableCall}) received from the remote peer. Cached responses
+     * are sent back without firing calls.
+     * 
+     * @param responseCache the cache to set; if it is <code>null</code> then
+     *        responses are not cached
+     */
+    public void setResponseCache(RpcResponseCache responseCache) {
+        fResponseCache = responseCache;
+    }
+
+    /**
+     * Sets metrics notified about calls received from the remote peer.
+     * 
+     * @param metrics the metrics to set; if it is <code>null</code> then
+     *        metrics are not collected
+     */
+    public void setServerMetrics(IRpcMetrics metrics) {
+        fServerMetrics = metrics;
+    }
+
+    /**
+     * Activates/deactivates generation of numeric request identifiers by the
+     * {@link #newRequestIdValue()} method. Numeric identifiers are sent to the
+     * peer as JSON numbers and responses are matched using the numeric values.
+     * 
+     * @param numericIds <code>true</code> to use numeric identifiers
+     */
+    public void setNumericIds(boolean numericIds) {
+        fNumericIds = numericIds;
+    }
+
+    /**
+     * Sets the default timeout (in milliseconds) for calls sent to the remote
+     * peer. Individual call types can override this value (see
+     * {@link RpcCall#getTimeout()}). Timeouts are used only if a timer was
+     * set (see {@link #setTimer(IRpcTimer)}). Expired calls are finished with
+     * the {@link RpcCall#ERROR_TIMEOUT} error and the peer receives a
+     * cancellation notification for them.
+     * 
+     * @param timeout the default timeout; non-positive values mean that calls
+     *        never expire
+     */
+    public void setTimeout(long timeout) {
+        fTimeout = timeout;
+    }
+
+    /**
+     * Sets the timer used to expire calls which were not answered by the
+     * remote peer. Expired calls are removed from this dispatcher and finished
+     * with the {@link RpcCall#ERROR_TIMEOUT} error. Note that expired calls are
+     * finished in the thread of the timer. The same timer could be shared by
+     * multiple dispatchers. Without a timer calls never expire: a call is kept
+     * until the peer responds, until it is cancelled by the caller or until
+     * this dispatcher is stopped (see {@link #done()}), so a timer should be
+     * set if the peer could leave calls without responses.
+     * 
+     * @param timer the timer to set
+     */
+    public void setTimer(IRpcTimer timer) {
+        fTimer = timer;
+    }
+
+    /**
+     * Reserves an in-flight slot if the maximal number of in-flight calls is
+     * not reached yet.
+     * 
+     * @return <code>true</code> if a slot was reserved
+     */
+    protected boolean tryAcquireInFlightSlot() {
+        int max = fMaxInFlightCalls;
+        synchronized (fInFlightMutex) {
+            if (max > 0 && fInFlightCount >= max) {
+                return false;
+            }
+            fInFlightCount++;
+            return true;
         }
     }
 
@@ -0,0 +1,72 @@
+package org.ubimix.commons.rpc;
+
+/**
+ * This utility class is used by handlers streaming results (see
+ * {@link RpcCall#replyChunk(Object)}) in their own threads, for example in
+ * threads of the executor of the {@link ServerRpcCallHandler}. It blocks the
+ * current thread until the caller grants credits for new chunks. Handlers
+ * running in I/O threads should use the
+ * {@link RpcCall#setChunkCreditListener(Runnable)} method instead.
+ * 
+ * <pre>
+ * for (JsonObject item : items) {
+ *     if (!RpcChunkCredit.await(call, 10000) || !call.replyChunk(item)) {
+ *         return;
+ *     }
+ * }
+ * call.reply(null);
+ * </pre>
+ * 
+ * @author kotelnikov
+ */
+public class RpcChunkCredit {
+
+    /**
+     * Waits until the given call could send a new chunk of its result. This
+     * method replaces the chunk credit listener of the call while waiting.
+     * 
+     * @param call the call streaming its result
+     * @param timeout the maximal time to wait in milliseconds
+     * @return <code>true</code> if a new chunk could be sent;
+     *         <code>false</code> if the call does not accept chunks, if it is
+     *         cancelled or finished or if the timeout is expired
+     * @throws InterruptedException if the current thread was interrupted
+     */
+    public static boolean await(RpcCall call, long timeout)
+        throws InterruptedException {
+        if (!call.isStreaming()) {
+            return false;
+        }
+        if (call.getChunkCredit() > 0) {
+            return true;
+        }
+        final Object mutex = new Object();
+        call.setChunkCreditListener(new Runnable() {
+            public void run() {
+                synchronized (mutex) {
+                    mutex.notifyAll();
+                }
+            }
+        });
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+            synchronized (mutex) {
+                while (call.getChunkCredit() <= 0
+                    && !call.isCancelled()
+                    && !call.hasResponse()) {
+                    long delay = deadline - System.currentTimeMillis();
+                    if (delay <= 0) {
+                        break;
+                    }
+                    mutex.wait(delay);
+                }
+            }
+        } finally {
+            call.setChunkCreditListener(null);
+        }
+        return call.getChunkCredit() > 0
+            && !call.isCancelled()
+            && !call.hasResponse();
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,353 @@
+package org.ubimix.commons.rpc;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.ubimix.commons.json.rpc.RpcError;
+
+/**
+ * The default implementation of the {@link IRpcMetrics} interface. It keeps
+ * per-method statistics (number of calls, number of errors, number of calls
+ * in progress and a latency histogram), numbers of errors by error codes and
+ * sizes of transferred messages (in bytes). Calls of unknown methods are
+ * counted under the {@link IRpcMetrics#UNKNOWN_METHOD} name. All counters are
+ * lock-free, so the same instance could be shared between many dispatchers
+ * and handlers.
+ * 
+ * @author kotelnikov
+ */
+public class RpcMetrics implements IRpcMetrics {
+
+    /**
+     * Statistics of one method.
+     */
+    public static class MethodMetrics {
+
+        /**
+         * The number of buckets in the latency histogram. The bucket
+         * <code>i</code> counts calls with durations less than
+         * <code>2^i</code> microseconds; the last bucket counts all longer
+         * calls.
+         */
+        public static final int HISTOGRAM_SIZE = 32;
+
+        private final AtomicLong fCalls = new AtomicLong();
+
+        private final AtomicLong fErrors = new AtomicLong();
+
+        private final AtomicLongArray fHistogram = new AtomicLongArray(
+            HISTOGRAM_SIZE);
+
+        private final AtomicLong fInFlight = new AtomicLong();
+
+        private final AtomicLong fMaxTime = new AtomicLong();
+
+        private final String fMethod;
+
+        private final AtomicLong fTotalTime = new AtomicLong();
+
+        public MethodMetrics(String method) {
+            fMethod = method;
+        }
+
+        /**
+         * Returns the average duration of finished calls in nanoseconds.
+         * 
+         * @return the average duration of calls
+         */
+        public long getAverageTime() {
+            long calls = fCalls.get();
+            return calls > 0 ? fTotalTime.get() / calls : 0;
+        }
+
+        /**
+         * Returns the number of finished calls (including failed calls).
+         * 
+         * @return the number of finished calls
+         */
+        public long getCallsCount() {
+            return fCalls.get();
+        }
+
+        /**
+         * Returns the number of calls finished with errors.
+         * 
+         * @return the number of failed calls
+         */
+        public long getErrorsCount() {
+            return fErrors.get();
+        }
+
+        /**
+         * Returns a copy of the latency histogram (see
+         * {@link #HISTOGRAM_SIZE}).
+         * 
+         * @return a copy of the latency histogram
+         */
+        public long[] getHistogram() {
+            long[] result = new long[HISTOGRAM_SIZE];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = fHistogram.get(i);
+            }
+            return result;
+        }
+
+        /**
+         * Returns the number of calls in progress.
+         * 
+         * @return the number of calls in progress
+         */
+        public long getInFlightCount() {
+            return fInFlight.get();
+        }
+
+        /**
+         * Returns the maximal duration of a call in nanoseconds.
+         * 
+         * @return the maximal duration of a call
+         */
+        public long getMaxTime() {
+            return fMaxTime.get();
+        }
+
+        /**
+         * Returns the name of the method.
+         * 
+         * @return the name of the method
+         */
+        public String getMethod() {
+            return fMethod;
+        }
+
+        /**
+         * Returns an estimation of the specified percentile of call durations
+         * in nanoseconds. The returned value is the upper bound of the
+         * corresponding histogram bucket, so it is precise up to a factor of
+         * two.
+         * 
+         * @param percentile the percentile to return (from 0 to 100)
+         * @return an estimation of the specified percentile
+         */
+        public long getPercentile(double percentile) {
+            long[] histogram = getHistogram();
+            long total = 0;
+            for (long count : histogram) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * percentile / 100);
+            long count = 0;
+            for (int i = 0; i < histogram.length - 1; i++) {
+                count += histogram[i];
+                if (count >= threshold) {
+                    return (1L << i) * 1000;
+                }
+            }
+            return fMaxTime.get();
+        }
+
+        /**
+         * Returns the total duration of all finished calls in nanoseconds.
+         * 
+         * @return the total duration of finished calls
+         */
+        public long getTotalTime() {
+            return fTotalTime.get();
+        }
+
+        void onFinished(long time, boolean error) {
+            fInFlight.decrementAndGet();
+            fCalls.incrementAndGet();
+            if (error) {
+                fErrors.incrementAndGet();
+            }
+            fTotalTime.addAndGet(time);
+            while (true) {
+                long max = fMaxTime.get();
+                if (time <= max || fMaxTime.compareAndSet(max, time)) {
+                    break;
+                }
+            }
+            long micros = time / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            fHistogram.incrementAndGet(Math.min(bucket, HISTOGRAM_SIZE - 1));
+        }
+
+        void onStarted() {
+            fInFlight.incrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return fMethod
+                + ": calls="
+                + getCallsCount()
+                + ", errors="
+                + getErrorsCount()
+                + ", inFlight="
+                + getInFlightCount()
+                + ", avg="
+                + getAverageTime()
+                + "ns, max="
+                + getMaxTime()
+                + "ns";
+        }
+
+    }
+
+    /**
+     * Numbers of errors by error codes.
+     */
+    private final ConcurrentMap<Integer, AtomicLong> fErrorCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    private final ConcurrentMap<String, MethodMetrics> fMethods = new ConcurrentHashMap<String, MethodMetrics>();
+
+    private final AtomicLong fReceivedBytes = new AtomicLong();
+
+    private final AtomicLong fReceivedMessages = new AtomicLong();
+
+    private final AtomicLong fSentBytes = new AtomicLong();
+
+    private final AtomicLong fSentMessages = new AtomicLong();
+
+    /**
+     * Returns the number of calls finished with the specified error code. For
+     * example this method could be used to get the number of calls of
+     * unknown methods ({@link RpcError#ERROR_METHOD_NOT_FOUND}).
+     * 
+     * @param code the error code
+     * @return the number of calls finished with the specified error code
+     */
+    public long getErrorsCount(int code) {
+        AtomicLong counter = fErrorCodes.get(code);
+        return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * Returns the total number of calls in progress.
+     * 
+     * @return the total number of calls in progress
+     */
+    public long getInFlightCount() {
+        long result = 0;
+        for (MethodMetrics metrics : fMethods.values()) {
+            result += metrics.getInFlightCount();
+        }
+        return result;
+    }
+
+    /**
+     * Returns statistics of the specified method. If there is no statistics
+     * for this method then a new empty object is created and returned.
+     * 
+     * @param method the name of the method
+     * @return statistics of the specified method
+     */
+    public MethodMetrics getMethodMetrics(String method) {
+        String key = String.valueOf(method);
+        MethodMetrics metrics = fMethods.get(key);
+        if (metrics == null) {
+            metrics = new MethodMetrics(key);
+            MethodMetrics prev = fMethods.putIfAbsent(key, metrics);
+            if (prev != null) {
+                metrics = prev;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns an unmodifiable view of statistics of all called methods.
+     * 
+     * @return statistics of all methods
+     */
+    public Map<String, MethodMetrics> getMethods() {
+        return Collections.unmodifiableMap(fMethods);
+    }
+
+    /**
+     * Returns the total size of received messages in bytes.
+     * 
+     * @return the total number of received bytes
+     */
+    public long getReceivedBytes() {
+        return fReceivedBytes.get();
+    }
+
+    /**
+     * Returns the number of received messages.
+     * 
+     * @return the number of received messages
+     */
+    public long getReceivedMessagesCount() {
+        return fReceivedMessages.get();
+    }
+
+    /**
+     * Returns the total size of sent messages in bytes.
+     * 
+     * @return the total number of sent bytes
+     */
+    public long getSentBytes() {
+        return fSentBytes.get();
+    }
+
+    /**
+     * Returns the number of sent messages.
+     * 
+     * @return the number of sent messages
+     */
+    public long getSentMessagesCount() {
+        return fSentMessages.get();
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcMetrics#onCallFinished(java.lang.String,
+     *      long, org.ubimix.commons.json.rpc.RpcError)
+     */
+    public void onCallFinished(String method, long time, RpcError error) {
+        getMethodMetrics(method).onFinished(time, error != null);
+        if (error != null) {
+            Integer code = error.getCode();
+            AtomicLong counter = fErrorCodes.get(code);
+            if (counter == null) {
+                counter = new AtomicLong();
+                AtomicLong prev = fErrorCodes.putIfAbsent(code, counter);
+                if (prev != null) {
+                    counter = prev;
+                }
+            }
+            counter.incrementAndGet();
+        }
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcMetrics#onCallStarted(java.lang.String)
+     */
+    public void onCallStarted(String method) {
+        getMethodMetrics(method).onStarted();
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcMetrics#onMessageReceived(long)
+     */
+    public void onMessageReceived(long size) {
+        fReceivedMessages.incrementAndGet();
+        fReceivedBytes.addAndGet(size);
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.IRpcMetrics#onMessageSent(long)
+     */
+    public void onMessageSent(long size) {
+        fSentMessages.incrementAndGet();
+        fSentBytes.addAndGet(size);
+    }
+
+}
\ No newline at end of file
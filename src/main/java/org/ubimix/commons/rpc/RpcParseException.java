@@ -0,0 +1,24 @@
+package org.ubimix.commons.rpc;
+
+/**
+ * This exception is thrown when serialized parts of a received message (for
+ * example parameters of a {@link LazyRpcRequest}) are accessed but they are
+ * not valid JSON values. Calls failed with this exception are answered with
+ * the {@link RpcCall#ERROR_PARSE} error (see
+ * {@link RpcCall#getError(Throwable)}).
+ * 
+ * @author kotelnikov
+ */
+public class RpcParseException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message the description of the error
+     * @param cause the cause of the error
+     */
+    public RpcParseException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,831 @@
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.json.rpc.RpcError;
+
+/**
+ * This relay forwards calls between messengers without decoding them. It is
+ * used by gateways which only route calls between peers. Only the envelope of
+ * incoming JSON messages is scanned: the top-level "id" and "method" fields.
+ * Calls with methods matching one of the registered prefixes (see
+ * {@link #addRoute(String, RpcStreamMessenger)}) are forwarded "as is" to the
+ * corresponding downstream messenger; the only modification is the
+ * identifier of the call which is replaced by an identifier unique for this
+ * relay. When the downstream peer responds, the original identifier is put
+ * back and the response is sent to the messenger which received the call.
+ * Notifications about forwarded calls are routed by the identifiers of these
+ * calls: cancellation notifications (see
+ * {@link RpcCallsDispatcher#METHOD_CANCEL_REQUEST}) and stream credits (see
+ * {@link RpcCallsDispatcher#METHOD_STREAM_CREDIT}) are forwarded to the peer
+ * executing the call, result chunks (see
+ * {@link RpcCallsDispatcher#METHOD_RESULT_CHUNK}) are sent back to the
+ * caller. Cancelled calls are forgotten by the relay: the peer does not
+ * respond to them.
+ * <p>
+ * Messages which are not routed by this relay (calls with unknown methods,
+ * batches, messages encoded with non-JSON codecs) are handled by the
+ * messengers as usual, so a gateway could also serve some methods locally.
+ * </p>
+ * <p>
+ * Forwarded calls are kept until their responses arrive, so transports have
+ * to notify the relay when their messengers are closed (see
+ * {@link #onClose(RpcStreamMessenger)}); otherwise calls of closed messengers
+ * are kept until they expire (see {@link #setTimeout(IRpcTimer, long)}) or
+ * forever if the timeout is not set.
+ * </p>
+ * <p>
+ * Example of usage:
+ * </p>
+ * 
+ * <pre>
+ * RpcRelay relay = new RpcRelay();
+ * relay.addRoute(&quot;users.&quot;, usersMessenger);
+ * relay.addRoute(&quot;orders.&quot;, ordersMessenger);
+ * ...
+ * // For each incoming connection
+ * messenger.setRelay(relay);
+ * </pre>
+ * 
+ * @author kotelnikov
+ */
+public class RpcRelay {
+
+    /**
+     * Positions of the envelope fields in a message.
+     */
+    private static class Envelope {
+
+        private int fIdEnd = -1;
+
+        private int fIdStart = -1;
+
+        private String fMethod;
+
+    }
+
+    /**
+     * A call forwarded to a downstream messenger and waiting for a response.
+     * Instances of this type are also used as timeout tasks.
+     */
+    private class ForwardedCall implements Runnable {
+
+        private final RpcStreamMessenger fDownstream;
+
+        private final byte[] fId;
+
+        private final String fRelayId;
+
+        private final Source fSource;
+
+        private volatile IRpcTimer.ITimeout fTimeout;
+
+        public ForwardedCall(
+            String relayId,
+            Source source,
+            byte[] id,
+            RpcStreamMessenger downstream) {
+            fRelayId = relayId;
+            fSource = source;
+            fId = id;
+            fDownstream = downstream;
+        }
+
+        /**
+         * Removes this call from the list of forwarded calls.
+         * 
+         * @return <code>true</code> if this call was removed by this method
+         */
+        public boolean finish() {
+            if (!fCalls.remove(fRelayId, this)) {
+                return false;
+            }
+            fSources.remove(fSource, this);
+            IRpcTimer.ITimeout timeout = fTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            return true;
+        }
+
+        /**
+         * This method is called by the timer when the call expires.
+         */
+        public void run() {
+            if (finish()) {
+                sendError(this, RpcCall.newTimeoutError());
+            }
+        }
+
+    }
+
+    /**
+     * A prefix of methods and the messenger receiving these methods.
+     */
+    private static class Route {
+
+        private final RpcStreamMessenger fMessenger;
+
+        private final String fPrefix;
+
+        public Route(String prefix, RpcStreamMessenger messenger) {
+            fPrefix = prefix;
+            fMessenger = messenger;
+        }
+
+    }
+
+    /**
+     * The messenger which received a call and the original identifier of
+     * this call.
+     */
+    private static class Source {
+
+        private final String fId;
+
+        private final RpcStreamMessenger fMessenger;
+
+        public Source(RpcStreamMessenger messenger, String id) {
+            fMessenger = messenger;
+            fId = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Source)) {
+                return false;
+            }
+            Source o = (Source) obj;
+            return fMessenger == o.fMessenger && fId.equals(o.fId);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(fMessenger) ^ fId.hashCode();
+        }
+
+    }
+
+    /**
+     * Identifiers of forwarded calls start with this prefix.
+     */
+    public static final String ID_PREFIX = "relay-";
+
+    private static final byte[] KEY_ID = toBytes("id");
+
+    private static final byte[] KEY_METHOD = toBytes("method");
+
+    private static final byte[] NULL = toBytes("null");
+
+    private static final Comparator<Route> ROUTE_COMPARATOR = new Comparator<Route>() {
+        public int compare(Route o1, Route o2) {
+            return o2.fPrefix.length() - o1.fPrefix.length();
+        }
+    };
+
+    /**
+     * Returns a key of the given identifier. Identifiers "123" and 123 have
+     * the same key.
+     * 
+     * @param id a decoded identifier
+     * @return a key of the identifier
+     */
+    private static String getIdKey(Object id) {
+        return id != null ? id.toString() : null;
+    }
+
+    /**
+     * Returns a key of the identifier serialized in the specified part of
+     * the buffer. The key is the same as the key of the decoded identifier
+     * (see {@link #getIdKey(Object)}).
+     * 
+     * @param buf the buffer containing the identifier
+     * @param start the start position of the identifier
+     * @param end the end position of the identifier
+     * @return a key of the identifier or <code>null</code> if the identifier
+     *         is a string with escaped characters
+     */
+    private static String getIdKey(ByteBuffer buf, int start, int end) {
+        if (end - start >= 2 && buf.get(start) == '"') {
+            String str = toString(buf, start + 1, end - 1);
+            return str.indexOf('\\') < 0 ? str : null;
+        }
+        return toString(buf, start, end);
+    }
+
+    private static boolean matches(
+        ByteBuffer buf,
+        int start,
+        int end,
+        byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buf.get(start + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a new notification with the specified method and parameters.
+     * 
+     * @param method the method of the notification
+     * @param params the parameters of the notification
+     * @return a new notification
+     */
+    private static JsonObject newNotification(
+        String method,
+        JsonObject params) {
+        JsonObject message = new JsonObject();
+        message.setValue("jsonrpc", "2.0");
+        message.setValue("method", method);
+        message.setValue("params", params);
+        return message;
+    }
+
+    /**
+     * Scans the top-level fields of the message in the given buffer. The
+     * position of the buffer is not changed.
+     * 
+     * @param buf the buffer containing a serialized JSON message
+     * @return the envelope of the message or <code>null</code> if the message
+     *         is not a JSON object or if it could not be scanned
+     */
+    private static Envelope scan(ByteBuffer buf) {
+        int limit = buf.limit();
+        int pos = skipWhitespaces(buf, buf.position(), limit);
+        if (pos >= limit || buf.get(pos) != '{') {
+            return null;
+        }
+        Envelope envelope = new Envelope();
+        pos = skipWhitespaces(buf, pos + 1, limit);
+        if (pos < limit && buf.get(pos) == '}') {
+            return envelope;
+        }
+        while (pos < limit) {
+            if (buf.get(pos) != '"') {
+                return null;
+            }
+            int keyStart = pos + 1;
+            int keyEnd = skipValue(buf, pos, limit);
+            if (keyEnd < 0) {
+                return null;
+            }
+            pos = skipWhitespaces(buf, keyEnd, limit);
+            if (pos >= limit || buf.get(pos) != ':') {
+                return null;
+            }
+            int valueStart = skipWhitespaces(buf, pos + 1, limit);
+            int valueEnd = skipValue(buf, valueStart, limit);
+            if (valueEnd < 0) {
+                return null;
+            }
+            if (matches(buf, keyStart, keyEnd - 1, KEY_ID)) {
+                envelope.fIdStart = valueStart;
+                envelope.fIdEnd = valueEnd;
+            } else if (matches(buf, keyStart, keyEnd - 1, KEY_METHOD)) {
+                if (buf.get(valueStart) != '"') {
+                    return null;
+                }
+                String method = toString(buf, valueStart + 1, valueEnd - 1);
+                if (method.indexOf('\\') >= 0) {
+                    return null;
+                }
+                envelope.fMethod = method;
+            }
+            pos = skipWhitespaces(buf, valueEnd, limit);
+            if (pos >= limit) {
+                return null;
+            }
+            byte ch = buf.get(pos);
+            if (ch == '}') {
+                return envelope;
+            }
+            if (ch != ',') {
+                return null;
+            }
+            pos = skipWhitespaces(buf, pos + 1, limit);
+        }
+        return null;
+    }
+
+    /**
+     * Skips a value starting at the given position.
+     * 
+     * @param buf the buffer containing the value
+     * @param pos the start position of the value
+     * @param limit the end of the data in the buffer
+     * @return the position after the value or -1 if the value is not
+     *         terminated
+     */
+    private static int skipValue(ByteBuffer buf, int pos, int limit) {
+        if (pos >= limit) {
+            return -1;
+        }
+        byte ch = buf.get(pos);
+        if (ch == '{' || ch == '[' || ch == '"') {
+            int depth = 0;
+            boolean string = false;
+            do {
+                if (pos >= limit) {
+                    return -1;
+                }
+                ch = buf.get(pos++);
+                if (string) {
+                    if (ch == '\\') {
+                        pos++;
+                    } else if (ch == '"') {
+                        string = false;
+                    }
+                } else if (ch == '"') {
+                    string = true;
+                } else if (ch == '{' || ch == '[') {
+                    depth++;
+                } else if (ch == '}' || ch == ']') {
+                    depth--;
+                }
+            } while (string || depth > 0);
+            return pos;
+        }
+        int start = pos;
+        while (pos < limit) {
+            ch = buf.get(pos);
+            if (ch == ','
+                || ch == '}'
+                || ch == ']'
+                || ch == ' '
+                || ch == '\n'
+                || ch == '\r'
+                || ch == '\t') {
+                break;
+            }
+            pos++;
+        }
+        return pos > start ? pos : -1;
+    }
+
+    private static int skipWhitespaces(ByteBuffer buf, int pos, int limit) {
+        while (pos < limit) {
+            byte ch = buf.get(pos);
+            if (ch != ' ' && ch != '\n' && ch != '\r' && ch != '\t') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the parameters of the message in the given buffer.
+     * 
+     * @param buf the buffer containing a serialized JSON message; the position
+     *        of the buffer is not changed
+     * @return the parameters of the message or <code>null</code> if the
+     *         message has no parameters object
+     * @throws IOException if the message is not a valid JSON value
+     */
+    private static JsonObject getParams(ByteBuffer buf) throws IOException {
+        String str = toString(buf, buf.position(), buf.limit());
+        Object value = new RawJson(str).parse();
+        Object params = value instanceof JsonObject ? ((JsonObject) value)
+            .getValue("params") : null;
+        return params instanceof JsonObject ? (JsonObject) params : null;
+    }
+
+    private static byte[] toBytes(String str) {
+        return str.getBytes(RpcStreamMessenger.UTF8);
+    }
+
+    private static byte[] toBytes(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return bytes;
+    }
+
+    private static String toString(ByteBuffer buf, int start, int end) {
+        return new String(toBytes(buf, start, end), RpcStreamMessenger.UTF8);
+    }
+
+    /**
+     * Forwarded calls waiting for responses. Keys of this map are
+     * identifiers given to calls by this relay.
+     */
+    private final ConcurrentMap<String, ForwardedCall> fCalls = new ConcurrentHashMap<String, ForwardedCall>();
+
+    private final AtomicLong fCounter = new AtomicLong();
+
+    /**
+     * Routes sorted by the length of prefixes (the longest first). This array
+     * is never modified; it is replaced by a new copy when routes are
+     * changed.
+     */
+    private volatile Route[] fRoutes = new Route[0];
+
+    /**
+     * Forwarded calls by their sources. This map is used to forward
+     * cancellation notifications.
+     */
+    private final ConcurrentMap<Source, ForwardedCall> fSources = new ConcurrentHashMap<Source, ForwardedCall>();
+
+    private volatile long fTimeout;
+
+    private volatile IRpcTimer fTimer;
+
+    /**
+     * Forwards calls with methods starting with the given prefix to the
+     * specified messenger. If the prefix is already registered then its
+     * messenger is replaced. Methods matching several prefixes are forwarded
+     * using the longest prefix. This relay is set to the given messenger
+     * (see {@link RpcStreamMessenger#setRelay(RpcRelay)}) to intercept
+     * responses.
+     * 
+     * @param prefix the prefix of method names
+     * @param messenger the messenger receiving calls
+     */
+    public synchronized void addRoute(
+        String prefix,
+        RpcStreamMessenger messenger) {
+        List<Route> routes = new ArrayList<Route>();
+        for (Route route : fRoutes) {
+            if (!route.fPrefix.equals(prefix)) {
+                routes.add(route);
+            }
+        }
+        routes.add(new Route(prefix, messenger));
+        Route[] array = routes.toArray(new Route[routes.size()]);
+        Arrays.sort(array, ROUTE_COMPARATOR);
+        fRoutes = array;
+        messenger.setRelay(this);
+    }
+
+    /**
+     * Forwards a result chunk of a forwarded call to the caller. The
+     * identifier given to the call by this relay is replaced by the original
+     * identifier of the call. The timeout of the call is restarted: a call
+     * streaming its result is alive.
+     * 
+     * @return <code>true</code> if the chunk was handled by this relay
+     */
+    private boolean forwardChunk(RpcStreamMessenger source, ByteBuffer buf)
+        throws IOException {
+        JsonObject params = getParams(buf);
+        String key = params != null ? getIdKey(params.getValue("id")) : null;
+        if (key == null || !key.startsWith(ID_PREFIX)) {
+            return false;
+        }
+        ForwardedCall call = fCalls.get(key);
+        if (call == null) {
+            // The call is finished or expired; the chunk is dropped
+            return true;
+        }
+        if (call.fDownstream != source) {
+            return false;
+        }
+        IRpcTimer.ITimeout timeout = call.fTimeout;
+        IRpcTimer timer = fTimer;
+        if (timeout != null && timer != null && timeout.cancel()) {
+            call.fTimeout = timer.schedule(call, fTimeout);
+        }
+        String id = new String(call.fId, RpcStreamMessenger.UTF8);
+        params.setValue("id", new RawJson(id));
+        send(
+            call.fSource.fMessenger,
+            newNotification(RpcCallsDispatcher.METHOD_RESULT_CHUNK, params));
+        return true;
+    }
+
+    /**
+     * Forwards a notification about a forwarded call (a cancellation or new
+     * credits for result chunks) to the peer executing this call. The
+     * identifier of the call is replaced by the identifier given to the call
+     * by this relay. Cancelled calls are removed from this relay.
+     * 
+     * @return <code>true</code> if the notification was forwarded
+     */
+    private boolean forwardNotification(
+        RpcStreamMessenger source,
+        ByteBuffer buf,
+        String method) throws IOException {
+        JsonObject params = getParams(buf);
+        String key = params != null ? getIdKey(params.getValue("id")) : null;
+        ForwardedCall call = key != null ? fSources.get(new Source(
+            source,
+            key)) : null;
+        if (call == null) {
+            return false;
+        }
+        if (RpcCallsDispatcher.METHOD_CANCEL_REQUEST.equals(method)
+            && !call.finish()) {
+            return true;
+        }
+        params.setValue("id", call.fRelayId);
+        send(call.fDownstream, newNotification(method, params));
+        return true;
+    }
+
+    /**
+     * Forwards a call to the downstream messenger.
+     * 
+     * @return <code>true</code> if the call was forwarded
+     */
+    private boolean forwardRequest(
+        RpcStreamMessenger source,
+        ByteBuffer buf,
+        Envelope envelope) throws IOException {
+        String method = envelope.fMethod;
+        if (RpcCallsDispatcher.METHOD_CANCEL_REQUEST.equals(method)
+            || RpcCallsDispatcher.METHOD_STREAM_CREDIT.equals(method)) {
+            return forwardNotification(source, buf, method);
+        }
+        if (RpcCallsDispatcher.METHOD_RESULT_CHUNK.equals(method)) {
+            return forwardChunk(source, buf);
+        }
+        RpcStreamMessenger downstream = getRoute(method);
+        if (downstream == null || downstream == source) {
+            return false;
+        }
+        if (envelope.fIdStart < 0
+            || matches(buf, envelope.fIdStart, envelope.fIdEnd, NULL)) {
+            // Notifications are forwarded "as is"
+            send(downstream, buf, -1, -1, null);
+            return true;
+        }
+        String key = getIdKey(buf, envelope.fIdStart, envelope.fIdEnd);
+        if (key == null) {
+            return false;
+        }
+        String relayId = ID_PREFIX + fCounter.incrementAndGet();
+        ForwardedCall call = new ForwardedCall(
+            relayId,
+            new Source(source, key),
+            toBytes(buf, envelope.fIdStart, envelope.fIdEnd),
+            downstream);
+        fCalls.put(relayId, call);
+        fSources.put(call.fSource, call);
+        IRpcTimer timer = fTimer;
+        if (timer != null) {
+            call.fTimeout = timer.schedule(call, fTimeout);
+        }
+        try {
+            send(
+                downstream,
+                buf,
+                envelope.fIdStart,
+                envelope.fIdEnd,
+                toBytes("\"" + relayId + "\""));
+        } catch (IOException e) {
+            if (call.finish()) {
+                sendError(call, RpcCall.getError(e));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends a response of a forwarded call back to the source messenger.
+     * 
+     * @return <code>true</code> if the response was handled by this relay
+     */
+    private boolean forwardResponse(
+        RpcStreamMessenger source,
+        ByteBuffer buf,
+        Envelope envelope) throws IOException {
+        String key = getIdKey(buf, envelope.fIdStart, envelope.fIdEnd);
+        if (key == null || !key.startsWith(ID_PREFIX)) {
+            return false;
+        }
+        ForwardedCall call = fCalls.get(key);
+        if (call == null) {
+            // The call is expired; the response is dropped
+            return true;
+        }
+        if (call.fDownstream != source) {
+            return false;
+        }
+        if (call.finish()) {
+            send(
+                call.fSource.fMessenger,
+                buf,
+                envelope.fIdStart,
+                envelope.fIdEnd,
+                call.fId);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of forwarded calls waiting for responses.
+     * 
+     * @return the number of forwarded calls
+     */
+    public int getPendingCount() {
+        return fCalls.size();
+    }
+
+    /**
+     * Returns the messenger receiving calls of the specified method.
+     * 
+     * @param method the name of the method
+     * @return the messenger receiving calls of the given method or
+     *         <code>null</code> if the method is not routed by this relay
+     */
+    public RpcStreamMessenger getRoute(String method) {
+        for (Route route : fRoutes) {
+            if (method.startsWith(route.fPrefix)) {
+                return route.fMessenger;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method is called by messengers for each incoming message before
+     * decoding. If this method returns <code>true</code> then the message was
+     * handled by this relay; the buffer is not modified in any case.
+     * 
+     * @param source the messenger which received the message
+     * @param buf the buffer containing the encoded message
+     * @param codec the codec used to encode the message
+     * @return <code>true</code> if the message was handled by this relay
+     * @throws IOException if the message could not be handled
+     */
+    boolean onMessage(
+        RpcStreamMessenger source,
+        ByteBuffer buf,
+        IRpcCodec codec) throws IOException {
+        if (codec.getId() != JsonRpcCodec.ID) {
+            return false;
+        }
+        Envelope envelope = scan(buf);
+        if (envelope == null) {
+            return false;
+        }
+        if (envelope.fMethod != null) {
+            return forwardRequest(source, buf, envelope);
+        }
+        if (envelope.fIdStart >= 0) {
+            return forwardResponse(source, buf, envelope);
+        }
+        return false;
+    }
+
+    /**
+     * This method should be called by transports when the given messenger is
+     * closed. Calls forwarded to this messenger are answered with an error;
+     * calls received by this messenger are removed and cancelled on the peers
+     * executing them.
+     * 
+     * @param messenger the closed messenger
+     */
+    public void onClose(RpcStreamMessenger messenger) {
+        for (ForwardedCall call : fCalls.values()) {
+            if (call.fDownstream == messenger) {
+                if (call.finish()) {
+                    IOException e = new IOException("Connection closed.");
+                    sendError(call, RpcCall.getError(e));
+                }
+            } else if (call.fSource.fMessenger == messenger && call.finish()) {
+                sendCancel(call);
+            }
+        }
+    }
+
+    /**
+     * Removes the route with the specified prefix. Calls already forwarded
+     * to the messenger of this route wait for their responses (or for the
+     * timeout).
+     * 
+     * @param prefix the prefix to remove
+     */
+    public synchronized void removeRoute(String prefix) {
+        List<Route> routes = new ArrayList<Route>();
+        for (Route route : fRoutes) {
+            if (!route.fPrefix.equals(prefix)) {
+                routes.add(route);
+            }
+        }
+        fRoutes = routes.toArray(new Route[routes.size()]);
+    }
+
+    /**
+     * Encodes the given message and sends it.
+     * 
+     * @param messenger the messenger sending the message
+     * @param message the message to send
+     */
+    private void send(RpcStreamMessenger messenger, JsonObject message)
+        throws IOException {
+        ByteBufferPool pool = messenger.getBufferPool();
+        ByteBuffer buf = JsonRpcCodec.INSTANCE.encode(message, pool);
+        try {
+            messenger.sendEncodedMessage(buf, JsonRpcCodec.INSTANCE);
+        } finally {
+            pool.release(buf);
+        }
+    }
+
+    /**
+     * Sends a copy of the message in the given buffer. If the replacement is
+     * defined then it replaces the specified part of the message.
+     * 
+     * @param messenger the messenger sending the message
+     * @param buf the buffer containing the message; it is not modified
+     * @param start the start of the part to replace
+     * @param end the end of the part to replace
+     * @param replacement the new content of the replaced part
+     */
+    private void send(
+        RpcStreamMessenger messenger,
+        ByteBuffer buf,
+        int start,
+        int end,
+        byte[] replacement) throws IOException {
+        ByteBuffer src = buf.duplicate();
+        int len = src.remaining();
+        if (replacement != null) {
+            len += replacement.length - (end - start);
+        }
+        ByteBufferPool pool = messenger.getBufferPool();
+        ByteBuffer msg = pool.acquire(len);
+        try {
+            if (replacement != null) {
+                int limit = src.limit();
+                src.limit(start);
+                msg.put(src);
+                msg.put(replacement);
+                src.limit(limit).position(end);
+            }
+            msg.put(src);
+            msg.flip();
+            messenger.sendEncodedMessage(msg, JsonRpcCodec.INSTANCE);
+        } finally {
+            pool.release(msg);
+        }
+    }
+
+    /**
+     * Sends a cancellation notification for the given call to the peer
+     * executing it.
+     */
+    private void sendCancel(ForwardedCall call) {
+        JsonObject params = new JsonObject();
+        params.setValue("id", call.fRelayId);
+        String method = RpcCallsDispatcher.METHOD_CANCEL_REQUEST;
+        RpcStreamMessenger downstream = call.fDownstream;
+        try {
+            send(downstream, newNotification(method, params));
+        } catch (IOException e) {
+            downstream.onSendError(e);
+        }
+    }
+
+    /**
+     * Sends an error response for the given call to its source.
+     */
+    private void sendError(ForwardedCall call, RpcError error) {
+        String id = new String(call.fId, RpcStreamMessenger.UTF8);
+        JsonObject response = new JsonObject();
+        response.setValue("jsonrpc", "2.0");
+        response.setValue("id", new RawJson(id));
+        response.setValue("error", error);
+        RpcStreamMessenger source = call.fSource.fMessenger;
+        try {
+            send(source, response);
+        } catch (IOException e) {
+            source.onSendError(e);
+        }
+    }
+
+    /**
+     * Sets the maximal time of waiting for responses of forwarded calls.
+     * Expired calls are answered with the timeout error (see
+     * {@link RpcCall#newTimeoutError()}); late responses are dropped.
+     * 
+     * @param timer the timer used to schedule timeouts; if it is
+     *        <code>null</code> then calls are removed only by responses and
+     *        by closed messengers (see {@link #onClose(RpcStreamMessenger)})
+     * @param timeout the timeout in milliseconds
+     */
+    public void setTimeout(IRpcTimer timer, long timeout) {
+        fTimeout = timeout;
+        fTimer = timer;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,370 @@
+package org.ubimix.commons.rpc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.ubimix.commons.json.JsonArray;
+import org.ubimix.commons.json.JsonValue;
+import org.ubimix.commons.json.rpc.RpcRequest;
+import org.ubimix.commons.json.rpc.RpcResponse;
+
+/**
+ * A cache of successful responses to calls implementing the
+ * {@link ICacheableCall} interface. Responses are stored by keys built from
+ * method names and normalized parameters (keys of JSON objects are sorted), so
+ * requests with the same parameters in a different order share the same
+ * response. The number of cached responses is limited; least recently used
+ * responses are removed first. Each response expires after the time defined
+ * by its call (see {@link ICacheableCall#getCacheTimeout()}).
+ * <p>
+ * Cached results are mutable JSON values, so this cache copies them when
+ * they are stored and when they are returned. Subclasses could keep results
+ * in an immutable form (see {@link #toCachedResult(Object)} and
+ * {@link #toResponseResult(Object)}); for example the
+ * {@link SerializedRpcResponseCache} keeps serialized results.
+ * </p>
+ * <p>
+ * Example of usage:
+ * </p>
+ * 
+ * <pre>
+ * String key = cache.getKey(call);
+ * RpcResponse response = cache.getResponse(key, request.getId());
+ * if (response == null) {
+ *     ... // Execute the call
+ *     cache.putResponse(key, call);
+ * }
+ * </pre>
+ * 
+ * @author kotelnikov
+ */
+public class RpcResponseCache {
+
+    /**
+     * A cached response.
+     */
+    private static class CachedResponse {
+
+        private final long fExpirationTime;
+
+        private final String fMethod;
+
+        private final Object fResult;
+
+        public CachedResponse(
+            String method,
+            Object result,
+            long expirationTime) {
+            fMethod = method;
+            fResult = result;
+            fExpirationTime = expirationTime;
+        }
+
+    }
+
+    /**
+     * The default maximal number of cached responses.
+     */
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static void appendKey(StringBuilder buf, Object value) {
+        if (value == null) {
+            buf.append("null");
+        } else if (value instanceof String) {
+            buf.append('"');
+            String str = (String) value;
+            for (int i = 0; i < str.length(); i++) {
+                char ch = str.charAt(i);
+                if (ch == '"' || ch == '\\') {
+                    buf.append('\\');
+                }
+                buf.append(ch);
+            }
+            buf.append('"');
+        } else if (value instanceof JsonArray) {
+            JsonArray array = (JsonArray) value;
+            buf.append('[');
+            int size = array.getSize();
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                appendKey(buf, array.getValue(i));
+            }
+            buf.append(']');
+        } else if (value instanceof JsonValue) {
+            JsonValue object = (JsonValue) value;
+            buf.append('{');
+            boolean first = true;
+            for (String key : new TreeSet<String>(object.getKeys())) {
+                if (!first) {
+                    buf.append(',');
+                }
+                first = false;
+                appendKey(buf, key);
+                buf.append(':');
+                appendKey(buf, object.getValue(key));
+            }
+            buf.append('}');
+        } else if (value instanceof Number) {
+            Number number = (Number) value;
+            long l = number.longValue();
+            if (l == number.doubleValue()) {
+                buf.append(l);
+            } else {
+                buf.append(number.doubleValue());
+            }
+        } else {
+            buf.append(value);
+        }
+    }
+
+    /**
+     * Returns the cache key for the specified method and parameters. Calls of
+     * the same method with equal parameters have the same keys.
+     * 
+     * @param method the name of the method
+     * @param params parameters of the call
+     * @return the cache key
+     */
+    public static String getKey(String method, JsonValue params) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(method).append('\n');
+        appendKey(buf, params);
+        return buf.toString();
+    }
+
+    /**
+     * Cached responses in the access order: the first entry is the least
+     * recently used one. This map is guarded by itself.
+     */
+    private final LinkedHashMap<String, CachedResponse> fEntries = new LinkedHashMap<String, CachedResponse>(
+        16,
+        0.75f,
+        true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, CachedResponse> eldest) {
+            boolean remove = size() > fMaxSize;
+            if (remove) {
+                fEvictions++;
+            }
+            return remove;
+        }
+    };
+
+    private long fEvictions;
+
+    private long fHits;
+
+    private final int fMaxSize;
+
+    private long fMisses;
+
+    public RpcResponseCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize the maximal number of cached responses
+     */
+    public RpcResponseCache(int maxSize) {
+        fMaxSize = maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE;
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public void clear() {
+        synchronized (fEntries) {
+            fEntries.clear();
+        }
+    }
+
+    /**
+     * Returns the number of responses removed from this cache because the
+     * maximal size was reached.
+     * 
+     * @return the number of evicted responses
+     */
+    public long getEvictionsCount() {
+        synchronized (fEntries) {
+            return fEvictions;
+        }
+    }
+
+    /**
+     * Returns the number of requests answered by cached responses.
+     * 
+     * @return the number of cache hits
+     */
+    public long getHitsCount() {
+        synchronized (fEntries) {
+            return fHits;
+        }
+    }
+
+    /**
+     * Returns the cache key for the specified call or <code>null</code> if
+     * responses to this call should not be cached.
+     * 
+     * @param call the call
+     * @return the cache key for the call
+     */
+    public String getKey(RpcCall call) {
+        if (!(call instanceof ICacheableCall)
+            || ((ICacheableCall) call).getCacheTimeout() <= 0) {
+            return null;
+        }
+        RpcRequest request = call.getRequest();
+        return getKey(request.getMethod(), request.getParams());
+    }
+
+    /**
+     * Returns the maximal number of cached responses.
+     * 
+     * @return the maximal number of cached responses
+     */
+    public int getMaxSize() {
+        return fMaxSize;
+    }
+
+    /**
+     * Returns the number of requests not found in this cache.
+     * 
+     * @return the number of cache misses
+     */
+    public long getMissesCount() {
+        synchronized (fEntries) {
+            return fMisses;
+        }
+    }
+
+    /**
+     * Returns a cached response for the specified key or <code>null</code> if
+     * there is no such a response or if it is expired.
+     * 
+     * @param key the cache key (see {@link #getKey(RpcCall)})
+     * @param requestId the identifier of the request to answer; it is set in
+     *        the returned response
+     * @return a new response containing the cached result (see
+     *         {@link #toResponseResult(Object)})
+     */
+    public RpcResponse getResponse(String key, Object requestId) {
+        CachedResponse entry;
+        synchronized (fEntries) {
+            entry = fEntries.get(key);
+            if (entry != null
+                && entry.fExpirationTime <= System.currentTimeMillis()) {
+                fEntries.remove(key);
+                entry = null;
+            }
+            if (entry != null) {
+                fHits++;
+            } else {
+                fMisses++;
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+        RpcResponse response = new RpcResponse().<RpcResponse> setId(requestId);
+        response.setValue("result", toResponseResult(entry.fResult));
+        return response;
+    }
+
+    /**
+     * Returns the number of cached responses (including expired responses not
+     * removed yet).
+     * 
+     * @return the number of cached responses
+     */
+    public int getSize() {
+        synchronized (fEntries) {
+            return fEntries.size();
+        }
+    }
+
+    /**
+     * Removes all cached responses of the specified method.
+     * 
+     * @param method the name of the method
+     */
+    public void invalidate(String method) {
+        synchronized (fEntries) {
+            Iterator<CachedResponse> iterator = fEntries.values().iterator();
+            while (iterator.hasNext()) {
+                CachedResponse entry = iterator.next();
+                if (entry.fMethod.equals(method)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the cached response of the specified method called with the
+     * given parameters.
+     * 
+     * @param method the name of the method
+     * @param params parameters of the call
+     */
+    public void invalidate(String method, JsonValue params) {
+        String key = getKey(method, params);
+        synchronized (fEntries) {
+            fEntries.remove(key);
+        }
+    }
+
+    /**
+     * Stores the result of the given finished call (see
+     * {@link #toCachedResult(Object)}). Failed calls are not cached.
+     * 
+     * @param key the cache key (see {@link #getKey(RpcCall)})
+     * @param call the finished call
+     */
+    public void putResponse(String key, RpcCall call) {
+        RpcResponse response = call.getResponse();
+        if (response == null || response.hasErrors()) {
+            return;
+        }
+        long timeout = ((ICacheableCall) call).getCacheTimeout();
+        CachedResponse entry = new CachedResponse(
+            call.getMethod(),
+            toCachedResult(response.getValue("result")),
+            System.currentTimeMillis() + timeout);
+        synchronized (fEntries) {
+            fEntries.put(key, entry);
+        }
+    }
+
+    /**
+     * Returns the form of the given result kept in this cache. The returned
+     * value should not be changed when the result of the call is modified.
+     * By default it returns a copy of the result.
+     * 
+     * @param result the result of a finished call
+     * @return the value kept in this cache
+     */
+    protected Object toCachedResult(Object result) {
+        return RpcCallsDispatcher.copyResult(result);
+    }
+
+    /**
+     * Returns the result set in a response built from the given cached
+     * value. By default each hit receives its own copy of the cached result,
+     * so responses could be modified without changing the cache.
+     * 
+     * @param cached the value kept in this cache (see
+     *        {@link #toCachedResult(Object)})
+     * @return the result of the response
+     */
+    protected Object toResponseResult(Object cached) {
+        return RpcCallsDispatcher.copyResult(cached);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,700 @@
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.ubimix.commons.json.JsonArray;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.json.rpc.RpcObject;
+import org.ubimix.commons.json.rpc.RpcRequest;
+import org.ubimix.commons.json.rpc.RpcResponse;
+import org.ubimix.commons.rpc.RpcCallsDispatcher.RpcMessenger;
+
+/**
+ * This messenger accepts messages as raw bytes or as character streams.
+ * Messages are decoded directly in JSON objects without intermediate strings.
+ * Bytes are transformed in messages and back by a codec (see
+ * {@link IRpcCodec}); by default messages are UTF-8 encoded JSON text (see
+ * {@link JsonRpcCodec}). It should be used by transports receiving messages as
+ * bytes.
+ * <p>
+ * By default incoming messages are decoded and handled in the thread calling
+ * the <code>onMessage(...)</code> methods (usually an I/O thread). Messages
+ * could be processed in a pipeline of two stages running in thread pools:
+ * </p>
+ * <ul>
+ * <li>the decode stage (see {@link #setDecodeExecutor(Executor)}) - messages
+ * of this connection are decoded one by one in the order of arrival, but
+ * messages of different connections are decoded in parallel;</li>
+ * <li>the execute stage (see {@link #setExecutor(Executor, Ordering)}) -
+ * incoming calls are executed in parallel; calls of this connection or calls
+ * with the same key (see {@link #getOrderingKey(RpcRequest)}) could be
+ * executed in the order of arrival.</li>
+ * </ul>
+ * <p>
+ * Responses and service notifications (cancellations, result chunks and
+ * credits) are always dispatched without delays. Calls waiting in the
+ * execute stage are registered by this messenger, so a call cancelled by the
+ * peer before its execution is never executed. Calls rejected by the execute
+ * stage (see {@link OrderedExecutor#getMaxLaneSize()}) are answered with the
+ * {@link RpcCall#ERROR_OVERLOADED} error.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public abstract class RpcStreamMessenger extends RpcMessenger {
+
+    /**
+     * Defines which incoming calls are executed in the order of arrival.
+     */
+    public enum Ordering {
+
+        /**
+         * All calls of the connection are executed one by one in the order of
+         * arrival.
+         */
+        CONNECTION,
+
+        /**
+         * Calls with the same key (see
+         * {@link RpcStreamMessenger#getOrderingKey(RpcRequest)}) are executed
+         * one by one in the order of arrival; calls with different keys are
+         * executed in parallel.
+         */
+        KEY,
+
+        /**
+         * All calls are executed in parallel without any ordering guarantees.
+         */
+        NONE
+
+    }
+
+    /**
+     * An incoming call waiting in the execute stage. Calls with identifiers
+     * are registered before they are queued, so cancellation notifications
+     * received before the execution of calls are not lost.
+     */
+    private class QueuedCall implements Runnable {
+
+        /**
+         * The cancellation notification of this call or <code>null</code> if
+         * the call is not cancelled. Access to this field is synchronized
+         * using the {@link RpcStreamMessenger#fQueuedCalls} map.
+         */
+        private RpcRequest fCancel;
+
+        private final String fKey;
+
+        private final RpcRequest fRequest;
+
+        /**
+         * This flag is set when the call is delivered to the listener. Access
+         * to this field is synchronized using the
+         * {@link RpcStreamMessenger#fQueuedCalls} map.
+         */
+        private boolean fStarted;
+
+        public QueuedCall(RpcRequest request) {
+            fRequest = request;
+            Object id = request.getId();
+            fKey = id != null ? id.toString() : null;
+        }
+
+        /**
+         * Answers this call with the {@link RpcCall#ERROR_OVERLOADED} error.
+         * This method is called when the call is rejected by the execute
+         * stage.
+         */
+        public void reject() {
+            boolean cancelled;
+            synchronized (fQueuedCalls) {
+                removeQueuedCall(this);
+                cancelled = fCancel != null;
+            }
+            if (fKey != null && !cancelled) {
+                RpcResponse response = new RpcResponse()
+                    .<RpcResponse> setId(fRequest.getId())
+                    .setError(RpcCall.newOverloadedError());
+                postMessage(response);
+            }
+        }
+
+        /**
+         * Delivers this call to the listener if it was not cancelled yet. A
+         * cancellation received during the delivery is dispatched after it,
+         * when the call is already known by the listener.
+         */
+        public void run() {
+            synchronized (fQueuedCalls) {
+                if (fCancel != null) {
+                    return;
+                }
+                fStarted = true;
+            }
+            RpcRequest cancel;
+            try {
+                RpcStreamMessenger.super.dispatchMessage(fRequest);
+            } finally {
+                synchronized (fQueuedCalls) {
+                    removeQueuedCall(this);
+                    cancel = fCancel;
+                }
+            }
+            if (cancel != null) {
+                RpcStreamMessenger.super.dispatchMessage(cancel);
+            }
+        }
+
+    }
+
+    /**
+     * The charset used to encode and decode messages.
+     */
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private volatile ByteBufferPool fBufferPool = new ByteBufferPool();
+
+    /**
+     * The codec of this messenger. It could be changed at any time (for
+     * example after a negotiation with the peer), so it is read once for each
+     * message.
+     */
+    private volatile IRpcCodec fCodec = JsonRpcCodec.INSTANCE;
+
+    /**
+     * The executor of the decode stage or <code>null</code> if messages are
+     * decoded in the receiving thread.
+     */
+    private volatile OrderedExecutor fDecodeExecutor;
+
+    /**
+     * The executor of the execute stage or <code>null</code> if calls are
+     * executed in the decoding thread.
+     */
+    private volatile OrderedExecutor fExecutor;
+
+    private volatile Ordering fOrdering = Ordering.NONE;
+
+    /**
+     * Calls with identifiers waiting in the execute stage. Keys of this map
+     * are string representations of identifiers of calls.
+     */
+    private final Map<String, QueuedCall> fQueuedCalls = new HashMap<String, QueuedCall>();
+
+    /**
+     * The relay receiving incoming messages before decoding or
+     * <code>null</code> if messages are always decoded.
+     */
+    private volatile RpcRelay fRelay;
+
+    /**
+     * Registers a cancellation notification for a call waiting in the
+     * execute stage. Calls which are not delivered yet are forgotten; calls
+     * which are being delivered receive the notification after the delivery.
+     * 
+     * @param cancel the cancellation notification
+     * @return <code>true</code> if the notification was handled by this
+     *         method
+     */
+    private boolean cancelQueuedCall(RpcRequest cancel) {
+        JsonObject params = cancel.getParamsAsObject();
+        Object id = params != null ? params.getValue("id") : null;
+        if (id == null) {
+            return false;
+        }
+        synchronized (fQueuedCalls) {
+            QueuedCall call = fQueuedCalls.get(id.toString());
+            if (call == null) {
+                return false;
+            }
+            call.fCancel = cancel;
+            if (!call.fStarted) {
+                removeQueuedCall(call);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Decodes and handles a message.
+     * 
+     * @param buf the buffer containing the encoded message
+     * @param codec the codec used to decode the message
+     * @throws IOException if the message could not be decoded
+     */
+    private void decodeMessage(ByteBuffer buf, IRpcCodec codec)
+        throws IOException {
+        Object value = codec.decode(buf);
+        handleMessage(value);
+    }
+
+    /**
+     * Delivers the given message to the listener. If the execute stage is
+     * defined then incoming calls are delivered in the threads of this stage.
+     * 
+     * @see org.ubimix.commons.rpc.RpcCallsDispatcher.RpcMessenger#dispatchMessage(org.ubimix.commons.json.rpc.RpcObject)
+     */
+    @Override
+    protected void dispatchMessage(RpcObject message) {
+        OrderedExecutor executor = fExecutor;
+        if (executor == null || !(message instanceof RpcRequest)) {
+            super.dispatchMessage(message);
+            return;
+        }
+        RpcRequest request = (RpcRequest) message;
+        String method = request.getMethod();
+        if (RpcCallsDispatcher.isControlMethod(method)) {
+            if (!RpcCallsDispatcher.METHOD_CANCEL_REQUEST.equals(method)
+                || !cancelQueuedCall(request)) {
+                super.dispatchMessage(message);
+            }
+            return;
+        }
+        QueuedCall task = new QueuedCall(request);
+        if (task.fKey != null) {
+            synchronized (fQueuedCalls) {
+                fQueuedCalls.put(task.fKey, task);
+            }
+        }
+        try {
+            switch (fOrdering) {
+                case CONNECTION:
+                    executor.execute(this, task);
+                    break;
+                case KEY:
+                    executor.execute(getOrderingKey(request), task);
+                    break;
+                default:
+                    executor.execute(task);
+                    break;
+            }
+        } catch (RejectedExecutionException e) {
+            task.reject();
+        }
+    }
+
+    /**
+     * Returns the pool of buffers used to serialize outgoing messages.
+     * 
+     * @return the pool of buffers
+     */
+    public ByteBufferPool getBufferPool() {
+        return fBufferPool;
+    }
+
+    /**
+     * Returns a channel used to write outgoing messages or <code>null</code>
+     * if messages should be sent as buffers (see
+     * {@link #sendMessage(ByteBuffer)}). If a channel is returned then
+     * messages are serialized as JSON text directly in this channel and they
+     * never exist in memory as a whole; codecs are not used in this case. By
+     * default this method returns <code>null</code>.
+     * 
+     * @return a channel used to write outgoing messages
+     */
+    protected WritableByteChannel getChannel() {
+        return null;
+    }
+
+    /**
+     * Returns the codec used to encode outgoing messages and to decode
+     * incoming messages.
+     * 
+     * @return the codec of this messenger
+     */
+    public IRpcCodec getCodec() {
+        return fCodec;
+    }
+
+    /**
+     * Returns the key used to order incoming calls when the
+     * {@link Ordering#KEY} ordering is used. Calls with equal keys are
+     * executed one by one in the order of arrival. By default this method
+     * returns the name of the called method. It could be overloaded to return
+     * for example a session or a resource identifier from call parameters.
+     * 
+     * @param request the incoming call
+     * @return the ordering key of the call
+     */
+    protected Object getOrderingKey(RpcRequest request) {
+        return request.getMethod();
+    }
+
+    /**
+     * Returns the relay forwarding incoming messages without decoding.
+     * 
+     * @return the relay or <code>null</code> if messages are always decoded
+     */
+    public RpcRelay getRelay() {
+        return fRelay;
+    }
+
+    /**
+     * Handles the given decoded message. The message should be a JSON object
+     * or a batch (a JSON array of objects).
+     * 
+     * @param value the decoded message
+     * @throws IOException if the given value is not a valid message
+     */
+    protected void handleMessage(Object value) throws IOException {
+        if (value instanceof JsonArray) {
+            onBatch((JsonArray) value);
+        } else if (value instanceof JsonObject) {
+            RpcObject message = LazyRpcRequest
+                .newRpcObject((JsonObject) value);
+            dispatchMessage(message);
+        } else {
+            throw new IOException("A JSON object or array is expected.");
+        }
+    }
+
+    /**
+     * Creates a new executor for a stage of the pipeline. Calls of the
+     * execute stage rejected by the underlying executor are answered with the
+     * {@link RpcCall#ERROR_OVERLOADED} error.
+     * 
+     * @param executor the underlying executor
+     * @return a new ordered executor
+     */
+    private OrderedExecutor newOrderedExecutor(Executor executor) {
+        return new OrderedExecutor(executor) {
+            @Override
+            protected void onRejected(
+                Runnable task,
+                RejectedExecutionException e) {
+                if (task instanceof QueuedCall) {
+                    ((QueuedCall) task).reject();
+                } else {
+                    super.onRejected(task, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * This method should be called when a new serialized message is received
+     * as a slice of a byte array.
+     * 
+     * @param buf the buffer containing the UTF-8 encoded message
+     * @param offset the offset of the message in the buffer
+     * @param len the length of the message
+     * @throws IOException if the message could not be decoded
+     */
+    public void onMessage(byte[] buf, int offset, int len) throws IOException {
+        onMessage(ByteBuffer.wrap(buf, offset, len));
+    }
+
+    /**
+     * This method should be called when a new serialized message is received
+     * as a byte buffer. All remaining bytes of the buffer are consumed. The
+     * message is decoded by the codec of this messenger.
+     * 
+     * @param buf the buffer containing the encoded message
+     * @throws IOException if the message could not be decoded
+     */
+    public void onMessage(ByteBuffer buf) throws IOException {
+        onMessage(buf, fCodec);
+    }
+
+    /**
+     * This method should be called when a new serialized message is received
+     * as a byte buffer and the transport knows which codec was used to encode
+     * it. All remaining bytes of the buffer are consumed.
+     * 
+     * @param buf the buffer containing the encoded message
+     * @param codec the codec used to decode the message
+     * @throws IOException if the message could not be decoded
+     */
+    public void onMessage(ByteBuffer buf, final IRpcCodec codec)
+        throws IOException {
+        onMessageReceived(buf.remaining());
+        RpcRelay relay = fRelay;
+        if (relay != null && relay.onMessage(this, buf, codec)) {
+            buf.position(buf.limit());
+            return;
+        }
+        OrderedExecutor executor = fDecodeExecutor;
+        if (executor == null) {
+            decodeMessage(buf, codec);
+            return;
+        }
+        // The buffer could be re-used by the transport, so it is copied
+        final ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+        copy.put(buf);
+        copy.flip();
+        executor.execute(this, new Runnable() {
+            public void run() {
+                try {
+                    decodeMessage(copy, codec);
+                } catch (IOException e) {
+                    onReceiveError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * This method should be called when a new message is available in the
+     * specified stream. The stream should contain exactly one UTF-8 encoded
+     * message; it is not closed by this method.
+     * 
+     * @param input the stream containing the message
+     * @throws IOException if the message could not be read or decoded
+     */
+    public void onMessage(InputStream input) throws IOException {
+        onMessage(new InputStreamReader(input, UTF8));
+    }
+
+    /**
+     * This method should be called when a new message is available in the
+     * specified character stream. The stream should contain exactly one
+     * message; it is not closed by this method.
+     * 
+     * @param reader the stream containing the message
+     * @throws IOException if the message could not be read or decoded
+     */
+    public void onMessage(Reader reader) throws IOException {
+        long size = readMessage(reader);
+        onMessageReceived(size);
+    }
+
+    /**
+     * This method is called when a message could not be decoded in the decode
+     * stage (see {@link #setDecodeExecutor(Executor)}). By default it
+     * re-throws the error as a runtime exception.
+     * 
+     * @param e the error
+     */
+    protected void onReceiveError(IOException e) {
+        throw new RuntimeException(e);
+    }
+
+    /**
+     * This method is called when an outgoing message could not be written. By
+     * default it re-throws the error as a runtime exception.
+     * 
+     * @param e the error
+     */
+    protected void onSendError(IOException e) {
+        throw new RuntimeException(e);
+    }
+
+    /**
+     * Reads and handles one message from the given stream.
+     * 
+     * @param reader the stream containing the message
+     * @return the size of the UTF-8 representation of the message in bytes
+     * @throws IOException if the message could not be read or decoded
+     */
+    private long readMessage(Reader reader) throws IOException {
+        JsonStreamReader jsonReader = new JsonStreamReader(reader);
+        Object value = jsonReader.readMessage();
+        handleMessage(value);
+        return jsonReader.getUtf8Size();
+    }
+
+    /**
+     * Removes the given call from the calls waiting in the execute stage.
+     * This method should be called under the lock of the
+     * {@link #fQueuedCalls} map.
+     * 
+     * @param call the call to remove
+     */
+    private void removeQueuedCall(QueuedCall call) {
+        if (call.fKey != null && fQueuedCalls.get(call.fKey) == call) {
+            fQueuedCalls.remove(call.fKey);
+        }
+    }
+
+    /**
+     * Sends an already encoded message. The message is written in the channel
+     * (see {@link #getChannel()}) if it is defined; otherwise it is sent using
+     * the {@link #sendMessage(ByteBuffer, IRpcCodec)} method.
+     * 
+     * @param buf the buffer containing the encoded message; it is not
+     *        released by this method
+     * @param codec the codec used to encode the message
+     * @throws IOException if the message could not be sent
+     */
+    void sendEncodedMessage(ByteBuffer buf, IRpcCodec codec)
+        throws IOException {
+        onMessageSent(buf.remaining());
+        WritableByteChannel channel = getChannel();
+        if (channel != null) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } else {
+            sendMessage(buf, codec);
+        }
+    }
+
+    /**
+     * Sends a serialized UTF-8 encoded message. The given buffer is ready to
+     * be read; it belongs to the buffer pool (see {@link #getBufferPool()})
+     * and it is released when this method returns. So implementations should
+     * consume the buffer or copy its content before returning.
+     * 
+     * @param buf the buffer containing the serialized message
+     * @throws IOException if the message could not be sent
+     */
+    protected abstract void sendMessage(ByteBuffer buf) throws IOException;
+
+    /**
+     * Sends a message encoded with the specified codec. By default this
+     * method calls the {@link #sendMessage(ByteBuffer)} method. Transports
+     * able to transfer the codec identifier with the message should overload
+     * it.
+     * 
+     * @param buf the buffer containing the encoded message; see
+     *        {@link #sendMessage(ByteBuffer)}
+     * @param codec the codec used to encode the message
+     * @throws IOException if the message could not be sent
+     */
+    protected void sendMessage(ByteBuffer buf, IRpcCodec codec)
+        throws IOException {
+        sendMessage(buf);
+    }
+
+    /**
+     * Encodes the given object in a pooled buffer using the codec of this
+     * messenger or serializes it in the channel returned by the
+     * {@link #getChannel()} method.
+     * 
+     * @see org.ubimix.commons.rpc.RpcCallsDispatcher.RpcMessenger#sendMessage(org.ubimix.commons.json.JsonObject)
+     */
+    @Override
+    protected void sendMessage(JsonObject message) {
+        try {
+            WritableByteChannel channel = getChannel();
+            if (channel != null) {
+                JsonStreamWriter writer = new JsonStreamWriter(
+                    fBufferPool,
+                    channel);
+                try {
+                    writer.writeValue(message);
+                    onMessageSent(writer.getSize());
+                    writer.flush();
+                } finally {
+                    writer.release();
+                }
+            } else {
+                IRpcCodec codec = fCodec;
+                ByteBufferPool pool = fBufferPool;
+                ByteBuffer buf = codec.encode(message, pool);
+                try {
+                    onMessageSent(buf.remaining());
+                    sendMessage(buf, codec);
+                } finally {
+                    pool.release(buf);
+                }
+            }
+        } catch (IOException e) {
+            onSendError(e);
+        }
+    }
+
+    /**
+     * Sends an already serialized JSON message (for example a batch). Such
+     * messages are always sent with the {@link JsonRpcCodec}.
+     * 
+     * @see org.ubimix.commons.rpc.RpcCallsDispatcher.RpcMessenger#sendMessage(java.lang.String)
+     */
+    @Override
+    protected void sendMessage(String msg) {
+        try {
+            WritableByteChannel channel = getChannel();
+            JsonStreamWriter writer = new JsonStreamWriter(
+                fBufferPool,
+                channel);
+            try {
+                writer.writeRaw(msg);
+                if (channel != null) {
+                    writer.flush();
+                } else {
+                    sendMessage(writer.getBuffer(), JsonRpcCodec.INSTANCE);
+                }
+            } finally {
+                writer.release();
+            }
+        } catch (IOException e) {
+            onSendError(e);
+        }
+    }
+
+    /**
+     * Sets the codec used to encode outgoing messages and to decode incoming
+     * messages. Both peers should use the same codec unless the transport
+     * transfers codec identifiers with messages.
+     * 
+     * @param codec the codec to set
+     */
+    public void setCodec(IRpcCodec codec) {
+        fCodec = codec;
+    }
+
+    /**
+     * Sets the executor of the decode stage. Messages of this messenger are
+     * decoded by this executor one by one in the order of arrival; messages
+     * of messengers sharing the same executor are decoded in parallel. Note
+     * that in this case each incoming message is copied because transports
+     * re-use their buffers. If too many messages of this messenger wait for
+     * decoding then new messages are rejected: the
+     * <code>onMessage(...)</code> methods throw a
+     * {@link RejectedExecutionException}.
+     * 
+     * @param executor the executor to set; if it is <code>null</code> then
+     *        messages are decoded in the receiving thread
+     */
+    public void setDecodeExecutor(Executor executor) {
+        fDecodeExecutor = executor != null
+            ? newOrderedExecutor(executor)
+            : null;
+    }
+
+    /**
+     * Sets the executor of the execute stage. Incoming calls are delivered to
+     * the listener (the dispatcher) in the threads of this executor, so
+     * handlers of independent calls run in parallel.
+     * 
+     * @param executor the executor to set; if it is <code>null</code> then
+     *        calls are executed in the decoding thread
+     * @param ordering defines which calls are executed in the order of
+     *        arrival
+     */
+    public void setExecutor(Executor executor, Ordering ordering) {
+        fOrdering = ordering != null ? ordering : Ordering.NONE;
+        fExecutor = executor != null ? newOrderedExecutor(executor) : null;
+    }
+
+    /**
+     * Sets the relay receiving incoming messages of this messenger before
+     * decoding. Messages which are not handled by the relay are decoded and
+     * dispatched as usual.
+     * 
+     * @param relay the relay to set; it could be <code>null</code>
+     */
+    public void setRelay(RpcRelay relay) {
+        fRelay = relay;
+    }
+
+    /**
+     * Sets the pool of buffers used to serialize outgoing messages.
+     * 
+     * @param bufferPool the pool to set
+     */
+    public void setBufferPool(ByteBufferPool bufferPool) {
+        fBufferPool = bufferPool;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,53 @@
+package org.ubimix.commons.rpc;
+
+import org.ubimix.commons.json.JsonValue;
+
+/**
+ * A response cache keeping JSON objects and arrays serialized. Results are
+ * serialized only once - when they are stored - and cached responses contain
+ * the same immutable {@link RawJson} values, so hits do not copy results.
+ * <p>
+ * Raw values are written "as is" by the {@link JsonStreamWriter}, so this
+ * cache should be used only by dispatchers and handlers sending responses
+ * with codecs (see {@link RpcStreamMessenger} and {@link IRpcCodec}).
+ * Results of cached responses are not parsed: listeners of responses should
+ * use the {@link RawJson#parse()} method.
+ * </p>
+ * <p>
+ * This class uses the {@link RawJson} type, so it can be used only in JVM.
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class SerializedRpcResponseCache extends RpcResponseCache {
+
+    public SerializedRpcResponseCache() {
+    }
+
+    /**
+     * @param maxSize the maximal number of cached responses
+     */
+    public SerializedRpcResponseCache(int maxSize) {
+        super(maxSize);
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.RpcResponseCache#toCachedResult(java.lang.Object)
+     */
+    @Override
+    protected Object toCachedResult(Object result) {
+        if (result instanceof JsonValue) {
+            return new RawJson(result.toString());
+        }
+        return result;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.RpcResponseCache#toResponseResult(java.lang.Object)
+     */
+    @Override
+    protected Object toResponseResult(Object cached) {
+        return cached;
+    }
+
+}
\ No newline at end of file
@@ -3,6 +3,12 @@
  */
 package org.ubimix.commons.rpc;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.ubimix.commons.events.IEventManager;
 import org.ubimix.commons.events.calls.CallListener;
 import org.ubimix.commons.json.rpc.IRpcCallHandler;
@@ -11,50 +17,497 @@ import org.ubimix.commons.json.rpc.RpcRequest;
 import org.ubimix.commons.json.rpc.RpcResponse;
 
 /**
+ * This handler transforms requests in {@link RpcCall} events and fires them
+ * using an event manager. By default calls are handled in the thread invoking
+ * the {@link #handle(RpcRequest, IRpcCallback)} method. If an executor is
+ * defined then calls are handled by this executor; in this case the number of
+ * concurrently handled calls and the number of waiting calls are limited.
+ * <p>
+ * The state of each handled call is kept in one "context" object which is
+ * queued while the call waits for execution and which listens the response
+ * of the fired call. In the recycling mode (see {@link #setRecycling(int)})
+ * contexts are kept in a stack of a fixed size and re-used by subsequent
+ * calls, so the state of calls is not allocated in the steady state. Note
+ * that in the executor mode the queue of waiting calls still allocates one
+ * node for each queued call.
+ * </p>
+ * 
  * @author kotelnikov
  */
 public class ServerRpcCallHandler implements IRpcCallHandler {
 
+    /**
+     * The state of one handled call. Contexts are queued while calls wait for
+     * execution, they listen responses of fired calls and they notify metrics
+     * and callbacks. A context is released (and could be re-used by another
+     * call) when the {@link IRpcCallback#finish(RpcResponse)} method of its
+     * callback returns, so callbacks should not keep references to contexts.
+     * <p>
+     * Each use of a context is identified by a "ticket" - the value of the
+     * {@link #fState} counter when the context is taken. A context is
+     * finished only by the thread which increments the counter from the
+     * ticket value, so concurrent replies and errors never finish the call
+     * twice and never finish another call re-using the same context.
+     * </p>
+     */
+    private class CallContext extends CallListener<RpcCall>
+        implements
+        IRpcCallback {
+
+        private RpcResponseCache fCache;
+
+        private String fCacheKey;
+
+        /**
+         * The fired call. Notifications about other calls (about calls
+         * handled by this context before recycling) are ignored.
+         */
+        private RpcCall fCall;
+
+        private IRpcCallback fCallback;
+
+        /**
+         * The method name reported to metrics. It is <code>null</code> until
+         * the method is resolved.
+         */
+        private String fMethod;
+
+        private IRpcMetrics fMetrics;
+
+        private RpcRequest fRequest;
+
+        private long fStartTime;
+
+        /**
+         * The ticket of the current use of this context; it is incremented
+         * when the context is finished.
+         */
+        private final AtomicInteger fState = new AtomicInteger();
+
+        /**
+         * Finishes the current call of this context.
+         * 
+         * @see org.ubimix.commons.json.rpc.IRpcCallHandler.IRpcCallback#finish(org.ubimix.commons.json.rpc.RpcResponse)
+         */
+        public void finish(RpcResponse response) {
+            finish(fState.get(), response);
+        }
+
+        /**
+         * Notifies metrics and the callback and releases this context if it
+         * is still used by the call with the specified ticket.
+         * 
+         * @param ticket the ticket of the finished call
+         * @param response the response of the call
+         */
+        public void finish(int ticket, RpcResponse response) {
+            if (!fState.compareAndSet(ticket, ticket + 1)) {
+                return;
+            }
+            IRpcCallback callback = fCallback;
+            IRpcMetrics metrics = fMetrics;
+            if (metrics != null) {
+                String method = fMethod;
+                if (method == null) {
+                    // The call was rejected before its method was resolved
+                    method = IRpcMetrics.UNKNOWN_METHOD;
+                    metrics.onCallStarted(method);
+                }
+                long time = System.nanoTime() - fStartTime;
+                metrics.onCallFinished(method, time, response.getError());
+            }
+            try {
+                callback.finish(response);
+            } finally {
+                releaseContext(this);
+            }
+        }
+
+        @Override
+        protected void handleResponse(RpcCall event) {
+            int ticket = fState.get();
+            if (event != fCall) {
+                return;
+            }
+            RpcResponseCache cache = fCache;
+            String key = fCacheKey;
+            if (key != null) {
+                cache.putResponse(key, event);
+            }
+            finish(ticket, event.getResponse());
+        }
+
+    }
+
+    /**
+     * The number of workers currently running in the executor.
+     */
+    private final AtomicInteger fActiveWorkers = new AtomicInteger();
+
     private IRpcCallBuilder fCallBuilder;
 
+    /**
+     * Released contexts available for re-use. This is a stack of a fixed
+     * size, so releasing a context does not allocate memory. Access to this
+     * field is synchronized using the {@link #fContextsMutex} object.
+     */
+    private CallContext[] fContexts = new CallContext[0];
+
+    /**
+     * The number of contexts in the {@link #fContexts} stack.
+     */
+    private int fContextsCount;
+
+    private final Object fContextsMutex = new Object();
+
     private IEventManager fEventManager;
 
+    private final Executor fExecutor;
+
+    private final int fMaxConcurrency;
+
+    private final int fMaxQueueSize;
+
+    /**
+     * Metrics notified about handled calls.
+     */
+    private volatile IRpcMetrics fMetrics;
+
+    private final Queue<CallContext> fQueue = new ConcurrentLinkedQueue<CallContext>();
+
+    private final AtomicInteger fQueueSize = new AtomicInteger();
+
+    /**
+     * The maximal number of released contexts kept for re-use.
+     */
+    private volatile int fRecycling;
+
+    /**
+     * The cache of responses to idempotent calls.
+     */
+    private volatile RpcResponseCache fResponseCache;
+
+    private final Runnable fWorker = new Runnable() {
+        public void run() {
+            try {
+                CallContext context;
+                while ((context = fQueue.poll()) != null) {
+                    fQueueSize.decrementAndGet();
+                    handleRequest(context.fRequest, context);
+                }
+            } finally {
+                fActiveWorkers.decrementAndGet();
+            }
+            startWorkers();
+        }
+    };
+
     /**
      * 
      */
     public ServerRpcCallHandler(
         IEventManager eventManager,
         IRpcCallBuilder callBuilder) {
+        this(eventManager, callBuilder, null, 0, 0);
+    }
+
+    /**
+     * This constructor creates a handler executing calls asynchronously with
+     * the specified executor (for example with a thread pool or with a
+     * "thread-per-task" executor).
+     * 
+     * @param eventManager the event manager used to fire calls
+     * @param callBuilder the builder creating call objects
+     * @param executor the executor used to handle calls; if it is
+     *        <code>null</code> then calls are handled in the caller's thread
+     * @param maxConcurrency the maximal number of calls handled at the same
+     *        time; non-positive values mean "no limits"
+     * @param maxQueueSize the maximal number of calls waiting for execution;
+     *        when this limit is reached new calls are immediately finished
+     *        with the {@link RpcCall#ERROR_OVERLOADED} error; non-positive
+     *        values mean "no limits"
+     */
+    public ServerRpcCallHandler(
+        IEventManager eventManager,
+        IRpcCallBuilder callBuilder,
+        Executor executor,
+        int maxConcurrency,
+        int maxQueueSize) {
         fEventManager = eventManager;
         fCallBuilder = callBuilder;
+        fExecutor = executor;
+        fMaxConcurrency = maxConcurrency > 0
+            ? maxConcurrency
+            : Integer.MAX_VALUE;
+        fMaxQueueSize = maxQueueSize > 0 ? maxQueueSize : Integer.MAX_VALUE;
+    }
+
+    private void finishWithError(
+        RpcRequest request,
+        IRpcCallback callback,
+        RpcError error) {
+        RpcResponse response = new RpcResponse().<RpcResponse> setId(
+            request.getId()).setError(error);
+        callback.finish(response);
+    }
+
+    /**
+     * Returns metrics notified about handled calls.
+     * 
+     * @return the metrics of this handler or <code>null</code> if metrics are
+     *         not collected
+     */
+    public IRpcMetrics getMetrics() {
+        return fMetrics;
+    }
+
+    /**
+     * Returns the number of released contexts available for re-use.
+     * 
+     * @return the number of recycled contexts
+     */
+    public int getRecycledCount() {
+        synchronized (fContextsMutex) {
+            return fContextsCount;
+        }
+    }
+
+    /**
+     * Returns the maximal number of released contexts kept for re-use.
+     * 
+     * @return the maximal number of recycled contexts; 0 if the recycling is
+     *         disabled
+     */
+    public int getRecycling() {
+        return fRecycling;
+    }
+
+    /**
+     * Returns the number of calls waiting for execution.
+     * 
+     * @return the number of calls waiting for execution
+     */
+    public int getQueueSize() {
+        return fQueueSize.get();
+    }
+
+    /**
+     * Returns the cache of responses to idempotent calls.
+     * 
+     * @return the cache of responses or <code>null</code> if responses are
+     *         not cached
+     */
+    public RpcResponseCache getResponseCache() {
+        return fResponseCache;
     }
 
     /**
      * @see org.ubimix.commons.json.rpc.IRpcCallHandler#handle(org.ubimix.commons.json.rpc.RpcRequest,
      *      org.ubimix.commons.json.rpc.IRpcCallHandler.IRpcCallback)
      */
-    public void handle(RpcRequest request, final IRpcCallback callback) {
+    public void handle(RpcRequest request, IRpcCallback callback) {
+        CallContext context = newContext(request, callback);
+        if (fExecutor == null) {
+            handleRequest(request, context);
+            return;
+        }
+        if (fQueueSize.incrementAndGet() > fMaxQueueSize) {
+            fQueueSize.decrementAndGet();
+            finishWithError(request, context, RpcCall.newOverloadedError());
+            return;
+        }
+        fQueue.offer(context);
+        startWorkers();
+    }
+
+    /**
+     * Creates a call object for the given request and fires it. If the call is
+     * cacheable and there is a cached response for it then this response is
+     * returned without firing the call.
+     * 
+     * @param request the request to handle
+     * @param callback the callback to notify about the response
+     */
+    protected void handleRequest(RpcRequest request, IRpcCallback callback) {
+        CallContext context = callback instanceof CallContext
+            ? (CallContext) callback
+            : newContext(request, callback);
+        int ticket = context.fState.get();
         RpcError error = null;
+        RpcCall call = null;
         try {
-            RpcCall call = fCallBuilder.newRpcCall(request);
-            if (call != null) {
-                fEventManager.fireEvent(call, new CallListener<RpcCall>() {
-                    @Override
-                    protected void handleResponse(RpcCall event) {
-                        RpcResponse response = event.getResponse();
-                        callback.finish(response);
-                    }
-                });
-            } else {
+            call = fCallBuilder.newRpcCall(request);
+            if (call == null) {
                 error = RpcCall.newMethodNotFoundError();
             }
         } catch (Throwable t) {
             error = RpcCall.getError(t);
         }
+        IRpcMetrics metrics = context.fMetrics;
+        if (metrics != null) {
+            // Names of unknown methods are not reported
+            context.fMethod = call != null
+                ? request.getMethod()
+                : IRpcMetrics.UNKNOWN_METHOD;
+            metrics.onCallStarted(context.fMethod);
+        }
+        if (error == null) {
+            try {
+                RpcResponseCache cache = fResponseCache;
+                String key = cache != null ? cache.getKey(call) : null;
+                RpcResponse cached = key != null ? cache.getResponse(
+                    key,
+                    request.getId()) : null;
+                if (cached != null) {
+                    context.finish(ticket, cached);
+                } else {
+                    context.fCache = cache;
+                    context.fCacheKey = key;
+                    context.fCall = call;
+                    fEventManager.fireEvent(call, context);
+                }
+            } catch (Throwable t) {
+                error = RpcCall.getError(t);
+            }
+        }
+        // The call could be already finished and its context re-used
         if (error != null) {
             RpcResponse response = new RpcResponse().<RpcResponse> setId(
                 request.getId()).setError(error);
-            callback.finish(response);
+            context.finish(ticket, response);
+        }
+    }
+
+    /**
+     * Returns a context for a new call. In the recycling mode contexts are
+     * taken from the pool of released contexts. If metrics are defined then
+     * the start time of the call is recorded; the measured duration includes
+     * the time spent in the queue. Metrics are notified about the call when
+     * its method is resolved (see {@link #handleRequest}).
+     * 
+     * @param request the handled request
+     * @param callback the callback to notify about the response
+     * @return a context for the call
+     */
+    private CallContext newContext(RpcRequest request, IRpcCallback callback) {
+        CallContext context = null;
+        if (fRecycling > 0) {
+            synchronized (fContextsMutex) {
+                if (fContextsCount > 0) {
+                    context = fContexts[--fContextsCount];
+                    fContexts[fContextsCount] = null;
+                }
+            }
+        }
+        if (context == null) {
+            context = new CallContext();
+        }
+        context.fRequest = request;
+        context.fCallback = callback;
+        IRpcMetrics metrics = fMetrics;
+        context.fMetrics = metrics;
+        if (metrics != null) {
+            context.fStartTime = System.nanoTime();
+        }
+        return context;
+    }
+
+    /**
+     * Finishes all waiting calls with the {@link RpcCall#ERROR_OVERLOADED}
+     * error. This method is called when the executor rejects new tasks.
+     */
+    private void rejectWaitingCalls() {
+        CallContext context;
+        while ((context = fQueue.poll()) != null) {
+            fQueueSize.decrementAndGet();
+            finishWithError(
+                context.fRequest,
+                context,
+                RpcCall.newOverloadedError());
+        }
+    }
+
+    /**
+     * Clears the given context and puts it in the pool of released contexts
+     * if the recycling is enabled and the pool is not full.
+     * 
+     * @param context the context to release
+     */
+    private void releaseContext(CallContext context) {
+        context.fCache = null;
+        context.fCacheKey = null;
+        context.fCall = null;
+        context.fCallback = null;
+        context.fMethod = null;
+        context.fMetrics = null;
+        context.fRequest = null;
+        if (fRecycling > 0) {
+            synchronized (fContextsMutex) {
+                if (fContextsCount < fContexts.length) {
+                    fContexts[fContextsCount++] = context;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets metrics notified about handled calls.
+     * 
+     * @param metrics the metrics to set; if it is <code>null</code> then
+     *        metrics are not collected
+     */
+    public void setMetrics(IRpcMetrics metrics) {
+        fMetrics = metrics;
+    }
+
+    /**
+     * Enables or disables the recycling mode. In this mode released call
+     * contexts are kept in a pool and re-used by new calls.
+     * 
+     * @param poolSize the maximal number of released contexts kept for
+     *        re-use; 0 disables the recycling
+     */
+    public void setRecycling(int poolSize) {
+        int size = Math.max(poolSize, 0);
+        synchronized (fContextsMutex) {
+            CallContext[] contexts = new CallContext[size];
+            fContextsCount = Math.min(fContextsCount, size);
+            System.arraycopy(fContexts, 0, contexts, 0, fContextsCount);
+            fContexts = contexts;
+            fRecycling = size;
+        }
+    }
+
+    /**
+     * Sets the cache of responses to idempotent calls (see
+     * {@link ICacheableCall}).
+     * 
+     * @param responseCache the cache to set; if it is <code>null</code> then
+     *        responses are not cached
+     */
+    public void setResponseCache(RpcResponseCache responseCache) {
+        fResponseCache = responseCache;
+    }
+
+    /**
+     * Starts new workers in the executor while there are waiting calls and the
+     * concurrency limit is not reached.
+     */
+    private void startWorkers() {
+        while (fQueueSize.get() > 0) {
+            int active = fActiveWorkers.get();
+            if (active >= fMaxConcurrency) {
+                break;
+            }
+            if (fActiveWorkers.compareAndSet(active, active + 1)) {
+                try {
+                    fExecutor.execute(fWorker);
+                } catch (RejectedExecutionException e) {
+                    fActiveWorkers.decrementAndGet();
+                    rejectWaitingCalls();
+                    break;
+                }
+            }
         }
     }
 
@@ -0,0 +1,241 @@
+package org.ubimix.commons.rpc.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.ubimix.commons.rpc.ByteBufferPool;
+
+/**
+ * A compressor using the "deflate" algorithm. Each compressed payload starts
+ * with the size of the original data (int32, big endian). Deflaters, inflaters
+ * and fixed-size scratch arrays are kept in thread-local variables and
+ * re-used. Compressed data is written in buffers of the pool (see
+ * {@link #compress(ByteBuffer, ByteBufferPool)}), so compression of messages
+ * of any size uses only pooled buffers. Decompressed data is returned in one
+ * buffer: messages bigger than buffers of the pool are decompressed in newly
+ * allocated buffers.
+ * 
+ * @author kotelnikov
+ */
+public class DeflateCompressor implements IRpcCompressor {
+
+    /**
+     * Deflaters, inflaters and temporary arrays used by one thread.
+     */
+    private static class Context {
+
+        /**
+         * A scratch array used to pass data of direct buffers to the deflater
+         * and to the inflater by fixed-size portions.
+         */
+        private final byte[] fBuffer = new byte[SCRATCH_SIZE];
+
+        private final Deflater fDeflater;
+
+        private final Inflater fInflater = new Inflater();
+
+        public Context(int level) {
+            fDeflater = new Deflater(level);
+        }
+
+    }
+
+    /**
+     * The identifier of this compressor.
+     */
+    public static final int ID = 1;
+
+    /**
+     * The shared instance of this compressor using the fastest compression
+     * level.
+     */
+    public static final DeflateCompressor INSTANCE = new DeflateCompressor(
+        Deflater.BEST_SPEED);
+
+    /**
+     * The size of scratch arrays used to read data from direct buffers.
+     */
+    private static final int SCRATCH_SIZE = 8 * 1024;
+
+    private static void release(ByteBufferPool pool, List<ByteBuffer> buffers) {
+        for (ByteBuffer buf : buffers) {
+            pool.release(buf);
+        }
+    }
+
+    private final ThreadLocal<Context> fContext;
+
+    /**
+     * @param level the compression level (see {@link Deflater})
+     */
+    public DeflateCompressor(final int level) {
+        fContext = new ThreadLocal<Context>() {
+            @Override
+            protected Context initialValue() {
+                return new Context(level);
+            }
+        };
+    }
+
+    /**
+     * Compresses the given data in buffers taken from the pool. Data of
+     * direct buffers is passed to the deflater through a fixed-size scratch
+     * array.
+     * 
+     * @see org.ubimix.commons.rpc.nio.IRpcCompressor#compress(java.nio.ByteBuffer,
+     *      org.ubimix.commons.rpc.ByteBufferPool)
+     */
+    public ByteBuffer[] compress(ByteBuffer data, ByteBufferPool pool) {
+        int len = data.remaining();
+        if (len <= 4) {
+            return null;
+        }
+        Context context = fContext.get();
+        Deflater deflater = context.fDeflater;
+        deflater.reset();
+        ByteBuffer src = data.duplicate();
+        if (src.hasArray()) {
+            deflater.setInput(src.array(), src.arrayOffset()
+                + src.position(), len);
+            deflater.finish();
+            src.position(src.limit());
+        }
+        List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+        boolean ok = false;
+        try {
+            ByteBuffer out = pool.acquire();
+            result.add(out);
+            if (!out.hasArray() || out.remaining() <= 4) {
+                return null;
+            }
+            out.putInt(len);
+            int size = 4;
+            while (!deflater.finished()) {
+                if (deflater.needsInput() && src.hasRemaining()) {
+                    byte[] buf = context.fBuffer;
+                    int n = Math.min(buf.length, src.remaining());
+                    src.get(buf, 0, n);
+                    deflater.setInput(buf, 0, n);
+                    if (!src.hasRemaining()) {
+                        deflater.finish();
+                    }
+                }
+                if (!out.hasRemaining()) {
+                    out = pool.acquire();
+                    result.add(out);
+                    if (!out.hasArray()) {
+                        return null;
+                    }
+                }
+                int count = deflater.deflate(out.array(), out.arrayOffset()
+                    + out.position(), out.remaining());
+                out.position(out.position() + count);
+                size += count;
+                // Compressed data bigger than the original data is useless
+                if (size >= len) {
+                    return null;
+                }
+            }
+            for (ByteBuffer buf : result) {
+                buf.flip();
+            }
+            ok = true;
+            return result.toArray(new ByteBuffer[result.size()]);
+        } finally {
+            if (!ok) {
+                release(pool, result);
+            }
+        }
+    }
+
+    /**
+     * Decompresses the given data in one buffer of the size of the original
+     * data. Data of direct buffers is passed to the inflater through a
+     * fixed-size scratch array.
+     * 
+     * @see org.ubimix.commons.rpc.nio.IRpcCompressor#decompress(java.nio.ByteBuffer,
+     *      org.ubimix.commons.rpc.ByteBufferPool, int)
+     */
+    public ByteBuffer decompress(
+        ByteBuffer data,
+        ByteBufferPool pool,
+        int maxSize) throws IOException {
+        if (data.remaining() < 4) {
+            throw new IOException("Bad compressed data.");
+        }
+        int size = data.getInt();
+        if (size < 0 || size > maxSize) {
+            throw new IOException("Bad size of decompressed data: "
+                + size
+                + ".");
+        }
+        Context context = fContext.get();
+        Inflater inflater = context.fInflater;
+        inflater.reset();
+        if (data.hasArray()) {
+            inflater.setInput(data.array(), data.arrayOffset()
+                + data.position(), data.remaining());
+            data.position(data.limit());
+        }
+        ByteBuffer out = pool.acquire(size);
+        boolean ok = false;
+        try {
+            if (!out.hasArray()) {
+                throw new IOException("Heap buffers are expected.");
+            }
+            int count = 0;
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (!data.hasRemaining()) {
+                        throw new IOException("Bad compressed data.");
+                    }
+                    byte[] buf = context.fBuffer;
+                    int n = Math.min(buf.length, data.remaining());
+                    data.get(buf, 0, n);
+                    inflater.setInput(buf, 0, n);
+                }
+                int n = inflater.inflate(out.array(), out.arrayOffset()
+                    + count, size - count);
+                count += n;
+                if (n == 0 && !inflater.needsInput() && !inflater.finished()) {
+                    // The output is full or a dictionary is required
+                    throw new IOException("Bad compressed data.");
+                }
+            }
+            if (count != size) {
+                throw new IOException("Bad compressed data.");
+            }
+            data.position(data.limit());
+            out.position(count);
+            out.flip();
+            ok = true;
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed data: " + e.getMessage());
+        } finally {
+            if (!ok) {
+                pool.release(out);
+            }
+        }
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.nio.IRpcCompressor#getId()
+     */
+    public int getId() {
+        return ID;
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.nio.IRpcCompressor#getName()
+     */
+    public String getName() {
+        return "deflate";
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,29 @@
+package org.ubimix.commons.rpc.nio;
+
+/**
+ * Instances of this type are notified about opened and closed connections.
+ * Typically the {@link #onOpen(NioRpcMessenger)} method creates a new
+ * {@link org.ubimix.commons.rpc.RpcCallsDispatcher} for each connection and
+ * the {@link #onClose(NioRpcMessenger)} method releases it.
+ * 
+ * @author kotelnikov
+ */
+public interface INioConnectionHandler {
+
+    /**
+     * This method is called when the connection is closed.
+     * 
+     * @param messenger the messenger of the closed connection
+     */
+    void onClose(NioRpcMessenger messenger);
+
+    /**
+     * This method is called when a new connection is opened, before the
+     * first message is read from this connection. It is the right place to
+     * initialize a dispatcher using the given messenger.
+     * 
+     * @param messenger the messenger of the new connection
+     */
+    void onOpen(NioRpcMessenger messenger);
+
+}
\ No newline at end of file
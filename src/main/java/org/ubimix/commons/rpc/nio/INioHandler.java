@@ -0,0 +1,29 @@
+package org.ubimix.commons.rpc.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handlers of channels registered in a {@link NioEventLoop}. Handlers are
+ * attached to the selection keys of their channels; all methods of this
+ * interface are called in the thread of the event loop.
+ * 
+ * @author kotelnikov
+ */
+interface INioHandler {
+
+    /**
+     * Closes the channel of this handler and releases all resources.
+     */
+    void close();
+
+    /**
+     * This method is called when the channel of this handler is ready for
+     * I/O operations.
+     * 
+     * @param key the selection key of the channel
+     * @throws IOException
+     */
+    void handleKey(SelectionKey key) throws IOException;
+
+}
\ No newline at end of file
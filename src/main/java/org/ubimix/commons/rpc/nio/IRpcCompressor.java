@@ -0,0 +1,60 @@
+package org.ubimix.commons.rpc.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.ubimix.commons.rpc.ByteBufferPool;
+
+/**
+ * Compressors transform payloads of frames sent by the
+ * {@link NioRpcMessenger}. The identifier of the compressor is written in
+ * flags of compressed frames, so peers could use several compression
+ * algorithms. Implementations should be thread-safe.
+ * 
+ * @author kotelnikov
+ */
+public interface IRpcCompressor {
+
+    /**
+     * Compresses the given data. If the data could not be compressed (for
+     * example if the result is not smaller than the data itself) then this
+     * method returns <code>null</code> and the data is sent as is.
+     * 
+     * @param data the data to compress; its position is not changed
+     * @param pool the pool of buffers
+     * @return buffers taken from the specified pool and containing compressed
+     *         data (in this order) or <code>null</code> if the data could not
+     *         be compressed; all buffers should be returned to the pool
+     */
+    ByteBuffer[] compress(ByteBuffer data, ByteBufferPool pool);
+
+    /**
+     * Decompresses the given data.
+     * 
+     * @param data the compressed data; all remaining bytes are consumed
+     * @param pool the pool of buffers
+     * @param maxSize the maximal size of decompressed data
+     * @return a buffer taken from the specified pool and containing
+     *         decompressed data
+     * @throws IOException if the data is corrupted or if the decompressed
+     *         data is bigger than the specified limit
+     */
+    ByteBuffer decompress(ByteBuffer data, ByteBufferPool pool, int maxSize)
+        throws IOException;
+
+    /**
+     * Returns the identifier of this compressor. Identifiers should be in the
+     * range [1..3] (see {@link NioRpcMessenger#COMPRESSION_MASK}).
+     * 
+     * @return the identifier of this compressor
+     */
+    int getId();
+
+    /**
+     * Returns a human-readable name of this compressor.
+     * 
+     * @return the name of this compressor
+     */
+    String getName();
+
+}
\ No newline at end of file
@@ -0,0 +1,242 @@
+package org.ubimix.commons.rpc.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ubimix.commons.rpc.ByteBufferPool;
+
+/**
+ * An event loop handling I/O operations of many non-blocking channels in one
+ * thread. Each loop has its own selector and its own pools of buffers. Tasks
+ * submitted using the {@link #execute(Runnable)} method are executed in the
+ * thread of the loop, so they could safely access channels handled by this
+ * loop without synchronization.
+ * 
+ * @author kotelnikov
+ */
+public class NioEventLoop {
+
+    /**
+     * Direct buffers used to read and to write frames.
+     */
+    private final ByteBufferPool fDirectBufferPool;
+
+    /**
+     * Heap buffers used to serialize messages.
+     */
+    private final ByteBufferPool fHeapBufferPool;
+
+    private volatile boolean fRunning;
+
+    private final Selector fSelector;
+
+    private final Queue<Runnable> fTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private volatile Thread fThread;
+
+    /**
+     * This flag is used to avoid redundant wake up calls of the selector.
+     */
+    private final AtomicBoolean fWakenUp = new AtomicBoolean();
+
+    /**
+     * Creates a new event loop with 16 kilobytes direct buffers used to read
+     * and to write frames.
+     * 
+     * @throws IOException if a new selector could not be opened
+     */
+    public NioEventLoop() throws IOException {
+        this(16 * 1024);
+    }
+
+    /**
+     * @param bufferSize the size of direct buffers used to read and to write
+     *        frames
+     * @throws IOException if a new selector could not be opened
+     */
+    public NioEventLoop(int bufferSize) throws IOException {
+        fSelector = Selector.open();
+        fDirectBufferPool = new ByteBufferPool(bufferSize, 256, true);
+        fHeapBufferPool = new ByteBufferPool();
+    }
+
+    /**
+     * Closes all channels registered in the selector and the selector itself.
+     */
+    private void closeAll() {
+        for (SelectionKey key : fSelector.keys()) {
+            Object handler = key.attachment();
+            if (handler instanceof INioHandler) {
+                ((INioHandler) handler).close();
+            }
+        }
+        try {
+            fSelector.close();
+        } catch (IOException e) {
+            handleError(e);
+        }
+    }
+
+    /**
+     * Executes the given task in the thread of this event loop. If this
+     * method is called from the loop thread then the task is executed after
+     * the current I/O operations.
+     * 
+     * @param task the task to execute
+     */
+    public void execute(Runnable task) {
+        fTasks.offer(task);
+        if (!inEventLoop() && fWakenUp.compareAndSet(false, true)) {
+            fSelector.wakeup();
+        }
+    }
+
+    /**
+     * Returns a pool of direct buffers used to read and to write frames.
+     * 
+     * @return a pool of direct buffers
+     */
+    public ByteBufferPool getDirectBufferPool() {
+        return fDirectBufferPool;
+    }
+
+    /**
+     * Returns a pool of heap buffers used to serialize messages.
+     * 
+     * @return a pool of heap buffers
+     */
+    public ByteBufferPool getHeapBufferPool() {
+        return fHeapBufferPool;
+    }
+
+    /**
+     * This method is called when an I/O operation or a task fails. By default
+     * it delegates the error to the uncaught exception handler of the current
+     * thread.
+     * 
+     * @param t the error to handle
+     */
+    protected void handleError(Throwable t) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+    }
+
+    /**
+     * Returns <code>true</code> if this method is called in the thread of this
+     * event loop.
+     * 
+     * @return <code>true</code> if the current thread is the loop thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == fThread;
+    }
+
+    /**
+     * Creates and returns a new thread for this loop.
+     * 
+     * @param worker the runnable executing the main loop
+     * @return a new thread for this loop
+     */
+    protected Thread newThread(Runnable worker) {
+        Thread thread = new Thread(worker, "NioEventLoop");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = fSelector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            INioHandler handler = (INioHandler) key.attachment();
+            try {
+                if (key.isValid()) {
+                    handler.handleKey(key);
+                }
+            } catch (Throwable t) {
+                handler.close();
+                handleError(t);
+            }
+        }
+    }
+
+    /**
+     * Registers the given channel in the selector of this loop. This method
+     * should be called in the loop thread.
+     * 
+     * @param channel the channel to register
+     * @param ops the initial interest set of the channel
+     * @param handler the handler of the channel
+     * @return the selection key of the registered channel
+     * @throws ClosedChannelException if the channel is closed
+     */
+    SelectionKey register(
+        SelectableChannel channel,
+        int ops,
+        INioHandler handler) throws ClosedChannelException {
+        return channel.register(fSelector, ops, handler);
+    }
+
+    private void runLoop() {
+        try {
+            while (fRunning) {
+                fWakenUp.set(false);
+                if (fTasks.isEmpty()) {
+                    fSelector.select();
+                } else {
+                    fSelector.selectNow();
+                }
+                processSelectedKeys();
+                runTasks();
+            }
+        } catch (Throwable t) {
+            handleError(t);
+        } finally {
+            runTasks();
+            closeAll();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = fTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                handleError(t);
+            }
+        }
+    }
+
+    /**
+     * Starts the thread of this event loop.
+     */
+    public synchronized void start() {
+        if (fThread != null) {
+            return;
+        }
+        fRunning = true;
+        fThread = newThread(new Runnable() {
+            public void run() {
+                runLoop();
+            }
+        });
+        fThread.start();
+    }
+
+    /**
+     * Stops this event loop. All registered channels are closed.
+     */
+    public void stop() {
+        fRunning = false;
+        fSelector.wakeup();
+    }
+
+}
\ No newline at end of file
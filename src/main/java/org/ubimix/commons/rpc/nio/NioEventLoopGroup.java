@@ -0,0 +1,76 @@
+package org.ubimix.commons.rpc.nio;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loops. New channels are distributed between loops in
+ * round-robin order, so a small number of threads could serve many
+ * connections.
+ * 
+ * @author kotelnikov
+ */
+public class NioEventLoopGroup {
+
+    private final NioEventLoop[] fLoops;
+
+    private final AtomicInteger fNext = new AtomicInteger();
+
+    /**
+     * Creates a group with one event loop per available processor.
+     * 
+     * @throws IOException if selectors could not be opened
+     */
+    public NioEventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates and starts the specified number of event loops.
+     * 
+     * @param size the number of event loops
+     * @throws IOException if selectors could not be opened
+     */
+    public NioEventLoopGroup(int size) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException(
+                "The number of event loops should be positive.");
+        }
+        fLoops = new NioEventLoop[size];
+        for (int i = 0; i < size; i++) {
+            fLoops[i] = newEventLoop();
+            fLoops[i].start();
+        }
+    }
+
+    /**
+     * Creates and returns a new event loop. This method could be overloaded
+     * to customize loops.
+     * 
+     * @return a new event loop
+     * @throws IOException if a selector could not be opened
+     */
+    protected NioEventLoop newEventLoop() throws IOException {
+        return new NioEventLoop();
+    }
+
+    /**
+     * Returns the next event loop which should be used for a new channel.
+     * 
+     * @return the next event loop
+     */
+    public NioEventLoop next() {
+        int idx = (fNext.getAndIncrement() & Integer.MAX_VALUE) % fLoops.length;
+        return fLoops[idx];
+    }
+
+    /**
+     * Stops all event loops of this group.
+     */
+    public void stop() {
+        for (NioEventLoop loop : fLoops) {
+            loop.stop();
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,80 @@
+package org.ubimix.commons.rpc.nio;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * This class opens client connections handled by event loops of a group.
+ * Many connections (and many dispatchers) could share the same group.
+ * 
+ * @author kotelnikov
+ */
+public class NioRpcClient {
+
+    private final NioEventLoopGroup fGroup;
+
+    /**
+     * @param group the group of event loops handling connections
+     */
+    public NioRpcClient(NioEventLoopGroup group) {
+        fGroup = group;
+    }
+
+    /**
+     * Opens a new connection to the specified address. The returned messenger
+     * does not read messages until its {@link NioRpcMessenger#start()} method
+     * is called; so it should be called when a dispatcher is initialized with
+     * this messenger.
+     * 
+     * @param address the address of the server
+     * @return a messenger for the new connection
+     * @throws IOException if the connection could not be established
+     */
+    public NioRpcMessenger connect(SocketAddress address) throws IOException {
+        return connect(address, null);
+    }
+
+    /**
+     * Opens a new connection to the specified address. The returned messenger
+     * does not read messages until its {@link NioRpcMessenger#start()} method
+     * is called; so it should be called when a dispatcher is initialized with
+     * this messenger.
+     * 
+     * @param address the address of the server
+     * @param connectionHandler the handler notified when the connection is
+     *        closed; it could be <code>null</code>
+     * @return a messenger for the new connection
+     * @throws IOException if the connection could not be established
+     */
+    public NioRpcMessenger connect(
+        SocketAddress address,
+        INioConnectionHandler connectionHandler) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            return newMessenger(channel, fGroup.next(), connectionHandler);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates and returns a new messenger for a connection. This method could
+     * be overloaded to create customized messengers.
+     * 
+     * @param channel the connected channel
+     * @param eventLoop the event loop which should handle the connection
+     * @param connectionHandler the handler notified when the connection is
+     *        closed
+     * @return a new messenger
+     * @throws IOException if the channel could not be configured
+     */
+    protected NioRpcMessenger newMessenger(
+        SocketChannel channel,
+        NioEventLoop eventLoop,
+        INioConnectionHandler connectionHandler) throws IOException {
+        return new NioRpcMessenger(channel, eventLoop, connectionHandler);
+    }
+
+}
\ No newline at end of file
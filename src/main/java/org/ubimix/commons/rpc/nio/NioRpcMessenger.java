@@ -0,0 +1,754 @@
+package org.ubimix.commons.rpc.nio;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ubimix.commons.rpc.ByteBufferPool;
+import org.ubimix.commons.rpc.IRpcCodec;
+import org.ubimix.commons.rpc.JsonRpcCodec;
+import org.ubimix.commons.rpc.RpcRelay;
+import org.ubimix.commons.rpc.RpcStreamMessenger;
+
+/**
+ * A messenger sending and receiving messages over a non-blocking socket
+ * channel. Each message is sent in a frame with the following structure:
+ * 
+ * <pre>
+ * [length: int32, big endian][flags: byte][payload: length bytes]
+ * </pre>
+ * <p>
+ * The lower four bits of flags contain the identifier of the codec used to
+ * encode the payload (see {@link IRpcCodec#getId()}). If several codecs are
+ * defined for a messenger (see {@link #setCodecs(IRpcCodec...)}) then it sends
+ * a "hello" control frame with identifiers of its codecs when the connection
+ * is started. When a peer receives such a frame it replies with its own
+ * "hello" frame and switches to the first of its codecs supported by the
+ * other side. Messages sent before the negotiation use JSON. So both peers
+ * could switch formats without any changes of call types.
+ * </p>
+ * <p>
+ * Payloads could be compressed (see
+ * {@link #setCompression(int, IRpcCompressor...)}). Compressors are
+ * negotiated in the same way as codecs using the "compression" control frame;
+ * peers ignoring this frame never receive compressed messages. Bits 4-5 of
+ * flags contain the identifier of the compressor used for the payload (see
+ * {@link #COMPRESSION_MASK}). Only messages bigger than the compression
+ * threshold are compressed.
+ * </p>
+ * <p>
+ * All I/O operations are performed in the thread of the event loop of this
+ * messenger. Messages could be sent from any thread; they are copied in
+ * pooled direct buffers and written to the socket by the event loop (big
+ * messages are split between several buffers written together). Incoming
+ * messages are decoded and dispatched in the event loop thread, so handlers
+ * of incoming calls should not block (see the executor mode of the
+ * {@link org.ubimix.commons.rpc.ServerRpcCallHandler}).
+ * </p>
+ * 
+ * @author kotelnikov
+ */
+public class NioRpcMessenger extends RpcStreamMessenger implements INioHandler {
+
+    /**
+     * The mask of frame flags containing the codec identifier.
+     */
+    public static final int CODEC_MASK = 0x0F;
+
+    /**
+     * The mask of frame flags containing the compressor identifier. Zero
+     * means that the payload is not compressed.
+     */
+    public static final int COMPRESSION_MASK = 0x30;
+
+    private static final int COMPRESSION_SHIFT = 4;
+
+    /**
+     * The type of control frames containing the list of supported
+     * compressors.
+     */
+    public static final int CONTROL_COMPRESSION = 2;
+
+    /**
+     * The type of control frames containing the list of supported codecs.
+     */
+    public static final int CONTROL_HELLO = 1;
+
+    /**
+     * This flag marks control frames. The first byte of the payload of
+     * control frames is the type of the frame.
+     */
+    public static final int FLAG_CONTROL = 0x80;
+
+    /**
+     * The size of frame headers.
+     */
+    public static final int HEADER_SIZE = 5;
+
+    private final SocketChannel fChannel;
+
+    private final AtomicBoolean fClosed = new AtomicBoolean();
+
+    /**
+     * Codecs supported by this messenger in the order of preference.
+     */
+    private IRpcCodec[] fCodecs = { JsonRpcCodec.INSTANCE };
+
+    /**
+     * Messages smaller than this threshold are not compressed.
+     */
+    private int fCompressionThreshold = Integer.MAX_VALUE;
+
+    /**
+     * The compressor negotiated with the peer; it is <code>null</code> if
+     * outgoing messages are not compressed.
+     */
+    private volatile IRpcCompressor fCompressor;
+
+    /**
+     * Compressors supported by this messenger in the order of preference.
+     */
+    private IRpcCompressor[] fCompressors = {};
+
+    private final INioConnectionHandler fConnectionHandler;
+
+    private final NioEventLoop fEventLoop;
+
+    /**
+     * This flag is <code>true</code> when a flush task is already submitted
+     * to the event loop.
+     */
+    private final AtomicBoolean fFlushScheduled = new AtomicBoolean();
+
+    private final Runnable fFlushTask = new Runnable() {
+        public void run() {
+            fFlushScheduled.set(false);
+            writeFrames();
+        }
+    };
+
+    /**
+     * A buffer accumulating a frame bigger than the read buffer.
+     */
+    private ByteBuffer fFrame;
+
+    private int fFrameFlags;
+
+    /**
+     * This flag is <code>true</code> if the "hello" frame was already sent.
+     * It is accessed only in the event loop thread.
+     */
+    private boolean fHelloSent;
+
+    /**
+     * The key of the channel; it is set in the event loop thread and read by
+     * {@link #close()} in any thread.
+     */
+    private volatile SelectionKey fKey;
+
+    private int fMaxFrameSize = 16 * 1024 * 1024;
+
+    /**
+     * A direct buffer used to read data from the socket. It is acquired when
+     * the messenger is registered in the event loop.
+     */
+    private ByteBuffer fReadBuffer;
+
+    /**
+     * Frames waiting to be written to the socket. Each frame is stored in one
+     * or several pooled direct buffers.
+     */
+    private final Queue<ByteBuffer[]> fWriteQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
+
+    /**
+     * @param channel the connected socket channel
+     * @param eventLoop the event loop handling I/O operations of the channel
+     * @param connectionHandler the handler notified when the connection is
+     *        closed; it could be <code>null</code>
+     * @throws IOException if the channel could not be configured
+     */
+    public NioRpcMessenger(
+        SocketChannel channel,
+        NioEventLoop eventLoop,
+        INioConnectionHandler connectionHandler) throws IOException {
+        fChannel = channel;
+        fEventLoop = eventLoop;
+        fConnectionHandler = connectionHandler;
+        fChannel.configureBlocking(false);
+        fChannel.socket().setTcpNoDelay(true);
+        setBufferPool(eventLoop.getHeapBufferPool());
+    }
+
+    /**
+     * Closes the connection. Messages waiting to be written are dropped. The
+     * relay of this messenger (if any) is notified about the closed
+     * connection (see {@link RpcRelay#onClose(RpcStreamMessenger)}).
+     * 
+     * @see org.ubimix.commons.rpc.nio.INioHandler#close()
+     */
+    public void close() {
+        if (!fClosed.compareAndSet(false, true)) {
+            return;
+        }
+        SelectionKey key = fKey;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            fChannel.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        fEventLoop.execute(new Runnable() {
+            public void run() {
+                releaseBuffers();
+            }
+        });
+        RpcRelay relay = getRelay();
+        if (relay != null) {
+            relay.onClose(this);
+        }
+        if (fConnectionHandler != null) {
+            fConnectionHandler.onClose(this);
+        }
+    }
+
+    /**
+     * Returns a supported codec with the specified identifier.
+     * 
+     * @param id the identifier of the codec
+     * @return a codec with the specified identifier
+     * @throws IOException if there is no such codec
+     */
+    private IRpcCodec getCodec(int id) throws IOException {
+        for (IRpcCodec codec : fCodecs) {
+            if (codec.getId() == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Unsupported codec: " + id + ".");
+    }
+
+    /**
+     * Returns the compressor used for outgoing messages or <code>null</code>
+     * if messages are not compressed (if compressors are not defined or if
+     * the peer does not support them).
+     * 
+     * @return the compressor used for outgoing messages
+     */
+    public IRpcCompressor getCompressor() {
+        return fCompressor;
+    }
+
+    /**
+     * Returns a supported compressor with the specified identifier.
+     * 
+     * @param id the identifier of the compressor
+     * @return a compressor with the specified identifier
+     * @throws IOException if there is no such compressor
+     */
+    private IRpcCompressor getCompressor(int id) throws IOException {
+        for (IRpcCompressor compressor : fCompressors) {
+            if (compressor.getId() == id) {
+                return compressor;
+            }
+        }
+        throw new IOException("Unsupported compressor: " + id + ".");
+    }
+
+    /**
+     * Returns the event loop of this messenger.
+     * 
+     * @return the event loop of this messenger
+     */
+    public NioEventLoop getEventLoop() {
+        return fEventLoop;
+    }
+
+    /**
+     * Returns flags of outgoing frames. The codec identifier is added to
+     * these flags. By default this method returns 0.
+     * 
+     * @return flags of outgoing frames
+     */
+    protected int getFrameFlags() {
+        return 0;
+    }
+
+    /**
+     * Returns the maximal size of incoming frames.
+     * 
+     * @return the maximal size of incoming frames
+     */
+    public int getMaxFrameSize() {
+        return fMaxFrameSize;
+    }
+
+    /**
+     * Returns the address of the remote peer.
+     * 
+     * @return the address of the remote peer
+     */
+    public SocketAddress getRemoteAddress() {
+        return fChannel.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.nio.INioHandler#handleKey(java.nio.channels.SelectionKey)
+     */
+    public void handleKey(SelectionKey key) throws IOException {
+        if (key.isWritable()) {
+            writeFrames();
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if this connection is closed.
+     * 
+     * @return <code>true</code> if this connection is closed
+     */
+    public boolean isClosed() {
+        return fClosed.get();
+    }
+
+    /**
+     * Handles a control frame.
+     * 
+     * @param payload the payload of the frame
+     * @throws IOException if the frame is not valid
+     */
+    private void onControlFrame(ByteBuffer payload) throws IOException {
+        if (!payload.hasRemaining()) {
+            throw new IOException("Empty control frame.");
+        }
+        int type = payload.get();
+        if (type == CONTROL_COMPRESSION) {
+            int max = COMPRESSION_MASK >> COMPRESSION_SHIFT;
+            boolean[] supported = new boolean[max + 1];
+            while (payload.hasRemaining()) {
+                int id = payload.get() & 0xFF;
+                if (id < supported.length) {
+                    supported[id] = true;
+                }
+            }
+            for (IRpcCompressor compressor : fCompressors) {
+                if (supported[compressor.getId()]) {
+                    fCompressor = compressor;
+                    break;
+                }
+            }
+            return;
+        }
+        if (type != CONTROL_HELLO) {
+            // Unknown control frames are ignored
+            return;
+        }
+        boolean[] supported = new boolean[CODEC_MASK + 1];
+        while (payload.hasRemaining()) {
+            supported[payload.get() & CODEC_MASK] = true;
+        }
+        for (IRpcCodec codec : fCodecs) {
+            if (supported[codec.getId()]) {
+                setCodec(codec);
+                break;
+            }
+        }
+        if (!fHelloSent) {
+            sendHello();
+        }
+    }
+
+    /**
+     * This method is called for each received frame. By default it handles
+     * control frames, decompresses payloads and decodes messages with the
+     * codec defined by the frame flags. Subclasses could overload this method
+     * to handle other flags.
+     * 
+     * @param flags flags of the frame
+     * @param payload the payload of the frame; it is valid only during this
+     *        call
+     * @throws IOException if the payload could not be decoded
+     */
+    protected void onFrame(int flags, ByteBuffer payload) throws IOException {
+        if ((flags & FLAG_CONTROL) != 0) {
+            onControlFrame(payload);
+        } else {
+            IRpcCodec codec = getCodec(flags & CODEC_MASK);
+            int id = (flags & COMPRESSION_MASK) >> COMPRESSION_SHIFT;
+            if (id == 0) {
+                onMessage(payload, codec);
+                return;
+            }
+            IRpcCompressor compressor = getCompressor(id);
+            ByteBufferPool pool = getBufferPool();
+            ByteBuffer data = compressor.decompress(
+                payload,
+                pool,
+                fMaxFrameSize);
+            try {
+                onMessage(data, codec);
+            } finally {
+                pool.release(data);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection when a message could not be decoded in the decode
+     * stage.
+     * 
+     * @see org.ubimix.commons.rpc.RpcStreamMessenger#onReceiveError(java.io.IOException)
+     */
+    @Override
+    protected void onReceiveError(IOException e) {
+        close();
+    }
+
+    /**
+     * Returns all buffers of the given frame to the pool.
+     * 
+     * @param pool the pool of buffers
+     * @param frame the buffers of the frame
+     */
+    private static void release(ByteBufferPool pool, ByteBuffer[] frame) {
+        for (ByteBuffer buf : frame) {
+            pool.release(buf);
+        }
+    }
+
+    /**
+     * Reads available data from the socket and handles all complete frames.
+     * 
+     * @throws IOException
+     */
+    private void read() throws IOException {
+        int len = fChannel.read(fReadBuffer);
+        if (len < 0) {
+            close();
+            return;
+        }
+        fReadBuffer.flip();
+        try {
+            readFrames(fReadBuffer);
+        } finally {
+            fReadBuffer.compact();
+        }
+    }
+
+    private void readFrames(ByteBuffer buf) throws IOException {
+        while (!fClosed.get()) {
+            if (fFrame != null) {
+                // Copy the next part of a big frame
+                int count = Math.min(fFrame.remaining(), buf.remaining());
+                int limit = buf.limit();
+                buf.limit(buf.position() + count);
+                fFrame.put(buf);
+                buf.limit(limit);
+                if (fFrame.hasRemaining()) {
+                    break;
+                }
+                ByteBuffer frame = fFrame;
+                fFrame = null;
+                frame.flip();
+                onFrame(fFrameFlags, frame);
+                continue;
+            }
+            if (buf.remaining() < HEADER_SIZE) {
+                break;
+            }
+            int pos = buf.position();
+            int len = buf.getInt(pos);
+            int flags = buf.get(pos + 4) & 0xFF;
+            if (len < 0 || len > fMaxFrameSize) {
+                throw new IOException("Bad frame size: " + len + ".");
+            }
+            if (buf.remaining() >= HEADER_SIZE + len) {
+                int limit = buf.limit();
+                int end = pos + HEADER_SIZE + len;
+                buf.position(pos + HEADER_SIZE);
+                buf.limit(end);
+                try {
+                    onFrame(flags, buf.slice());
+                } finally {
+                    buf.limit(limit);
+                    buf.position(end);
+                }
+            } else if (HEADER_SIZE + len > buf.capacity()) {
+                // This frame does not fit in the read buffer
+                buf.position(pos + HEADER_SIZE);
+                fFrame = ByteBuffer.allocate(len);
+                fFrameFlags = flags;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void releaseBuffers() {
+        ByteBufferPool pool = fEventLoop.getDirectBufferPool();
+        ByteBuffer[] frame;
+        while ((frame = fWriteQueue.poll()) != null) {
+            release(pool, frame);
+        }
+        if (fReadBuffer != null) {
+            pool.release(fReadBuffer);
+            fReadBuffer = null;
+        }
+        fFrame = null;
+    }
+
+    /**
+     * Sends a frame with the given payload and the specified flags. The frame
+     * is copied in buffers of the direct pool of the event loop; frames
+     * bigger than one buffer are split between several buffers written to
+     * the socket with one gathering write, so no new direct buffers are
+     * allocated for big frames.
+     * 
+     * @param flags flags of the frame
+     * @param payload parts of the payload of the frame (in this order); they
+     *        are copied by this method
+     * @throws IOException if the connection is closed
+     */
+    protected void sendFrame(int flags, ByteBuffer... payload)
+        throws IOException {
+        if (fClosed.get()) {
+            throw new ClosedChannelException();
+        }
+        ByteBufferPool pool = fEventLoop.getDirectBufferPool();
+        int len = 0;
+        for (ByteBuffer part : payload) {
+            len += part.remaining();
+        }
+        int size = pool.getBufferSize();
+        ByteBuffer[] frame = new ByteBuffer[(HEADER_SIZE + len + size - 1)
+            / size];
+        int idx = 0;
+        for (int i = 0; i < frame.length; i++) {
+            ByteBuffer buf = pool.acquire();
+            if (i == 0) {
+                buf.putInt(len).put((byte) flags);
+            }
+            while (buf.hasRemaining() && idx < payload.length) {
+                ByteBuffer part = payload[idx];
+                int limit = part.limit();
+                int n = Math.min(buf.remaining(), part.remaining());
+                part.limit(part.position() + n);
+                buf.put(part);
+                part.limit(limit);
+                if (!part.hasRemaining()) {
+                    idx++;
+                }
+            }
+            buf.flip();
+            frame[i] = buf;
+        }
+        fWriteQueue.offer(frame);
+        if (fEventLoop.inEventLoop()) {
+            writeFrames();
+        } else if (fFlushScheduled.compareAndSet(false, true)) {
+            fEventLoop.execute(fFlushTask);
+        }
+    }
+
+    /**
+     * Sends the "hello" control frame with identifiers of all supported
+     * codecs and the "compression" control frame with identifiers of
+     * supported compressors (if any). This method is called in the event loop
+     * thread.
+     * 
+     * @throws IOException if the connection is closed
+     */
+    private void sendHello() throws IOException {
+        fHelloSent = true;
+        ByteBuffer payload = ByteBuffer.allocate(1 + fCodecs.length);
+        payload.put((byte) CONTROL_HELLO);
+        for (IRpcCodec codec : fCodecs) {
+            payload.put((byte) codec.getId());
+        }
+        payload.flip();
+        sendFrame(FLAG_CONTROL, payload);
+        if (fCompressors.length > 0) {
+            payload = ByteBuffer.allocate(1 + fCompressors.length);
+            payload.put((byte) CONTROL_COMPRESSION);
+            for (IRpcCompressor compressor : fCompressors) {
+                payload.put((byte) compressor.getId());
+            }
+            payload.flip();
+            sendFrame(FLAG_CONTROL, payload);
+        }
+    }
+
+    /**
+     * @see org.ubimix.commons.rpc.RpcStreamMessenger#sendMessage(java.nio.ByteBuffer)
+     */
+    @Override
+    protected void sendMessage(ByteBuffer buf) throws IOException {
+        sendMessage(buf, getCodec());
+    }
+
+    /**
+     * Sends a frame with the identifier of the given codec in flags. Messages
+     * bigger than the compression threshold are compressed if the peer
+     * supports compression.
+     * 
+     * @see org.ubimix.commons.rpc.RpcStreamMessenger#sendMessage(java.nio.ByteBuffer,
+     *      org.ubimix.commons.rpc.IRpcCodec)
+     */
+    @Override
+    protected void sendMessage(ByteBuffer buf, IRpcCodec codec)
+        throws IOException {
+        int flags = getFrameFlags() | codec.getId();
+        IRpcCompressor compressor = fCompressor;
+        if (compressor != null && buf.remaining() >= fCompressionThreshold) {
+            ByteBufferPool pool = getBufferPool();
+            ByteBuffer[] compressed = compressor.compress(buf, pool);
+            if (compressed != null) {
+                try {
+                    flags |= compressor.getId() << COMPRESSION_SHIFT;
+                    sendFrame(flags, compressed);
+                } finally {
+                    for (ByteBuffer chunk : compressed) {
+                        pool.release(chunk);
+                    }
+                }
+                return;
+            }
+        }
+        sendFrame(flags, buf);
+    }
+
+    /**
+     * Sets codecs supported by this messenger in the order of preference.
+     * The JSON codec is always supported; it is added to the end of the list
+     * if it is not defined explicitly. This method should be called before
+     * the messenger is started.
+     * 
+     * @param codecs supported codecs
+     */
+    public void setCodecs(IRpcCodec... codecs) {
+        boolean json = false;
+        for (IRpcCodec codec : codecs) {
+            json |= codec.getId() == JsonRpcCodec.ID;
+        }
+        IRpcCodec[] array = new IRpcCodec[codecs.length + (json ? 0 : 1)];
+        System.arraycopy(codecs, 0, array, 0, codecs.length);
+        if (!json) {
+            array[codecs.length] = JsonRpcCodec.INSTANCE;
+        }
+        fCodecs = array;
+    }
+
+    /**
+     * Sets compressors supported by this messenger in the order of preference
+     * and the minimal size of compressed messages. Outgoing messages are
+     * compressed with the first of these compressors supported by the peer.
+     * This method should be called before the messenger is started.
+     * 
+     * @param threshold messages smaller than this threshold are not
+     *        compressed
+     * @param compressors supported compressors
+     */
+    public void setCompression(int threshold, IRpcCompressor... compressors) {
+        int max = COMPRESSION_MASK >> COMPRESSION_SHIFT;
+        for (IRpcCompressor compressor : compressors) {
+            int id = compressor.getId();
+            if (id < 1 || id > max) {
+                throw new IllegalArgumentException("Bad compressor identifier: "
+                    + id
+                    + ".");
+            }
+        }
+        fCompressionThreshold = threshold;
+        fCompressors = compressors.clone();
+    }
+
+    /**
+     * Sets the maximal size of incoming frames. Bigger frames are considered
+     * as protocol errors and the connection is closed.
+     * 
+     * @param maxFrameSize the maximal size of frames
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        fMaxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Starts reading messages from the socket. This method should be called
+     * when a message listener is already set for this messenger (when a
+     * dispatcher is initialized).
+     */
+    public void start() {
+        fEventLoop.execute(new Runnable() {
+            public void run() {
+                if (fClosed.get()) {
+                    return;
+                }
+                fReadBuffer = fEventLoop.getDirectBufferPool().acquire();
+                try {
+                    fKey = fEventLoop.register(
+                        fChannel,
+                        SelectionKey.OP_READ,
+                        NioRpcMessenger.this);
+                } catch (ClosedChannelException e) {
+                    close();
+                    return;
+                }
+                boolean negotiate = fCodecs.length > 1
+                    || fCompressors.length > 0;
+                if (negotiate && !fHelloSent) {
+                    try {
+                        sendHello();
+                    } catch (IOException e) {
+                        close();
+                        return;
+                    }
+                }
+                writeFrames();
+            }
+        });
+    }
+
+    /**
+     * Writes queued frames to the socket. This method is called in the event
+     * loop thread.
+     */
+    private void writeFrames() {
+        if (fClosed.get()) {
+            return;
+        }
+        ByteBufferPool pool = fEventLoop.getDirectBufferPool();
+        try {
+            ByteBuffer[] frame;
+            while ((frame = fWriteQueue.peek()) != null) {
+                fChannel.write(frame);
+                if (frame[frame.length - 1].hasRemaining()) {
+                    break;
+                }
+                fWriteQueue.poll();
+                release(pool, frame);
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        SelectionKey key = fKey;
+        if (key != null && key.isValid()) {
+            int ops = fWriteQueue.isEmpty()
+                ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+}
\ No newline at end of file
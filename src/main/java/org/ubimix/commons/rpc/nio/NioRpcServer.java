@@ -0,0 +1,171 @@
+package org.ubimix.commons.rpc.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A server accepting connections on a non-blocking server socket. Accepted
+ * connections are distributed between event loops of a group; a new
+ * {@link NioRpcMessenger} is created for each connection and the connection
+ * handler is notified about it. Example:
+ * 
+ * <pre>
+ * NioEventLoopGroup group = new NioEventLoopGroup(2);
+ * NioRpcServer server = new NioRpcServer(group, new INioConnectionHandler() {
+ *     public void onOpen(NioRpcMessenger messenger) {
+ *         RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+ *         dispatcher.init(eventManager, messenger);
+ *         ...
+ *     }
+ *     public void onClose(NioRpcMessenger messenger) {
+ *         ...
+ *     }
+ * });
+ * server.bind(new InetSocketAddress(8080));
+ * </pre>
+ * 
+ * @author kotelnikov
+ */
+public class NioRpcServer {
+
+    /**
+     * Handles accept operations of the server socket. Failures of individual
+     * connections are reported to the event loop; they never close the
+     * server socket.
+     */
+    private class Acceptor implements INioHandler {
+
+        private final NioEventLoop fLoop;
+
+        public Acceptor(NioEventLoop loop) {
+            fLoop = loop;
+        }
+
+        public void close() {
+            NioRpcServer.this.close();
+        }
+
+        public void handleKey(SelectionKey key) {
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = fServerChannel.accept();
+                } catch (IOException e) {
+                    // For example, too many open files; the pending
+                    // connection is accepted when the selector fires again
+                    if (fServerChannel.isOpen()) {
+                        fLoop.handleError(e);
+                    }
+                    return;
+                }
+                if (channel == null) {
+                    return;
+                }
+                try {
+                    NioRpcMessenger messenger = newMessenger(
+                        channel,
+                        fGroup.next());
+                    fConnectionHandler.onOpen(messenger);
+                    messenger.start();
+                } catch (Throwable t) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // Nothing to do
+                    }
+                    fLoop.handleError(t);
+                }
+            }
+        }
+
+    }
+
+    private final INioConnectionHandler fConnectionHandler;
+
+    private final NioEventLoopGroup fGroup;
+
+    private ServerSocketChannel fServerChannel;
+
+    /**
+     * @param group the group of event loops handling connections
+     * @param connectionHandler the handler notified about new and closed
+     *        connections
+     */
+    public NioRpcServer(
+        NioEventLoopGroup group,
+        INioConnectionHandler connectionHandler) {
+        fGroup = group;
+        fConnectionHandler = connectionHandler;
+    }
+
+    /**
+     * Binds the server socket to the specified address and starts accepting
+     * connections.
+     * 
+     * @param address the address to bind; the port 0 could be used to bind
+     *        the socket to an ephemeral port
+     * @return the local address of the server socket
+     * @throws IOException if the socket could not be bound
+     */
+    public synchronized InetSocketAddress bind(SocketAddress address)
+        throws IOException {
+        if (fServerChannel != null) {
+            throw new IllegalStateException("The server is already bound.");
+        }
+        fServerChannel = ServerSocketChannel.open();
+        fServerChannel.configureBlocking(false);
+        fServerChannel.socket().setReuseAddress(true);
+        fServerChannel.socket().bind(address);
+        final NioEventLoop loop = fGroup.next();
+        loop.execute(new Runnable() {
+            public void run() {
+                try {
+                    loop.register(
+                        fServerChannel,
+                        SelectionKey.OP_ACCEPT,
+                        new Acceptor(loop));
+                } catch (ClosedChannelException e) {
+                    // The server was closed
+                }
+            }
+        });
+        return (InetSocketAddress) fServerChannel
+            .socket()
+            .getLocalSocketAddress();
+    }
+
+    /**
+     * Stops accepting new connections. Already accepted connections are not
+     * closed.
+     */
+    public synchronized void close() {
+        if (fServerChannel != null) {
+            try {
+                fServerChannel.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * Creates and returns a new messenger for an accepted connection. This
+     * method could be overloaded to create customized messengers.
+     * 
+     * @param channel the accepted connection
+     * @param eventLoop the event loop which should handle the connection
+     * @return a new messenger
+     * @throws IOException if the channel could not be configured
+     */
+    protected NioRpcMessenger newMessenger(
+        SocketChannel channel,
+        NioEventLoop eventLoop) throws IOException {
+        return new NioRpcMessenger(channel, eventLoop, fConnectionHandler);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,113 @@
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.json.JsonArray;
+import org.ubimix.commons.json.JsonObject;
+
+/**
+ * @author kotelnikov
+ */
+public class BinaryRpcCodecTest extends TestCase {
+
+    private ByteBufferPool fPool = new ByteBufferPool(16, 4, false);
+
+    public BinaryRpcCodecTest(String name) {
+        super(name);
+    }
+
+    private Object roundTrip(IRpcCodec codec, Object value) throws IOException {
+        ByteBuffer buf = codec.encode(value, fPool);
+        try {
+            return codec.decode(buf);
+        } finally {
+            fPool.release(buf);
+        }
+    }
+
+    public void testDepth() throws Exception {
+        int max = JsonStreamReader.DEFAULT_MAX_DEPTH;
+        byte[] message = new byte[max + 2];
+        Arrays.fill(message, (byte) 0x81);
+        message[message.length - 1] = 0x00;
+        try {
+            BinaryRpcCodec.INSTANCE.decode(ByteBuffer.wrap(message));
+            fail();
+        } catch (IOException e) {
+        }
+        Object value = BinaryRpcCodec.INSTANCE.decode(ByteBuffer.wrap(
+            message,
+            1,
+            max + 1));
+        assertTrue(value instanceof JsonArray);
+    }
+
+    public void testEncodeError() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(16, 1, false);
+        ByteBuffer buf = pool.acquire();
+        pool.release(buf);
+        try {
+            BinaryRpcCodec.INSTANCE.encode(new RawJson("{\"a\":"), pool);
+            fail();
+        } catch (IOException e) {
+        }
+        // The buffer used by the failed encoding is returned to the pool
+        assertSame(buf, pool.acquire());
+    }
+
+    public void testErrors() throws Exception {
+        byte[][] messages = {
+            {},
+            { (byte) 0xA2, 0x61 },
+            { (byte) 0xFF },
+            { 0x01, 0x02 },
+            { 0x62, (byte) 0xC3, 0x28 },
+            { 0x63, (byte) 0xED, (byte) 0xA0, (byte) 0x80 } };
+        for (byte[] message : messages) {
+            try {
+                BinaryRpcCodec.INSTANCE.decode(ByteBuffer.wrap(message));
+                fail();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        JsonArray list = new JsonArray();
+        list.addValue(true);
+        list.addValue(false);
+        list.addValue(null);
+        list.addValue(255L);
+        list.addValue(65536L);
+        list.addValue(Long.MIN_VALUE);
+        list.addValue(Long.MAX_VALUE);
+        list.addValue(-300L);
+        list.addValue(7.5);
+        list.addValue(new JsonArray());
+        JsonObject params = new JsonObject();
+        params.setValue("name", "J\u00e9r\u00f4me \ud83d\ude00 \u4e2d");
+        params.setValue("list", list);
+        JsonObject message = new JsonObject();
+        message.setValue("id", 12L);
+        message.setValue("params", params);
+
+        for (IRpcCodec codec : new IRpcCodec[] {
+            JsonRpcCodec.INSTANCE,
+            BinaryRpcCodec.INSTANCE }) {
+            Object result = roundTrip(codec, message);
+            assertEquals(message.toString(), result.toString());
+        }
+
+        // Binary messages are more compact
+        ByteBuffer json = JsonRpcCodec.INSTANCE.encode(message, fPool);
+        ByteBuffer binary = BinaryRpcCodec.INSTANCE.encode(message, fPool);
+        assertTrue(binary.remaining() < json.remaining());
+        fPool.release(json);
+        fPool.release(binary);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,228 @@
+/**
+ * 
+ */
+package org.ubimix.commons.rpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.json.JsonArray;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.json.rpc.RpcRequest;
+
+/**
+ * @author kotelnikov
+ */
+public class JsonStreamReaderTest extends TestCase {
+
+    /**
+     * @param name
+     */
+    public JsonStreamReaderTest(String name) {
+        super(name);
+    }
+
+    private Object read(String str, int bufferSize) throws Exception {
+        JsonStreamReader reader = new JsonStreamReader(
+            new StringReader(str),
+            bufferSize);
+        Object value = reader.readValue();
+        assertFalse(reader.hasNext());
+        return value;
+    }
+
+    public void testArrays() throws Exception {
+        String str = "[{\"id\":1,\"method\":\"a\"},{\"id\":2,\"method\":\"b\"}]";
+        JsonArray expected = JsonArray.FACTORY.newValue(str);
+        assertEquals(expected, read(str, 4096));
+        assertEquals(expected, read(str, 3));
+        assertEquals(new JsonArray(), read(" [ ] ", 4096));
+    }
+
+    public void testCodecErrors() throws Exception {
+        JsonRpcCodec codec = JsonRpcCodec.INSTANCE;
+        byte[][] invalid = {
+            // Truncated messages
+            "{\"id\":1,\"method\":".getBytes("UTF-8"),
+            "{\"id\":1,\"method\":\"a\"".getBytes("UTF-8"),
+            // Data after the message
+            "{\"id\":1} {}".getBytes("UTF-8"),
+            "1 2".getBytes("UTF-8"),
+            // Malformed and truncated UTF-8 sequences
+            { '"', 'a', (byte) 0xC3, '"' },
+            { '"', 'a', (byte) 0xE2, (byte) 0x82 } };
+        for (byte[] bytes : invalid) {
+            try {
+                codec.decode(ByteBuffer.wrap(bytes));
+                fail("An error was expected");
+            } catch (java.io.IOException e) {
+            }
+        }
+        assertEquals("a\u00e9", codec.decode(ByteBuffer.wrap(new byte[] {
+            '"',
+            'a',
+            (byte) 0xC3,
+            (byte) 0xA9,
+            '"',
+            ' ' })));
+    }
+
+    public void testDepth() throws Exception {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            buf.append('[');
+        }
+        try {
+            read(buf.toString(), 4096);
+            fail("An error was expected");
+        } catch (java.io.IOException e) {
+        }
+        String str = "[[[1]],[[2]],{\"a\":[3]}]";
+        JsonStreamReader reader = new JsonStreamReader(
+            new StringReader(str),
+            4096,
+            3);
+        assertEquals(JsonArray.FACTORY.newValue(str), reader.readValue());
+        reader = new JsonStreamReader(new StringReader("[[[[1]]]]"), 4096, 3);
+        try {
+            reader.readValue();
+            fail("An error was expected");
+        } catch (java.io.IOException e) {
+        }
+    }
+
+    public void testErrors() throws Exception {
+        String[] invalid = { "{", "{\"a\" 1}", "[1,", "\"abc", "{\"a\":tru}" };
+        for (String str : invalid) {
+            try {
+                read(str, 4096);
+                fail("An error was expected for " + str);
+            } catch (java.io.IOException e) {
+            }
+        }
+    }
+
+    public void testLoneSurrogates() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(16, 4, false);
+        String str = "a\ud800b\udc00\ud83d\ude00\ud83d";
+        JsonStreamWriter writer = new JsonStreamWriter(pool);
+        writer.writeValue(str);
+        ByteBuffer buf = writer.getBuffer();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        writer.release();
+        assertEquals(
+            "\"a\\ud800b\\udc00\ud83d\ude00\\ud83d\"",
+            new String(bytes, "UTF-8"));
+        // The codec rejects malformed UTF-8, so the output is valid
+        assertEquals(str, JsonRpcCodec.INSTANCE.decode(ByteBuffer.wrap(bytes)));
+
+        writer = new JsonStreamWriter(pool);
+        writer.writeRaw("\"\udc00\"");
+        buf = writer.getBuffer();
+        bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        writer.release();
+        assertEquals("\"\ufffd\"", new String(bytes, "UTF-8"));
+    }
+
+    public void testMessages() throws Exception {
+        String params = "{\"name\":\"a \\\"}]\\\" b\",\"list\":[1,[2,{}]]}";
+        String str = "{\"id\":1,\"method\":\"a.b\",\"params\": "
+            + params
+            + " ,\"jsonrpc\":\"2.0\"}";
+        for (int bufferSize : new int[] { 1, 2, 7, 4096 }) {
+            JsonStreamReader reader = new JsonStreamReader(
+                new StringReader(str),
+                bufferSize);
+            JsonObject value = (JsonObject) reader.readMessage();
+            assertFalse(reader.hasNext());
+            assertEquals(new RawJson(params), value.getValue("params"));
+            assertEquals("a.b", value.getValue("method"));
+
+            RpcRequest request = (RpcRequest) LazyRpcRequest
+                .newRpcObject(value);
+            assertTrue(request instanceof LazyRpcRequest);
+            assertFalse(((LazyRpcRequest) request).isParsed());
+            assertEquals("a.b", request.getMethod());
+            assertEquals(
+                JsonObject.FACTORY.newValue(params),
+                request.getParamsAsObject());
+            assertTrue(((LazyRpcRequest) request).isParsed());
+        }
+
+        // Bad parameters are reported as parse errors
+        JsonObject bad = new JsonObject();
+        bad.setValue("id", 1);
+        bad.setValue("method", "a.b");
+        bad.setValue("params", new RawJson("[1,"));
+        RpcRequest badRequest = (RpcRequest) LazyRpcRequest.newRpcObject(bad);
+        try {
+            badRequest.getParams();
+            fail("An error was expected");
+        } catch (RpcParseException e) {
+            assertEquals(RpcCall.ERROR_PARSE, RpcCall.getError(e).getCode());
+        }
+
+        JsonStreamReader reader = new JsonStreamReader(new StringReader(
+            "{\"id\":1,\"method\":\"a\",\"params\":[1,2}"));
+        try {
+            reader.readMessage();
+            fail("An error was expected");
+        } catch (java.io.IOException e) {
+        }
+    }
+
+    public void testObjects() throws Exception {
+        String str = "{\"jsonrpc\":\"2.0\",\"id\":\"id-1\","
+            + "\"method\":\"sandboxNamespace.sayHello\","
+            + "\"params\":{\"name\":\"John \\\"Smith\\\"\\n\\u00e9\","
+            + "\"age\":42,\"weight\":72.5,\"married\":false,"
+            + "\"tags\":[\"a\",\"b\",[]],\"nested\":{}}}";
+        JsonObject expected = JsonObject.FACTORY.newValue(str);
+        for (int bufferSize : new int[] { 1, 2, 7, 4096 }) {
+            Object value = read(str, bufferSize);
+            assertTrue(value instanceof JsonObject);
+            assertEquals(expected, value);
+        }
+    }
+
+    public void testUtf8Size() throws Exception {
+        String str = "{\"name\":\"a\u00e9\u20ac\ud83d\ude00\"}";
+        JsonStreamReader reader = new JsonStreamReader(
+            new StringReader(str),
+            3);
+        reader.readMessage();
+        assertEquals(str.getBytes("UTF-8").length, reader.getUtf8Size());
+    }
+
+    public void testWriter() throws Exception {
+        String str = "{\"id\":-12,\"params\":{\"name\":\"J\\u00e9r\\u00f4me\\n\","
+            + "\"w\":7.5,\"b\":[true,false,null,[],{}]}}";
+        JsonObject expected = JsonObject.FACTORY.newValue(str);
+        // Small buffers to check that the writer grows/flushes buffers
+        ByteBufferPool pool = new ByteBufferPool(16, 4, false);
+        JsonStreamWriter writer = new JsonStreamWriter(pool);
+        writer.writeValue(expected);
+        ByteBuffer buf = writer.getBuffer();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        writer.release();
+        assertEquals(expected, JsonObject.FACTORY.newValue(new String(
+            bytes,
+            "UTF-8")));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer = new JsonStreamWriter(pool, Channels.newChannel(out));
+        writer.writeValue(expected);
+        writer.flush();
+        writer.release();
+        assertEquals(expected, JsonObject.FACTORY.newValue(new String(out
+            .toByteArray(), "UTF-8")));
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,225 @@
+package org.ubimix.commons.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.events.EventManager;
+import org.ubimix.commons.events.IEventManager;
+import org.ubimix.commons.events.calls.CallListener;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.rpc.RpcCallsDispatcher.RpcMessenger;
+import org.ubimix.commons.rpc.SandboxNamespace.SayHello;
+
+/**
+ * @author kotelnikov
+ */
+public class LoadBalancingRpcMessengerTest extends TestCase {
+
+    /**
+     * This messenger keeps sent messages without delivering them.
+     */
+    private static class PeerMessenger extends RpcMessenger {
+
+        private final List<String> fMessages = new ArrayList<String>();
+
+        public void reply(String id, String result) {
+            onMessage("{\"id\":\"" + id + "\",\"result\":" + result + "}");
+        }
+
+        @Override
+        protected void sendMessage(String msg) {
+            fMessages.add(msg);
+        }
+
+    }
+
+    public LoadBalancingRpcMessengerTest(String name) {
+        super(name);
+    }
+
+    public void testDispatcherTimeout() throws Exception {
+        PeerMessenger peer = new PeerMessenger();
+        LoadBalancingRpcMessenger messenger = new LoadBalancingRpcMessenger();
+        messenger.addPeer(peer);
+        // This timer keeps tasks; they are executed by the test
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        IRpcTimer timer = new IRpcTimer() {
+            public ITimeout schedule(final Runnable task, long delay) {
+                tasks.add(task);
+                return new ITimeout() {
+                    public boolean cancel() {
+                        return tasks.remove(task);
+                    }
+                };
+            }
+        };
+        IEventManager eventManager = new EventManager();
+        RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+        dispatcher.init(eventManager, messenger);
+        dispatcher.setTimer(timer);
+        dispatcher.setTimeout(1000);
+        try {
+            SayHello call = new SayHello("a", new JsonObject());
+            eventManager.fireEvent(call);
+            assertEquals(1, messenger.getOutstandingCount());
+            assertEquals(1, tasks.size());
+
+            // Calls expired in the dispatcher are forgotten by the messenger
+            tasks.remove(0).run();
+            assertEquals(RpcCall.ERROR_TIMEOUT, call
+                .getResultError()
+                .getCode());
+            assertEquals(0, messenger.getOutstandingCount());
+            assertEquals(0, messenger.getPeers()[0].getOutstandingCount());
+            assertEquals(2, peer.fMessages.size());
+            assertTrue(peer.fMessages.get(1).contains(
+                RpcCallsDispatcher.METHOD_CANCEL_REQUEST));
+        } finally {
+            dispatcher.done();
+        }
+    }
+
+    public void testIncomingCalls() throws Exception {
+        PeerMessenger first = new PeerMessenger();
+        PeerMessenger second = new PeerMessenger();
+        LoadBalancingRpcMessenger messenger = new LoadBalancingRpcMessenger();
+        messenger.addPeer(first);
+        messenger.addPeer(second);
+        IEventManager eventManager = new EventManager();
+        final List<SayHello> serverCalls = new ArrayList<SayHello>();
+        eventManager.addListener(SayHello.class, new CallListener<SayHello>() {
+            @Override
+            protected void handleRequest(SayHello event) {
+                serverCalls.add(event);
+            }
+        });
+        RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+        dispatcher.init(eventManager, messenger);
+        try {
+            // Both peers use the same identifier for their calls
+            String request = "{\"id\":\"1\","
+                + "\"method\":\"sandboxNamespace.sayHello\","
+                + "\"params\":{}}";
+            first.onMessage(request);
+            second.onMessage(request);
+            assertEquals(2, serverCalls.size());
+
+            // The call of the first peer is cancelled by this peer
+            first.onMessage("{\"method\":\""
+                + RpcCallsDispatcher.METHOD_CANCEL_REQUEST
+                + "\",\"params\":{\"id\":\"1\"}}");
+            assertTrue(serverCalls.get(0).isCancelled());
+            assertFalse(serverCalls.get(1).isCancelled());
+
+            serverCalls.get(1).reply(new JsonObject().setValue("msg", "Hi!"));
+            assertTrue(first.fMessages.isEmpty());
+            assertEquals(1, second.fMessages.size());
+            String response = second.fMessages.get(0);
+            assertTrue(response.contains("\"id\":\"1\""));
+            assertTrue(response.contains("Hi!"));
+        } finally {
+            dispatcher.done();
+        }
+    }
+
+    public void testLeastOutstandingCalls() throws Exception {
+        PeerMessenger first = new PeerMessenger();
+        PeerMessenger second = new PeerMessenger();
+        LoadBalancingRpcMessenger messenger = new LoadBalancingRpcMessenger();
+        messenger.addPeer(first);
+        messenger.addPeer(second);
+        messenger.setEjection(1, 60 * 1000);
+        IEventManager eventManager = new EventManager();
+        RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+        dispatcher.init(eventManager, messenger);
+        try {
+            SayHello a = new SayHello("a", new JsonObject());
+            eventManager.fireEvent(a);
+            SayHello b = new SayHello("b", new JsonObject());
+            eventManager.fireEvent(b);
+            // Calls are distributed between peers
+            assertEquals(1, first.fMessages.size());
+            assertEquals(1, second.fMessages.size());
+            assertEquals(2, messenger.getOutstandingCount());
+
+            PeerMessenger peerA = first.fMessages.get(0).contains("\"a\"")
+                ? first
+                : second;
+            PeerMessenger peerB = peerA == first ? second : first;
+            peerB.reply("b", "{\"msg\":\"Hi!\"}");
+            assertEquals("Hi!", b.getResultObject().getString("msg"));
+
+            // The second call goes to the least loaded peer
+            SayHello c = new SayHello("c", new JsonObject());
+            eventManager.fireEvent(c);
+            assertEquals(2, peerB.fMessages.size());
+
+            // An overloaded peer is ejected
+            peerB.onMessage("{\"id\":\"c\",\"error\":{\"code\":"
+                + RpcCall.ERROR_OVERLOADED
+                + ",\"message\":\"Overloaded\"}}");
+            assertFalse(messenger.getPeers()[peerB == first ? 0 : 1]
+                .isAvailable());
+            SayHello d = new SayHello("d", new JsonObject());
+            eventManager.fireEvent(d);
+            assertEquals(2, peerA.fMessages.size());
+            assertEquals(2, peerB.fMessages.size());
+
+            // Cancellations are sent to the peer executing the call
+            d.cancel();
+            assertEquals(3, peerA.fMessages.size());
+            assertTrue(peerA.fMessages.get(2).contains(
+                RpcCallsDispatcher.METHOD_CANCEL_REQUEST));
+            peerA.reply("a", "{}");
+            assertEquals(0, messenger.getOutstandingCount());
+        } finally {
+            dispatcher.done();
+        }
+    }
+
+    public void testStreamingNotifications() throws Exception {
+        PeerMessenger first = new PeerMessenger();
+        PeerMessenger second = new PeerMessenger();
+        LoadBalancingRpcMessenger messenger = new LoadBalancingRpcMessenger();
+        messenger.addPeer(first);
+        messenger.addPeer(second);
+        IEventManager eventManager = new EventManager();
+        RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+        dispatcher.init(eventManager, messenger);
+        dispatcher.setChunkWindow(2);
+        try {
+            final List<Object> chunks = new ArrayList<Object>();
+            SayHello call = new SayHello("s", new JsonObject());
+            call.setChunkListener(new RpcCall.IChunkListener() {
+                public void onChunk(RpcCall call, Object chunk) {
+                    chunks.add(chunk);
+                }
+            });
+            eventManager.fireEvent(call);
+            PeerMessenger peer = first.fMessages.isEmpty() ? second : first;
+            PeerMessenger other = peer == first ? second : first;
+            assertEquals(1, peer.fMessages.size());
+
+            // Stream credits are sent to the peer executing the call
+            for (int i = 0; i < 4; i++) {
+                peer.onMessage("{\"method\":\""
+                    + RpcCallsDispatcher.METHOD_RESULT_CHUNK
+                    + "\",\"params\":{\"id\":\"s\",\"chunk\":"
+                    + i
+                    + "}}");
+            }
+            assertEquals(4, chunks.size());
+            assertTrue(peer.fMessages.size() > 1);
+            assertTrue(peer.fMessages.get(1).contains(
+                RpcCallsDispatcher.METHOD_STREAM_CREDIT));
+            assertTrue(other.fMessages.isEmpty());
+            peer.reply("s", "{}");
+            assertEquals(0, messenger.getOutstandingCount());
+        } finally {
+            dispatcher.done();
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,126 @@
+package org.ubimix.commons.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @author kotelnikov
+ */
+public class OrderedExecutorTest extends TestCase {
+
+    public OrderedExecutorTest(String name) {
+        super(name);
+    }
+
+    public void testLaneSize() throws Exception {
+        // This executor keeps lanes without running them
+        final List<Runnable> lanes = new ArrayList<Runnable>();
+        Executor pool = new Executor() {
+            public void execute(Runnable command) {
+                lanes.add(command);
+            }
+        };
+        OrderedExecutor executor = new OrderedExecutor(pool, 3, 2);
+        Runnable task = new Runnable() {
+            public void run() {
+            }
+        };
+        executor.execute("a", task);
+        executor.execute("a", task);
+        try {
+            executor.execute("a", task);
+            fail();
+        } catch (RejectedExecutionException e) {
+        }
+        // Other lanes are not affected
+        executor.execute("b", task);
+        assertEquals(2, lanes.size());
+        lanes.get(0).run();
+        assertEquals(1, executor.getLanesCount());
+    }
+
+    public void testOrdering() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            OrderedExecutor executor = new OrderedExecutor(pool, 3);
+            String[] keys = { "a", "b", "c" };
+            int count = 100;
+            final List<List<Integer>> results = new ArrayList<List<Integer>>();
+            final CountDownLatch finished = new CountDownLatch(keys.length
+                * count);
+            for (int i = 0; i < keys.length; i++) {
+                results.add(new ArrayList<Integer>());
+            }
+            for (int i = 0; i < count; i++) {
+                for (int k = 0; k < keys.length; k++) {
+                    final List<Integer> list = results.get(k);
+                    final int value = i;
+                    executor.execute(keys[k], new Runnable() {
+                        public void run() {
+                            // Tasks with the same key are never concurrent
+                            synchronized (list) {
+                                list.add(value);
+                            }
+                            finished.countDown();
+                        }
+                    });
+                }
+            }
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            for (List<Integer> list : results) {
+                assertEquals(count, list.size());
+                for (int i = 0; i < count; i++) {
+                    assertEquals(i, list.get(i).intValue());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public void testRejectedLane() throws Exception {
+        final List<Runnable> rejected = new ArrayList<Runnable>();
+        final OrderedExecutor[] executor = { null };
+        final Runnable second = new Runnable() {
+            public void run() {
+            }
+        };
+        // This executor accepts a new task of the lane before rejecting it
+        Executor pool = new Executor() {
+            public void execute(Runnable command) {
+                executor[0].execute("a", second);
+                throw new RejectedExecutionException();
+            }
+        };
+        executor[0] = new OrderedExecutor(pool) {
+            @Override
+            protected void onRejected(
+                Runnable task,
+                RejectedExecutionException e) {
+                rejected.add(task);
+            }
+        };
+        Runnable first = new Runnable() {
+            public void run() {
+            }
+        };
+        try {
+            executor[0].execute("a", first);
+            fail();
+        } catch (RejectedExecutionException e) {
+        }
+        // The task accepted meanwhile is rejected as well
+        assertEquals(1, rejected.size());
+        assertSame(second, rejected.get(0));
+        assertEquals(0, executor[0].getLanesCount());
+    }
+
+}
\ No newline at end of file
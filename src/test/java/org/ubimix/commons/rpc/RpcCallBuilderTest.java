@@ -0,0 +1,115 @@
+/**
+ * 
+ */
+package org.ubimix.commons.rpc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.events.EventListenerRegistry;
+import org.ubimix.commons.events.IEventListenerRegistry;
+import org.ubimix.commons.events.calls.CallListener;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.json.rpc.RpcRequest;
+import org.ubimix.commons.rpc.SandboxNamespace.GetGreeting;
+import org.ubimix.commons.rpc.SandboxNamespace.SayHello;
+
+/**
+ * @author kotelnikov
+ */
+public class RpcCallBuilderTest extends TestCase {
+
+    /**
+     * Listeners of this type are only used to register call types.
+     */
+    private static class TestListener<E extends RpcCall>
+        extends CallListener<E> {
+
+        @Override
+        protected void handleRequest(E event) {
+        }
+
+    }
+
+    /**
+     * @param name
+     */
+    public RpcCallBuilderTest(String name) {
+        super(name);
+    }
+
+    public void testRegistrations() throws Exception {
+        IEventListenerRegistry registry = new EventListenerRegistry();
+        RpcCallBuilder builder = new RpcCallBuilder(registry);
+        CallListener<SayHello> first = new TestListener<SayHello>();
+        CallListener<SayHello> second = new TestListener<SayHello>();
+        CallListener<GetGreeting> greeting = new TestListener<GetGreeting>();
+        RpcRequest request = new SayHello("1", new JsonObject()).getRequest();
+        String sayHello = RpcCall.getMethodName(SayHello.class);
+        String getGreeting = RpcCall.getMethodName(GetGreeting.class);
+        assertNull(builder.newRpcCall(request));
+
+        registry.addListener(SayHello.class, first);
+        registry.addListener(SayHello.class, second);
+        registry.addListener(GetGreeting.class, greeting);
+        assertTrue(builder.newRpcCall(request) instanceof SayHello);
+        String prefix = sayHello.substring(0, sayHello.lastIndexOf('.') + 1);
+        assertEquals(
+            Arrays.asList(getGreeting, sayHello),
+            builder.getMethodNames(prefix));
+        assertEquals(
+            Arrays.asList(sayHello),
+            builder.getMethodNames(sayHello));
+        assertTrue(builder.getMethodNames("unknown.").isEmpty());
+
+        // The method is available while at least one listener is registered
+        registry.removeListener(SayHello.class, first);
+        assertTrue(builder.newRpcCall(request) instanceof SayHello);
+        registry.removeListener(SayHello.class, second);
+        assertNull(builder.newRpcCall(request));
+        assertEquals(
+            Arrays.asList(getGreeting),
+            builder.getMethodNames(prefix));
+
+        // Removing of unknown listeners does not change registrations
+        registry.removeListener(SayHello.class, first);
+        registry.addListener(SayHello.class, first);
+        assertTrue(builder.newRpcCall(request) instanceof SayHello);
+    }
+
+    public void testResolvedTypes() throws Exception {
+        IEventListenerRegistry registry = new EventListenerRegistry();
+        final List<Class<?>> resolved = new ArrayList<Class<?>>();
+        RpcCallBuilder builder = new RpcCallBuilder(registry) {
+            @Override
+            protected IRpcCallBuilder newCallFactory(
+                Class<? extends RpcCall> type) {
+                resolved.add(type);
+                return super.newCallFactory(type);
+            }
+        };
+        CallListener<SayHello> listener = new TestListener<SayHello>();
+        CallListener<SayHello> second = new TestListener<SayHello>();
+        RpcRequest request = new SayHello("1", new JsonObject()).getRequest();
+
+        // Listeners of unregistered types are removed without resolving
+        registry.removeListener(SayHello.class, listener);
+        assertTrue(resolved.isEmpty());
+
+        registry.addListener(SayHello.class, listener);
+        registry.addListener(SayHello.class, second);
+        assertEquals(1, resolved.size());
+
+        // Types are forgotten with their last listener
+        registry.removeListener(SayHello.class, listener);
+        registry.removeListener(SayHello.class, second);
+        assertNull(builder.newRpcCall(request));
+        registry.addListener(SayHello.class, listener);
+        assertEquals(2, resolved.size());
+        assertTrue(builder.newRpcCall(request) instanceof SayHello);
+    }
+
+}
\ No newline at end of file
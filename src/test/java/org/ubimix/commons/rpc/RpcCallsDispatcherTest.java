@@ -3,12 +3,22 @@
  */
 package org.ubimix.commons.rpc;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import junit.framework.TestCase;
 
 import org.ubimix.commons.events.EventManager;
 import org.ubimix.commons.events.IEventManager;
 import org.ubimix.commons.events.calls.CallListener;
 import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.json.rpc.RpcError;
+import org.ubimix.commons.json.rpc.RpcRequest;
+import org.ubimix.commons.rpc.RpcCallsDispatcher.IRpcMessenger;
 import org.ubimix.commons.rpc.RpcCallsDispatcher.RpcMessenger;
 import org.ubimix.commons.rpc.SandboxNamespace.SayHello;
 
@@ -136,6 +146,86 @@ public class RpcCallsDispatcherTest extends TestCase {
 
     }
 
+    public void testCancel() throws Exception {
+        // The server keeps calls without replying
+        final List<SayHello> serverCalls = new ArrayList<SayHello>();
+        fServerEventManager.addListener(
+            SayHello.class,
+            new CallListener<SayHello>() {
+                @Override
+                protected void handleRequest(SayHello event) {
+                    serverCalls.add(event);
+                }
+            });
+        final List<SayHello> responses = new ArrayList<SayHello>();
+        SayHello call = new SayHello("123", new JsonObject());
+        fClientEventManager.fireEvent(call, new CallListener<SayHello>() {
+            @Override
+            protected void handleResponse(SayHello event) {
+                responses.add(event);
+            }
+        });
+        assertEquals(1, serverCalls.size());
+        assertEquals(1, fClientDispatcher.getInFlightCallsCount());
+        assertTrue(responses.isEmpty());
+
+        call.cancel();
+        assertTrue(call.isCancelled());
+        assertEquals(0, fClientDispatcher.getInFlightCallsCount());
+        assertEquals(1, responses.size());
+        assertEquals(RpcCall.ERROR_CANCELLED, call.getResultError().getCode());
+
+        // The server handler is notified about the cancellation
+        SayHello serverCall = serverCalls.get(0);
+        assertTrue(serverCall.isCancelled());
+        serverCall.reply(new JsonObject());
+        assertEquals(RpcCall.ERROR_CANCELLED, serverCall
+            .getResultError()
+            .getCode());
+        assertEquals(1, responses.size());
+    }
+
+    public void testCancelledRemoteCall() throws Exception {
+        // This messenger keeps sent messages without delivering them
+        final List<String> messages = new ArrayList<String>();
+        RpcMessenger messenger = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                messages.add(msg);
+            }
+        };
+        IEventManager eventManager = new EventManager();
+        final List<SayHello> serverCalls = new ArrayList<SayHello>();
+        eventManager.addListener(SayHello.class, new CallListener<SayHello>() {
+            @Override
+            protected void handleRequest(SayHello event) {
+                serverCalls.add(event);
+            }
+        });
+        RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+        dispatcher.init(eventManager, messenger);
+        try {
+            messenger.onMessage("{\"id\":\"1\","
+                + "\"method\":\"sandboxNamespace.sayHello\","
+                + "\"params\":{}}");
+            assertEquals(1, serverCalls.size());
+            messenger.onMessage("{\"method\":\""
+                + RpcCallsDispatcher.METHOD_CANCEL_REQUEST
+                + "\",\"params\":{\"id\":\"1\"}}");
+            SayHello serverCall = serverCalls.get(0);
+            assertTrue(serverCall.isCancelled());
+
+            // The peer forgot the call, so nothing is sent back
+            serverCall.reply(new JsonObject());
+            assertEquals(RpcCall.ERROR_CANCELLED, serverCall
+                .getResultError()
+                .getCode());
+            assertTrue(messages.isEmpty());
+        } finally {
+            dispatcher.done();
+        }
+    }
+
     public void testCallObjects() {
         JsonObject params = new JsonObject();
         params.setValue("name", "John Smith");
@@ -143,4 +233,621 @@ public class RpcCallsDispatcherTest extends TestCase {
         assertEquals("sandboxNamespace.sayHello", event.getMethod());
         assertEquals(params, event.getParams());
     }
+
+    public void testTimeout() throws Exception {
+        // This messenger never delivers messages to the peer
+        IRpcMessenger messenger = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+            }
+        };
+        HashedWheelTimer timer = new HashedWheelTimer(10, 64);
+        IEventManager eventManager = new EventManager();
+        RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+        dispatcher.init(eventManager, messenger);
+        dispatcher.setTimer(timer);
+        dispatcher.setTimeout(50);
+        try {
+            JsonObject params = new JsonObject();
+            params.setValue("name", "John Smith");
+            SayHello event = new SayHello("123", params);
+            final CountDownLatch latch = new CountDownLatch(1);
+            eventManager.fireEvent(event, new CallListener<SayHello>() {
+                @Override
+                protected void handleResponse(SayHello event) {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            RpcError error = event.getResultError();
+            assertNotNull(error);
+            assertEquals(RpcCall.ERROR_TIMEOUT, error.getCode());
+            assertNull(dispatcher.getEvent("123"));
+        } finally {
+            dispatcher.done();
+            timer.stop();
+        }
+    }
+
+    public void testCoalescingCalls() throws Exception {
+        // This messenger keeps sent messages without delivering them
+        final List<String> messages = new ArrayList<String>();
+        RpcMessenger messenger = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                messages.add(msg);
+            }
+        };
+        IEventManager eventManager = new EventManager();
+        RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+        dispatcher.init(eventManager, messenger);
+        dispatcher.setCoalescingCalls(true);
+        try {
+            SayHello[] calls = new SayHello[3];
+            for (int i = 0; i < calls.length; i++) {
+                JsonObject params = new JsonObject();
+                params.setValue("name", "John Smith");
+                calls[i] = new SayHello("" + (i + 1), params);
+                eventManager.fireEvent(calls[i]);
+            }
+            JsonObject params = new JsonObject();
+            params.setValue("name", "Jack Black");
+            SayHello other = new SayHello("4", params);
+            eventManager.fireEvent(other);
+
+            // Only the first of identical calls is sent to the peer
+            assertEquals(2, messages.size());
+            assertEquals(2, dispatcher.getInFlightCallsCount());
+
+            messenger.onMessage("{\"id\":\"1\",\"result\":{\"msg\":\"Hi!\"}}");
+            for (int i = 0; i < calls.length; i++) {
+                assertEquals("" + (i + 1), calls[i]
+                    .getResponse()
+                    .getIdAsString());
+                assertEquals("Hi!", calls[i].getResultObject().getString(
+                    "msg"));
+            }
+            // Each call has its own copy of the result
+            assertNotSame(
+                calls[0].getResultObject(),
+                calls[1].getResultObject());
+            assertNotSame(
+                calls[1].getResultObject(),
+                calls[2].getResultObject());
+            assertNull(other.getResponse());
+            assertEquals(1, dispatcher.getInFlightCallsCount());
+
+            // New calls are sent when the previous one is finished
+            SayHello next = new SayHello("5", calls[0].getParams());
+            eventManager.fireEvent(next);
+            assertEquals(3, messages.size());
+        } finally {
+            dispatcher.done();
+        }
+    }
+
+    public void testConcurrentDispatcher() throws Exception {
+        // This messenger keeps sent messages without delivering them
+        final List<String> messages = new ArrayList<String>();
+        RpcMessenger messenger = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                messages.add(msg);
+            }
+        };
+        IEventManager eventManager = new EventManager();
+        RpcCallsDispatcher dispatcher = new ConcurrentRpcCallsDispatcher();
+        dispatcher.init(eventManager, messenger);
+        dispatcher.setCoalescingCalls(true);
+        JsonObject params = new JsonObject();
+        params.setValue("name", "John Smith");
+        SayHello first = new SayHello("1", params);
+        SayHello second = new SayHello("2", params);
+        SayHello other = new SayHello("3", new JsonObject());
+        eventManager.fireEvent(first);
+        eventManager.fireEvent(second);
+        eventManager.fireEvent(other);
+        assertEquals(2, messages.size());
+        assertEquals(2, dispatcher.getInFlightCallsCount());
+
+        messenger.onMessage("{\"id\":\"1\",\"result\":{\"msg\":\"Hi!\"}}");
+        assertEquals("Hi!", first.getResultObject().getString("msg"));
+        assertEquals("Hi!", second.getResultObject().getString("msg"));
+        assertEquals(1, dispatcher.getInFlightCallsCount());
+
+        dispatcher.done();
+        assertEquals(0, dispatcher.getInFlightCallsCount());
+        assertEquals(RpcCall.ERROR_CANCELLED, other.getResultError().getCode());
+    }
+
+    public void testMaxInFlightCalls() throws Exception {
+        // This messenger never delivers messages to the peer
+        IRpcMessenger messenger = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+            }
+        };
+        IEventManager eventManager = new EventManager();
+        RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+        dispatcher.init(eventManager, messenger);
+        try {
+            dispatcher.setMaxInFlightCalls(
+                1,
+                RpcCallsDispatcher.OverflowPolicy.FAIL,
+                0);
+            SayHello first = new SayHello("1", new JsonObject());
+            eventManager.fireEvent(first);
+            assertEquals(1, dispatcher.getInFlightCallsCount());
+            assertNull(first.getResultError());
+
+            SayHello second = new SayHello("2", new JsonObject());
+            eventManager.fireEvent(second);
+            RpcError error = second.getResultError();
+            assertNotNull(error);
+            assertEquals(RpcCall.ERROR_OVERLOADED, error.getCode());
+            assertEquals(1, dispatcher.getInFlightCallsCount());
+
+            // Queued calls are sent when in-flight calls are finished
+            dispatcher.setMaxInFlightCalls(
+                1,
+                RpcCallsDispatcher.OverflowPolicy.QUEUE,
+                1);
+            SayHello third = new SayHello("3", new JsonObject());
+            eventManager.fireEvent(third);
+            assertEquals(1, dispatcher.getWaitingCallsCount());
+            SayHello fourth = new SayHello("4", new JsonObject());
+            eventManager.fireEvent(fourth);
+            assertEquals(RpcCall.ERROR_OVERLOADED, fourth
+                .getResultError()
+                .getCode());
+
+            assertSame(first, dispatcher.getEvent("1"));
+            assertEquals(0, dispatcher.getWaitingCallsCount());
+            assertEquals(1, dispatcher.getInFlightCallsCount());
+            assertSame(third, dispatcher.getEvent("3"));
+            assertEquals(0, dispatcher.getInFlightCallsCount());
+        } finally {
+            dispatcher.done();
+        }
+    }
+
+    public void testMaxInFlightCallsBlocking() throws Exception {
+        IRpcMessenger messenger = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+            }
+        };
+        IEventManager eventManager = new EventManager();
+        final BlockingRpcCallsDispatcher dispatcher = new BlockingRpcCallsDispatcher(
+            50);
+        dispatcher.init(eventManager, messenger);
+        try {
+            dispatcher.setMaxInFlightCalls(
+                1,
+                RpcCallsDispatcher.OverflowPolicy.FAIL,
+                0);
+            SayHello first = new SayHello("1", new JsonObject());
+            eventManager.fireEvent(first);
+            assertEquals(1, dispatcher.getInFlightCallsCount());
+
+            // The blocking time expires and the overflow policy is applied
+            SayHello second = new SayHello("2", new JsonObject());
+            eventManager.fireEvent(second);
+            assertEquals(RpcCall.ERROR_OVERLOADED, second
+                .getResultError()
+                .getCode());
+
+            // The blocked thread takes the slot released by another thread
+            dispatcher.setMaxBlockingTime(10000);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                    }
+                    dispatcher.getEvent("1");
+                }
+            };
+            thread.start();
+            SayHello third = new SayHello("3", new JsonObject());
+            eventManager.fireEvent(third);
+            thread.join();
+            assertNull(third.getResultError());
+            assertEquals(1, dispatcher.getInFlightCallsCount());
+            assertSame(third, dispatcher.getEvent("3"));
+        } finally {
+            dispatcher.done();
+        }
+    }
+
+    public void testMetrics() throws Exception {
+        RpcMetrics clientMetrics = new RpcMetrics();
+        RpcMetrics serverMetrics = new RpcMetrics();
+        fClientDispatcher.setClientMetrics(clientMetrics);
+        fServerDispatcher.setServerMetrics(serverMetrics);
+
+        // There is no handlers for this call on the server side
+        SayHello event = new SayHello("1", new JsonObject());
+        fClientEventManager.fireEvent(event);
+        assertEquals(RpcError.ERROR_METHOD_NOT_FOUND, event
+            .getResultError()
+            .getCode());
+
+        fServerEventManager.addListener(
+            SayHello.class,
+            new CallListener<SayHello>() {
+                @Override
+                protected void handleRequest(SayHello event) {
+                    event.reply(new JsonObject());
+                }
+            });
+        event = new SayHello("2", new JsonObject());
+        fClientEventManager.fireEvent(event);
+        assertFalse(event.hasErrors());
+
+        String method = event.getRequest().getMethod();
+        RpcMetrics.MethodMetrics methodMetrics = clientMetrics
+            .getMethodMetrics(method);
+        assertEquals(2, methodMetrics.getCallsCount());
+        assertEquals(1, methodMetrics.getErrorsCount());
+        assertEquals(0, methodMetrics.getInFlightCount());
+        assertEquals(2, sum(methodMetrics.getHistogram()));
+
+        // The first call was not registered on the server side
+        methodMetrics = serverMetrics.getMethodMetrics(method);
+        assertEquals(1, methodMetrics.getCallsCount());
+        assertEquals(0, methodMetrics.getErrorsCount());
+        methodMetrics = serverMetrics
+            .getMethodMetrics(IRpcMetrics.UNKNOWN_METHOD);
+        assertEquals(1, methodMetrics.getCallsCount());
+        assertEquals(1, methodMetrics.getErrorsCount());
+        assertEquals(0, methodMetrics.getInFlightCount());
+        assertEquals(2, serverMetrics.getMethods().size());
+        for (RpcMetrics metrics : new RpcMetrics[] {
+            clientMetrics,
+            serverMetrics }) {
+            assertEquals(1, metrics
+                .getErrorsCount(RpcError.ERROR_METHOD_NOT_FOUND));
+        }
+    }
+
+    public void testNotifications() throws Exception {
+        final List<String> serverMessages = new ArrayList<String>();
+        final RpcMessenger[] serverConnector = { null };
+        RpcMessenger clientConnector = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                serverConnector[0].onMessage(msg);
+            }
+        };
+        serverConnector[0] = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                serverMessages.add(msg);
+            }
+        };
+        IEventManager clientEventManager = new EventManager();
+        IEventManager serverEventManager = new EventManager();
+        RpcCallsDispatcher client = new RpcCallsDispatcher();
+        RpcCallsDispatcher server = new RpcCallsDispatcher();
+        client.init(clientEventManager, clientConnector);
+        server.init(serverEventManager, serverConnector[0]);
+        RpcMetrics metrics = new RpcMetrics();
+        server.setServerMetrics(metrics);
+        try {
+            final List<String> names = new ArrayList<String>();
+            serverEventManager.addListener(
+                SayHello.class,
+                new CallListener<SayHello>() {
+                    @Override
+                    protected void handleRequest(SayHello event) {
+                        names.add(event.getParamsAsObject().getString("name"));
+                        event.reply(new JsonObject());
+                    }
+                });
+            JsonObject params = new JsonObject();
+            params.setValue("name", "John Smith");
+            clientEventManager.fireEvent(new SayHello(null, params));
+            assertEquals(1, names.size());
+            assertEquals("John Smith", names.get(0));
+
+            // Unknown notifications received by the server are dropped
+            serverConnector[0].onMessage("{\"method\":\"unknown\"}");
+
+            // Notifications are never answered
+            assertEquals(0, serverMessages.size());
+            assertEquals(0, client.getInFlightCallsCount());
+            assertEquals(1, metrics
+                .getErrorsCount(RpcError.ERROR_METHOD_NOT_FOUND));
+            assertEquals(1, metrics
+                .getMethodMetrics(IRpcMetrics.UNKNOWN_METHOD)
+                .getErrorsCount());
+        } finally {
+            client.done();
+            server.done();
+        }
+    }
+
+    public void testNumericIds() throws Exception {
+        fServerEventManager.addListener(
+            SayHello.class,
+            new CallListener<SayHello>() {
+                @Override
+                protected void handleRequest(SayHello event) {
+                    event.reply(event.getParamsAsObject());
+                }
+            });
+        fClientDispatcher.setNumericIds(true);
+        Object id = fClientDispatcher.newRequestIdValue();
+        assertTrue(id instanceof Long);
+        assertFalse(id.equals(fClientDispatcher.newRequestIdValue()));
+
+        JsonObject params = new JsonObject();
+        params.setValue("name", "John Smith");
+        SayHello event = new SayHello(new RpcRequest()
+            .<RpcRequest> setId(id)
+            .setParams(params));
+        final JsonObject[] result = { null };
+        fClientEventManager.fireEvent(event, new CallListener<SayHello>() {
+            @Override
+            protected void handleResponse(SayHello event) {
+                result[0] = event.getResultObject();
+            }
+        });
+        assertFalse(event.hasResponseErrors());
+        assertEquals(params, result[0]);
+
+        // Saved calls are found by the numeric values of identifiers
+        SayHello saved = new SayHello(new RpcRequest()
+            .<RpcRequest> setId(5)
+            .setParams(params));
+        fClientDispatcher.saveEvent(Integer.valueOf(5), saved);
+        assertSame(saved, fClientDispatcher.getEvent(Long.valueOf(5)));
+        assertNull(fClientDispatcher.getEvent(Long.valueOf(5)));
+
+        // The concurrent dispatcher uses an atomic counter
+        RpcCallsDispatcher dispatcher = new ConcurrentRpcCallsDispatcher();
+        String first = dispatcher.newRequestId();
+        String second = dispatcher.newRequestId();
+        assertTrue(first.endsWith("-0"));
+        assertTrue(second.endsWith("-1"));
+        dispatcher.setNumericIds(true);
+        assertEquals(Long.valueOf(2), dispatcher.newRequestIdValue());
+    }
+
+    public void testBatch() throws Exception {
+        final List<String> clientMessages = new ArrayList<String>();
+        final List<String> serverMessages = new ArrayList<String>();
+        final RpcMessenger[] clientConnector = { null };
+        final RpcMessenger[] serverConnector = { null };
+        clientConnector[0] = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                clientMessages.add(msg);
+                serverConnector[0].onMessage(msg);
+            }
+        };
+        serverConnector[0] = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                serverMessages.add(msg);
+                clientConnector[0].onMessage(msg);
+            }
+        };
+        IEventManager clientEventManager = new EventManager();
+        IEventManager serverEventManager = new EventManager();
+        RpcCallsDispatcher clientDispatcher = new RpcCallsDispatcher();
+        RpcCallsDispatcher serverDispatcher = new RpcCallsDispatcher();
+        clientDispatcher.init(clientEventManager, clientConnector[0]);
+        serverDispatcher.init(serverEventManager, serverConnector[0]);
+        serverEventManager.addListener(
+            SayHello.class,
+            new CallListener<SayHello>() {
+                @Override
+                protected void handleRequest(SayHello event) {
+                    event.reply(event.getParamsAsObject());
+                }
+            });
+
+        HashedWheelTimer timer = new HashedWheelTimer(10, 64);
+        clientConnector[0].setBatchWindow(timer, 50);
+        try {
+            final CountDownLatch latch = new CountDownLatch(3);
+            CallListener<SayHello> listener = new CallListener<SayHello>() {
+                @Override
+                protected void handleResponse(SayHello event) {
+                    latch.countDown();
+                }
+            };
+            SayHello[] events = new SayHello[3];
+            for (int i = 0; i < events.length; i++) {
+                JsonObject params = new JsonObject();
+                params.setValue("name", "John Smith " + i);
+                events[i] = new SayHello("batch-" + i, params);
+                clientEventManager.fireEvent(events[i], listener);
+            }
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            for (SayHello event : events) {
+                assertFalse(event.hasResponseErrors());
+                assertEquals(event.getParamsAsObject(), event.getResultObject());
+            }
+            assertEquals(1, clientMessages.size());
+            assertEquals(1, serverMessages.size());
+            assertTrue(serverMessages.get(0).startsWith("["));
+        } finally {
+            clientDispatcher.done();
+            serverDispatcher.done();
+            timer.stop();
+        }
+    }
+
+    public void testBatchErrors() throws Exception {
+        final List<String> messages = new ArrayList<String>();
+        RpcMessenger messenger = new RpcMessenger() {
+            @Override
+            protected void sendMessage(String msg) {
+                messages.add(msg);
+            }
+        };
+        IEventManager eventManager = new EventManager();
+        RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+        dispatcher.init(eventManager, messenger);
+        eventManager.addListener(SayHello.class, new CallListener<SayHello>() {
+            @Override
+            protected void handleRequest(SayHello event) {
+                event.reply(event.getParamsAsObject());
+            }
+        });
+        try {
+            // An empty batch is answered with one error
+            messenger.onMessage("[]");
+            assertEquals(1, messages.size());
+            assertFalse(messages.get(0).startsWith("["));
+            assertTrue(messages.get(0).contains("-32600"));
+
+            // Duplicated identifiers are rejected
+            messages.clear();
+            String request = new SayHello("1", new JsonObject())
+                .getRequest()
+                .toString();
+            messenger.onMessage("[" + request + "," + request + "]");
+            assertEquals(1, messages.size());
+            assertTrue(messages.get(0).startsWith("["));
+            assertTrue(messages.get(0).contains("-32600"));
+            assertTrue(messages.get(0).contains("result"));
+        } finally {
+            dispatcher.done();
+        }
+    }
+
+    public void testMethodNames() {
+        String methodName = RpcCall.getMethodName(SayHello.class);
+        assertEquals("sandboxNamespace.sayHello", methodName);
+        assertSame(methodName, RpcCall.getMethodName(SayHello.class));
+        SayHello event = new SayHello("123", new JsonObject());
+        assertSame(methodName, event.getMethod());
+    }
+
+    public void testStreamMessenger() throws Exception {
+        final RpcStreamMessenger[] clientConnector = { null };
+        final RpcStreamMessenger[] serverConnector = { null };
+        clientConnector[0] = new RpcStreamMessenger() {
+            @Override
+            protected void sendMessage(ByteBuffer buf) throws IOException {
+                byte[] bytes = new byte[buf.remaining()];
+                buf.get(bytes);
+                serverConnector[0].onMessage(bytes, 0, bytes.length);
+            }
+        };
+        serverConnector[0] = new RpcStreamMessenger() {
+            @Override
+            protected void sendMessage(ByteBuffer buf) throws IOException {
+                clientConnector[0].onMessage(buf);
+            }
+        };
+        IEventManager clientEventManager = new EventManager();
+        IEventManager serverEventManager = new EventManager();
+        RpcCallsDispatcher clientDispatcher = new RpcCallsDispatcher();
+        RpcCallsDispatcher serverDispatcher = new RpcCallsDispatcher();
+        clientDispatcher.init(clientEventManager, clientConnector[0]);
+        serverDispatcher.init(serverEventManager, serverConnector[0]);
+        try {
+            serverEventManager.addListener(
+                SayHello.class,
+                new CallListener<SayHello>() {
+                    @Override
+                    protected void handleRequest(SayHello event) {
+                        event.reply(event.getParamsAsObject());
+                    }
+                });
+            JsonObject params = new JsonObject();
+            params.setValue("name", "J\u00e9r\u00f4me \"Smith\"");
+            SayHello event = new SayHello("123", params);
+            clientEventManager.fireEvent(event);
+            assertFalse(event.hasResponseErrors());
+            assertEquals(params, event.getResultObject());
+        } finally {
+            clientDispatcher.done();
+            serverDispatcher.done();
+        }
+    }
+
+    public void testStreaming() throws Exception {
+        final List<SayHello> serverCalls = new ArrayList<SayHello>();
+        fServerEventManager.addListener(
+            SayHello.class,
+            new CallListener<SayHello>() {
+                @Override
+                protected void handleRequest(SayHello event) {
+                    serverCalls.add(event);
+                }
+            });
+        final List<Object> chunks = new ArrayList<Object>();
+        fClientDispatcher.setChunkWindow(4);
+        SayHello call = new SayHello("123", new JsonObject());
+        call.setChunkListener(new RpcCall.IChunkListener() {
+            public void onChunk(RpcCall call, Object chunk) {
+                chunks.add(chunk);
+            }
+        });
+        fClientEventManager.fireEvent(call);
+        SayHello serverCall = serverCalls.get(0);
+        assertTrue(serverCall.isStreaming());
+        assertEquals(4, serverCall.getChunkCredit());
+        // The request of the call is not modified
+        assertNull(call.getRequest().getValue(RpcCallsDispatcher.CHUNK_CREDIT));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(serverCall.replyChunk("chunk-" + i));
+        }
+        // Credits are granted back when chunks are handled
+        assertEquals(4, serverCall.getChunkCredit());
+        assertEquals(10, chunks.size());
+        assertEquals("chunk-9", chunks.get(9));
+        assertFalse(call.hasResponse());
+        serverCall.reply(new JsonObject());
+        assertTrue(call.hasResponse());
+        assertFalse(serverCall.replyChunk("chunk-10"));
+        assertEquals(10, chunks.size());
+
+        // Calls without chunk listeners receive only complete results
+        SayHello simpleCall = new SayHello("124", new JsonObject());
+        fClientEventManager.fireEvent(simpleCall);
+        SayHello simpleServerCall = serverCalls.get(1);
+        assertFalse(simpleServerCall.isStreaming());
+        assertFalse(simpleServerCall.replyChunk("chunk"));
+
+        // Chunks are not sent without credits
+        final List<Object> sent = new ArrayList<Object>();
+        final int[] notifications = { 0 };
+        SayHello remoteCall = new SayHello("125", new JsonObject());
+        remoteCall.setChunkSender(new RpcCall.IChunkSender() {
+            public void sendChunk(RpcCall call, Object chunk) {
+                sent.add(chunk);
+            }
+        }, 2);
+        assertTrue(remoteCall.replyChunk("a"));
+        assertTrue(remoteCall.replyChunk("b"));
+        assertFalse(remoteCall.replyChunk("c"));
+        assertFalse(RpcChunkCredit.await(remoteCall, 10));
+        remoteCall.setChunkCreditListener(new Runnable() {
+            public void run() {
+                notifications[0]++;
+            }
+        });
+        remoteCall.addChunkCredit(1);
+        assertEquals(1, notifications[0]);
+        assertTrue(RpcChunkCredit.await(remoteCall, 10));
+        assertTrue(remoteCall.replyChunk("c"));
+        assertEquals(3, sent.size());
+    }
+
+    private long sum(long[] values) {
+        long result = 0;
+        for (long value : values) {
+            result += value;
+        }
+        return result;
+    }
+
 }
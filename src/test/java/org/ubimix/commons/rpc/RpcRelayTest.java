@@ -0,0 +1,184 @@
+/**
+ * 
+ */
+package org.ubimix.commons.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author kotelnikov
+ */
+public class RpcRelayTest extends TestCase {
+
+    /**
+     * Keeps all sent messages as strings.
+     */
+    private static class TestMessenger extends RpcStreamMessenger {
+
+        private final List<String> fMessages = new ArrayList<String>();
+
+        public void receive(String msg) throws IOException {
+            onMessage(ByteBuffer.wrap(msg.getBytes(UTF8)));
+        }
+
+        @Override
+        protected void sendMessage(ByteBuffer buf) throws IOException {
+            byte[] bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+            fMessages.add(new String(bytes, UTF8));
+        }
+
+    }
+
+    /**
+     * Collects scheduled tasks; tasks are executed by tests.
+     */
+    private static class TestTimer implements IRpcTimer {
+
+        private final List<Runnable> fTasks = new ArrayList<Runnable>();
+
+        public ITimeout schedule(final Runnable task, long delay) {
+            fTasks.add(task);
+            return new ITimeout() {
+                public boolean cancel() {
+                    return fTasks.remove(task);
+                }
+            };
+        }
+
+    }
+
+    /**
+     * @param name
+     */
+    public RpcRelayTest(String name) {
+        super(name);
+    }
+
+    public void testCancel() throws Exception {
+        RpcRelay relay = new RpcRelay();
+        TestMessenger upstream = new TestMessenger();
+        TestMessenger downstream = new TestMessenger();
+        upstream.setRelay(relay);
+        relay.addRoute("a.", downstream);
+
+        upstream.receive("{\"id\":\"x\",\"method\":\"a.b\",\"params\":[]}");
+        upstream.receive("{\"method\":\"$/cancelRequest\","
+            + "\"params\":{\"id\":\"x\"}}");
+        assertEquals(2, downstream.fMessages.size());
+        assertEquals(
+            "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\","
+                + "\"params\":{\"id\":\"relay-1\"}}",
+            downstream.fMessages.get(1));
+
+        // The cancelled call is forgotten; a late response is dropped
+        assertEquals(0, relay.getPendingCount());
+        downstream.receive("{\"id\":\"relay-1\","
+            + "\"error\":{\"code\":-32800,\"message\":\"Cancelled\"}}");
+        assertEquals(0, upstream.fMessages.size());
+    }
+
+    public void testClose() throws Exception {
+        RpcRelay relay = new RpcRelay();
+        TestMessenger first = new TestMessenger();
+        TestMessenger second = new TestMessenger();
+        TestMessenger downstream = new TestMessenger();
+        first.setRelay(relay);
+        second.setRelay(relay);
+        relay.addRoute("a.", downstream);
+
+        first.receive("{\"id\":1,\"method\":\"a.b\"}");
+        second.receive("{\"id\":1,\"method\":\"a.b\"}");
+        assertEquals(2, relay.getPendingCount());
+
+        // Calls of a closed source are cancelled on the downstream peer
+        relay.onClose(first);
+        assertEquals(1, relay.getPendingCount());
+        assertEquals(3, downstream.fMessages.size());
+        assertEquals(
+            "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\","
+                + "\"params\":{\"id\":\"relay-1\"}}",
+            downstream.fMessages.get(2));
+        assertEquals(0, first.fMessages.size());
+
+        // Calls sent to a closed downstream messenger fail
+        relay.onClose(downstream);
+        assertEquals(0, relay.getPendingCount());
+        assertEquals(1, second.fMessages.size());
+        String response = second.fMessages.get(0);
+        assertTrue(response.contains("\"id\":1"));
+        assertTrue(response.contains("\"error\""));
+    }
+
+    public void testForward() throws Exception {
+        RpcRelay relay = new RpcRelay();
+        TestMessenger upstream = new TestMessenger();
+        TestMessenger users = new TestMessenger();
+        TestMessenger admins = new TestMessenger();
+        upstream.setRelay(relay);
+        relay.addRoute("users.", users);
+        relay.addRoute("users.admin.", admins);
+        assertSame(users, relay.getRoute("users.get"));
+        assertSame(admins, relay.getRoute("users.admin.get"));
+        assertNull(relay.getRoute("orders.get"));
+
+        String params = "{\"name\":\"\\\"}\\\"\",\"list\":[1,{\"id\":2}]}";
+        upstream.receive(" { \"jsonrpc\":\"2.0\", \"params\":"
+            + params
+            + ",\"id\" : 15, \"method\":\"users.get\"}");
+        assertEquals(1, users.fMessages.size());
+        assertEquals(" { \"jsonrpc\":\"2.0\", \"params\":"
+            + params
+            + ",\"id\" : \"relay-1\", \"method\":\"users.get\"}", users.fMessages
+            .get(0));
+        assertEquals(1, relay.getPendingCount());
+
+        users.receive("{\"jsonrpc\":\"2.0\",\"id\":\"relay-1\","
+            + "\"result\":{\"id\":3}}");
+        assertEquals(0, relay.getPendingCount());
+        assertEquals(1, upstream.fMessages.size());
+        assertEquals(
+            "{\"jsonrpc\":\"2.0\",\"id\":15,\"result\":{\"id\":3}}",
+            upstream.fMessages.get(0));
+
+        // Notifications are forwarded "as is"
+        String notification = "{\"method\":\"users.admin.ping\"}";
+        upstream.receive(notification);
+        assertEquals(1, admins.fMessages.size());
+        assertEquals(notification, admins.fMessages.get(0));
+        assertEquals(0, relay.getPendingCount());
+    }
+
+    public void testTimeout() throws Exception {
+        RpcRelay relay = new RpcRelay();
+        TestTimer timer = new TestTimer();
+        relay.setTimeout(timer, 1000);
+        TestMessenger upstream = new TestMessenger();
+        TestMessenger downstream = new TestMessenger();
+        upstream.setRelay(relay);
+        relay.addRoute("a.", downstream);
+
+        upstream.receive("{\"id\":\"first\",\"method\":\"a.b\"}");
+        upstream.receive("{\"id\":\"second\",\"method\":\"a.b\"}");
+        assertEquals(2, timer.fTasks.size());
+        downstream.receive("{\"id\":\"relay-2\",\"result\":true}");
+        assertEquals(1, timer.fTasks.size());
+
+        timer.fTasks.get(0).run();
+        assertEquals(0, relay.getPendingCount());
+        assertEquals(2, upstream.fMessages.size());
+        String response = upstream.fMessages.get(1);
+        assertTrue(response.contains("\"id\":\"first\""));
+        assertTrue(response.contains("\"error\""));
+
+        // Late responses are dropped
+        downstream.receive("{\"id\":\"relay-1\",\"result\":true}");
+        assertEquals(2, upstream.fMessages.size());
+    }
+
+}
\ No newline at end of file
@@ -11,6 +11,22 @@ import org.ubimix.commons.json.rpc.RpcRequest;
  */
 public class SandboxNamespace {
 
+    public static class GetGreeting extends RpcCall implements ICacheableCall {
+
+        public GetGreeting(RpcRequest request) {
+            super(request);
+        }
+
+        public GetGreeting(String id, JsonValue params) {
+            super(id, params);
+        }
+
+        public long getCacheTimeout() {
+            return 60 * 1000;
+        }
+
+    }
+
     public static class SayHello extends RpcCall {
 
         /**
@@ -0,0 +1,281 @@
+/**
+ * 
+ */
+package org.ubimix.commons.rpc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.events.EventListenerRegistry;
+import org.ubimix.commons.events.EventManager;
+import org.ubimix.commons.events.IEventListenerRegistry;
+import org.ubimix.commons.events.IEventManager;
+import org.ubimix.commons.events.calls.CallListener;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.json.rpc.IRpcCallHandler.IRpcCallback;
+import org.ubimix.commons.json.rpc.RpcError;
+import org.ubimix.commons.json.rpc.RpcRequest;
+import org.ubimix.commons.json.rpc.RpcResponse;
+import org.ubimix.commons.rpc.SandboxNamespace.GetGreeting;
+import org.ubimix.commons.rpc.SandboxNamespace.SayHello;
+
+/**
+ * @author kotelnikov
+ */
+public class ServerRpcCallHandlerTest extends TestCase {
+
+    private ExecutorService fExecutor;
+
+    private IEventManager fServerEventManager;
+
+    private IEventListenerRegistry fServerListenerRegistry;
+
+    /**
+     * @param name
+     */
+    public ServerRpcCallHandlerTest(String name) {
+        super(name);
+    }
+
+    private RpcRequest newRequest(String id) {
+        JsonObject params = new JsonObject();
+        params.setValue("name", "John Smith");
+        return new SayHello(id, params).getRequest();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        fExecutor = Executors.newCachedThreadPool();
+        fServerListenerRegistry = new EventListenerRegistry();
+        fServerEventManager = new EventManager(fServerListenerRegistry);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        fExecutor.shutdownNow();
+    }
+
+    public void testAsyncHandling() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        fServerEventManager.addListener(
+            SayHello.class,
+            new CallListener<SayHello>() {
+                @Override
+                protected void handleRequest(SayHello event) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    event.reply(event.getParamsAsObject());
+                }
+            });
+        RpcCallBuilder callBuilder = new RpcCallBuilder(fServerListenerRegistry);
+        ServerRpcCallHandler handler = new ServerRpcCallHandler(
+            fServerEventManager,
+            callBuilder,
+            fExecutor,
+            2,
+            1);
+        final RpcResponse[] responses = new RpcResponse[4];
+        final CountDownLatch finished = new CountDownLatch(responses.length);
+        for (int i = 0; i < responses.length; i++) {
+            final int idx = i;
+            handler.handle(newRequest("id-" + i), new IRpcCallback() {
+                public void finish(RpcResponse response) {
+                    responses[idx] = response;
+                    finished.countDown();
+                }
+            });
+            if (i == 1) {
+                // Both workers are blocked by slow handlers
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+            }
+        }
+        // The last call was rejected because the queue is full
+        assertNotNull(responses[3]);
+        assertEquals(RpcCall.ERROR_OVERLOADED, responses[3]
+            .getError()
+            .getCode());
+        assertEquals(1, handler.getQueueSize());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            assertFalse(responses[i].hasErrors());
+        }
+        assertEquals(0, handler.getQueueSize());
+    }
+
+    public void testRecycling() throws Exception {
+        fServerEventManager.addListener(
+            SayHello.class,
+            new CallListener<SayHello>() {
+                @Override
+                protected void handleRequest(SayHello event) {
+                    event.reply(event.getParamsAsObject());
+                }
+            });
+        RpcCallBuilder callBuilder = new RpcCallBuilder(fServerListenerRegistry);
+        ServerRpcCallHandler handler = new ServerRpcCallHandler(
+            fServerEventManager,
+            callBuilder);
+        handler.setRecycling(2);
+        final List<RpcResponse> responses = new ArrayList<RpcResponse>();
+        IRpcCallback callback = new IRpcCallback() {
+            public void finish(RpcResponse response) {
+                responses.add(response);
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            handler.handle(newRequest("id-" + i), callback);
+            // The context of the finished call is re-used by the next call
+            assertEquals(1, handler.getRecycledCount());
+        }
+        handler.handle(
+            new GetGreeting("id-3", new JsonObject()).getRequest(),
+            callback);
+        assertEquals(1, handler.getRecycledCount());
+
+        assertEquals(4, responses.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("id-" + i, responses.get(i).getIdAsString());
+            assertFalse(responses.get(i).hasErrors());
+        }
+        assertEquals(RpcError.ERROR_METHOD_NOT_FOUND, responses
+            .get(3)
+            .getError()
+            .getCode());
+
+        handler.setRecycling(0);
+        assertEquals(0, handler.getRecycledCount());
+    }
+
+    public void testResponseCache() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+        fServerEventManager.addListener(
+            GetGreeting.class,
+            new CallListener<GetGreeting>() {
+                @Override
+                protected void handleRequest(GetGreeting event) {
+                    counter.incrementAndGet();
+                    JsonObject result = new JsonObject();
+                    result.setValue("msg", "Hello "
+                        + event.getParamsAsObject().getString("name"));
+                    event.reply(result);
+                }
+            });
+        RpcCallBuilder callBuilder = new RpcCallBuilder(fServerListenerRegistry);
+        ServerRpcCallHandler handler = new ServerRpcCallHandler(
+            fServerEventManager,
+            callBuilder);
+        RpcResponseCache cache = new RpcResponseCache(16);
+        handler.setResponseCache(cache);
+
+        final RpcResponse[] responses = new RpcResponse[3];
+        for (int i = 0; i < responses.length; i++) {
+            // The order of parameters should not change cache keys
+            JsonObject params = new JsonObject();
+            if (i % 2 == 0) {
+                params.setValue("name", "John Smith");
+                params.setValue("lang", "en");
+            } else {
+                params.setValue("lang", "en");
+                params.setValue("name", "John Smith");
+            }
+            RpcRequest request = new GetGreeting("id-" + i, params)
+                .getRequest();
+            final int idx = i;
+            handler.handle(request, new IRpcCallback() {
+                public void finish(RpcResponse response) {
+                    responses[idx] = response;
+                }
+            });
+        }
+        assertEquals(1, counter.get());
+        assertEquals(2, cache.getHitsCount());
+        assertEquals(1, cache.getMissesCount());
+        for (int i = 0; i < responses.length; i++) {
+            assertEquals("id-" + i, responses[i].getIdAsString());
+            assertEquals("Hello John Smith", responses[i]
+                .getResultObject()
+                .getString("msg"));
+        }
+        // Each hit receives its own copy of the cached result
+        assertNotSame(
+            responses[1].getResultObject(),
+            responses[2].getResultObject());
+        responses[1].getResultObject().setValue("msg", "Changed");
+        assertEquals("Hello John Smith", responses[2]
+            .getResultObject()
+            .getString("msg"));
+
+        // Not cacheable calls are always handled
+        handler.handle(newRequest("hello"), new IRpcCallback() {
+            public void finish(RpcResponse response) {
+            }
+        });
+        assertEquals(1, cache.getSize());
+
+        cache.invalidate(GetGreeting.getMethodName(GetGreeting.class));
+        assertEquals(0, cache.getSize());
+        handler.handle(new GetGreeting("id-3", new JsonObject())
+            .getRequest(), new IRpcCallback() {
+            public void finish(RpcResponse response) {
+            }
+        });
+        assertEquals(2, counter.get());
+    }
+
+    public void testSerializedResponseCache() throws Exception {
+        fServerEventManager.addListener(
+            GetGreeting.class,
+            new CallListener<GetGreeting>() {
+                @Override
+                protected void handleRequest(GetGreeting event) {
+                    JsonObject result = new JsonObject();
+                    result.setValue("msg", "Hello");
+                    event.reply(result);
+                }
+            });
+        RpcCallBuilder callBuilder = new RpcCallBuilder(fServerListenerRegistry);
+        ServerRpcCallHandler handler = new ServerRpcCallHandler(
+            fServerEventManager,
+            callBuilder);
+        handler.setResponseCache(new SerializedRpcResponseCache(16));
+        final RpcResponse[] responses = new RpcResponse[3];
+        for (int i = 0; i < responses.length; i++) {
+            RpcRequest request = new GetGreeting("id-" + i, new JsonObject())
+                .getRequest();
+            final int idx = i;
+            handler.handle(request, new IRpcCallback() {
+                public void finish(RpcResponse response) {
+                    responses[idx] = response;
+                }
+            });
+        }
+
+        // Hits share the serialized result; it is written "as is"
+        Object result = responses[1].getValue("result");
+        assertTrue(result instanceof RawJson);
+        assertSame(result, responses[2].getValue("result"));
+        ByteBufferPool pool = new ByteBufferPool();
+        ByteBuffer buf = JsonRpcCodec.INSTANCE.encode(responses[2], pool);
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        pool.release(buf);
+        String text = new String(bytes, RpcStreamMessenger.UTF8);
+        assertTrue(text.contains("\"result\":{\"msg\":\"Hello\"}"));
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,118 @@
+package org.ubimix.commons.rpc.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.rpc.ByteBufferPool;
+
+/**
+ * @author kotelnikov
+ */
+public class DeflateCompressorTest extends TestCase {
+
+    private static ByteBuffer join(ByteBuffer[] chunks, boolean direct) {
+        int len = 0;
+        for (ByteBuffer chunk : chunks) {
+            len += chunk.remaining();
+        }
+        ByteBuffer result = direct
+            ? ByteBuffer.allocateDirect(len)
+            : ByteBuffer.allocate(len);
+        for (ByteBuffer chunk : chunks) {
+            result.put(chunk.duplicate());
+        }
+        result.flip();
+        return result;
+    }
+
+    private static void release(ByteBufferPool pool, ByteBuffer[] chunks) {
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param name
+     */
+    public DeflateCompressorTest(String name) {
+        super(name);
+    }
+
+    public void testCompress() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(256, 8, false);
+        IRpcCompressor compressor = DeflateCompressor.INSTANCE;
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            buf.append("{\"id\":").append(i).append(",\"name\":\"item\"},");
+        }
+        byte[] data = buf.toString().getBytes("UTF-8");
+        for (int i = 0; i < 2; i++) {
+            // Direct and heap buffers
+            ByteBuffer src = i == 0
+                ? ByteBuffer.wrap(data)
+                : ByteBuffer.allocateDirect(data.length);
+            if (i > 0) {
+                src.put(data).flip();
+            }
+            ByteBuffer[] chunks = compressor.compress(src, pool);
+            assertNotNull(chunks);
+            assertEquals(data.length, src.remaining());
+            // Compressed data is split between buffers of the pool
+            assertTrue(chunks.length > 1);
+            for (ByteBuffer chunk : chunks) {
+                assertTrue(chunk.remaining() <= pool.getBufferSize());
+            }
+            ByteBuffer compressed = join(chunks, i > 0);
+            assertTrue(compressed.remaining() < data.length / 5);
+            ByteBuffer result = compressor.decompress(
+                compressed,
+                pool,
+                data.length);
+            assertFalse(compressed.hasRemaining());
+            assertTrue(Arrays.equals(data, toBytes(result)));
+            pool.release(result);
+            release(pool, chunks);
+        }
+    }
+
+    public void testErrors() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(1024, 8, false);
+        IRpcCompressor compressor = DeflateCompressor.INSTANCE;
+        byte[] data = new byte[4096];
+        ByteBuffer compressed = join(
+            compressor.compress(ByteBuffer.wrap(data), pool),
+            false);
+        try {
+            compressor.decompress(compressed, pool, data.length - 1);
+            fail();
+        } catch (IOException e) {
+        }
+        ByteBuffer bad = ByteBuffer.allocate(16);
+        bad.putInt(8).put(new byte[] { 1, 2, 3 }).flip();
+        try {
+            compressor.decompress(bad, pool, 1024);
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    public void testIncompressible() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(1024, 8, false);
+        IRpcCompressor compressor = DeflateCompressor.INSTANCE;
+        byte[] data = new byte[2048];
+        new Random(1).nextBytes(data);
+        assertNull(compressor.compress(ByteBuffer.wrap(data), pool));
+        assertNull(compressor.compress(ByteBuffer.wrap(new byte[3]), pool));
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,195 @@
+package org.ubimix.commons.rpc.nio;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.ubimix.commons.events.EventManager;
+import org.ubimix.commons.events.IEventManager;
+import org.ubimix.commons.events.calls.CallListener;
+import org.ubimix.commons.json.JsonObject;
+import org.ubimix.commons.rpc.BinaryRpcCodec;
+import org.ubimix.commons.rpc.IRpcCodec;
+import org.ubimix.commons.rpc.JsonRpcCodec;
+import org.ubimix.commons.rpc.RpcCallsDispatcher;
+import org.ubimix.commons.rpc.SandboxNamespace.SayHello;
+
+/**
+ * @author kotelnikov
+ */
+public class NioRpcTransportTest extends TestCase {
+
+    private static String newName(int size) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            buf.append((char) ('a' + (i % 26)));
+        }
+        return buf.toString();
+    }
+
+    public NioRpcTransportTest(String name) {
+        super(name);
+    }
+
+    private void checkLoopback(
+        final IRpcCodec[] serverCodecs,
+        IRpcCodec[] clientCodecs,
+        IRpcCodec expectedCodec) throws Exception {
+        checkLoopback(serverCodecs, clientCodecs, expectedCodec, null);
+    }
+
+    private void checkLoopback(
+        final IRpcCodec[] serverCodecs,
+        IRpcCodec[] clientCodecs,
+        IRpcCodec expectedCodec,
+        final IRpcCompressor compressor) throws Exception {
+        NioEventLoopGroup group = new NioEventLoopGroup(2);
+        final CountDownLatch closed = new CountDownLatch(1);
+        NioRpcServer server = new NioRpcServer(
+            group,
+            new INioConnectionHandler() {
+                public void onClose(NioRpcMessenger messenger) {
+                    closed.countDown();
+                }
+
+                public void onOpen(NioRpcMessenger messenger) {
+                    messenger.setCodecs(serverCodecs);
+                    if (compressor != null) {
+                        messenger.setCompression(1024, compressor);
+                    }
+                    IEventManager eventManager = new EventManager();
+                    eventManager.addListener(
+                        SayHello.class,
+                        new CallListener<SayHello>() {
+                            @Override
+                            protected void handleRequest(SayHello event) {
+                                JsonObject params = event.getParamsAsObject();
+                                String name = params.getString("name");
+                                JsonObject result = new JsonObject();
+                                result.setValue("msg", "Hello, " + name + "!");
+                                event.reply(result);
+                            }
+                        });
+                    RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+                    dispatcher.init(eventManager, messenger);
+                }
+            });
+        try {
+            InetSocketAddress address = server.bind(new InetSocketAddress(
+                "127.0.0.1",
+                0));
+            NioRpcClient client = new NioRpcClient(group);
+            NioRpcMessenger messenger = client.connect(address);
+            messenger.setCodecs(clientCodecs);
+            if (compressor != null) {
+                messenger.setCompression(1024, compressor);
+            }
+            IEventManager eventManager = new EventManager();
+            RpcCallsDispatcher dispatcher = new RpcCallsDispatcher();
+            dispatcher.init(eventManager, messenger);
+            messenger.start();
+
+            // The second message does not fit in read buffers
+            int[] sizes = { 10, 100 * 1024 };
+            for (int i = 0; i < sizes.length; i++) {
+                String name = newName(sizes[i]);
+                JsonObject params = new JsonObject();
+                params.setValue("name", name);
+                SayHello event = new SayHello("id-" + i, params);
+                final CountDownLatch latch = new CountDownLatch(1);
+                eventManager.fireEvent(event, new CallListener<SayHello>() {
+                    @Override
+                    protected void handleResponse(SayHello event) {
+                        latch.countDown();
+                    }
+                });
+                assertTrue(latch.await(5, TimeUnit.SECONDS));
+                assertFalse(event.hasErrors());
+                assertEquals("Hello, " + name + "!", event
+                    .getResultObject()
+                    .getString("msg"));
+            }
+
+            // Calls could be sent before the negotiation is finished
+            assertEquals(expectedCodec, messenger.getCodec());
+            assertSame(compressor, messenger.getCompressor());
+
+            messenger.close();
+            assertTrue(messenger.isClosed());
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            dispatcher.done();
+        } finally {
+            server.close();
+            group.stop();
+        }
+    }
+
+    public void testCodecNegotiation() throws Exception {
+        IRpcCodec[] binary = { BinaryRpcCodec.INSTANCE };
+        IRpcCodec[] json = { JsonRpcCodec.INSTANCE };
+        checkLoopback(binary, binary, BinaryRpcCodec.INSTANCE);
+        checkLoopback(json, binary, JsonRpcCodec.INSTANCE);
+    }
+
+    public void testCompression() throws Exception {
+        IRpcCodec[] binary = { BinaryRpcCodec.INSTANCE };
+        IRpcCodec[] json = { JsonRpcCodec.INSTANCE };
+        checkLoopback(
+            json,
+            json,
+            JsonRpcCodec.INSTANCE,
+            DeflateCompressor.INSTANCE);
+        checkLoopback(
+            binary,
+            binary,
+            BinaryRpcCodec.INSTANCE,
+            DeflateCompressor.INSTANCE);
+    }
+
+    public void testFailedConnection() throws Exception {
+        NioEventLoopGroup group = new NioEventLoopGroup(1);
+        final AtomicInteger counter = new AtomicInteger();
+        final CountDownLatch opened = new CountDownLatch(1);
+        NioRpcServer server = new NioRpcServer(
+            group,
+            new INioConnectionHandler() {
+                public void onClose(NioRpcMessenger messenger) {
+                }
+
+                public void onOpen(NioRpcMessenger messenger) {
+                    if (counter.incrementAndGet() == 1) {
+                        throw new IllegalStateException("Rejected.");
+                    }
+                    opened.countDown();
+                }
+            });
+        try {
+            InetSocketAddress address = server.bind(new InetSocketAddress(
+                "127.0.0.1",
+                0));
+            // The failed connection is closed by the server
+            Socket first = new Socket(address.getAddress(), address.getPort());
+            first.setSoTimeout(5000);
+            assertEquals(-1, first.getInputStream().read());
+            first.close();
+
+            // The server socket is still open
+            Socket second = new Socket(address.getAddress(), address.getPort());
+            assertTrue(opened.await(5, TimeUnit.SECONDS));
+            second.close();
+        } finally {
+            server.close();
+            group.stop();
+        }
+    }
+
+    public void testLoopback() throws Exception {
+        IRpcCodec[] json = { JsonRpcCodec.INSTANCE };
+        checkLoopback(json, json, JsonRpcCodec.INSTANCE);
+    }
+
+}
\ No newline at end of file